@@ -0,0 +1,184 @@
+package org.tensorflow.ampelpilot;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaMetadataRetriever;
+import android.media.SoundPool;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.Voice;
+import android.util.Log;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fixed phrases synthesized once to files and played through a {@link SoundPool}.
+ *
+ * <p>TextToSpeech synthesizes every utterance when it is spoken, which delays the start of speech
+ * by a varying amount. The phrases the app repeats all the time are therefore synthesized with
+ * {@link TextToSpeech#synthesizeToFile} when the engine is ready, kept in the cache directory
+ * across runs, and decoded into a SoundPool, which starts playback without that delay.
+ */
+public class AudioCueCache {
+  private static final String TAG = "AudioCueCache";
+
+  private static final String UTTERANCE_PREFIX = "cue:";
+  private static final String DIRECTORY = "cues";
+  private static final int MAX_STREAMS = 2;
+
+  private final File directory;
+  private final SoundPool soundPool;
+
+  // Utterance id to phrase, while synthesizing.
+  private final Map<String, String> synthesizing = new ConcurrentHashMap<String, String>();
+  private final Map<String, File> synthesizedFiles = new ConcurrentHashMap<String, File>();
+  // Sound id to phrase, while loading into the pool.
+  private final Map<Integer, String> loading = new ConcurrentHashMap<Integer, String>();
+  // Phrase to sound id, once playable.
+  private final Map<String, Integer> loaded = new ConcurrentHashMap<String, Integer>();
+  // Phrase to the length of its audio. SoundPool doesn't report when a stream ends.
+  private final Map<String, Long> durationsMs = new ConcurrentHashMap<String, Long>();
+
+  private int nextUtteranceId;
+  private int streamId;
+  // SystemClock.uptimeMillis() at which the last played cue ends.
+  private long playingUntilMs;
+
+  public AudioCueCache(final Context context) {
+    directory = new File(context.getCacheDir(), DIRECTORY);
+    soundPool =
+        new SoundPool.Builder()
+            .setMaxStreams(MAX_STREAMS)
+            .setAudioAttributes(
+                new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build())
+            .build();
+    soundPool.setOnLoadCompleteListener(
+        new SoundPool.OnLoadCompleteListener() {
+          @Override
+          public void onLoadComplete(final SoundPool pool, final int sampleId, final int status) {
+            final String phrase = loading.remove(sampleId);
+            if (phrase != null && status == 0) {
+              loaded.put(phrase, sampleId);
+            }
+          }
+        });
+  }
+
+  /** Whether the utterance id belongs to a synthesis started by {@link #prepare}. */
+  public static boolean isCueUtterance(final String utteranceId) {
+    return utteranceId != null && utteranceId.startsWith(UTTERANCE_PREFIX);
+  }
+
+  /**
+   * Loads the phrases from earlier runs and synthesizes the missing ones. Call once the engine is
+   * initialized; the phrases become playable in the background.
+   */
+  public synchronized void prepare(
+      final TextToSpeech textToSpeech, final Iterable<String> phrases) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Can't create " + directory + ", speaking cues live");
+      return;
+    }
+    final Voice voice = textToSpeech.getVoice();
+    final String voiceName = voice != null ? voice.getName() : "";
+    for (final String phrase : phrases) {
+      if (loaded.containsKey(phrase)
+          || loading.containsValue(phrase)
+          || synthesizing.containsValue(phrase)) {
+        continue;
+      }
+      // The file depends on the voice, so a changed voice synthesizes the phrase again.
+      final File file =
+          new File(directory, Integer.toHexString((voiceName + "|" + phrase).hashCode()) + ".wav");
+      if (file.length() > 0) {
+        load(phrase, file);
+        continue;
+      }
+      final String utteranceId = UTTERANCE_PREFIX + nextUtteranceId++;
+      synthesizing.put(utteranceId, phrase);
+      synthesizedFiles.put(utteranceId, file);
+      if (textToSpeech.synthesizeToFile(phrase, null, file, utteranceId) == TextToSpeech.ERROR) {
+        synthesizing.remove(utteranceId);
+        synthesizedFiles.remove(utteranceId);
+      }
+    }
+  }
+
+  /** Called by the utterance listener when a synthesis started by {@link #prepare} ended. */
+  public synchronized void onSynthesized(final String utteranceId, final boolean success) {
+    final String phrase = synthesizing.remove(utteranceId);
+    final File file = synthesizedFiles.remove(utteranceId);
+    if (phrase == null) {
+      return;
+    }
+    if (success) {
+      load(phrase, file);
+    } else {
+      file.delete();
+    }
+  }
+
+  private void load(final String phrase, final File file) {
+    durationsMs.put(phrase, readDurationMs(file));
+    loading.put(soundPool.load(file.getPath(), 1), phrase);
+  }
+
+  private static long readDurationMs(final File file) {
+    final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+    try {
+      retriever.setDataSource(file.getPath());
+      final String duration =
+          retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+      return duration != null ? Long.parseLong(duration) : 0;
+    } catch (final RuntimeException e) {
+      Log.w(TAG, "Can't read the duration of " + file, e);
+      return 0;
+    } finally {
+      retriever.release();
+    }
+  }
+
+  /**
+   * Plays a prepared phrase.
+   *
+   * @param flush Stops the cue that is still playing.
+   * @return false if the phrase isn't playable (yet); it must then be spoken live.
+   */
+  public synchronized boolean play(final String phrase, final boolean flush) {
+    final Integer soundId = loaded.get(phrase);
+    if (soundId == null) {
+      return false;
+    }
+    if (flush && streamId != 0) {
+      soundPool.stop(streamId);
+    }
+    streamId = soundPool.play(soundId, 1.0f, 1.0f, 1, 0, 1.0f);
+    if (streamId == 0) {
+      return false;
+    }
+    final Long durationMs = durationsMs.get(phrase);
+    playingUntilMs = SystemClock.uptimeMillis() + (durationMs != null ? durationMs : 0);
+    return true;
+  }
+
+  /**
+   * Milliseconds until the last played cue ends, judged by the length of its audio; 0 if none is
+   * playing.
+   */
+  public synchronized long getRemainingMs() {
+    return streamId != 0 ? Math.max(0, playingUntilMs - SystemClock.uptimeMillis()) : 0;
+  }
+
+  public synchronized void release() {
+    soundPool.release();
+    loaded.clear();
+    durationsMs.clear();
+    loading.clear();
+    synthesizing.clear();
+    synthesizedFiles.clear();
+  }
+}
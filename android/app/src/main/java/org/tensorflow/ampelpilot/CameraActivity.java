@@ -40,6 +40,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatCallback;
@@ -56,6 +57,12 @@ import android.widget.Toast;
 import java.nio.ByteBuffer;
 
 import org.tensorflow.ampelpilot.env.ImageUtils;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+import org.tensorflow.ampelpilot.env.PowerMonitor;
+import org.tensorflow.ampelpilot.env.SessionRecorder;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingFormat;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingWriter;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogWriter;
 
 public abstract class CameraActivity extends Activity
     implements OnImageAvailableListener, Camera.PreviewCallback, SensorEventListener, SharedPreferences.OnSharedPreferenceChangeListener, AppCompatCallback {
@@ -70,11 +77,24 @@ public abstract class CameraActivity extends Activity
   private Handler handler;
   private HandlerThread handlerThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
+  // The camera frame is held from its delivery until readyForNextImage(), one at a time since
+  // the preview buffers are reused. Frames arriving meanwhile are closed right away.
+  private final FrameAdmissionController captureAdmission =
+      new FrameAdmissionController(1, FrameAdmissionController.DropPolicy.FIFO);
   private byte[][] yuvBytes = new byte[3][];
   private int[] rgbBytes = null;
   private int yRowStride;
 
+  // Luminance plane of the current Camera2 frame. It stays in the image's direct buffer and is
+  // only copied into yuvBytes[0] when getLuminance() is called.
+  private ByteBuffer yBuffer;
+  private boolean luminanceCopied;
+
+  // Sensor timestamp of the current Camera2 frame, 0 for the legacy camera.
+  private long frameTimestampNs;
+  // SystemClock.elapsedRealtimeNanos() when the current frame reached the app.
+  private long frameDeliveredNs;
+
   protected int previewWidth = 0;
   protected int previewHeight = 0;
 
@@ -85,6 +105,13 @@ public abstract class CameraActivity extends Activity
   //manage sensor
   private SensorManager sensorManager;
   private Sensor sensor;
+  private Sensor headingSensor;
+  private final float[] rotationMatrix = new float[9];
+  private final float[] cameraRotationMatrix = new float[9];
+  private final float[] orientationAngles = new float[3];
+
+  // Compass heading of the camera's optical axis in degrees, NaN while unknown.
+  protected volatile float heading = Float.NaN;
 
   //settings
   public boolean tilt_pause_inference;
@@ -94,6 +121,28 @@ public abstract class CameraActivity extends Activity
   public static boolean preview;
   public static boolean invert_colors;
   public boolean read_instructions;
+  public static boolean performance_hud;
+  public boolean adaptive_resolution;
+  public CaptureProfile capture_profile;
+  public boolean session_recording;
+
+  // Log of detections, phases and feedback while session_recording is on, see SessionRecorder.
+  private SessionLogWriter sessionLog;
+
+  public boolean frame_recording;
+
+  // Raw camera frames while frame_recording is on, see SessionRecorder.
+  private FrameRecordingWriter frameRecording;
+  // Rotation of the camera sensor from onPreviewSizeChosen(), recorded with every frame.
+  private int cameraRotation;
+  private final ByteBuffer[] recordedPlanes = new ByteBuffer[FrameRecordingFormat.MAX_PLANES];
+  private final int[] recordedRowStrides = new int[FrameRecordingFormat.MAX_PLANES];
+  private final int[] recordedPixelStrides = new int[FrameRecordingFormat.MAX_PLANES];
+
+  private CameraConnectionFragment camera2Fragment;
+
+  // Per-minute battery and CPU cost of the preview and the low power mode.
+  private PowerMonitor powerMonitor;
 
   @Override
   public void onSupportActionModeStarted(ActionMode mode) {
@@ -114,6 +163,8 @@ public abstract class CameraActivity extends Activity
 
     setContentView(R.layout.activity_camera);
 
+    setupSharedPreferences();
+
     if (hasPermission()) {
       setFragment();
     } else {
@@ -128,14 +179,18 @@ public abstract class CameraActivity extends Activity
     toolbar.setTitle("Ampel-Pilot");
     delegate.setSupportActionBar(toolbar);
 
-    setupSharedPreferences();
-
     //setup textToSpeech instance
-    tts = new TextToSpeechConversion(CameraActivity.this);
+    if (tts == null) {
+      tts = new TextToSpeechConversion(CameraActivity.this);
+    }
 
     //setup sensor
     sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
     sensor = (Sensor) sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+    headingSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+
+    powerMonitor = new PowerMonitor(this);
+    powerMonitor.setMode(getPowerMode());
   }
 
   private void setupSharedPreferences() {
@@ -149,6 +204,12 @@ public abstract class CameraActivity extends Activity
       preview = sharedPreferences.getBoolean("preview", true);
       invert_colors = sharedPreferences.getBoolean("invert_colors", true);
       read_instructions = sharedPreferences.getBoolean("read_instructions", true);
+      performance_hud = sharedPreferences.getBoolean("performance_hud", false);
+      adaptive_resolution = sharedPreferences.getBoolean("adaptive_resolution", false);
+      session_recording = sharedPreferences.getBoolean("session_recording", false);
+      frame_recording = sharedPreferences.getBoolean("frame_recording", false);
+      capture_profile = CaptureProfile.fromKey(
+          sharedPreferences.getString("capture_profile", CaptureProfile.STANDARD.key));
   }
 
 
@@ -182,6 +243,14 @@ public abstract class CameraActivity extends Activity
       vibration = sharedPreferences.getBoolean("vibration", true);
     } else if (key.equals("preview")) {
       preview = sharedPreferences.getBoolean("preview", true);
+      //without preview the app runs in low power mode
+      if (camera2Fragment != null) {
+        camera2Fragment.setPreviewSurfaceEnabled(preview);
+      }
+      if (preview) {
+        setFrameRateLimit(0);
+      }
+      powerMonitor.setMode(getPowerMode());
     } else if (key.equals("read_instrucions")) {
       read_instructions = sharedPreferences.getBoolean("read_instructions", true);
     } else if (key.equals("invert_colors")) {
@@ -189,12 +258,37 @@ public abstract class CameraActivity extends Activity
     } else if (key.equals("tilt_pause_inference")) {
       tilt_pause_inference = sharedPreferences.getBoolean("tilt_pause_inference", false);
       inference_on = true;
+    } else if (key.equals("performance_hud")) {
+      performance_hud = sharedPreferences.getBoolean("performance_hud", false);
+    } else if (key.equals("session_recording")) {
+      session_recording = sharedPreferences.getBoolean("session_recording", false);
+      //takes effect on the next resume, i.e. when returning from the settings
+    } else if (key.equals("frame_recording")) {
+      frame_recording = sharedPreferences.getBoolean("frame_recording", false);
+      //takes effect on the next resume, i.e. when returning from the settings
+    } else if (key.equals("adaptive_resolution")) {
+      adaptive_resolution = sharedPreferences.getBoolean("adaptive_resolution", false);
+      if (!adaptive_resolution) {
+        requestPreviewSize(getDesiredPreviewFrameSize());
+      }
+    } else if (key.equals("capture_profile")) {
+      capture_profile = CaptureProfile.fromKey(
+          sharedPreferences.getString("capture_profile", CaptureProfile.STANDARD.key));
+      //applied when the camera session is recreated on resume
+      if (camera2Fragment != null) {
+        camera2Fragment.setCaptureProfile(capture_profile);
+      }
     }
   }
 
   //Sensor usage
   @Override
   public void onSensorChanged(SensorEvent event) {
+    if (event.sensor.getType() == Sensor.TYPE_ROTATION_VECTOR) {
+      updateHeading(event.values);
+      return;
+    }
+
     float z = event.values[2];
     if ((z > 8) && tilt_pause_inference) {
       inference_on = false;
@@ -203,6 +297,16 @@ public abstract class CameraActivity extends Activity
     }
    }
 
+  private void updateHeading(float[] rotationVector) {
+    SensorManager.getRotationMatrixFromVector(rotationMatrix, rotationVector);
+    // The phone is held upright, so measure the azimuth of the camera axis (device -Z)
+    // instead of the azimuth of the device's Y axis.
+    SensorManager.remapCoordinateSystem(
+        rotationMatrix, SensorManager.AXIS_X, SensorManager.AXIS_Z, cameraRotationMatrix);
+    SensorManager.getOrientation(cameraRotationMatrix, orientationAngles);
+    heading = (float) Math.toDegrees(orientationAngles[0]);
+  }
+
   //ORIGINAL CODE FROM TENSORFLOW DEVS
   //+ additional code in onResume() and
   //onPause()
@@ -216,7 +320,23 @@ public abstract class CameraActivity extends Activity
     return yRowStride;
   }
 
+  protected long getFrameTimestampNs() {
+    return frameTimestampNs;
+  }
+
+  protected long getFrameDeliveredNs() {
+    return frameDeliveredNs;
+  }
+
   protected byte[] getLuminance() {
+    if (yBuffer != null && !luminanceCopied) {
+      if (yuvBytes[0] == null || yuvBytes[0].length != yBuffer.capacity()) {
+        yuvBytes[0] = new byte[yBuffer.capacity()];
+      }
+      yBuffer.position(0);
+      yBuffer.get(yuvBytes[0]);
+      luminanceCopied = true;
+    }
     return yuvBytes[0];
   }
 
@@ -225,7 +345,11 @@ public abstract class CameraActivity extends Activity
    */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-    if (isProcessingFrame) {
+    final long deliveredNs = SystemClock.elapsedRealtimeNanos();
+    PipelineStats.getInstance().recordFrameDelivered(0);
+    final int slot = captureAdmission.tryAdmit();
+    if (slot < 0) {
+      PipelineStats.getInstance().recordFrameDroppedAtCapture();
       return;
     }
 
@@ -236,13 +360,27 @@ public abstract class CameraActivity extends Activity
         previewHeight = previewSize.height;
         previewWidth = previewSize.width;
         rgbBytes = new int[previewWidth * previewHeight];
+        cameraRotation = 90;
         onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
       }
     } catch (final Exception e) {
+      captureAdmission.release(slot);
       return;
     }
 
-    isProcessingFrame = true;
+    final FrameRecordingWriter recording = frameRecording;
+    if (recording != null) {
+      recording.offerNv21(
+          bytes,
+          deliveredNs,
+          previewWidth,
+          previewHeight,
+          cameraRotation - getScreenOrientation());
+    }
+
+    yBuffer = null;
+    frameTimestampNs = 0;
+    frameDeliveredNs = deliveredNs;
     yuvBytes[0] = bytes;
     yRowStride = previewWidth;
 
@@ -259,7 +397,7 @@ public abstract class CameraActivity extends Activity
           @Override
           public void run() {
             camera.addCallbackBuffer(bytes);
-            isProcessingFrame = false;
+            captureAdmission.release(slot);
           }
         };
     processImage();
@@ -274,7 +412,8 @@ public abstract class CameraActivity extends Activity
     if (previewWidth == 0 || previewHeight == 0) {
       return;
     }
-    if (rgbBytes == null) {
+    // The preview size may change at runtime, see requestPreviewSize().
+    if (rgbBytes == null || rgbBytes.length != previewWidth * previewHeight) {
       rgbBytes = new int[previewWidth * previewHeight];
     }
     try {
@@ -283,27 +422,53 @@ public abstract class CameraActivity extends Activity
       if (image == null) {
         return;
       }
+      final long deliveredNs = SystemClock.elapsedRealtimeNanos();
+      PipelineStats.getInstance().recordFrameDelivered(image.getTimestamp());
+      final FrameRecordingWriter recording = frameRecording;
+      if (recording != null) {
+        recordImage(recording, image);
+      }
 
-      if (isProcessingFrame) {
+      final int slot = captureAdmission.tryAdmit();
+      if (slot < 0) {
         image.close();
+        PipelineStats.getInstance().recordFrameDroppedAtCapture();
         return;
       }
-      isProcessingFrame = true;
+      // Set before anything can fail, so the catch below closes the image and frees the slot.
+      postInferenceCallback =
+          new Runnable() {
+            @Override
+            public void run() {
+              yBuffer = null;
+              image.close();
+              captureAdmission.release(slot);
+            }
+          };
+      frameTimestampNs = image.getTimestamp();
+      frameDeliveredNs = deliveredNs;
       Trace.beginSection("imageAvailable");
+      // The planes are read in place. The image stays open until postInferenceCallback runs,
+      // which happens only after the conversion in getRgbBytes() is done.
       final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
+      final ByteBuffer uBuffer = planes[1].getBuffer();
+      final ByteBuffer vBuffer = planes[2].getBuffer();
+      final ByteBuffer luminanceBuffer = planes[0].getBuffer();
+      yBuffer = luminanceBuffer;
+      luminanceCopied = false;
       yRowStride = planes[0].getRowStride();
       final int uvRowStride = planes[1].getRowStride();
       final int uvPixelStride = planes[1].getPixelStride();
+      PipelineStats.getInstance().setChromaInterleaved(uvPixelStride == 2);
 
       imageConverter =
           new Runnable() {
             @Override
             public void run() {
               ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
+                  luminanceBuffer,
+                  uBuffer,
+                  vBuffer,
                   previewWidth,
                   previewHeight,
                   yRowStride,
@@ -313,23 +478,36 @@ public abstract class CameraActivity extends Activity
             }
           };
 
-      postInferenceCallback =
-          new Runnable() {
-            @Override
-            public void run() {
-              image.close();
-              isProcessingFrame = false;
-            }
-          };
-
       processImage();
     } catch (final Exception e) {
+      readyForNextImage();
       Trace.endSection();
       return;
     }
     Trace.endSection();
   }
 
+  // Hands all frames to the recording, including those skipped because one is being processed.
+  private void recordImage(final FrameRecordingWriter recording, final Image image) {
+    final Plane[] planes = image.getPlanes();
+    final int planeCount = Math.min(planes.length, FrameRecordingFormat.MAX_PLANES);
+    for (int i = 0; i < planeCount; ++i) {
+      recordedPlanes[i] = planes[i].getBuffer();
+      recordedRowStrides[i] = planes[i].getRowStride();
+      recordedPixelStrides[i] = planes[i].getPixelStride();
+    }
+    recording.offer(
+        FrameRecordingFormat.FORMAT_YUV_420_888,
+        image.getTimestamp(),
+        image.getWidth(),
+        image.getHeight(),
+        cameraRotation - getScreenOrientation(),
+        planeCount,
+        recordedPlanes,
+        recordedRowStrides,
+        recordedPixelStrides);
+  }
+
   @Override
   public synchronized void onStart() {
     super.onStart();
@@ -343,8 +521,8 @@ public abstract class CameraActivity extends Activity
   public synchronized void onResume() {
     super.onResume();
 
-    //setup tts
-    if (audio || tilt_pause_inference || read_instructions) {
+    //setup tts, the engine created in onCreate is kept until onDestroy
+    if (tts == null) {
       tts = new TextToSpeechConversion(CameraActivity.this);
     }
 
@@ -352,15 +530,28 @@ public abstract class CameraActivity extends Activity
     //setup sensor
     sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
     sensor = (Sensor) sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+    headingSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+    sensorManager.unregisterListener(this);
     if (tilt_pause_inference) {
       sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
-    } else {
-      sensorManager.unregisterListener(this);
+    }
+    //heading is used to keep the announced light consistent
+    if (headingSensor != null) {
+      sensorManager.registerListener(this, headingSensor, SensorManager.SENSOR_DELAY_UI);
     }
 
     handlerThread = new HandlerThread("inference");
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+
+    powerMonitor.start();
+
+    if (session_recording) {
+      sessionLog = SessionRecorder.start(this);
+    }
+    if (frame_recording) {
+      frameRecording = SessionRecorder.startFrameRecording(this);
+    }
   }
 
   @Override
@@ -374,16 +565,21 @@ public abstract class CameraActivity extends Activity
     } catch (final InterruptedException e) {
     }
 
-    //stop tts instance and release resources
-    if (audio || tilt_pause_inference || read_instructions) {
-      tts.releaseResources();
+    //stop speaking, resources are released in onDestroy
+    if (tts != null) {
+      tts.stop();
     }
 
-    //unregister sensor
-    if (tilt_pause_inference) {
-      sensorManager.unregisterListener(this);
-    }
+    //unregister sensors
+    sensorManager.unregisterListener(this);
+    heading = Float.NaN;
+
+    powerMonitor.stop();
 
+    SessionRecorder.stop(sessionLog);
+    sessionLog = null;
+    SessionRecorder.stopFrameRecording(frameRecording);
+    frameRecording = null;
 
     super.onPause();
   }
@@ -395,13 +591,16 @@ public abstract class CameraActivity extends Activity
 
   @Override
   public synchronized void onDestroy() {
+    if (tts != null) {
+      tts.releaseResources();
+      tts = null;
+    }
     super.onDestroy();
   }
 
-  protected synchronized void runInBackground(final Runnable r) {
-    if (handler != null) {
-      handler.post(r);
-    }
+  /** @return false if the runnable wasn't posted because the activity is paused. */
+  protected synchronized boolean runInBackground(final Runnable r) {
+    return handler != null && handler.post(r);
   }
 
   @Override
@@ -484,13 +683,14 @@ public abstract class CameraActivity extends Activity
 
     Fragment fragment;
     if (useCamera2API) {
-      CameraConnectionFragment camera2Fragment =
+      camera2Fragment =
           CameraConnectionFragment.newInstance(
               new CameraConnectionFragment.ConnectionCallback() {
                 @Override
                 public void onPreviewSizeChosen(final Size size, final int rotation) {
                   previewHeight = size.getHeight();
                   previewWidth = size.getWidth();
+                  cameraRotation = rotation;
                   CameraActivity.this.onPreviewSizeChosen(size, rotation);
                 }
               },
@@ -499,6 +699,23 @@ public abstract class CameraActivity extends Activity
               getDesiredPreviewFrameSize());
 
       camera2Fragment.setCamera(cameraId);
+      camera2Fragment.setCaptureProfile(capture_profile);
+      camera2Fragment.setPreviewSurfaceEnabled(preview);
+      camera2Fragment.setVerificationListener(
+          new OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(final ImageReader reader) {
+              final Image image;
+              try {
+                image = reader.acquireLatestImage();
+              } catch (final IllegalStateException e) {
+                return;
+              }
+              if (image != null) {
+                onVerificationImageAvailable(image);
+              }
+            }
+          });
       fragment = camera2Fragment;
     } else {
       fragment =
@@ -511,21 +728,54 @@ public abstract class CameraActivity extends Activity
         .commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
+  /**
+   * Asks the camera for a different preview size without restarting the activity. Once the new
+   * size is active onPreviewSizeChosen() is called again. Only supported with the Camera2 API.
+   */
+  protected void requestPreviewSize(final Size size) {
+    if (camera2Fragment != null) {
+      camera2Fragment.changePreviewSize(size);
+    }
+  }
+
+  /**
+   * Caps the camera frame rate, 0 for the rate of the capture profile. Only supported with the
+   * Camera2 API.
+   */
+  protected void setFrameRateLimit(final int maxFps) {
+    if (camera2Fragment != null) {
+      camera2Fragment.setFrameRateLimit(maxFps);
     }
   }
 
+  private String getPowerMode() {
+    return preview ? "preview" : "low power";
+  }
+
+  /**
+   * Captures one frame of the high resolution verification stream. It is delivered to
+   * onVerificationImageAvailable(). Only supported with the Camera2 API.
+   *
+   * @return false if no frame could be requested.
+   */
+  protected boolean requestVerificationFrame() {
+    return camera2Fragment != null && camera2Fragment.requestVerificationFrame();
+  }
+
+  /**
+   * Called on the camera thread with a frame of the verification stream. Implementations must
+   * close the image.
+   */
+  protected void onVerificationImageAvailable(final Image image) {
+    image.close();
+  }
+
+  /** Gives the current frame back to the camera. Calls after the first one do nothing. */
   protected void readyForNextImage() {
-    if (postInferenceCallback != null) {
-      postInferenceCallback.run();
+    final Runnable callback = postInferenceCallback;
+    postInferenceCallback = null;
+    if (callback != null) {
+      callback.run();
     }
   }
 
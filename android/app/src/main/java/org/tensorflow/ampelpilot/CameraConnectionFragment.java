@@ -43,6 +43,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.text.TextUtils;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -58,6 +59,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import org.tensorflow.ampelpilot.env.PipelineStats;
 
 public class CameraConnectionFragment extends Fragment {
 
@@ -145,6 +147,31 @@ public class CameraConnectionFragment extends Fragment {
    */
   private Size previewSize;
 
+  /**
+   * The {@link CameraCharacteristics} of the camera, known after setUpCameraOutputs.
+   */
+  private CameraCharacteristics characteristics;
+
+  /**
+   * The {@link CaptureProfile} used for the next capture session.
+   */
+  private CaptureProfile captureProfile = CaptureProfile.STANDARD;
+
+  /**
+   * Whether the {@link #textureView} is an output of the capture session.
+   */
+  private volatile boolean previewSurfaceEnabled = true;
+
+  /**
+   * Upper bound of the frame rate in frames per second, 0 for the rate of the capture profile.
+   */
+  private volatile int frameRateLimit;
+
+  /**
+   * The CONTROL_AE_TARGET_FPS_RANGE of the request template, restored when the limit is lifted.
+   */
+  private Range<Integer> templateFpsRange;
+
   /**
    * {@link android.hardware.camera2.CameraDevice.StateCallback}
    * is called when {@link CameraDevice} changes its state.
@@ -156,7 +183,7 @@ public class CameraConnectionFragment extends Fragment {
           // This method is called when the camera is opened.  We start camera preview here.
           cameraOpenCloseLock.release();
           cameraDevice = cd;
-          createCameraPreviewSession();
+          createCameraPreviewSession(verificationListener != null);
           createColorPreview();
         }
 
@@ -194,6 +221,17 @@ public class CameraConnectionFragment extends Fragment {
    */
   private ImageReader previewReader;
 
+  /**
+   * An {@link ImageReader} for the larger frames that are only captured on request to verify
+   * uncertain detections. Null if the session could not be configured with a second stream.
+   */
+  private ImageReader verificationReader;
+
+  /**
+   * Receives the frames of {@link #verificationReader}.
+   */
+  private OnImageAvailableListener verificationListener;
+
   /**
    * {@link android.hardware.camera2.CaptureRequest.Builder} for the camera preview
    */
@@ -215,7 +253,7 @@ public class CameraConnectionFragment extends Fragment {
   private final OnImageAvailableListener imageListener;
 
   /** The input size in pixels desired by TensorFlow (width and height of a square bitmap). */
-  private final Size inputSize;
+  private Size inputSize;
 
   /**
    * The layout identifier to inflate for this Fragment.
@@ -349,6 +387,85 @@ public class CameraConnectionFragment extends Fragment {
     this.cameraId = cameraId;
   }
 
+  /**
+   * Sets the listener for the on-demand verification stream. Without a listener the session is
+   * configured with the preview stream only.
+   */
+  public void setVerificationListener(final OnImageAvailableListener verificationListener) {
+    this.verificationListener = verificationListener;
+  }
+
+  /**
+   * Captures one frame into the verification stream. The frame is delivered to the verification
+   * listener; its {@link android.media.Image#getTimestamp()} is the sensor timestamp to correlate
+   * it with preview frames.
+   *
+   * @return false if there is no verification stream or the request could not be issued.
+   */
+  public boolean requestVerificationFrame() {
+    final CameraCaptureSession session = captureSession;
+    final ImageReader reader = verificationReader;
+    final CameraDevice device = cameraDevice;
+    if (session == null || reader == null || device == null) {
+      return false;
+    }
+    try {
+      final CaptureRequest.Builder builder = device.createCaptureRequest(captureProfile.template);
+      builder.addTarget(reader.getSurface());
+      captureProfile.apply(builder, characteristics);
+      session.capture(builder.build(), null, backgroundHandler);
+      return true;
+    } catch (final CameraAccessException | IllegalStateException e) {
+      // The session was closed in the meantime.
+      return false;
+    }
+  }
+
+  /**
+   * Picks the largest YUV output of the preview's aspect ratio with at most four times its area
+   * and at most 1080p, or null if there is no size larger than the preview.
+   */
+  private Size chooseVerificationSize() {
+    final StreamConfigurationMap map =
+        characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+    if (map == null) {
+      return null;
+    }
+    final long previewArea = (long) previewSize.getWidth() * previewSize.getHeight();
+    final long maxArea = Math.min(4 * previewArea, 1920L * 1080L);
+    Size best = null;
+    for (final Size option : map.getOutputSizes(ImageFormat.YUV_420_888)) {
+      final long area = (long) option.getWidth() * option.getHeight();
+      final boolean sameAspect =
+          (long) option.getWidth() * previewSize.getHeight()
+              == (long) option.getHeight() * previewSize.getWidth();
+      if (sameAspect && area > previewArea && area <= maxArea
+          && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+        best = option;
+      }
+    }
+    return best;
+  }
+
+  private void closeReaders() {
+    if (null != previewReader) {
+      previewReader.close();
+      previewReader = null;
+    }
+    if (null != verificationReader) {
+      verificationReader.close();
+      verificationReader = null;
+    }
+  }
+
+  /**
+   * Sets the {@link CaptureProfile} to use. Takes effect when the capture session is created
+   * the next time, which happens whenever the fragment is resumed.
+   */
+  public void setCaptureProfile(final CaptureProfile captureProfile) {
+    this.captureProfile = captureProfile;
+  }
+
   /**
    * Sets up member variables related to camera.
    */
@@ -356,7 +473,15 @@ public class CameraConnectionFragment extends Fragment {
     final Activity activity = getActivity();
     final CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
     try {
-      final CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+      characteristics = manager.getCameraCharacteristics(cameraId);
+
+      final Integer timestampSource =
+          characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+      PipelineStats.getInstance()
+          .setSensorTimestampRealtime(
+              timestampSource != null
+                  && timestampSource
+                      == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
 
       final StreamConfigurationMap map =
           characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
@@ -370,14 +495,6 @@ public class CameraConnectionFragment extends Fragment {
           chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
               inputSize.getWidth(),
               inputSize.getHeight());
-
-      // We fit the aspect ratio of TextureView to the size of preview we picked.
-      final int orientation = getResources().getConfiguration().orientation;
-      if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-        textureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
-      } else {
-        textureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
-      }
     } catch (final CameraAccessException e) {
     } catch (final NullPointerException e) {
       // Currently an NPE is thrown when the Camera2API is used but not supported on the
@@ -391,11 +508,169 @@ public class CameraConnectionFragment extends Fragment {
     cameraConnectionCallback.onPreviewSizeChosen(previewSize, sensorOrientation);
   }
 
+  /**
+   * Fits the aspect ratio of the TextureView to the preview size we picked. Must be called on
+   * the UI thread.
+   */
+  private void applyPreviewAspectRatio() {
+    final int orientation = getResources().getConfiguration().orientation;
+    if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+      textureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
+    } else {
+      textureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
+    }
+  }
+
+  /**
+   * Switches to a new desired preview size while the camera stays open. The capture session and
+   * the preview reader are rebuilt on the background thread that also delivers the frames, so no
+   * frame of the old size is being processed while its reader is closed. If the camera is not
+   * running the size is used the next time it is opened.
+   */
+  public void changePreviewSize(final Size desiredSize) {
+    final Handler handler = backgroundHandler;
+    if (handler == null) {
+      inputSize = desiredSize;
+      return;
+    }
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (desiredSize.equals(inputSize)) {
+              return;
+            }
+            inputSize = desiredSize;
+            if (!restartSession(true)) {
+              return;
+            }
+
+            final Activity activity = getActivity();
+            if (activity != null) {
+              activity.runOnUiThread(
+                  new Runnable() {
+                    @Override
+                    public void run() {
+                      applyPreviewAspectRatio();
+                      configureTransform(textureView.getWidth(), textureView.getHeight());
+                    }
+                  });
+            }
+          }
+        });
+  }
+
+  /**
+   * Adds or removes the {@link #textureView} as an output of the capture session. Without it the
+   * camera only feeds the preview reader, which saves the display composition of every frame
+   * while nobody looks at the preview. The session is rebuilt if the camera is running.
+   */
+  public void setPreviewSurfaceEnabled(final boolean enabled) {
+    if (previewSurfaceEnabled == enabled) {
+      return;
+    }
+    previewSurfaceEnabled = enabled;
+    final Handler handler = backgroundHandler;
+    if (handler == null) {
+      return;
+    }
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            restartSession(false);
+          }
+        });
+  }
+
+  /**
+   * Caps the frame rate of the repeating request, 0 to use the rate of the capture profile. The
+   * repeating request is updated in place, the session keeps running.
+   */
+  public void setFrameRateLimit(final int maxFps) {
+    if (frameRateLimit == maxFps) {
+      return;
+    }
+    frameRateLimit = maxFps;
+    final Handler handler = backgroundHandler;
+    if (handler == null) {
+      return;
+    }
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            final CameraCaptureSession session = captureSession;
+            if (session == null || previewRequestBuilder == null) {
+              return;
+            }
+            try {
+              // The STANDARD profile doesn't set a range of its own, so a lifted limit would
+              // otherwise stay in the request. A template without a range gets the key cleared,
+              // null removes it.
+              previewRequestBuilder.set(
+                  CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, templateFpsRange);
+              captureProfile.apply(previewRequestBuilder, characteristics);
+              applyFrameRateLimit(previewRequestBuilder);
+              previewRequest = previewRequestBuilder.build();
+              session.setRepeatingRequest(previewRequest, captureCallback, backgroundHandler);
+            } catch (final CameraAccessException | IllegalStateException e) {
+              // The session was closed in the meantime, the next one picks up the limit.
+            }
+          }
+        });
+  }
+
+  private void applyFrameRateLimit(final CaptureRequest.Builder builder) {
+    final int maxFps = frameRateLimit;
+    if (maxFps <= 0) {
+      return;
+    }
+    final Range<Integer> range =
+        CaptureProfile.chooseLimitedFpsRange(
+            characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES),
+            maxFps);
+    if (range != null) {
+      builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+    }
+  }
+
+  /**
+   * Closes the capture session and the readers and creates them again. Must run on the
+   * background thread.
+   *
+   * @param reconfigureOutputs Whether to choose the output sizes again first.
+   * @return false if the camera is not open.
+   */
+  private boolean restartSession(final boolean reconfigureOutputs) {
+    try {
+      cameraOpenCloseLock.acquire();
+      if (null == cameraDevice) {
+        return false;
+      }
+      if (null != captureSession) {
+        captureSession.close();
+        captureSession = null;
+      }
+      closeReaders();
+      if (reconfigureOutputs) {
+        setUpCameraOutputs();
+      }
+      createCameraPreviewSession(verificationListener != null);
+      return true;
+    } catch (final InterruptedException e) {
+      throw new RuntimeException("Interrupted while trying to lock camera.", e);
+    } finally {
+      cameraOpenCloseLock.release();
+    }
+  }
+
   /**
    * Opens the camera specified by {@link CameraConnectionFragment#cameraId}.
    */
   private void openCamera(final int width, final int height) {
     setUpCameraOutputs();
+    applyPreviewAspectRatio();
     configureTransform(width, height);
     final Activity activity = getActivity();
     final CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
@@ -424,10 +699,7 @@ public class CameraConnectionFragment extends Fragment {
         cameraDevice.close();
         cameraDevice = null;
       }
-      if (null != previewReader) {
-        previewReader.close();
-        previewReader = null;
-      }
+      closeReaders();
     } catch (final InterruptedException e) {
       throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
     } finally {
@@ -478,33 +750,64 @@ public class CameraConnectionFragment extends Fragment {
   }
   /**
    * Creates a new {@link CameraCaptureSession} for camera preview.
+   *
+   * @param withVerificationStream Whether to add the on-demand verification stream. If the
+   *     camera can't configure three outputs, the session is retried without it.
    */
-  private void createCameraPreviewSession() {
+  private void createCameraPreviewSession(final boolean withVerificationStream) {
     try {
-      final SurfaceTexture texture = textureView.getSurfaceTexture();
-      assert texture != null;
+      // We set up a CaptureRequest.Builder with the output Surface.
+      previewRequestBuilder = cameraDevice.createCaptureRequest(captureProfile.template);
+      templateFpsRange = previewRequestBuilder.get(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
 
-      // We configure the size of default buffer to be the size of camera preview we want.
-      texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+      // The on-screen preview is left out in low power mode, see setPreviewSurfaceEnabled().
+      Surface surface = null;
+      if (previewSurfaceEnabled) {
+        final SurfaceTexture texture = textureView.getSurfaceTexture();
+        assert texture != null;
 
-      // This is the output Surface we need to start preview.
-      final Surface surface = new Surface(texture);
+        // We configure the size of default buffer to be the size of camera preview we want.
+        texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
 
-      // We set up a CaptureRequest.Builder with the output Surface.
-      previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-      previewRequestBuilder.addTarget(surface);
+        // This is the output Surface we need to start preview.
+        surface = new Surface(texture);
+        previewRequestBuilder.addTarget(surface);
+      }
 
       // Create the reader for the preview frames.
       previewReader =
           ImageReader.newInstance(
-              previewSize.getWidth(), previewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+              previewSize.getWidth(),
+              previewSize.getHeight(),
+              ImageFormat.YUV_420_888,
+              captureProfile.maxImages);
 
       previewReader.setOnImageAvailableListener(imageListener, backgroundHandler);
       previewRequestBuilder.addTarget(previewReader.getSurface());
 
+      final List<Surface> outputs = new ArrayList<Surface>();
+      if (surface != null) {
+        outputs.add(surface);
+      }
+      outputs.add(previewReader.getSurface());
+
+      // The verification stream is configured but not part of the repeating request, so it
+      // only costs bandwidth when a frame is requested.
+      final Size verificationSize = withVerificationStream ? chooseVerificationSize() : null;
+      if (verificationSize != null) {
+        verificationReader =
+            ImageReader.newInstance(
+                verificationSize.getWidth(),
+                verificationSize.getHeight(),
+                ImageFormat.YUV_420_888,
+                2);
+        verificationReader.setOnImageAvailableListener(verificationListener, backgroundHandler);
+        outputs.add(verificationReader.getSurface());
+      }
+
       // Here, we create a CameraCaptureSession for camera preview.
       cameraDevice.createCaptureSession(
-          Arrays.asList(surface, previewReader.getSurface()),
+          outputs,
           new CameraCaptureSession.StateCallback() {
 
             @Override
@@ -517,13 +820,10 @@ public class CameraConnectionFragment extends Fragment {
               // When the session is ready, we start displaying the preview.
               captureSession = cameraCaptureSession;
               try {
-                // Auto focus should be continuous for camera preview.
-                previewRequestBuilder.set(
-                    CaptureRequest.CONTROL_AF_MODE,
-                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                // Flash is automatically enabled when necessary.
-                previewRequestBuilder.set(
-                    CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+                // Focus, exposure and frame rate depend on the chosen profile.
+                captureProfile.apply(previewRequestBuilder, characteristics);
+                applyFrameRateLimit(previewRequestBuilder);
+                PipelineStats.getInstance().setCaptureProfile(captureProfile.key);
 
                 // Finally, we start displaying the camera preview.
                 previewRequest = previewRequestBuilder.build();
@@ -535,6 +835,12 @@ public class CameraConnectionFragment extends Fragment {
 
             @Override
             public void onConfigureFailed(final CameraCaptureSession cameraCaptureSession) {
+              if (verificationReader != null && null != cameraDevice) {
+                // Not every device supports two YUV streams next to the preview.
+                closeReaders();
+                createCameraPreviewSession(false);
+                return;
+              }
               showToast("Failed");
             }
           },
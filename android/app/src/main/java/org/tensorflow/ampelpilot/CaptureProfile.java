@@ -0,0 +1,141 @@
+package org.tensorflow.ampelpilot;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.util.Range;
+import android.util.Rational;
+
+/**
+ * Presets for the Camera2 capture session used by {@link CameraConnectionFragment}.
+ *
+ * <p>A profile decides the request template, the depth of the YUV {@link android.media.ImageReader}
+ * and the auto focus / auto exposure controls. The key of each profile is the value stored by the
+ * "capture_profile" preference.
+ */
+public enum CaptureProfile {
+  /** The original preview setup: preview template, continuous picture AF and auto flash. */
+  STANDARD("standard", CameraDevice.TEMPLATE_PREVIEW, 2, 0, 0, 0.0f),
+
+  /**
+   * Record template with a fixed frame rate. A fixed range keeps the exposure time below one
+   * frame interval and the negative exposure compensation keeps LED lights from blooming. One
+   * more reader buffer lets the camera keep producing while a frame is being processed.
+   */
+  LOW_LATENCY("low_latency", CameraDevice.TEMPLATE_RECORD, 3, 30, 30, -1.0f),
+
+  /** Low frame rate range to reduce sensor, ISP and pipeline load. */
+  POWER_SAVING("power_saving", CameraDevice.TEMPLATE_PREVIEW, 2, 10, 15, 0.0f);
+
+  public final String key;
+  public final int template;
+  public final int maxImages;
+  // Desired CONTROL_AE_TARGET_FPS_RANGE, 0 to keep the template's default.
+  private final int minFps;
+  private final int maxFps;
+  private final float exposureCompensationEv;
+
+  CaptureProfile(
+      final String key,
+      final int template,
+      final int maxImages,
+      final int minFps,
+      final int maxFps,
+      final float exposureCompensationEv) {
+    this.key = key;
+    this.template = template;
+    this.maxImages = maxImages;
+    this.minFps = minFps;
+    this.maxFps = maxFps;
+    this.exposureCompensationEv = exposureCompensationEv;
+  }
+
+  public static CaptureProfile fromKey(final String key) {
+    for (final CaptureProfile profile : values()) {
+      if (profile.key.equals(key)) {
+        return profile;
+      }
+    }
+    return STANDARD;
+  }
+
+  /** Sets the AF, AE and frame rate controls of this profile on a repeating request. */
+  public void apply(
+      final CaptureRequest.Builder builder, final CameraCharacteristics characteristics) {
+    if (this == STANDARD) {
+      // Auto focus should be continuous for camera preview.
+      builder.set(
+          CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+      // Flash is automatically enabled when necessary.
+      builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
+      return;
+    }
+
+    // Continuous video AF moves the lens smoothly instead of hunting between frames.
+    builder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+    builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+
+    final Range<Integer> fpsRange =
+        chooseFpsRange(
+            characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+    if (fpsRange != null) {
+      builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+    }
+
+    final Rational step = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+    final Range<Integer> range =
+        characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+    if (exposureCompensationEv != 0.0f && step != null && range != null && step.floatValue() > 0) {
+      final int steps = Math.round(exposureCompensationEv / step.floatValue());
+      builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, range.clamp(steps));
+    }
+  }
+
+  /**
+   * Picks the supported range closest to the desired one: a range contained in the desired
+   * bounds wins, otherwise the one with the smallest distance of both ends.
+   */
+  Range<Integer> chooseFpsRange(final Range<Integer>[] available) {
+    if (minFps == 0 || available == null || available.length == 0) {
+      return null;
+    }
+    Range<Integer> best = null;
+    int bestDistance = Integer.MAX_VALUE;
+    for (final Range<Integer> candidate : available) {
+      int distance =
+          Math.abs(candidate.getLower() - minFps) + Math.abs(candidate.getUpper() - maxFps);
+      if (candidate.getLower() < minFps || candidate.getUpper() > maxFps) {
+        // Prefer any range that stays within the desired bounds.
+        distance += 1000;
+      }
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = candidate;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Picks the fastest supported range whose upper bound doesn't exceed maxFps, preferring ranges
+   * that let auto exposure go lower. Null if every range is faster.
+   */
+  static Range<Integer> chooseLimitedFpsRange(final Range<Integer>[] available, final int maxFps) {
+    if (available == null) {
+      return null;
+    }
+    Range<Integer> best = null;
+    for (final Range<Integer> candidate : available) {
+      if (candidate.getUpper() > maxFps) {
+        continue;
+      }
+      if (best == null
+          || candidate.getUpper() > best.getUpper()
+          || (candidate.getUpper().equals(best.getUpper())
+              && candidate.getLower() < best.getLower())) {
+        best = candidate;
+      }
+    }
+    return best;
+  }
+}
@@ -17,12 +17,14 @@ package org.tensorflow.ampelpilot;
 
 import android.graphics.Bitmap;
 import android.graphics.RectF;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Generic interface for interacting with different recognition engines.
+ * Generic interface for interacting with different recognition engines. Adds Bitmap input and
+ * the list API to the Android-free {@link Detector}.
  */
-public interface Classifier {
+public interface Classifier extends Detector {
   /**
    * An immutable result returned by a Classifier describing what was recognized.
    */
@@ -74,6 +76,25 @@ public interface Classifier {
       this.location = location;
     }
 
+    /**
+     * Adapts the detections of a batch to the list API.
+     *
+     * @param labels Detector whose label indices the batch uses.
+     */
+    public static List<Recognition> listOf(final DetectionBatch batch, final Detector labels) {
+      final List<Recognition> recognitions = new ArrayList<Recognition>(batch.count);
+      for (int i = 0; i < batch.count; ++i) {
+        recognitions.add(
+            new Recognition(
+                "" + i,
+                labels.getLabel(batch.classes[i]),
+                batch.scores[i],
+                new RectF(
+                    batch.getLeft(i), batch.getTop(i), batch.getRight(i), batch.getBottom(i))));
+      }
+      return recognitions;
+    }
+
     @Override
     public String toString() {
       String resultString = "";
@@ -99,9 +120,21 @@ public interface Classifier {
 
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Recognizes an image into a reused batch instead of a list of objects. The batch is cleared
+   * first; boxes are in input image coordinates.
+   */
+  void recognizeImage(Bitmap bitmap, DetectionBatch out);
+
+  /**
+   * Recognizes several images of the classifier's input size with as few interpreter invocations
+   * as the model allows, see {@link SsdDetector#detectBatch}.
+   *
+   * @return One list of recognitions per image, in the order of the images.
+   */
+  List<List<Recognition>> recognizeBatch(List<Bitmap> bitmaps);
+
   void enableStatLogging(final boolean debug);
 
   String getStatString();
-
-  void close();
 }
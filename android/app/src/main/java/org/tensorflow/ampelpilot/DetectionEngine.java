@@ -0,0 +1,154 @@
+package org.tensorflow.ampelpilot;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import org.tensorflow.ampelpilot.tracking.MultiBoxTracker;
+
+/**
+ * The parts of the detection pipeline that are expensive to create: the classifier with its
+ * native interpreter, the classifier input bitmap and the tracker.
+ *
+ * <p>The engine is shared and reference counted. An activity acquires it in onCreate and hands
+ * its reference to the next instance when it is only recreated for a configuration change (see
+ * {@link android.app.Activity#onRetainNonConfigurationInstance()}). The classifier is closed when
+ * the last reference is released, i.e. when the app really leaves the detection screen.
+ */
+public class DetectionEngine {
+
+  private static DetectionEngine instance;
+
+  private int refCount;
+
+  private final MultiBoxTracker tracker;
+  private final Bitmap[] croppedBitmaps;
+  private final int inputSize;
+
+  private Classifier classifier;
+  private Exception loadError;
+  private boolean closed;
+
+  /**
+   * Returns the shared engine and counts the reference. The first call starts loading the model
+   * in the background.
+   *
+   * @param scoreThreshold Lowest score the classifier decodes.
+   * @param maxResults Most results the classifier returns per image.
+   * @param boxPriorsFilename Anchors of a raw SSD model, or null if the model contains the
+   *     detection post-processing op.
+   * @param rawTopK Most candidates of a raw SSD model decoded per image.
+   * @param inputSlots Frames that may be between conversion and the end of inference at once;
+   *     each gets its own classifier input bitmap.
+   */
+  public static synchronized DetectionEngine acquire(
+      final Context context,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final float scoreThreshold,
+      final int maxResults,
+      final String boxPriorsFilename,
+      final int rawTopK,
+      final int inputSlots) {
+    if (instance == null) {
+      // Only the application context may outlive the activity.
+      final Context appContext = context.getApplicationContext();
+      instance = new DetectionEngine(appContext, inputSize, inputSlots);
+      final ModelLoader loader =
+          new ModelLoader(
+              appContext.getAssets(),
+              modelFilename,
+              labelFilename,
+              inputSize,
+              isQuantized,
+              scoreThreshold,
+              maxResults);
+      if (boxPriorsFilename != null) {
+        loader.setBoxPriors(boxPriorsFilename, rawTopK);
+      }
+      instance.load(loader);
+    }
+    ++instance.refCount;
+    return instance;
+  }
+
+  private DetectionEngine(final Context appContext, final int inputSize, final int inputSlots) {
+    this.inputSize = inputSize;
+    tracker = new MultiBoxTracker(appContext);
+    croppedBitmaps = new Bitmap[inputSlots];
+    for (int i = 0; i < inputSlots; ++i) {
+      croppedBitmaps[i] = Bitmap.createBitmap(inputSize, inputSize, Config.ARGB_8888);
+    }
+  }
+
+  private void load(final ModelLoader loader) {
+    loader.loadAsync(
+        new ModelLoader.Callback() {
+          @Override
+          public void onModelLoaded(final Classifier loaded) {
+            synchronized (DetectionEngine.this) {
+              if (closed) {
+                // Released while loading.
+                loaded.close();
+                return;
+              }
+              classifier = loaded;
+            }
+          }
+
+          @Override
+          public void onModelFailed(final Exception e) {
+            synchronized (DetectionEngine.this) {
+              loadError = e;
+            }
+          }
+        });
+  }
+
+  /** Drops one reference; the last one closes the classifier. */
+  public void release() {
+    synchronized (DetectionEngine.class) {
+      if (--refCount > 0) {
+        return;
+      }
+      if (instance == this) {
+        instance = null;
+      }
+    }
+    synchronized (this) {
+      closed = true;
+      if (classifier != null) {
+        classifier.close();
+        classifier = null;
+      }
+    }
+    tracker.reset();
+  }
+
+  /** The classifier, or null while it is loading or if loading failed. */
+  public synchronized Classifier getClassifier() {
+    return classifier;
+  }
+
+  /** The reason loading failed, or null. */
+  public synchronized Exception getLoadError() {
+    return loadError;
+  }
+
+  public MultiBoxTracker getTracker() {
+    return tracker;
+  }
+
+  /**
+   * The classifier input of an inference slot. Only written by the camera thread of the current
+   * activity, while the slot is admitted.
+   */
+  public Bitmap getCroppedBitmap(final int slot) {
+    return croppedBitmaps[slot];
+  }
+
+  public int getInputSize() {
+    return inputSize;
+  }
+}
@@ -16,30 +16,30 @@
 
 package org.tensorflow.ampelpilot;
 
-import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
+import android.media.Image;
 import android.media.ImageReader.OnImageAvailableListener;
+import android.os.Bundle;
 import android.os.SystemClock;
-import android.os.Vibrator;
 import android.support.annotation.Nullable;
 import android.support.v7.view.ActionMode;
 import android.util.Size;
 import android.util.TypedValue;
 import android.widget.Toast;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import org.tensorflow.ampelpilot.OverlayView.DrawCallback;
 import org.tensorflow.ampelpilot.env.BorderedText;
 import org.tensorflow.ampelpilot.env.ImageUtils;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogFormat;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogWriter;
 import org.tensorflow.ampelpilot.tracking.MultiBoxTracker;
 
 /**
@@ -54,48 +54,138 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   private static final boolean TF_OD_API_IS_QUANTIZED = false;
   private static final String TF_OD_API_MODEL_FILE = "detect.tflite";
   private static final String TF_OD_API_LABELS_FILE = "labelmap.txt";
+  // A model exported without the detection post-processing op. If the assets contain one, it is
+  // loaded instead of the prepackaged model and its anchors are decoded in Java.
+  private static final String TF_OD_API_RAW_MODEL_FILE = "detect_raw.tflite";
+  private static final String TF_OD_API_BOX_PRIORS_FILE = "box_priors.txt";
+  // Candidates of such a model decoded per frame before non-maximum suppression.
+  private static final int TF_OD_API_RAW_TOP_K = 100;
 
 
   // Minimum detection confidence to track a detection.
   private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.6f;
+  // The classifier already drops results below the high-res check candidates and beyond this many.
+  private static final int TF_OD_API_MAX_RESULTS = 10;
 
   private static final boolean MAINTAIN_ASPECT = false;
 
+  // Frames converted to the classifier input and not yet through inference. With more than one,
+  // the next frame is converted while the model still runs on the previous one: more frames per
+  // second, but each waits longer before its inference starts. Every slot has its own input.
+  private static final int INFERENCE_DEPTH = 1;
+
   public static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
 
   private static final float TEXT_SIZE_DIP = 10;
 
-  private Integer sensorOrientation;
-
-  private Classifier detector;
+  /**
+   * Everything that depends on the preview size. The camera thread replaces it as a whole when
+   * the size changes, so a frame always sees a size, bitmap and mapping that belong together.
+   */
+  private static final class FrameGeometry {
+    final int width;
+    final int height;
+    final int sensorOrientation;
+    final Bitmap rgbFrameBitmap;
+    final Matrix frameToCrop;
+    final Matrix cropToFrame;
+
+    FrameGeometry(final int width, final int height, final int sensorOrientation) {
+      this.width = width;
+      this.height = height;
+      this.sensorOrientation = sensorOrientation;
+      rgbFrameBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+      frameToCrop =
+          ImageUtils.getTransformationMatrix(
+              width, height,
+              TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE,
+              sensorOrientation, MAINTAIN_ASPECT);
+      cropToFrame = new Matrix();
+      frameToCrop.invert(cropToFrame);
+    }
+  }
 
+  private volatile FrameGeometry frameGeometry;
 
-  private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
+  // Classifier, tracker and input bitmap, shared across configuration changes.
+  private DetectionEngine engine;
+  private boolean engineRetained;
+  private boolean loadErrorReported;
 
-  private boolean computingDetection = false;
+  // Admitted on the camera thread, released on the inference thread. A frame that waited while
+  // a newer one was admitted is skipped.
+  private final FrameAdmissionController inferenceAdmission =
+      new FrameAdmissionController(
+          INFERENCE_DEPTH, FrameAdmissionController.DropPolicy.LATEST_WINS);
 
   private long timestamp = 0;
-  LinkedList<String> safe4results = new LinkedList<String>();
+  private final PhaseStabilizer phaseStabilizer = new PhaseStabilizer();
+  // Time of the last "hold the camera up" hint.
   long safe1timestamp = 0;
   public static String stable_light_phase;
 
-  //vibration patterns
-  long[] red_pattern = {0, 200, 300, 200, 300, 200};
-  int green_pattern = 1000;
-
   //tts strings
   private String talk_red  = "Es ist rot";
   private String talk_green = "Es ist grün.";
+  private String talk_hold_camera_up = "Halten Sie die Kamera bitte hoch!";
   private String security_instructions = "Benutzen Sie diese App nur als zusätzliche Hilfe! Verlassen Sie sich stets auf ihre eigene Wahrnehmung!";
 
-  private Matrix frameToCropTransform;
-  private Matrix cropToFrameTransform;
-
   private MultiBoxTracker tracker;
 
-  private byte[] luminanceCopy;
+  private final PrimaryLightSelector lightSelector =
+      new PrimaryLightSelector(PrimaryLightSelector.Weights.DEFAULT);
+
+  // Reused on the inference thread for every frame: raw classifier output, the certain
+  // detections in preview frame coordinates, and a scratch rect for mapping boxes.
+  private final DetectionBatch detections = new DetectionBatch(10);
+  private final DetectionBatch mappedDetections = new DetectionBatch(10);
+  private final RectF location = new RectF();
+  // Stage latencies of the current frame for the session log.
+  private final int[] stageMicros = new int[SessionLogFormat.STAGE_COUNT];
+
+  private final ResolutionLadder resolutionLadder =
+      new ResolutionLadder(ResolutionLadder.DEFAULT_RUNGS, 0);
+
+  private HighResVerifier highResVerifier;
+
+  private HapticsEngine haptics;
+
+  private final FeedbackScheduler feedbackScheduler =
+      new FeedbackScheduler(
+          new FeedbackScheduler.Output() {
+            @Override
+            public boolean vibrate(
+                final String phase,
+                final float confidence,
+                final long eventNs,
+                final long confirmedNs) {
+              if (!vibration || haptics == null) {
+                return false;
+              }
+              return haptics.play(phase, confidence, eventNs, confirmedNs);
+            }
+
+            @Override
+            public boolean speak(
+                final String phase,
+                final boolean flush,
+                final FeedbackScheduler.SpeechStartListener onStart) {
+              if (!audio || tts == null) {
+                return false;
+              }
+              return choose_audio(phase, flush, onStart);
+            }
+
+            @Override
+            public void speakHint(final String text) {
+              if (tts != null && !tts.playCue(text, false)) {
+                tts.speakUp(text, false);
+              }
+            }
+          });
+
+  // Luminance of the frame in each inference slot, for the tracker.
+  private final byte[][] luminanceCopies = new byte[INFERENCE_DEPTH][];
 
   private BorderedText borderedText;
 
@@ -106,47 +196,74 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   }
 
   @Override
-  public void onPreviewSizeChosen(final Size size, final int rotation) {
-    final float textSizePx =
-        TypedValue.applyDimension(
-            TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
-    borderedText = new BorderedText(textSizePx);
-    borderedText.setTypeface(Typeface.MONOSPACE);
-
-    tracker = new MultiBoxTracker(this);
-
-    int cropSize = TF_OD_API_INPUT_SIZE;
-
-    try {
-      detector =
-          TFLiteObjectDetectionAPIModel.create(
-              getAssets(),
-              TF_OD_API_MODEL_FILE,
+  protected void onCreate(final Bundle savedInstanceState) {
+    // After a configuration change the previous instance hands over its engine, otherwise the
+    // model starts loading here, in parallel to opening the camera. Frames arriving before it is
+    // ready are skipped.
+    engine = (DetectionEngine) getLastNonConfigurationInstance();
+    if (engine == null) {
+      PipelineStats.getInstance().markStartup();
+      final boolean raw = hasAsset(TF_OD_API_RAW_MODEL_FILE);
+      engine =
+          DetectionEngine.acquire(
+              this,
+              raw ? TF_OD_API_RAW_MODEL_FILE : TF_OD_API_MODEL_FILE,
               TF_OD_API_LABELS_FILE,
               TF_OD_API_INPUT_SIZE,
-              TF_OD_API_IS_QUANTIZED);
-      cropSize = TF_OD_API_INPUT_SIZE;
+              TF_OD_API_IS_QUANTIZED,
+              HighResVerifier.MIN_CANDIDATE_CONFIDENCE,
+              TF_OD_API_MAX_RESULTS,
+              raw ? TF_OD_API_BOX_PRIORS_FILE : null,
+              TF_OD_API_RAW_TOP_K,
+              INFERENCE_DEPTH);
+    }
+    haptics = new HapticsEngine(this);
+    super.onCreate(savedInstanceState);
+  }
+
+  private boolean hasAsset(final String filename) {
+    try {
+      return Arrays.asList(getAssets().list("")).contains(filename);
     } catch (final IOException e) {
-      Toast.makeText(getApplicationContext(), "Der Classifier konnte nicht initialisiert werden!", Toast.LENGTH_SHORT).show();
-      finish();
+      return false;
     }
+  }
 
-    previewWidth = size.getWidth();
-    previewHeight = size.getHeight();
+  @Override
+  public Object onRetainNonConfigurationInstance() {
+    engineRetained = true;
+    return engine;
+  }
 
-    sensorOrientation = rotation - getScreenOrientation();
+  @Override
+  public synchronized void onDestroy() {
+    if (!engineRetained) {
+      engine.release();
+    }
+    super.onDestroy();
+  }
 
-    rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+  @Override
+  public void onPreviewSizeChosen(final Size size, final int rotation) {
+    if (trackingOverlay != null) {
+      // Camera reopened or preview size switched by the resolution ladder: the classifier and
+      // overlays stay, only the frame dependent state has to follow the new size.
+      configureFrameSize(size, rotation);
+      return;
+    }
 
-    frameToCropTransform =
-        ImageUtils.getTransformationMatrix(
-            previewWidth, previewHeight,
-            cropSize, cropSize,
-            sensorOrientation, MAINTAIN_ASPECT);
+    final float textSizePx =
+        TypedValue.applyDimension(
+            TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
+    borderedText = new BorderedText(textSizePx);
+    borderedText.setTypeface(Typeface.MONOSPACE);
+
+    // The classifier is loaded in the background and kept by the engine, see onCreate().
+    tracker = engine.getTracker();
+    final int cropSize = engine.getInputSize();
 
-    cropToFrameTransform = new Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+    highResVerifier = new HighResVerifier(cropSize, MINIMUM_CONFIDENCE_TF_OD_API);
+    configureFrameSize(size, rotation);
 
     trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
     trackingOverlay.addCallback(
@@ -157,7 +274,38 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
           }
         });
 
+    debugOverlay = (OverlayView) findViewById(R.id.debug_overlay);
+    debugOverlay.addCallback(
+        new DrawCallback() {
+          @Override
+          public void drawCallback(final Canvas canvas) {
+            renderPerformanceHud(canvas);
+          }
+        });
+
+    // Both overlays are redrawn at most once per display frame, and only if they changed.
+    overlayRenderer = new OverlayRenderer(getWindowManager().getDefaultDisplay().getRefreshRate());
+    overlayRenderer.addTarget(
+        trackingOverlay,
+        new OverlayRenderer.ContentSource() {
+          @Override
+          public boolean needsRedraw() {
+            return tracker.needsRedraw();
+          }
+        });
+    overlayRenderer.addTarget(
+        debugOverlay,
+        new OverlayRenderer.ContentSource() {
+          @Override
+          public boolean needsRedraw() {
+            // The stats change all the time; once more after switching the HUD off to clear it.
+            return performance_hud || hudShown;
+          }
+        });
+
     Toast.makeText(getApplicationContext(), security_instructions, Toast.LENGTH_LONG).show();
+    //the fixed phrases are played from pre-synthesized files once ready
+    tts.prepareCues(talk_red, talk_green, talk_hold_camera_up);
     //read out safety instructions
     if (read_instructions) {
         tts.speakUp(security_instructions,  false);
@@ -165,176 +313,398 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
   }
 
   OverlayView trackingOverlay;
+  OverlayView debugOverlay;
+  private OverlayRenderer overlayRenderer;
+  private final LowPowerThrottle lowPowerThrottle = new LowPowerThrottle();
+  private volatile boolean hudShown;
+
+  /**
+   * Sets up everything that depends on the preview frame size. Called again whenever the camera
+   * switches to another preview size, on the thread that delivers the frames.
+   */
+  private void configureFrameSize(final Size size, final int rotation) {
+    final FrameGeometry geometry =
+        new FrameGeometry(size.getWidth(), size.getHeight(), rotation - getScreenOrientation());
+    frameGeometry = geometry;
+
+    // The selector and the tracker are used by the inference thread. Queued there, the frames
+    // of the old size still in flight finish first.
+    final Runnable reset =
+        new Runnable() {
+          @Override
+          public void run() {
+            lightSelector.setFrameGeometry(
+                geometry.width, geometry.height, geometry.sensorOrientation);
+            tracker.reset();
+          }
+        };
+    if (!runInBackground(reset)) {
+      // No inference thread yet or any more.
+      reset.run();
+    }
+  }
+
+  @Override
+  public synchronized void onResume() {
+    super.onResume();
+    if (overlayRenderer != null) {
+      overlayRenderer.start();
+    }
+    haptics.start();
+    feedbackScheduler.start();
+  }
+
+  @Override
+  public synchronized void onPause() {
+    if (overlayRenderer != null) {
+      overlayRenderer.stop();
+    }
+    // Before the TextToSpeech instance is released.
+    feedbackScheduler.stop();
+    haptics.stop();
+    super.onPause();
+  }
+
+  @Override
+  public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+    super.onSharedPreferenceChanged(sharedPreferences, key);
+    if (key.equals("adaptive_resolution")) {
+      //the camera goes back to the default size, see CameraActivity
+      resolutionLadder.setCurrentRung(0);
+    }
+  }
+
+  /** Asks the camera for a high-res frame to re-check an uncertain detection. */
+  private void requestVerification(
+      final DetectionBatch results,
+      final int candidate,
+      final Matrix cropToFrame,
+      final long sourceTimestampNs) {
+    if (sourceTimestampNs == 0) {
+      // Legacy camera, there is no verification stream.
+      return;
+    }
+    final RectF location =
+        new RectF(
+            results.getLeft(candidate),
+            results.getTop(candidate),
+            results.getRight(candidate),
+            results.getBottom(candidate));
+    cropToFrame.mapRect(location);
+    if (highResVerifier.begin(
+            location, results.scores[candidate], sourceTimestampNs, SystemClock.uptimeMillis())
+        && !requestVerificationFrame()) {
+      highResVerifier.cancel();
+    }
+  }
+
+  @Override
+  protected void onVerificationImageAvailable(final Image image) {
+    final FrameGeometry geometry = frameGeometry;
+    final Bitmap crop;
+    try {
+      crop = highResVerifier == null || geometry == null
+          ? null
+          : highResVerifier.prepareCrop(
+              image, geometry.width, geometry.height, geometry.sensorOrientation);
+    } finally {
+      image.close();
+    }
+    if (crop == null) {
+      return;
+    }
+    final Classifier classifier = engine.getClassifier();
+    if (classifier == null) {
+      highResVerifier.cancel();
+      return;
+    }
+    final boolean posted =
+        runInBackground(
+            new Runnable() {
+              @Override
+              public void run() {
+                // Runs on the inference thread like processImage, so the batch can be shared.
+                classifier.recognizeImage(crop, detections);
+                highResVerifier.onClassified(detections, SystemClock.uptimeMillis());
+              }
+            });
+    if (!posted) {
+      highResVerifier.cancel();
+    }
+  }
+
+  private void reportLoadError() {
+    if (loadErrorReported) {
+      return;
+    }
+    loadErrorReported = true;
+    runOnUiThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            Toast.makeText(
+                    getApplicationContext(),
+                    "Der Classifier konnte nicht initialisiert werden!",
+                    Toast.LENGTH_SHORT)
+                .show();
+            finish();
+          }
+        });
+  }
+
+  /** Lets the resolution ladder switch the preview size based on the primary detection. */
+  private void updateResolutionLadder(
+      final DetectionBatch detections, final int primary, final FrameGeometry geometry) {
+    float boxFraction = -1.0f;
+    if (primary >= 0) {
+      final float width = detections.getRight(primary) - detections.getLeft(primary);
+      final float height = detections.getBottom(primary) - detections.getTop(primary);
+      boxFraction = Math.min(width, height) / Math.min(geometry.width, geometry.height);
+    }
+    final int rung = resolutionLadder.onFrameProcessed(SystemClock.uptimeMillis(), boxFraction);
+    if (rung >= 0) {
+      requestPreviewSize(
+          new Size(resolutionLadder.getWidth(rung), resolutionLadder.getHeight(rung)));
+    }
+  }
+
+  private void renderPerformanceHud(final Canvas canvas) {
+    hudShown = performance_hud;
+    if (!performance_hud) {
+      return;
+    }
+    borderedText.drawLines(
+        canvas, 10, canvas.getHeight() - 10, PipelineStats.getInstance().getStatLines());
+  }
 
   @Override
   protected void processImage() {
     ++timestamp;
     final long currTimestamp = timestamp;
-    byte[] originalLuminance = getLuminance();
+    // The frame, the bitmap and the mappings of this frame, even if the size changes meanwhile.
+    final FrameGeometry geometry = frameGeometry;
+    // Copying the luminance out of the camera buffer is only worth it if the tracker uses it.
+    final byte[] originalLuminance = tracker.needsLuminance() ? getLuminance() : null;
     tracker.onFrame(
-        previewWidth,
-        previewHeight,
+        geometry.width,
+        geometry.height,
         getLuminanceStride(),
-        sensorOrientation,
+        geometry.sensorOrientation,
         originalLuminance,
         timestamp);
-    trackingOverlay.postInvalidate();
+    overlayRenderer.requestRender();
 
-    // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
+    final int slot = inferenceAdmission.tryAdmit();
+    if (slot < 0) {
+      PipelineStats.getInstance().recordFrameDroppedBeforeInference();
+      readyForNextImage();
+      return;
+    }
+    // Frames that arrive while the model is still loading only feed the tracker.
+    final Classifier classifier = engine.getClassifier();
+    if (classifier == null) {
+      if (engine.getLoadError() != null) {
+        reportLoadError();
+      }
+      inferenceAdmission.release(slot);
+      PipelineStats.getInstance().recordFrameDroppedBeforeInference();
       readyForNextImage();
       return;
     }
-    computingDetection = true;
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+    final long preprocessStartNs = SystemClock.elapsedRealtimeNanos();
+    geometry.rgbFrameBitmap.setPixels(
+        getRgbBytes(), 0, geometry.width, 0, 0, geometry.width, geometry.height);
 
-    if (luminanceCopy == null) {
-      luminanceCopy = new byte[originalLuminance.length];
+    byte[] luminanceCopy = luminanceCopies[slot];
+    if (originalLuminance != null) {
+      if (luminanceCopy == null || luminanceCopy.length != originalLuminance.length) {
+        luminanceCopy = new byte[originalLuminance.length];
+        luminanceCopies[slot] = luminanceCopy;
+      }
+      System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
     }
-    System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
+    final byte[] luminance = luminanceCopy;
     readyForNextImage();
 
-    final Paint red = new Paint();
-    red.setColor(Color.RED);
-    red.setStyle(Style.STROKE);
-
-
+    final Bitmap croppedBitmap = engine.getCroppedBitmap(slot);
     final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-
-    runInBackground(
+    canvas.drawBitmap(geometry.rgbFrameBitmap, geometry.frameToCrop, null);
+    final int preprocessMicros =
+        (int) ((SystemClock.elapsedRealtimeNanos() - preprocessStartNs) / 1000);
+    final Matrix cropToFrame = geometry.cropToFrame;
+    final long frameTimestampNs = getFrameTimestampNs();
+    final long frameDeliveredNs = getFrameDeliveredNs();
+
+    if (!runInBackground(
         new Runnable() {
           @Override
           public void run() {
-              if (inference_on) {
-
-                  final long startTime = SystemClock.uptimeMillis();
-                  final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-
-                  cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                  final Canvas canvas = new Canvas(cropCopyBitmap);
-                  final Paint paint = new Paint();
-                  paint.setColor(Color.RED);
-                  paint.setStyle(Style.STROKE);
-                  paint.setStrokeWidth(2.0f);
-
-                  float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-
-                  final List<Classifier.Recognition> mappedRecognitions =
-                          new LinkedList<Classifier.Recognition>();
-
-
-                  for (final Classifier.Recognition result : results) {
-                      final RectF location = result.getLocation();
-                      if (location != null && result.getConfidence() >= minimumConfidence) {
-
-                          canvas.drawRect(location, paint);
-
-                          cropToFrameTransform.mapRect(location);
-                          result.setLocation(location);
-                          mappedRecognitions.add(result);
-                      }
-                  }
-
-                  stable_light_phase = "none";
-
-                  Classifier.Recognition biggestRecognition = biggestRecognition(mappedRecognitions);
-                  if (biggestRecognition != null) {
-                      String currentLight = biggestRecognition.getTitle();
-
-                      safe4results.add(currentLight);
-                      if (safe4results.size() > 4) {
-                          safe4results.removeFirst();
-                      }
-
-                      if (checkStability(safe4results)) {
-                          stable_light_phase = safe4results.getFirst();
-                          if (System.currentTimeMillis() - safe1timestamp >= 1500) {
-                              safe1timestamp = System.currentTimeMillis();
-                              if (vibration) {
-                                  choose_vibration(currentLight);
-                              }
-                              if (audio) {
-                                  choose_audio(currentLight);
-                              }
-                          }
-                      }
-                  } else {
-                      safe4results.add("none");
-                      safe4results.removeFirst();
-                  }
-
-                  System.out.print(safe4results);
-
-                  tracker.trackResults(mappedRecognitions, luminanceCopy, currTimestamp);
-
-              } else {
-                  if (System.currentTimeMillis() - safe1timestamp >= 7000) {
-                      tts.speakUp("Halten Sie die Kamera bitte hoch!", false);
-                      safe1timestamp = System.currentTimeMillis();
-                  }
-              }
-            trackingOverlay.postInvalidate();
-
-            computingDetection = false;
+            try {
+                if (!inferenceAdmission.shouldProcess(slot)) {
+                    // A newer frame waits behind this one.
+                    PipelineStats.getInstance().recordFrameDroppedBeforeInference();
+                    return;
+                }
+                if (inference_on) {
+
+                    final long startTime = SystemClock.uptimeMillis();
+                    final long inferenceStartNs = SystemClock.elapsedRealtimeNanos();
+                    PipelineStats.getInstance()
+                            .recordFrameProcessed(inferenceStartNs - frameDeliveredNs);
+                    classifier.recognizeImage(croppedBitmap, detections);
+                    final long inferenceEndNs = SystemClock.elapsedRealtimeNanos();
+                    PipelineStats.getInstance()
+                            .recordInferenceTime(SystemClock.uptimeMillis() - startTime);
+                    PipelineStats.getInstance().recordDetection();
+
+                    float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+
+                    // Certain detections are mapped to the preview frame, the best uncertain one
+                    // is remembered for a high-res check.
+                    mappedDetections.clear();
+                    int uncertainCandidate = -1;
+                    for (int i = 0; i < detections.count; ++i) {
+                        if (detections.scores[i] >= minimumConfidence) {
+                            location.set(
+                                    detections.getLeft(i),
+                                    detections.getTop(i),
+                                    detections.getRight(i),
+                                    detections.getBottom(i));
+                            cropToFrame.mapRect(location);
+                            mappedDetections.add(
+                                    location.left,
+                                    location.top,
+                                    location.right,
+                                    location.bottom,
+                                    detections.scores[i],
+                                    detections.classes[i]);
+                        } else if (uncertainCandidate < 0
+                                || detections.scores[i] > detections.scores[uncertainCandidate]) {
+                            uncertainCandidate = i;
+                        }
+                    }
+
+                    if (mappedDetections.count == 0) {
+                        // Nothing certain in this frame: a verified light from the high-res
+                        // stream may stand in, and the best uncertain candidate gets checked.
+                        highResVerifier.takeVerified(SystemClock.uptimeMillis(), mappedDetections);
+                        if (uncertainCandidate >= 0) {
+                            requestVerification(
+                                    detections, uncertainCandidate, cropToFrame, frameTimestampNs);
+                        }
+                    }
+
+                    stable_light_phase = "none";
+
+                    final int primary =
+                            lightSelector.select(
+                                    mappedDetections.boxes,
+                                    mappedDetections.scores,
+                                    mappedDetections.count,
+                                    heading);
+                    if (primary >= 0) {
+                        String currentLight =
+                                classifier.getLabel(mappedDetections.classes[primary]);
+
+                        if (phaseStabilizer.update(currentLight) != null) {
+                            stable_light_phase = currentLight;
+                            PipelineStats.getInstance().recordStablePhase();
+                            feedbackScheduler.onStablePhase(
+                                    currentLight,
+                                    mappedDetections.scores[primary],
+                                    frameTimestampNs);
+                        }
+                    } else {
+                        phaseStabilizer.update(null);
+                    }
+
+                    if (adaptive_resolution) {
+                        updateResolutionLadder(mappedDetections, primary, geometry);
+                    }
+
+                    // Without preview, a stable phase needs fewer frames to be followed.
+                    final int frameRateLimit =
+                            lowPowerThrottle.update(
+                                    SystemClock.uptimeMillis(), !preview, stable_light_phase);
+                    if (frameRateLimit >= 0) {
+                        setFrameRateLimit(frameRateLimit);
+                    }
+
+                    final SessionLogWriter sessionLog = PipelineStats.getInstance().getSessionLog();
+                    if (sessionLog != null) {
+                        stageMicros[SessionLogFormat.STAGE_FRAME_AGE] =
+                                frameTimestampNs > 0
+                                        && PipelineStats.getInstance().isSensorTimestampRealtime()
+                                        ? (int) ((inferenceStartNs - frameTimestampNs) / 1000)
+                                        : -1;
+                        stageMicros[SessionLogFormat.STAGE_PREPROCESS] = preprocessMicros;
+                        stageMicros[SessionLogFormat.STAGE_INFERENCE] =
+                                (int) ((inferenceEndNs - inferenceStartNs) / 1000);
+                        final long postprocessNs =
+                                SystemClock.elapsedRealtimeNanos() - inferenceEndNs;
+                        stageMicros[SessionLogFormat.STAGE_POSTPROCESS] =
+                                (int) (postprocessNs / 1000);
+                        sessionLog.recordFrame(
+                                inferenceEndNs,
+                                stageMicros,
+                                mappedDetections.boxes,
+                                mappedDetections.scores,
+                                mappedDetections.classes,
+                                mappedDetections.count,
+                                primary,
+                                stable_light_phase);
+                    }
+
+                    tracker.trackResults(mappedDetections, classifier, luminance, currTimestamp);
+
+                } else {
+                    PipelineStats.getInstance().recordFrameDroppedBeforeInference();
+                    if (System.currentTimeMillis() - safe1timestamp >= 7000) {
+                        feedbackScheduler.speakHint(talk_hold_camera_up);
+                        safe1timestamp = System.currentTimeMillis();
+                    }
+                }
+              overlayRenderer.requestRender();
+            } finally {
+              inferenceAdmission.release(slot);
+            }
           }
-        });
-  }
-
-  public void choose_vibration(String currentLightPhase) {
-      if (currentLightPhase.equals("red")) {
-          vibratePattern(red_pattern);
-      } else if (currentLightPhase.equals("green")) {
-          vibrate(green_pattern);
-      }
+        })) {
+      // Paused, the inference thread is gone.
+      inferenceAdmission.release(slot);
+    }
   }
 
-  public void choose_audio(String currentLightPhase) {
+  public boolean choose_audio(
+          String currentLightPhase,
+          boolean flush,
+          final FeedbackScheduler.SpeechStartListener onStart) {
+      final String talk;
       if (currentLightPhase.equals("red")) {
-          CameraActivity.tts.speakUp(talk_red, true);
+          talk = talk_red;
       } else if (currentLightPhase.equals("green")) {
-          CameraActivity.tts.speakUp(talk_green, true);
-      }
-  }
-
-  private static boolean checkStability(LinkedList<String> safe4results) {
-      if (safe4results.size() == 4) {
-          for (int i = 0; i < safe4results.size()-1; i++) {
-              if (safe4results.get(i).equals(safe4results.get(i+1))) {}
-              else {return false;}
-          }
-          return true;
+          talk = talk_green;
       } else {
           return false;
       }
-  }
-
-  public void vibrate(int duration) {
-      Vibrator vibs = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
-      vibs.vibrate(duration);
-  }
-
-  public void vibratePattern(long[] pattern) {
-        Vibrator vibs = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
-        vibs.vibrate(pattern, -1);
-  }
-
-  public Classifier.Recognition biggestRecognition(List<Classifier.Recognition> mappedRecognitions) {
-      Classifier.Recognition biggestResult = null;
-      double biggestSize = 0.0;
-      for (final Classifier.Recognition result : mappedRecognitions) {
-          if (multiplySides(result.getLocation()) > biggestSize) {
-              biggestSize = multiplySides(result.getLocation());
-              biggestResult = result;
-          }
+      // Pre-synthesized cues start playing right away, live speech reports its start later.
+      if (CameraActivity.tts.playCue(talk, flush)) {
+          onStart.onSpeechStarted(PipelineStats.FEEDBACK_CUE);
+      } else {
+          CameraActivity.tts.speakUp(
+                  talk,
+                  flush,
+                  new Runnable() {
+                      @Override
+                      public void run() {
+                          onStart.onSpeechStarted(PipelineStats.FEEDBACK_SPEECH);
+                      }
+                  });
       }
-      return biggestResult;
+      return true;
   }
 
-  public double multiplySides(RectF location) {
-      return (location.width()*location.height());
-  }
 
   @Override
   protected int getLayoutId() {
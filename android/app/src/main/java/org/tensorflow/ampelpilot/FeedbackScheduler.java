@@ -0,0 +1,221 @@
+package org.tensorflow.ampelpilot;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+
+/**
+ * Announces the stable light phase by vibration and speech on its own thread, so neither the
+ * Vibrator nor TextToSpeech calls block inference.
+ *
+ * <p>The detector reports the stable phase of every processed frame. A phase change is announced
+ * at once and interrupts whatever is being spoken. Repeats of the same phase back off: the first
+ * one comes after {@link #MIN_REPEAT_INTERVAL_MS}, every further one waits twice as long, up to
+ * {@link #MAX_REPEAT_INTERVAL_MS}. Hints such as the safety instructions are only queued behind
+ * the current speech.
+ *
+ * <p>Vibration is handed to the output right away; see {@link HapticsEngine}, which plays it on
+ * a thread of its own so a slow Vibrator never delays speech.
+ *
+ * <p>For every announcement the latency from the exposure of the frame that made the phase stable
+ * to the start of the vibration and of the speech is recorded in {@link PipelineStats}, for
+ * speech separately for live TextToSpeech and for pre-synthesized cues.
+ */
+public class FeedbackScheduler {
+
+  /** Told when speech actually starts playing, on any thread. */
+  public interface SpeechStartListener {
+    /**
+     * @param channel {@link PipelineStats#FEEDBACK_SPEECH} for live speech, {@link
+     *     PipelineStats#FEEDBACK_CUE} for a pre-synthesized cue.
+     */
+    void onSpeechStarted(String channel);
+  }
+
+  /** Produces the actual feedback, called on the feedback thread. */
+  public interface Output {
+    /**
+     * Starts the vibration pattern of a phase; the output records when the motor started.
+     *
+     * @param eventNs Time of the frame the phase comes from, in the elapsedRealtimeNanos() base.
+     * @param confirmedNs Time the phase was reported as stable, in the same base.
+     * @return false if vibration is off or the phase has no pattern.
+     */
+    boolean vibrate(String phase, float confidence, long eventNs, long confirmedNs);
+
+    /**
+     * Starts speaking a phase, interrupting current speech if flush is set.
+     *
+     * @return false if speech is off or the phase has no text.
+     */
+    boolean speak(String phase, boolean flush, SpeechStartListener onStart);
+
+    /** Queues a hint behind the current speech. */
+    void speakHint(String text);
+  }
+
+  public static final long MIN_REPEAT_INTERVAL_MS = 1500;
+  public static final long MAX_REPEAT_INTERVAL_MS = 6000;
+
+  // After this long without a stable phase, the next one counts as a change again.
+  private static final long PHASE_FORGOTTEN_MS = 10000;
+
+  private final Output output;
+
+  private HandlerThread thread;
+  private Handler handler;
+
+  // The newest phase report not yet handled by the feedback thread.
+  private final Object pendingLock = new Object();
+  private String pendingPhase;
+  private float pendingConfidence;
+  private long pendingEventNs;
+  private long pendingConfirmedNs;
+  private boolean pendingPosted;
+
+  // Only used on the feedback thread.
+  private String announcedPhase;
+  private long lastAnnouncedMs;
+  private long lastReportMs;
+  private long repeatIntervalMs = MIN_REPEAT_INTERVAL_MS;
+
+  private final Runnable handlePending =
+      new Runnable() {
+        @Override
+        public void run() {
+          final String phase;
+          final float confidence;
+          final long eventNs;
+          final long confirmedNs;
+          synchronized (pendingLock) {
+            phase = pendingPhase;
+            confidence = pendingConfidence;
+            eventNs = pendingEventNs;
+            confirmedNs = pendingConfirmedNs;
+            pendingPhase = null;
+            pendingPosted = false;
+          }
+          if (phase != null) {
+            handlePhase(phase, confidence, eventNs, confirmedNs);
+          }
+        }
+      };
+
+  public FeedbackScheduler(final Output output) {
+    this.output = output;
+  }
+
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new HandlerThread("feedback");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  public synchronized void stop() {
+    if (thread == null) {
+      return;
+    }
+    thread.quitSafely();
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+    handler = null;
+    synchronized (pendingLock) {
+      pendingPhase = null;
+      pendingPosted = false;
+    }
+  }
+
+  /**
+   * Reports the stable phase of a processed frame. Returns immediately.
+   *
+   * @param confidence Confidence of the detection the phase comes from.
+   * @param sensorTimestampNs Sensor timestamp of the frame, or 0 if unknown; the report time is
+   *     then the start of the latency measurement.
+   */
+  public void onStablePhase(
+      final String phase, final float confidence, final long sensorTimestampNs) {
+    final long confirmedNs = SystemClock.elapsedRealtimeNanos();
+    final long eventNs =
+        sensorTimestampNs > 0 && PipelineStats.getInstance().isSensorTimestampRealtime()
+            ? sensorTimestampNs
+            : confirmedNs;
+    final Handler handler;
+    synchronized (this) {
+      handler = this.handler;
+    }
+    if (handler == null) {
+      return;
+    }
+    synchronized (pendingLock) {
+      // A report still waiting for the feedback thread is superseded, but a phase seen earlier
+      // keeps its earlier timestamp.
+      if (!phase.equals(pendingPhase)) {
+        pendingEventNs = eventNs;
+        pendingConfirmedNs = confirmedNs;
+      }
+      pendingPhase = phase;
+      pendingConfidence = confidence;
+      if (pendingPosted) {
+        return;
+      }
+      pendingPosted = true;
+    }
+    handler.postAtFrontOfQueue(handlePending);
+  }
+
+  /** Queues a spoken hint with the lowest priority. */
+  public void speakHint(final String text) {
+    final Handler handler;
+    synchronized (this) {
+      handler = this.handler;
+    }
+    if (handler == null) {
+      return;
+    }
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            output.speakHint(text);
+          }
+        });
+  }
+
+  private void handlePhase(
+      final String phase, final float confidence, final long eventNs, final long confirmedNs) {
+    final long nowMs = SystemClock.uptimeMillis();
+    final boolean changed =
+        !phase.equals(announcedPhase) || nowMs - lastReportMs > PHASE_FORGOTTEN_MS;
+    lastReportMs = nowMs;
+    if (changed) {
+      repeatIntervalMs = MIN_REPEAT_INTERVAL_MS;
+    } else if (nowMs - lastAnnouncedMs < repeatIntervalMs) {
+      return;
+    } else {
+      repeatIntervalMs = Math.min(repeatIntervalMs * 2, MAX_REPEAT_INTERVAL_MS);
+    }
+    announcedPhase = phase;
+    lastAnnouncedMs = nowMs;
+
+    output.vibrate(phase, confidence, eventNs, confirmedNs);
+    final PipelineStats stats = PipelineStats.getInstance();
+    output.speak(
+        phase,
+        changed,
+        new SpeechStartListener() {
+          @Override
+          public void onSpeechStarted(final String channel) {
+            stats.recordFeedbackLatency(
+                channel, phase, SystemClock.elapsedRealtimeNanos() - eventNs);
+          }
+        });
+  }
+}
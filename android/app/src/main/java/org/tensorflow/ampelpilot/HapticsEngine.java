@@ -0,0 +1,162 @@
+package org.tensorflow.ampelpilot;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+
+/**
+ * Plays the vibration patterns of the light phases on its own thread.
+ *
+ * <p>The Vibrator is looked up once and the waveform of every phase is built once per confidence
+ * level, so playing a pattern is a single binder call. Where the motor supports amplitude control,
+ * the confidence of the detection is encoded in the strength of the pattern: an uncertain light
+ * vibrates weaker than a certain one. Older devices play the plain on/off pattern.
+ */
+public class HapticsEngine {
+
+  // Off/on durations in milliseconds, starting with an off period.
+  private static final long[] RED_TIMINGS = {0, 200, 300, 200, 300, 200};
+  private static final long[] GREEN_TIMINGS = {0, 1000};
+
+  // Confidence is quantized to this many amplitude steps.
+  private static final int CONFIDENCE_LEVELS = 4;
+  // Confidences mapped to the weakest and to the strongest step.
+  private static final float MIN_CONFIDENCE = 0.6f;
+  private static final float MAX_CONFIDENCE = 0.95f;
+  // Amplitude of the weakest step as a fraction of the strongest.
+  private static final float MIN_AMPLITUDE_FRACTION = 0.4f;
+
+  private final Vibrator vibrator;
+  private final boolean amplitudeControl;
+
+  // Prebuilt effects by confidence level; null before API 26.
+  private final Object[] redEffects = new Object[CONFIDENCE_LEVELS];
+  private final Object[] greenEffects = new Object[CONFIDENCE_LEVELS];
+
+  private HandlerThread thread;
+  private Handler handler;
+
+  public HapticsEngine(final Context context) {
+    vibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
+    amplitudeControl =
+        Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+            && vibrator != null
+            && vibrator.hasAmplitudeControl();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      buildEffects(RED_TIMINGS, redEffects);
+      buildEffects(GREEN_TIMINGS, greenEffects);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.O)
+  private void buildEffects(final long[] timings, final Object[] effects) {
+    for (int level = 0; level < CONFIDENCE_LEVELS; ++level) {
+      if (!amplitudeControl) {
+        effects[level] = VibrationEffect.createWaveform(timings, -1);
+        continue;
+      }
+      final float fraction =
+          MIN_AMPLITUDE_FRACTION
+              + (1.0f - MIN_AMPLITUDE_FRACTION) * level / (CONFIDENCE_LEVELS - 1);
+      final int amplitude = Math.max(1, Math.round(255 * fraction));
+      final int[] amplitudes = new int[timings.length];
+      for (int i = 1; i < timings.length; i += 2) {
+        amplitudes[i] = amplitude;
+      }
+      effects[level] = VibrationEffect.createWaveform(timings, amplitudes, -1);
+    }
+  }
+
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    thread = new HandlerThread("haptics");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  public synchronized void stop() {
+    if (thread == null) {
+      return;
+    }
+    thread.quitSafely();
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+    handler = null;
+    if (vibrator != null) {
+      vibrator.cancel();
+    }
+  }
+
+  /**
+   * Starts the pattern of a phase, replacing one that is still playing. Returns immediately.
+   *
+   * @param eventNs Time of the frame the phase comes from, in the elapsedRealtimeNanos() base.
+   * @param confirmedNs Time the phase was confirmed as stable, in the same base.
+   * @return false if the phase has no pattern or there is no vibrator.
+   */
+  public boolean play(
+      final String phase, final float confidence, final long eventNs, final long confirmedNs) {
+    final int level = confidenceLevel(confidence);
+    final Object effect;
+    final long[] timings;
+    if (phase.equals("red")) {
+      effect = redEffects[level];
+      timings = RED_TIMINGS;
+    } else if (phase.equals("green")) {
+      effect = greenEffects[level];
+      timings = GREEN_TIMINGS;
+    } else {
+      return false;
+    }
+    final Handler handler;
+    synchronized (this) {
+      handler = this.handler;
+    }
+    if (vibrator == null || handler == null) {
+      return false;
+    }
+    handler.post(
+        new Runnable() {
+          @Override
+          public void run() {
+            vibrate(effect, timings);
+            // The motor starts when the call returns, the first timing is an empty off period.
+            final long nowNs = SystemClock.elapsedRealtimeNanos();
+            final PipelineStats stats = PipelineStats.getInstance();
+            stats.recordFeedbackLatency(
+                PipelineStats.FEEDBACK_VIBRATION, phase, nowNs - eventNs);
+            stats.recordFeedbackLatency(
+                PipelineStats.FEEDBACK_VIBRATION_CONFIRMED, phase, nowNs - confirmedNs);
+          }
+        });
+    return true;
+  }
+
+  @SuppressWarnings("deprecation")
+  private void vibrate(final Object effect, final long[] timings) {
+    vibrator.cancel();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      vibrator.vibrate((VibrationEffect) effect);
+    } else {
+      vibrator.vibrate(timings, -1);
+    }
+  }
+
+  private static int confidenceLevel(final float confidence) {
+    final float normalized = (confidence - MIN_CONFIDENCE) / (MAX_CONFIDENCE - MIN_CONFIDENCE);
+    final int level = (int) (normalized * CONFIDENCE_LEVELS);
+    return Math.max(0, Math.min(CONFIDENCE_LEVELS - 1, level));
+  }
+}
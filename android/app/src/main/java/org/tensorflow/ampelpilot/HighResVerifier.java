@@ -0,0 +1,281 @@
+package org.tensorflow.ampelpilot;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.media.Image;
+import org.tensorflow.ampelpilot.env.ImageUtils;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+
+/**
+ * Re-checks uncertain detections on a crop of a larger camera frame.
+ *
+ * <p>When a frame only has a low confidence candidate, the detector asks for one frame of the
+ * high resolution verification stream. That frame is matched to the candidate by sensor
+ * timestamp, the region around the candidate is converted and scaled to the classifier input
+ * size, and the classifier runs again on it. Only a confident detection that is mapped back onto
+ * the candidate confirms it; it can then stand in for the missing detection of the next processed
+ * frame.
+ *
+ * <p>Only one verification is in flight at any time. A candidate whose frame never arrives is
+ * given up after a timeout, but one whose crop is being classified is kept until {@link
+ * #onClassified} or {@link #cancel}, since the crop bitmap is shared.
+ */
+public class HighResVerifier {
+
+  /** Candidates below this confidence are not worth a verification frame. */
+  public static final float MIN_CANDIDATE_CONFIDENCE = 0.3f;
+
+  private static final long MIN_REQUEST_INTERVAL_MS = 500;
+
+  // A requested frame that hasn't been classified after this time is given up.
+  private static final long PENDING_TIMEOUT_MS = 1000;
+
+  // Verification frames captured later than this after the candidate's frame are discarded.
+  private static final long MAX_FRAME_DELTA_NS = 250L * 1000L * 1000L;
+
+  // How long a confirmed light may stand in for a missing detection.
+  private static final long VERIFIED_VALID_MS = 600;
+
+  // Context around the candidate included in the crop, as a multiple of its larger side.
+  private static final float CROP_CONTEXT = 3.0f;
+
+  // Minimum overlap of a detection in the crop with the candidate, unless one contains the
+  // center of the other.
+  private static final float MATCH_MIN_IOU = 0.3f;
+
+  private final int cropSize;
+  private final float acceptConfidence;
+  private final Bitmap cropBitmap;
+  private final Canvas cropCanvas;
+
+  private int[] regionPixels = new int[0];
+  private Bitmap regionBitmap;
+
+  private boolean pending;
+  // The crop of the pending candidate has been handed out and not classified yet.
+  private boolean classifying;
+  private long pendingSinceMs;
+  private long pendingSourceTimestampNs;
+  private final RectF pendingBox = new RectF();
+  private long lastRequestMs;
+
+  // Maps crop coordinates back into the preview frame, see onClassified().
+  private final Matrix cropToRegion = new Matrix();
+  private int regionLeft;
+  private int regionTop;
+  private float regionScaleX;
+  private float regionScaleY;
+  private final RectF match = new RectF();
+
+  private boolean hasVerified;
+  private final RectF verifiedBox = new RectF();
+  private float verifiedConfidence;
+  private int verifiedClass;
+  private long verifiedAtMs;
+
+  /**
+   * @param cropSize Input size of the classifier.
+   * @param acceptConfidence Confidence a verification needs to confirm a light.
+   */
+  public HighResVerifier(final int cropSize, final float acceptConfidence) {
+    this.cropSize = cropSize;
+    this.acceptConfidence = acceptConfidence;
+    cropBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+    cropCanvas = new Canvas(cropBitmap);
+  }
+
+  /**
+   * Registers a low confidence candidate if no verification is running.
+   *
+   * @param box Candidate location in preview frame coordinates.
+   * @param sourceTimestampNs Sensor timestamp of the preview frame the candidate comes from.
+   * @return true if a verification frame should be requested now.
+   */
+  public synchronized boolean begin(
+      final RectF box, final float confidence, final long sourceTimestampNs, final long nowMs) {
+    if (confidence < MIN_CANDIDATE_CONFIDENCE || confidence >= acceptConfidence) {
+      return false;
+    }
+    if (classifying || (pending && nowMs - pendingSinceMs < PENDING_TIMEOUT_MS)) {
+      return false;
+    }
+    if (nowMs - lastRequestMs < MIN_REQUEST_INTERVAL_MS) {
+      return false;
+    }
+    pending = true;
+    pendingSinceMs = nowMs;
+    lastRequestMs = nowMs;
+    pendingSourceTimestampNs = sourceTimestampNs;
+    pendingBox.set(box);
+    PipelineStats.getInstance().recordVerificationRequested();
+    return true;
+  }
+
+  /**
+   * Drops the pending candidate, e.g. because the frame could not be requested or the crop could
+   * not be classified.
+   */
+  public synchronized void cancel() {
+    pending = false;
+    classifying = false;
+  }
+
+  /**
+   * Converts the region around the pending candidate out of a verification frame. Called on the
+   * camera thread; the caller still owns and closes the image.
+   *
+   * @return The classifier input, or null if the frame doesn't belong to a pending candidate.
+   *     The caller must pass the results to {@link #onClassified} or call {@link #cancel}.
+   */
+  public synchronized Bitmap prepareCrop(
+      final Image image,
+      final int previewWidth,
+      final int previewHeight,
+      final int sensorOrientation) {
+    if (!pending || classifying) {
+      return null;
+    }
+    final long deltaNs = image.getTimestamp() - pendingSourceTimestampNs;
+    if (deltaNs < 0 || deltaNs > MAX_FRAME_DELTA_NS) {
+      pending = false;
+      return null;
+    }
+
+    final int imageWidth = image.getWidth();
+    final int imageHeight = image.getHeight();
+    final float scaleX = imageWidth / (float) previewWidth;
+    final float scaleY = imageHeight / (float) previewHeight;
+
+    // A square region around the candidate, aligned to the chroma grid.
+    final float boxSide =
+        Math.max(pendingBox.width() * scaleX, pendingBox.height() * scaleY) * CROP_CONTEXT;
+    final int side =
+        Math.min(Math.min(imageWidth, imageHeight), Math.max(cropSize / 2, (int) boxSide)) & ~1;
+    final int left =
+        clamp((int) (pendingBox.centerX() * scaleX) - side / 2, 0, imageWidth - side) & ~1;
+    final int top =
+        clamp((int) (pendingBox.centerY() * scaleY) - side / 2, 0, imageHeight - side) & ~1;
+
+    if (regionPixels.length != side * side) {
+      regionPixels = new int[side * side];
+      regionBitmap = Bitmap.createBitmap(side, side, Config.ARGB_8888);
+    }
+    final Image.Plane[] planes = image.getPlanes();
+    ImageUtils.convertYUV420ToARGB8888(
+        planes[0].getBuffer(),
+        planes[1].getBuffer(),
+        planes[2].getBuffer(),
+        left,
+        top,
+        side,
+        side,
+        planes[0].getRowStride(),
+        planes[1].getRowStride(),
+        planes[1].getPixelStride(),
+        regionPixels);
+    regionBitmap.setPixels(regionPixels, 0, side, 0, 0, side, side);
+
+    final Matrix regionToCrop =
+        ImageUtils.getTransformationMatrix(
+            side, side, cropSize, cropSize, sensorOrientation, false);
+    cropCanvas.drawBitmap(regionBitmap, regionToCrop, null);
+
+    regionToCrop.invert(cropToRegion);
+    regionLeft = left;
+    regionTop = top;
+    regionScaleX = scaleX;
+    regionScaleY = scaleY;
+    classifying = true;
+    return cropBitmap;
+  }
+
+  /**
+   * Takes the classifier results for the crop returned by {@link #prepareCrop}. The candidate is
+   * confirmed by the most confident detection that reaches the accept confidence and lies on the
+   * candidate; other lights in the context around it don't count. Its class may differ from the
+   * candidate's, the crop has the better view.
+   */
+  public synchronized void onClassified(final DetectionBatch results, final long nowMs) {
+    if (!classifying) {
+      return;
+    }
+    int best = -1;
+    for (int i = 0; i < results.count; ++i) {
+      if (results.scores[i] < acceptConfidence
+          || (best >= 0 && results.scores[i] <= results.scores[best])) {
+        continue;
+      }
+      mapToPreview(results, i, match);
+      if (matchesCandidate(match)) {
+        best = i;
+        verifiedBox.set(match);
+      }
+    }
+    if (best >= 0) {
+      verifiedClass = results.classes[best];
+      verifiedConfidence = results.scores[best];
+      hasVerified = true;
+      verifiedAtMs = nowMs;
+      PipelineStats.getInstance().recordVerificationConfirmed();
+    }
+    pending = false;
+    classifying = false;
+  }
+
+  /** Maps a detection in crop coordinates back into preview frame coordinates. */
+  private void mapToPreview(final DetectionBatch results, final int index, final RectF out) {
+    out.set(
+        results.getLeft(index),
+        results.getTop(index),
+        results.getRight(index),
+        results.getBottom(index));
+    cropToRegion.mapRect(out);
+    out.set(
+        (out.left + regionLeft) / regionScaleX,
+        (out.top + regionTop) / regionScaleY,
+        (out.right + regionLeft) / regionScaleX,
+        (out.bottom + regionTop) / regionScaleY);
+  }
+
+  private boolean matchesCandidate(final RectF box) {
+    return box.contains(pendingBox.centerX(), pendingBox.centerY())
+        || pendingBox.contains(box.centerX(), box.centerY())
+        || DetectionBatch.intersectionOverUnion(
+                box.left,
+                box.top,
+                box.right,
+                box.bottom,
+                pendingBox.left,
+                pendingBox.top,
+                pendingBox.right,
+                pendingBox.bottom)
+            >= MATCH_MIN_IOU;
+  }
+
+  /**
+   * Appends a recently confirmed light to the batch, once.
+   *
+   * @return true if a light was appended.
+   */
+  public synchronized boolean takeVerified(final long nowMs, final DetectionBatch out) {
+    final boolean valid = hasVerified && nowMs - verifiedAtMs <= VERIFIED_VALID_MS;
+    hasVerified = false;
+    if (valid) {
+      out.add(
+          verifiedBox.left,
+          verifiedBox.top,
+          verifiedBox.right,
+          verifiedBox.bottom,
+          verifiedConfidence,
+          verifiedClass);
+    }
+    return valid;
+  }
+
+  private static int clamp(final int value, final int min, final int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
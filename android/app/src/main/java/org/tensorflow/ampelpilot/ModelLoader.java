@@ -0,0 +1,116 @@
+package org.tensorflow.ampelpilot;
+
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+import java.io.IOException;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+
+/**
+ * Loads the detection model on its own thread, so the camera can open while the labels are
+ * parsed, the model file is mapped and the interpreter is created.
+ *
+ * <p>After loading, one inference runs on a blank input. TensorFlow Lite allocates its tensors
+ * and prepares the kernels lazily on the first run, so otherwise the first camera frame would pay
+ * for it.
+ */
+public class ModelLoader {
+
+  /** Receives the result on the loader thread. */
+  public interface Callback {
+    void onModelLoaded(Classifier classifier);
+
+    void onModelFailed(Exception e);
+  }
+
+  private final AssetManager assets;
+  private final String modelFilename;
+  private final String labelFilename;
+  private final int inputSize;
+  private final boolean isQuantized;
+  private final float scoreThreshold;
+  private final int maxResults;
+  private String boxPriorsFilename;
+  private int rawTopK;
+
+  /**
+   * @param scoreThreshold Lowest score the classifier decodes.
+   * @param maxResults Most results the classifier returns per image.
+   */
+  public ModelLoader(
+      final AssetManager assets,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final float scoreThreshold,
+      final int maxResults) {
+    this.assets = assets;
+    this.modelFilename = modelFilename;
+    this.labelFilename = labelFilename;
+    this.inputSize = inputSize;
+    this.isQuantized = isQuantized;
+    this.scoreThreshold = scoreThreshold;
+    this.maxResults = maxResults;
+  }
+
+  /**
+   * Loads the model as a raw SSD graph whose anchors are decoded in Java, see {@link
+   * TFLiteObjectDetectionAPIModel#createRaw}. Without this call the model must contain the
+   * detection post-processing op.
+   *
+   * @param rawTopK Most candidates decoded per image before non-maximum suppression.
+   */
+  public void setBoxPriors(final String boxPriorsFilename, final int rawTopK) {
+    this.boxPriorsFilename = boxPriorsFilename;
+    this.rawTopK = rawTopK;
+  }
+
+  /** Starts loading and returns immediately. */
+  public void loadAsync(final Callback callback) {
+    final Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                final Classifier classifier;
+                try {
+                  classifier = load();
+                } catch (final IOException | RuntimeException e) {
+                  callback.onModelFailed(e);
+                  return;
+                }
+                callback.onModelLoaded(classifier);
+              }
+            },
+            "ModelLoader");
+    thread.start();
+  }
+
+  private Classifier load() throws IOException {
+    final long startTime = SystemClock.uptimeMillis();
+    final Classifier created;
+    if (boxPriorsFilename != null) {
+      created =
+          TFLiteObjectDetectionAPIModel.createRaw(
+              assets,
+              modelFilename,
+              labelFilename,
+              boxPriorsFilename,
+              inputSize,
+              isQuantized,
+              rawTopK);
+    } else {
+      created =
+          TFLiteObjectDetectionAPIModel.create(
+              assets, modelFilename, labelFilename, inputSize, isQuantized);
+    }
+    final TFLiteObjectDetectionAPIModel model = (TFLiteObjectDetectionAPIModel) created;
+    model.setScoreThreshold(scoreThreshold);
+    model.setMaxResults(maxResults);
+    final long loadedTime = SystemClock.uptimeMillis();
+    model.warmUp();
+    PipelineStats.getInstance()
+        .recordModelLoaded(loadedTime - startTime, SystemClock.uptimeMillis() - loadedTime);
+    return model;
+  }
+}
@@ -0,0 +1,102 @@
+package org.tensorflow.ampelpilot;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.tensorflow.ampelpilot.env.PipelineStats;
+
+/**
+ * Paces the redraws of overlay views to the display vsync.
+ *
+ * <p>The camera and inference threads only call {@link #requestRender()} when they published new
+ * results. However often that happens, the renderer waits for the next vsync and then invalidates
+ * only the views whose content actually changed, so each view draws at most once per display
+ * frame. While waiting for the vsync callback it also counts the display frames the UI thread
+ * missed.
+ */
+public class OverlayRenderer implements Choreographer.FrameCallback {
+
+  /** Tells the renderer whether a view shows something different than at its last draw. */
+  public interface ContentSource {
+    boolean needsRedraw();
+  }
+
+  private static class Target {
+    final OverlayView view;
+    final ContentSource source;
+
+    Target(final OverlayView view, final ContentSource source) {
+      this.view = view;
+      this.source = source;
+    }
+  }
+
+  private final List<Target> targets = new CopyOnWriteArrayList<Target>();
+  private final AtomicBoolean frameScheduled = new AtomicBoolean();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final long frameIntervalNs;
+
+  private volatile boolean running = true;
+
+  private final Runnable scheduleFrame =
+      new Runnable() {
+        @Override
+        public void run() {
+          Choreographer.getInstance().postFrameCallback(OverlayRenderer.this);
+        }
+      };
+
+  /** @param refreshRate Refresh rate of the display in frames per second. */
+  public OverlayRenderer(final float refreshRate) {
+    frameIntervalNs = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60.0f));
+  }
+
+  public void addTarget(final OverlayView view, final ContentSource source) {
+    targets.add(new Target(view, source));
+  }
+
+  /** Asks for a redraw at the next vsync. Can be called from any thread. */
+  public void requestRender() {
+    if (running && frameScheduled.compareAndSet(false, true)) {
+      mainHandler.post(scheduleFrame);
+    }
+  }
+
+  public void start() {
+    running = true;
+    requestRender();
+  }
+
+  /** Drops a pending vsync callback, e.g. while the activity is paused. */
+  public void stop() {
+    running = false;
+    mainHandler.removeCallbacks(scheduleFrame);
+    Choreographer.getInstance().removeFrameCallback(this);
+    frameScheduled.set(false);
+  }
+
+  @Override
+  public void doFrame(final long frameTimeNanos) {
+    // Results published from now on need another vsync.
+    frameScheduled.set(false);
+    if (!running) {
+      return;
+    }
+
+    // Display frames that passed between the vsync and this callback were missed by the UI thread.
+    final long lateNs = System.nanoTime() - frameTimeNanos;
+    final long droppedFrames = lateNs > 0 ? lateNs / frameIntervalNs : 0;
+
+    int redrawn = 0;
+    for (final Target target : targets) {
+      if (target.source.needsRedraw()) {
+        target.view.invalidate();
+        ++redrawn;
+      }
+    }
+    PipelineStats.getInstance().recordUiFrame(redrawn > 0, droppedFrames);
+  }
+}
@@ -19,14 +19,14 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.View;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A simple View providing a render callback to other classes.
  */
 public class OverlayView extends View {
-  private final List<DrawCallback> callbacks = new LinkedList<DrawCallback>();
+  private final List<DrawCallback> callbacks = new CopyOnWriteArrayList<DrawCallback>();
 
   public OverlayView(final Context context, final AttributeSet attrs) {
     super(context, attrs);
@@ -43,8 +43,9 @@ public class OverlayView extends View {
     callbacks.add(callback);
   }
 
+  // Callbacks are only added during setup, so drawing can iterate without taking a lock.
   @Override
-  public synchronized void draw(final Canvas canvas) {
+  public void draw(final Canvas canvas) {
     for (final DrawCallback callback : callbacks) {
       callback.drawCallback(canvas);
     }
@@ -18,61 +18,39 @@ package org.tensorflow.ampelpilot;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
 import android.os.Trace;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import org.tensorflow.lite.Interpreter;
 
 /**
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
  * github.com/tensorflow/models/tree/master/research/object_detection
+ *
+ * <p>Runs the model on the Android TFLite interpreter; decoding is shared with the desktop
+ * benchmark through {@link SsdDetector}.
  */
-public class TFLiteObjectDetectionAPIModel implements Classifier {
-
-  // Only return this many results.
-  private static final int NUM_DETECTIONS = 10;
-  private boolean isModelQuantized;
-  // Float model
-  private static final float IMAGE_MEAN = 128.0f;
-  private static final float IMAGE_STD = 128.0f;
+public class TFLiteObjectDetectionAPIModel extends SsdDetector implements Classifier {
+
   // Number of threads in the java app
   private static final int NUM_THREADS = 4;
-  // Config values.
-  private int inputSize;
   // Pre-allocated buffers.
-  private Vector<String> labels = new Vector<String>();
-  private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
-  // contains the location of detected boxes
-  private float[][][] outputLocations;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the classes of detected boxes
-  private float[][] outputClasses;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
-  // contains the scores of detected boxes
-  private float[][] outputScores;
-  // numDetections: array of shape [Batchsize]
-  // contains the number of detected boxes
-  private float[] numDetections;
-
-  private ByteBuffer imgData;
+  private final int[] intValues;
+  private final ByteBuffer imgData;
+  // Decoding target of the list based API.
+  private final DetectionBatch listBatch = new DetectionBatch(NUM_DETECTIONS);
+  // Batch counterparts of the above, kept for the next batch of the same size.
+  private ByteBuffer batchImgData;
+  private DetectionBatch[] batchResults = new DetectionBatch[0];
 
   private Interpreter tfLite;
 
-
   /** Memory-map the model file in Assets. */
   private static MappedByteBuffer loadModelFile(AssetManager assets, String modelFilename)
       throws IOException {
@@ -100,119 +78,145 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
-    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
-
-    InputStream labelsInput = null;
-    labelsInput = assetManager.open(labelFilename);
-    BufferedReader br = null;
-    br = new BufferedReader(new InputStreamReader(labelsInput));
-    String line;
-    while ((line = br.readLine()) != null) {
-      d.labels.add(line);
-    }
-    br.close();
-
-    d.inputSize = inputSize;
+    final List<String> labels = loadLabels(assetManager.open(labelFilename));
 
+    final Interpreter tfLite;
     try {
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
+      tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
+    tfLite.setNumThreads(NUM_THREADS);
 
-    d.isModelQuantized = isQuantized;
-    // Pre-allocate buffers.
-    int numBytesPerChannel;
-    if (isQuantized) {
-      numBytesPerChannel = 1; // Quantized
-    } else {
-      numBytesPerChannel = 4; // Floating point
-    }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
-    d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
-
-    d.tfLite.setNumThreads(NUM_THREADS);
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
+    return new TFLiteObjectDetectionAPIModel(tfLite, labels, inputSize, isQuantized);
+  }
+
+  /**
+   * Initializes a session for an SSD graph exported without the detection post-processing op.
+   * Its two outputs, box encodings and class logits per anchor, are decoded in Java against the
+   * anchors of the priors file.
+   *
+   * @param priorsFilename The filepath of the box priors, e.g. box_priors.txt.
+   * @param topK Most candidates decoded per image before non-maximum suppression.
+   */
+  public static Classifier createRaw(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final String priorsFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final int topK)
+      throws IOException {
+    final TFLiteObjectDetectionAPIModel d =
+        (TFLiteObjectDetectionAPIModel)
+            create(assetManager, modelFilename, labelFilename, inputSize, isQuantized);
+    d.useRawOutputs(RawSsdDecoder.loadPriors(assetManager.open(priorsFilename)), topK);
     return d;
   }
 
-  private TFLiteObjectDetectionAPIModel() {}
+  private TFLiteObjectDetectionAPIModel(
+      final Interpreter tfLite,
+      final List<String> labels,
+      final int inputSize,
+      final boolean isQuantized) {
+    super(labels, inputSize, isQuantized);
+    this.tfLite = tfLite;
+    imgData = allocateInput();
+    intValues = new int[inputSize * inputSize];
+  }
+
+  /**
+   * Runs one inference on a blank input. The interpreter allocates its tensors and prepares its
+   * kernels on the first run; doing that here keeps the cost away from the first camera frame.
+   */
+  public void warmUp() {
+    Trace.beginSection("warmUp");
+    imgData.clear();
+    while (imgData.hasRemaining()) {
+      imgData.put((byte) 0);
+    }
+    detect(imgData, listBatch);
+    Trace.endSection();
+  }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    recognizeImage(bitmap, listBatch);
+    return Recognition.listOf(listBatch, this);
+  }
+
+  @Override
+  public void recognizeImage(final Bitmap bitmap, final DetectionBatch out) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
     Trace.beginSection("preprocessBitmap");
-    // Preprocess the image data from 0-255 int to normalized float based
-    // on the provided parameters.
-    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-
     imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
+    fillInput(bitmap, imgData);
+    Trace.endSection(); // preprocessBitmap
+
+    detect(imgData, out);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public List<List<Recognition>> recognizeBatch(final List<Bitmap> bitmaps) {
+    final int batchSize = bitmaps.size();
+    final List<List<Recognition>> results = new ArrayList<>(batchSize);
+    if (batchSize == 0) {
+      return results;
+    }
+
+    Trace.beginSection("recognizeBatch");
+    if (batchResults.length != batchSize) {
+      batchImgData = allocateInput(batchSize);
+      batchResults = new DetectionBatch[batchSize];
+      for (int b = 0; b < batchSize; ++b) {
+        batchResults[b] = new DetectionBatch(NUM_DETECTIONS);
       }
     }
+
+    Trace.beginSection("preprocessBitmap");
+    batchImgData.rewind();
+    for (final Bitmap bitmap : bitmaps) {
+      fillInput(bitmap, batchImgData);
+    }
     Trace.endSection(); // preprocessBitmap
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
-    Trace.endSection();
+    detectBatch(batchImgData, batchSize, batchResults);
+    for (final DetectionBatch batch : batchResults) {
+      results.add(Recognition.listOf(batch, this));
+    }
+    Trace.endSection(); // "recognizeBatch"
+    return results;
+  }
+
+  /** Appends the normalized pixels of one image at the current position of the buffer. */
+  private void fillInput(final Bitmap bitmap, final ByteBuffer buffer) {
+    // Preprocess the image data from 0-255 int to normalized float based
+    // on the provided parameters.
+    final int inputSize = getInputSize();
+    if (bitmap.getWidth() != inputSize || bitmap.getHeight() != inputSize) {
+      throw new IllegalArgumentException(
+          "Image is " + bitmap.getWidth() + "x" + bitmap.getHeight() + ", expected " + inputSize);
+    }
+    bitmap.getPixels(intValues, 0, inputSize, 0, 0, inputSize, inputSize);
+    ModelInput.fill(intValues, inputSize, inputSize, isQuantized(), buffer);
+  }
 
+  @Override
+  protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
     // Run the inference call.
     Trace.beginSection("run");
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    tfLite.runForMultipleInputsOutputs(inputs, outputs);
     Trace.endSection();
+  }
 
-    // Show the best detections.
-    // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
-    for (int i = 0; i < NUM_DETECTIONS; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
-      // SSD Mobilenet V1 Model assumes class 0 is background class
-      // in label file and class labels start from 1 to number_of_classes+1,
-      // while outputClasses correspond to class index from 0 to number_of_classes
-      int labelOffset = 1;
-      recognitions.add(
-          new Recognition(
-              "" + i,
-              labels.get((int) outputClasses[0][i] + labelOffset),
-              outputScores[0][i],
-              detection));
-    }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
+  @Override
+  protected void resizeInput(final int batchSize) {
+    final int inputSize = getInputSize();
+    tfLite.resizeInput(0, new int[] {batchSize, inputSize, inputSize, 3});
   }
 
   @Override
@@ -226,5 +230,9 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
 
   @Override
   public void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
   }
 }
@@ -3,11 +3,18 @@ package org.tensorflow.ampelpilot;
 import android.content.Context;
 
 import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class TextToSpeechConversion extends AppCompatActivity {
@@ -15,10 +22,20 @@ public class TextToSpeechConversion extends AppCompatActivity {
     private TextToSpeech textToSpeech;
     private Context context;
 
+    // Callbacks waiting for their utterance to start playing, by utterance id.
+    private final Map<String, Runnable> startCallbacks = new ConcurrentHashMap<String, Runnable>();
+    private final AtomicLong nextUtteranceId = new AtomicLong();
+
+    // Fixed phrases played from pre-synthesized files, see prepareCues().
+    private final AudioCueCache cueCache;
+    private final List<String> cuePhrases = Collections.synchronizedList(new ArrayList<String>());
+    private volatile boolean initialized;
+
 
     TextToSpeechConversion(Context context) {
 
         this.context = context;
+        cueCache = new AudioCueCache(context);
 
         initTTS();
     }
@@ -35,6 +52,11 @@ public class TextToSpeechConversion extends AppCompatActivity {
                     } else {
                         Log.i("TTS", "Die Sprache wird unterstützt.");
                     }
+                    textToSpeech.setOnUtteranceProgressListener(new StartListener());
+                    initialized = true;
+                    synchronized (cuePhrases) {
+                        cueCache.prepare(textToSpeech, cuePhrases);
+                    }
                     Log.i("TTS", "Initialisierung erfolgreich.");
                 } else {
                     Toast.makeText(getApplicationContext(), "TTS Initialisierung nicht erfolgreich!", Toast.LENGTH_SHORT).show();
@@ -44,24 +66,117 @@ public class TextToSpeechConversion extends AppCompatActivity {
     }
 
 
+    /**
+     * Registers fixed phrases to be synthesized to files once the engine is ready, so that
+     * {@link #playCue} can play them without synthesis delay.
+     */
+    public void prepareCues(String... phrases) {
+        synchronized (cuePhrases) {
+            Collections.addAll(cuePhrases, phrases);
+            if (initialized) {
+                cueCache.prepare(textToSpeech, cuePhrases);
+            }
+        }
+    }
+
+    /**
+     * Plays a phrase registered with {@link #prepareCues}, interrupting current speech if flush is
+     * set. Without flush a cue can't wait for the speech or cue in progress, so it is only played
+     * when nothing is playing.
+     *
+     * @return false if the phrase isn't ready or has to wait; speak it with {@link #speakUp}
+     *     instead, which queues it.
+     */
+    public boolean playCue(String phrase, boolean flush) {
+        if (!flush && (textToSpeech.isSpeaking() || cueCache.getRemainingMs() > 0)) {
+            return false;
+        }
+        if (!cueCache.play(phrase, flush)) {
+            return false;
+        }
+        if (flush) {
+            textToSpeech.stop();
+        }
+        return true;
+    }
+
     public void speakUp(String speech, boolean flush) {
+        speakUp(speech, flush, null);
+    }
+
+    /**
+     * Speaks the text and runs onStart, on a TextToSpeech thread, once the audio starts playing.
+     * Without flush the text waits for the current speech and for a cue that is still playing.
+     */
+    public void speakUp(String speech, boolean flush, Runnable onStart) {
+        final String utteranceId = "utterance" + nextUtteranceId.incrementAndGet();
+        if (onStart != null) {
+            startCallbacks.put(utteranceId, onStart);
+        }
         int speechStatus;
         if (flush) {
-            speechStatus = textToSpeech.speak(speech, TextToSpeech.QUEUE_FLUSH, null);
+            speechStatus = textToSpeech.speak(speech, TextToSpeech.QUEUE_FLUSH, null, utteranceId);
         } else {
-            speechStatus = textToSpeech.speak(speech, TextToSpeech.QUEUE_ADD, null);
+            // The cue plays outside the engine's queue, so silence holds the text back until it
+            // has ended.
+            final long cueRemainingMs = cueCache.getRemainingMs();
+            if (cueRemainingMs > 0) {
+                textToSpeech.playSilentUtterance(
+                        cueRemainingMs, TextToSpeech.QUEUE_ADD, utteranceId + ":wait");
+            }
+            speechStatus = textToSpeech.speak(speech, TextToSpeech.QUEUE_ADD, null, utteranceId);
         }
 
         if (speechStatus == TextToSpeech.ERROR) {
+            startCallbacks.remove(utteranceId);
             Log.e("TTS", "Error bei der Text to Speech Konvertierung!");
         }
     }
 
+    private class StartListener extends UtteranceProgressListener {
+        @Override
+        public void onStart(String utteranceId) {
+            final Runnable callback = startCallbacks.remove(utteranceId);
+            if (callback != null) {
+                callback.run();
+            }
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            startCallbacks.remove(utteranceId);
+            if (AudioCueCache.isCueUtterance(utteranceId)) {
+                cueCache.onSynthesized(utteranceId, true);
+            }
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            startCallbacks.remove(utteranceId);
+            if (AudioCueCache.isCueUtterance(utteranceId)) {
+                cueCache.onSynthesized(utteranceId, false);
+            }
+        }
+
+        @Override
+        public void onStop(String utteranceId, boolean interrupted) {
+            startCallbacks.remove(utteranceId);
+        }
+    }
+
+    /** Stops the current speech, the engine stays ready. */
+    public void stop() {
+        if (textToSpeech != null) {
+            textToSpeech.stop();
+        }
+    }
+
     public void releaseResources() {
         if (textToSpeech != null) {
             textToSpeech.stop();
             textToSpeech.shutdown();
         }
+        cueCache.release();
     }
 
     @Override
@@ -16,6 +16,7 @@ limitations under the License.
 package org.tensorflow.ampelpilot.env;
 
 import android.graphics.Matrix;
+import java.nio.ByteBuffer;
 
 /**
  * Utility class for manipulating images.
@@ -44,10 +45,6 @@ public class ImageUtils {
     return ySize + uvSize;
   }
 
-  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
-  // are normalized to eight bits.
-  static final int kMaxChannelValue = 262143;
-
   // Always prefer the native implementation if available.
   private static boolean useNativeConversion = false;
 
@@ -65,50 +62,9 @@ public class ImageUtils {
       }
     }
 
-    // Java implementation of YUV420SP to ARGB8888 converting
-    final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
-      int uvp = frameSize + (j >> 1) * width;
-      int u = 0;
-      int v = 0;
-
-      for (int i = 0; i < width; i++, yp++) {
-        int y = 0xff & input[yp];
-        if ((i & 1) == 0) {
-          v = 0xff & input[uvp++];
-          u = 0xff & input[uvp++];
-        }
-
-        output[yp] = YUV2RGB(y, u, v);
-      }
-    }
+    YuvConversion.convertYUV420SPToARGB8888(input, width, height, output);
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
-    // Adjust and check YUV values
-    y = (y - 16) < 0 ? 0 : (y - 16);
-    u -= 128;
-    v -= 128;
-
-    // This is the floating point equivalent. We do the conversion in integer
-    // because some Android devices do not have floating point in hardware.
-    // nR = (int)(1.164 * nY + 2.018 * nU);
-    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-    // nB = (int)(1.164 * nY + 1.596 * nV);
-    int y1192 = 1192 * y;
-    int r = (y1192 + 1634 * v);
-    int g = (y1192 - 833 * v - 400 * u);
-    int b = (y1192 + 2066 * u);
-
-    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-    r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
-    g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
-    b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
-
-    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-  }
-
-
   public static void convertYUV420ToARGB8888(
       byte[] yData,
       byte[] uData,
@@ -129,22 +85,64 @@ public class ImageUtils {
       }
     }
 
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
-      int pY = yRowStride * j;
-      int pUV = uvRowStride * (j >> 1);
-
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+    YuvConversion.convertYUV420ToARGB8888(
+        yData, uData, vData, width, height, yRowStride, uvRowStride, uvPixelStride, out);
+  }
 
-        out[yp++] = YUV2RGB(
-            0xff & yData[pY + i],
-            0xff & uData[uv_offset],
-            0xff & vData[uv_offset]);
-      }
-    }
+  /**
+   * Converts YUV420 data to ARGB 8888 straight from the plane buffers of an
+   * {@link android.media.Image}, without copying the planes into arrays first. Only absolute
+   * reads are used, so the positions of the buffers are left untouched.
+   *
+   * <p>A chroma pixel stride of 2 means the U and V planes are views of one interleaved NV12 or
+   * NV21 buffer, a stride of 1 means separate planes. Both are handled by stepping the chroma
+   * offset by the pixel stride, and each U/V sample is read once for the two horizontal pixels
+   * it covers.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    convertYUV420ToARGB8888(
+        yData, uData, vData, 0, 0, width, height, yRowStride, uvRowStride, uvPixelStride, out);
   }
 
+  /**
+   * Same as above, but only converts the region of the given size starting at (left, top).
+   * The output holds the region row by row. Left and top must be even so that the region
+   * starts on a chroma sample.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int left,
+      int top,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    YuvConversion.convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        left,
+        top,
+        width,
+        height,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        out);
+  }
 
   /**
    * Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width and height. The
@@ -246,47 +244,11 @@ public class ImageUtils {
       final int dstHeight,
       final int applyRotation,
       final boolean maintainAspectRatio) {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(
+        srcWidth, srcHeight, dstWidth, dstHeight, applyRotation, maintainAspectRatio);
     final Matrix matrix = new Matrix();
-
-    if (applyRotation != 0) {
-      if (applyRotation % 90 != 0) {
-      }
-
-      // Translate so center of image is at origin.
-      matrix.postTranslate(-srcWidth / 2.0f, -srcHeight / 2.0f);
-
-      // Rotate around origin.
-      matrix.postRotate(applyRotation);
-    }
-
-    // Account for the already applied rotation, if any, and then determine how
-    // much scaling is needed for each axis.
-    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
-
-    final int inWidth = transpose ? srcHeight : srcWidth;
-    final int inHeight = transpose ? srcWidth : srcHeight;
-
-    // Apply scaling if necessary.
-    if (inWidth != dstWidth || inHeight != dstHeight) {
-      final float scaleFactorX = dstWidth / (float) inWidth;
-      final float scaleFactorY = dstHeight / (float) inHeight;
-
-      if (maintainAspectRatio) {
-        // Scale by minimum factor so that dst is filled completely while
-        // maintaining the aspect ratio. Some image may fall off the edge.
-        final float scaleFactor = Math.max(scaleFactorX, scaleFactorY);
-        matrix.postScale(scaleFactor, scaleFactor);
-      } else {
-        // Scale exactly to fill dst from src.
-        matrix.postScale(scaleFactorX, scaleFactorY);
-      }
-    }
-
-    if (applyRotation != 0) {
-      // Translate back from origin centered reference to destination frame.
-      matrix.postTranslate(dstWidth / 2.0f, dstHeight / 2.0f);
-    }
-
+    matrix.setValues(transform.getValues(new float[9]));
     return matrix;
   }
 }
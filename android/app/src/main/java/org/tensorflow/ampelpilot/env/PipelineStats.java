@@ -0,0 +1,391 @@
+package org.tensorflow.ampelpilot.env;
+
+import android.os.SystemClock;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingWriter;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogFormat;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogWriter;
+
+/**
+ * Process wide collection of pipeline metrics. Written from the camera and inference threads and
+ * rendered as text lines by the performance HUD.
+ */
+public class PipelineStats {
+
+  private static final PipelineStats instance = new PipelineStats();
+
+  // Weight of a new sample in the exponential moving averages.
+  private static final double AVERAGE_WEIGHT = 0.05;
+
+  // Length of the windows the frame rates are measured over, which is also how often the frame
+  // counters are written to the session log.
+  private static final long RATE_WINDOW_NS = 1000000000L;
+
+  /** Feedback channels of {@link #recordFeedbackLatency}. */
+  public static final String FEEDBACK_VIBRATION = "vibration";
+  // Vibration start measured from the phase confirmation instead of the sensor timestamp.
+  public static final String FEEDBACK_VIBRATION_CONFIRMED = "vibration after confirmation";
+  public static final String FEEDBACK_SPEECH = "speech";
+  public static final String FEEDBACK_CUE = "speech cue";
+
+  public static PipelineStats getInstance() {
+    return instance;
+  }
+
+  private String captureProfile = "";
+
+  // Receives frames and feedback events while a session is recorded, see SessionRecorder.
+  private SessionLogWriter sessionLog;
+
+  // Receives raw camera frames while they are recorded, see SessionRecorder.
+  private FrameRecordingWriter frameRecording;
+
+  // Only true if sensor timestamps share the time base of SystemClock.elapsedRealtimeNanos().
+  private boolean sensorTimestampRealtime = false;
+
+  // Whether the camera delivers U and V interleaved (NV12/NV21) instead of as separate planes.
+  private boolean chromaInterleaved;
+
+  private long lastSensorLatencyNs;
+  private double averageSensorLatencyNs;
+  private long sensorLatencySamples;
+
+  private long verificationsRequested;
+  private long verificationsConfirmed;
+
+  private long uiFramesDrawn;
+  private long uiFramesUnchanged;
+  private long uiFramesDropped;
+
+  // Last per-minute measurement of each operating mode, see PowerMonitor.
+  private final Map<String, String> powerCostLines = new TreeMap<String, String>();
+
+  // Startup milestones in milliseconds since the activity was created, -1 until reached.
+  private long startTimeMs;
+  private long modelLoadMs = -1;
+  private long warmUpMs = -1;
+  private long firstDetectionMs = -1;
+  private long firstStablePhaseMs = -1;
+
+  // Sensor timestamp to feedback start, per channel: {last, average, samples}.
+  private final Map<String, double[]> feedbackLatencies = new TreeMap<String, double[]>();
+
+  private long lastInferenceTimeMs;
+  private double averageInferenceTimeMs;
+  private long inferenceSamples;
+
+  // Frames counted since startup by SessionLogFormat.COUNTER_ index, their values at the start
+  // of the current rate window and the rates per second of the last complete window.
+  private final long[] frameCounts = new long[SessionLogFormat.COUNTER_COUNT];
+  private final long[] windowStartCounts = new long[SessionLogFormat.COUNTER_COUNT];
+  private final float[] frameRates = new float[SessionLogFormat.COUNTER_COUNT];
+  private long rateWindowStartNs;
+
+  // Time from the delivery of a frame to the app until inference on it starts.
+  private long lastFrameAgeNs;
+  private double averageFrameAgeNs;
+  private long frameAgeSamples;
+
+  private PipelineStats() {}
+
+  public synchronized void setSessionLog(final SessionLogWriter sessionLog) {
+    this.sessionLog = sessionLog;
+  }
+
+  /** The log of the recorded session, or null. */
+  public synchronized SessionLogWriter getSessionLog() {
+    return sessionLog;
+  }
+
+  public synchronized void setFrameRecording(final FrameRecordingWriter frameRecording) {
+    this.frameRecording = frameRecording;
+  }
+
+  public synchronized void setCaptureProfile(final String captureProfile) {
+    this.captureProfile = captureProfile;
+  }
+
+  public synchronized String getCaptureProfile() {
+    return captureProfile;
+  }
+
+  public synchronized void setSensorTimestampRealtime(final boolean sensorTimestampRealtime) {
+    this.sensorTimestampRealtime = sensorTimestampRealtime;
+    sensorLatencySamples = 0;
+  }
+
+  public synchronized boolean isSensorTimestampRealtime() {
+    return sensorTimestampRealtime;
+  }
+
+  public synchronized void setChromaInterleaved(final boolean chromaInterleaved) {
+    this.chromaInterleaved = chromaInterleaved;
+  }
+
+  /**
+   * Counts a frame delivered by the camera and records the time between its exposure and the
+   * delivery to the app.
+   *
+   * @param sensorTimestampNs The {@link android.media.Image#getTimestamp()} of the frame, or 0
+   *     if the camera doesn't report one.
+   */
+  public synchronized void recordFrameDelivered(final long sensorTimestampNs) {
+    countFrame(SessionLogFormat.COUNTER_DELIVERED);
+    if (!sensorTimestampRealtime || sensorTimestampNs == 0) {
+      return;
+    }
+    lastSensorLatencyNs = SystemClock.elapsedRealtimeNanos() - sensorTimestampNs;
+    averageSensorLatencyNs =
+        updateAverage(averageSensorLatencyNs, lastSensorLatencyNs, sensorLatencySamples);
+    ++sensorLatencySamples;
+  }
+
+  /** Counts a frame closed in the camera callback because the previous one is still in use. */
+  public synchronized void recordFrameDroppedAtCapture() {
+    countFrame(SessionLogFormat.COUNTER_DROPPED_AT_CAPTURE);
+  }
+
+  /**
+   * Counts a frame that was converted and handed to the tracker, but not to the model: inference
+   * was still busy with an earlier frame, the model wasn't loaded yet or detection is off.
+   */
+  public synchronized void recordFrameDroppedBeforeInference() {
+    countFrame(SessionLogFormat.COUNTER_DROPPED_BEFORE_INFERENCE);
+  }
+
+  /**
+   * Counts a frame the model runs on.
+   *
+   * @param frameAgeNs Time from the delivery of the frame to the start of inference.
+   */
+  public synchronized void recordFrameProcessed(final long frameAgeNs) {
+    countFrame(SessionLogFormat.COUNTER_PROCESSED);
+    lastFrameAgeNs = frameAgeNs;
+    averageFrameAgeNs = updateAverage(averageFrameAgeNs, frameAgeNs, frameAgeSamples);
+    ++frameAgeSamples;
+  }
+
+  private void countFrame(final int counter) {
+    ++frameCounts[counter];
+    updateFrameRates(SystemClock.elapsedRealtimeNanos());
+  }
+
+  // Completes the rate window once it is over; the counts of the window go to the session log.
+  private void updateFrameRates(final long nowNs) {
+    final long elapsedNs = nowNs - rateWindowStartNs;
+    if (elapsedNs < RATE_WINDOW_NS) {
+      return;
+    }
+    for (int c = 0; c < SessionLogFormat.COUNTER_COUNT; ++c) {
+      frameRates[c] = (frameCounts[c] - windowStartCounts[c]) * 1e9f / elapsedNs;
+      windowStartCounts[c] = frameCounts[c];
+    }
+    rateWindowStartNs = nowNs;
+    if (sessionLog != null) {
+      sessionLog.recordFrameCounters(nowNs, frameCounts);
+    }
+  }
+
+  /** Starts the startup clock, called when the activity is created. */
+  public synchronized void markStartup() {
+    startTimeMs = SystemClock.uptimeMillis();
+    for (int c = 0; c < SessionLogFormat.COUNTER_COUNT; ++c) {
+      frameCounts[c] = 0;
+      windowStartCounts[c] = 0;
+      frameRates[c] = 0.0f;
+    }
+    rateWindowStartNs = SystemClock.elapsedRealtimeNanos();
+    frameAgeSamples = 0;
+    modelLoadMs = -1;
+    warmUpMs = -1;
+    firstDetectionMs = -1;
+    firstStablePhaseMs = -1;
+  }
+
+  /**
+   * Records the duration of model loading and of the warm-up inference.
+   */
+  public synchronized void recordModelLoaded(final long loadMs, final long warmUpMs) {
+    this.modelLoadMs = loadMs;
+    this.warmUpMs = warmUpMs;
+  }
+
+  /** Records the end of the first inference on a camera frame after startup. */
+  public synchronized void recordDetection() {
+    if (firstDetectionMs < 0) {
+      firstDetectionMs = SystemClock.uptimeMillis() - startTimeMs;
+    }
+  }
+
+  /** Records a stable light phase; the first one after startup is the startup metric. */
+  public synchronized void recordStablePhase() {
+    if (firstStablePhaseMs < 0) {
+      firstStablePhaseMs = SystemClock.uptimeMillis() - startTimeMs;
+    }
+  }
+
+  /** Time from startup to the first stable light phase in milliseconds, or -1. */
+  public synchronized long getTimeToFirstStablePhaseMs() {
+    return firstStablePhaseMs;
+  }
+
+  public synchronized void recordInferenceTime(final long inferenceTimeMs) {
+    lastInferenceTimeMs = inferenceTimeMs;
+    averageInferenceTimeMs =
+        updateAverage(averageInferenceTimeMs, inferenceTimeMs, inferenceSamples);
+    ++inferenceSamples;
+  }
+
+  /**
+   * Records the time from the exposure of a frame to the start of the feedback it caused, and
+   * the feedback event in the session log.
+   *
+   * @param channel One of the FEEDBACK_ constants.
+   * @param phase The announced light phase.
+   */
+  public synchronized void recordFeedbackLatency(
+      final String channel, final String phase, final long latencyNs) {
+    if (sessionLog != null) {
+      sessionLog.recordFeedback(SystemClock.elapsedRealtimeNanos(), channel, phase, latencyNs);
+    }
+    double[] latency = feedbackLatencies.get(channel);
+    if (latency == null) {
+      latency = new double[3];
+      feedbackLatencies.put(channel, latency);
+    }
+    latency[0] = latencyNs / 1e6;
+    latency[1] = updateAverage(latency[1], latency[0], (long) latency[2]);
+    ++latency[2];
+  }
+
+  public synchronized void recordVerificationRequested() {
+    ++verificationsRequested;
+  }
+
+  public synchronized void recordVerificationConfirmed() {
+    ++verificationsConfirmed;
+  }
+
+  /**
+   * Records one vsync callback of the overlay renderer.
+   *
+   * @param drawn Whether any overlay changed and was redrawn.
+   * @param droppedFrames Display frames that passed before the callback could run.
+   */
+  public synchronized void recordUiFrame(final boolean drawn, final long droppedFrames) {
+    if (drawn) {
+      ++uiFramesDrawn;
+    } else {
+      ++uiFramesUnchanged;
+    }
+    uiFramesDropped += droppedFrames;
+  }
+
+  /**
+   * Records the cost of the last measurement window of a mode.
+   *
+   * @param drainMahPerMinute Battery drain, negative if the device doesn't report the charge.
+   */
+  public synchronized void recordPowerCost(
+      final String mode, final float cpuPercent, final float drainMahPerMinute) {
+    final String drain =
+        drainMahPerMinute < 0 ? "n/a" : String.format("%.2f mAh/min", drainMahPerMinute);
+    powerCostLines.put(
+        mode, String.format("Power (%s): CPU %.0f%%, battery %s", mode, cpuPercent, drain));
+  }
+
+  private static double updateAverage(final double average, final double sample, final long count) {
+    return count == 0 ? sample : average + AVERAGE_WEIGHT * (sample - average);
+  }
+
+  private static String formatMs(final long ms) {
+    return ms < 0 ? "n/a" : ms + " ms";
+  }
+
+  /** Average sensor-to-callback latency in milliseconds, or -1 if it can't be measured. */
+  public synchronized float getSensorLatencyMs() {
+    return sensorLatencySamples == 0 ? -1.0f : (float) (averageSensorLatencyNs / 1e6);
+  }
+
+  public synchronized Vector<String> getStatLines() {
+    final Vector<String> lines = new Vector<String>();
+    lines.add("Profile: " + captureProfile);
+    lines.add("YUV layout: " + (chromaInterleaved ? "semi-planar (NV12/NV21)" : "planar"));
+    if (sensorLatencySamples == 0) {
+      lines.add("Sensor latency: n/a");
+    } else {
+      lines.add(
+          String.format(
+              "Sensor latency: %.1f ms (last %.1f ms)",
+              averageSensorLatencyNs / 1e6, lastSensorLatencyNs / 1e6));
+    }
+    lines.add(
+        String.format(
+            "Inference: %.1f ms (last %d ms)", averageInferenceTimeMs, lastInferenceTimeMs));
+    // Without new frames the last window would stay on screen.
+    updateFrameRates(SystemClock.elapsedRealtimeNanos());
+    lines.add(
+        String.format(
+            "Frames/s: %.1f delivered, %.1f dropped at capture, %.1f before inference,"
+                + " %.1f processed",
+            frameRates[SessionLogFormat.COUNTER_DELIVERED],
+            frameRates[SessionLogFormat.COUNTER_DROPPED_AT_CAPTURE],
+            frameRates[SessionLogFormat.COUNTER_DROPPED_BEFORE_INFERENCE],
+            frameRates[SessionLogFormat.COUNTER_PROCESSED]));
+    lines.add(
+        "Frames: "
+            + frameCounts[SessionLogFormat.COUNTER_DELIVERED]
+            + " delivered, "
+            + frameCounts[SessionLogFormat.COUNTER_DROPPED_AT_CAPTURE]
+            + " dropped at capture, "
+            + frameCounts[SessionLogFormat.COUNTER_DROPPED_BEFORE_INFERENCE]
+            + " before inference, "
+            + frameCounts[SessionLogFormat.COUNTER_PROCESSED]
+            + " processed");
+    if (frameAgeSamples == 0) {
+      lines.add("Frame age at inference: n/a");
+    } else {
+      lines.add(
+          String.format(
+              "Frame age at inference: %.1f ms (last %.1f ms)",
+              averageFrameAgeNs / 1e6, lastFrameAgeNs / 1e6));
+    }
+    lines.add(
+        "Startup: model "
+            + formatMs(modelLoadMs)
+            + " + warm-up "
+            + formatMs(warmUpMs)
+            + ", first detection "
+            + formatMs(firstDetectionMs)
+            + ", first stable phase "
+            + formatMs(firstStablePhaseMs));
+    for (final Map.Entry<String, double[]> entry : feedbackLatencies.entrySet()) {
+      lines.add(
+          String.format(
+              "Feedback latency (%s): %.0f ms (last %.0f ms)",
+              entry.getKey(), entry.getValue()[1], entry.getValue()[0]));
+    }
+    lines.add(
+        "High-res checks: " + verificationsConfirmed + "/" + verificationsRequested + " confirmed");
+    lines.add(
+        "UI frames: "
+            + uiFramesDrawn
+            + " drawn, "
+            + uiFramesUnchanged
+            + " unchanged, "
+            + uiFramesDropped
+            + " dropped");
+    if (frameRecording != null) {
+      lines.add(
+          "Recording: "
+              + frameRecording.getFramesWritten()
+              + " frames, "
+              + frameRecording.getFramesDropped()
+              + " dropped");
+    }
+    lines.addAll(powerCostLines.values());
+    return lines;
+  }
+}
@@ -0,0 +1,103 @@
+package org.tensorflow.ampelpilot.env;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Measures the battery drain and the CPU time of the app once per minute and reports both to
+ * {@link PipelineStats}, separately for each operating mode (e.g. preview and low power).
+ *
+ * <p>A measurement window is restarted whenever the mode changes, so a reported minute never
+ * mixes two modes.
+ */
+public class PowerMonitor {
+
+  private static final long WINDOW_MS = 60 * 1000;
+
+  private final BatteryManager batteryManager;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  private String mode = "";
+  private long windowStartMs;
+  private long windowStartCpuMs;
+  private long windowStartChargeUah;
+  private boolean running;
+
+  private final Runnable sample =
+      new Runnable() {
+        @Override
+        public void run() {
+          finishWindow();
+          startWindow();
+          handler.postDelayed(this, WINDOW_MS);
+        }
+      };
+
+  public PowerMonitor(final Context context) {
+    batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    startWindow();
+    handler.postDelayed(sample, WINDOW_MS);
+  }
+
+  public synchronized void stop() {
+    running = false;
+    handler.removeCallbacks(sample);
+  }
+
+  /** Switches the mode the following measurements are attributed to. */
+  public synchronized void setMode(final String mode) {
+    if (this.mode.equals(mode)) {
+      return;
+    }
+    this.mode = mode;
+    if (running) {
+      handler.removeCallbacks(sample);
+      startWindow();
+      handler.postDelayed(sample, WINDOW_MS);
+    }
+  }
+
+  private synchronized void startWindow() {
+    windowStartMs = SystemClock.elapsedRealtime();
+    windowStartCpuMs = Process.getElapsedCpuTime();
+    windowStartChargeUah = readChargeCounterUah();
+  }
+
+  private synchronized void finishWindow() {
+    final long elapsedMs = SystemClock.elapsedRealtime() - windowStartMs;
+    if (elapsedMs <= 0) {
+      return;
+    }
+    final float minutes = elapsedMs / (float) WINDOW_MS;
+    // CPU time of all threads of the process relative to wall time, 100% is one busy core.
+    final float cpuPercent = 100.0f * (Process.getElapsedCpuTime() - windowStartCpuMs) / elapsedMs;
+
+    float drainMahPerMinute = -1.0f;
+    final long chargeUah = readChargeCounterUah();
+    if (chargeUah > 0 && windowStartChargeUah > 0) {
+      drainMahPerMinute = (windowStartChargeUah - chargeUah) / 1000.0f / minutes;
+    }
+    PipelineStats.getInstance().recordPowerCost(mode, cpuPercent, drainMahPerMinute);
+  }
+
+  /** Remaining battery charge in microampere-hours, or 0 if the device doesn't report it. */
+  private long readChargeCounterUah() {
+    if (batteryManager == null) {
+      return 0;
+    }
+    final int charge =
+        batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+    return charge == Integer.MIN_VALUE ? 0 : charge;
+  }
+}
@@ -0,0 +1,155 @@
+package org.tensorflow.ampelpilot.env;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingWriter;
+import org.tensorflow.ampelpilot.sessionlog.SessionLogWriter;
+
+/**
+ * Opens and closes the session log of the app, one ring file per session in the app's external
+ * files directory (Android/data/org.tensorflow.ampelpilot/files/sessions). Only the newest
+ * {@link #KEPT_SESSIONS} files are kept. Pull a log with adb and decode it with the sessionlog
+ * module. Raw frame recordings go to the recordings directory the same way.
+ */
+public class SessionRecorder {
+  private static final String TAG = "SessionRecorder";
+
+  private static final String DIRECTORY = "sessions";
+  private static final String SUFFIX = ".apsl";
+  private static final int KEPT_SESSIONS = 5;
+
+  // About 8.9 MB per file, enough for an hour at 10 processed frames per second.
+  private static final int CAPACITY = 1 << 16;
+  private static final int STAGING_CAPACITY = 256;
+
+  private static final String RECORDING_DIRECTORY = "recordings";
+  private static final String RECORDING_SUFFIX = ".apfr";
+  private static final int KEPT_RECORDINGS = 2;
+
+  // A 640x480 YUV frame takes about 460 KB, so a chunk holds about 35 frames and the limit
+  // about 2300 frames, four minutes at 10 frames per second.
+  private static final int RECORDING_CHUNK_SIZE = 16 << 20;
+  private static final long RECORDING_MAX_BYTES = 1L << 30;
+  private static final int RECORDING_BUFFERS = 4;
+
+  private SessionRecorder() {}
+
+  /**
+   * Starts a new session log and hands it to {@link PipelineStats}.
+   *
+   * @return The writer, or null if the log can't be created.
+   */
+  public static SessionLogWriter start(final Context context) {
+    final File directory = context.getExternalFilesDir(DIRECTORY);
+    if (directory == null) {
+      Log.w(TAG, "External storage unavailable, no session log");
+      return null;
+    }
+    prune(directory, SUFFIX, KEPT_SESSIONS);
+    final String name =
+        new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + SUFFIX;
+    try {
+      final SessionLogWriter writer =
+          new SessionLogWriter(
+              new File(directory, name),
+              CAPACITY,
+              STAGING_CAPACITY,
+              System.currentTimeMillis(),
+              SystemClock.elapsedRealtimeNanos());
+      PipelineStats.getInstance().setSessionLog(writer);
+      return writer;
+    } catch (final IOException e) {
+      Log.e(TAG, "Can't create session log " + name, e);
+      return null;
+    }
+  }
+
+  /** Detaches the log from {@link PipelineStats} and closes it. */
+  public static void stop(final SessionLogWriter writer) {
+    if (writer == null) {
+      return;
+    }
+    PipelineStats.getInstance().setSessionLog(null);
+    try {
+      writer.close();
+    } catch (final IOException e) {
+      Log.e(TAG, "Can't close session log", e);
+    }
+  }
+
+  /**
+   * Starts recording raw camera frames into the recordings directory next to the session logs
+   * and hands the writer to {@link PipelineStats}. Recordings are large, so only the newest
+   * {@link #KEPT_RECORDINGS} are kept.
+   *
+   * @return The writer, or null if the recording can't be created.
+   */
+  public static FrameRecordingWriter startFrameRecording(final Context context) {
+    final File directory = context.getExternalFilesDir(RECORDING_DIRECTORY);
+    if (directory == null) {
+      Log.w(TAG, "External storage unavailable, no frame recording");
+      return null;
+    }
+    prune(directory, RECORDING_SUFFIX, KEPT_RECORDINGS);
+    final String name =
+        new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + RECORDING_SUFFIX;
+    try {
+      final FrameRecordingWriter writer =
+          new FrameRecordingWriter(
+              new File(directory, name),
+              RECORDING_CHUNK_SIZE,
+              RECORDING_MAX_BYTES,
+              RECORDING_BUFFERS,
+              System.currentTimeMillis());
+      PipelineStats.getInstance().setFrameRecording(writer);
+      return writer;
+    } catch (final IOException e) {
+      Log.e(TAG, "Can't create frame recording " + name, e);
+      return null;
+    }
+  }
+
+  /** Detaches the recording from {@link PipelineStats} and closes it. */
+  public static void stopFrameRecording(final FrameRecordingWriter writer) {
+    if (writer == null) {
+      return;
+    }
+    PipelineStats.getInstance().setFrameRecording(null);
+    try {
+      writer.close();
+    } catch (final IOException e) {
+      Log.e(TAG, "Can't close frame recording", e);
+    }
+  }
+
+  // Deletes the oldest files so that a new one keeps the count at kept.
+  private static void prune(final File directory, final String suffix, final int kept) {
+    final File[] logs = directory.listFiles();
+    if (logs == null) {
+      return;
+    }
+    // The names start with the date, so they sort by age.
+    Arrays.sort(logs);
+    int remaining = 0;
+    for (final File log : logs) {
+      if (log.getName().endsWith(suffix)) {
+        ++remaining;
+      }
+    }
+    for (final File log : logs) {
+      if (remaining < kept) {
+        break;
+      }
+      if (log.getName().endsWith(suffix) && log.delete()) {
+        --remaining;
+      }
+    }
+  }
+}
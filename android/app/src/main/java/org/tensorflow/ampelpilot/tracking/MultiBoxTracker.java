@@ -25,14 +25,16 @@ import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Pair;
 import android.util.TypedValue;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.tensorflow.ampelpilot.CameraActivity;
-import org.tensorflow.ampelpilot.Classifier.Recognition;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.Detector;
 import org.tensorflow.ampelpilot.DetectorActivity;
 import org.tensorflow.ampelpilot.env.BorderedText;
 import org.tensorflow.ampelpilot.env.ImageUtils;
@@ -64,8 +66,6 @@ public class MultiBoxTracker {
 
   public ObjectTracker objectTracker;
 
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
-
   private static class TrackedRecognition {
     ObjectTracker.TrackedObject trackedObject;
     RectF location;
@@ -84,6 +84,29 @@ public class MultiBoxTracker {
 
   private Matrix frameToCanvasMatrix;
 
+  // Sizes the cached frameToCanvasMatrix was built for.
+  private int matrixCanvasWidth;
+  private int matrixCanvasHeight;
+  private int matrixFrameWidth;
+  private int matrixFrameHeight;
+  private int matrixSensorOrientation;
+
+  // Reused by draw() for the position of each box.
+  private final RectF scratchRect = new RectF();
+  // Per-frame scratch of processResults: a detection's box and the indices of those to track.
+  private final RectF scratchFrameRect = new RectF();
+  private int[] rectsToTrack = new int[0];
+
+  // Labels are shown with two decimals, so there are 101 distinct ones per title.
+  private static final int LABEL_CONFIDENCE_STEPS = 100;
+  private final Map<String, String[]> labelCache = new HashMap<String, String[]>();
+
+  // Bumped whenever the boxes to draw change; compared with the version of the last draw.
+  private long contentVersion;
+  private long drawnVersion = -1;
+  private boolean drawnPreview;
+  private int drawnPhaseColor;
+
   private int frameWidth;
   private int frameHeight;
   private float rotatedWidth;
@@ -116,36 +139,124 @@ public class MultiBoxTracker {
     return frameToCanvasMatrix;
   }
 
-
-  public synchronized void trackResults(
-      final List<Recognition> results, final byte[] frame, final long timestamp) {
-    processResults(timestamp, results, frame);
-  }
-
-  public synchronized void draw(final Canvas canvas) {
+  /**
+   * Rebuilds the frame to canvas transform, but only if the canvas, the frame size or the sensor
+   * orientation changed since the last draw.
+   */
+  private void updateFrameToCanvasMatrix(final int canvasWidth, final int canvasHeight) {
+    if (frameToCanvasMatrix != null
+        && canvasWidth == matrixCanvasWidth
+        && canvasHeight == matrixCanvasHeight
+        && frameWidth == matrixFrameWidth
+        && frameHeight == matrixFrameHeight
+        && sensorOrientation == matrixSensorOrientation) {
+      return;
+    }
+    matrixCanvasWidth = canvasWidth;
+    matrixCanvasHeight = canvasHeight;
+    matrixFrameWidth = frameWidth;
+    matrixFrameHeight = frameHeight;
+    matrixSensorOrientation = sensorOrientation;
 
     final boolean rotated = sensorOrientation % 180 == 90;
     rotatedWidth = rotated ? frameWidth : frameHeight;
     rotatedHeight = rotated ? frameHeight : frameWidth;
     final float multiplier =
-        Math.min(canvas.getHeight() / rotatedWidth,
-                 canvas.getWidth() / rotatedHeight);
+        Math.min(canvasHeight / rotatedWidth,
+                 canvasWidth / rotatedHeight);
+
+    frameToCanvasMatrix =
+            ImageUtils.getTransformationMatrix(
+                    frameWidth,
+                    frameHeight,
+                    (int) (multiplier * rotatedHeight),
+                    (int) (multiplier * rotatedWidth),
+                    sensorOrientation,
+                    false);
+  }
+
+  /**
+   * Returns the label for a box. Labels are formatted once per title and confidence step and then
+   * reused, so drawing doesn't format strings at display refresh rate.
+   */
+  private String getLabel(final String title, final float confidence) {
+    final String key = title != null ? title : "";
+    String[] labels = labelCache.get(key);
+    if (labels == null) {
+      labels = new String[LABEL_CONFIDENCE_STEPS + 1];
+      labelCache.put(key, labels);
+    }
+    final int step =
+        Math.max(
+            0, Math.min(LABEL_CONFIDENCE_STEPS, Math.round(confidence * LABEL_CONFIDENCE_STEPS)));
+    if (labels[step] == null) {
+      final float quantized = step / (float) LABEL_CONFIDENCE_STEPS;
+      labels[step] =
+          !TextUtils.isEmpty(title)
+              ? String.format("%s %.2f", title, quantized)
+              : String.format("%.2f", quantized);
+    }
+    return labels[step];
+  }
+
+
+  /**
+   * Tracks the detections of a frame, read straight from the batch so that no list of objects is
+   * built per frame.
+   *
+   * @param results Detections in preview frame coordinates.
+   * @param labels Detector whose label indices the batch uses.
+   */
+  public synchronized void trackResults(
+      final DetectionBatch results,
+      final Detector labels,
+      final byte[] frame,
+      final long timestamp) {
+    processResults(timestamp, results, labels, frame);
+    ++contentVersion;
+  }
+
+  /**
+   * Returns whether the next {@link #draw} would paint something different from the last one:
+   * boxes changed while the preview is shown, or the phase color changed while it is hidden.
+   */
+  public synchronized boolean needsRedraw() {
+    if (CameraActivity.preview != drawnPreview) {
+      return true;
+    }
+    return CameraActivity.preview
+        ? contentVersion != drawnVersion
+        : getPhaseColor() != drawnPhaseColor;
+  }
+
+  private static int getPhaseColor() {
+    final String phase = DetectorActivity.stable_light_phase;
+    if ("red".equals(phase)) {
+      return Color.RED;
+    } else if ("green".equals(phase)) {
+      return Color.GREEN;
+    }
+    return Color.GRAY;
+  }
+
+  public synchronized void draw(final Canvas canvas) {
+    drawnPreview = CameraActivity.preview;
+    drawnVersion = contentVersion;
 
     //camera preview activated: camera frame + detected bounding boxes
     if (CameraActivity.preview) {
-      frameToCanvasMatrix =
-              ImageUtils.getTransformationMatrix(
-                      frameWidth,
-                      frameHeight,
-                      (int) (multiplier * rotatedHeight),
-                      (int) (multiplier * rotatedWidth),
-                      sensorOrientation,
-                      false);
+      updateFrameToCanvasMatrix(canvas.getWidth(), canvas.getHeight());
       for (final TrackedRecognition recognition : trackedObjects) {
-        final RectF trackedPos =
-                (objectTracker != null)
-                        ? recognition.trackedObject.getTrackedPositionInPreviewFrame()
-                        : new RectF(recognition.location);
+        final RectF trackedPos = scratchRect;
+        if (objectTracker != null) {
+          if (!recognition.trackedObject.getTrackedPositionInPreviewFrame(trackedPos)) {
+            continue;
+          }
+        } else if (recognition.location != null) {
+          trackedPos.set(recognition.location);
+        } else {
+          trackedPos.setEmpty();
+        }
 
         getFrameToCanvasMatrix().mapRect(trackedPos);
         boxPaint.setColor(recognition.color);
@@ -153,30 +264,39 @@ public class MultiBoxTracker {
         final float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
         canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
 
-        final String labelString =
-                !TextUtils.isEmpty(recognition.title)
-                        ? String.format("%s %.2f", recognition.title, recognition.detectionConfidence)
-                        : String.format("%.2f", recognition.detectionConfidence);
+        final String labelString = getLabel(recognition.title, recognition.detectionConfidence);
         borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.bottom, labelString);
         }
 
       //camera preview deactivated: paint canvas in gray, red or green according to stable light phase
     } else {
-      if (DetectorActivity.stable_light_phase == null) {
-        fillPaint.setColor(Color.GRAY);
-      } else if (DetectorActivity.stable_light_phase.equals("red")) {
-        fillPaint.setColor(Color.RED);
-      } else if (DetectorActivity.stable_light_phase.equals("green")) {
-        fillPaint.setColor(Color.GREEN);
-      } else {
-        fillPaint.setColor(Color.GRAY);
-      }
+      drawnPhaseColor = getPhaseColor();
+      fillPaint.setColor(drawnPhaseColor);
       canvas.drawRect(START, START, canvas.getWidth(), canvas.getHeight(), fillPaint);
     }
   }
 
   private boolean initialized = false;
 
+  /**
+   * Drops all tracked objects and the native tracker, e.g. because the preview size changed.
+   * The next call to {@link #onFrame} sets tracking up again for the new frame dimensions.
+   */
+  public synchronized void reset() {
+    trackedObjects.clear();
+    objectTracker = null;
+    initialized = false;
+    ++contentVersion;
+  }
+
+  /**
+   * Returns whether {@link #onFrame} and {@link #trackResults} use the luminance frame. This is
+   * only the case while the native object tracker is (or may still become) available.
+   */
+  public synchronized boolean needsLuminance() {
+    return objectTracker != null || !initialized;
+  }
+
   public synchronized void onFrame(
       final int w,
       final int h,
@@ -199,6 +319,8 @@ public class MultiBoxTracker {
     }
 
     objectTracker.nextFrame(frame, null, timestamp, null);
+    // Tracked positions move with every frame.
+    ++contentVersion;
 
     // Clean up any objects not worth tracking any more.
     final LinkedList<TrackedRecognition> copyList =
@@ -214,31 +336,27 @@ public class MultiBoxTracker {
   }
 
   private void processResults(
-      final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
-
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
-
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
-        continue;
-      }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
-
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
-
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+      final long timestamp,
+      final DetectionBatch results,
+      final Detector labels,
+      final byte[] originalFrame) {
+    int toTrack = 0;
+    if (rectsToTrack.length < results.count) {
+      rectsToTrack = new int[results.count];
+    }
+    for (int i = 0; i < results.count; ++i) {
+      final RectF detectionFrameRect = scratchFrameRect;
+      detectionFrameRect.set(
+          results.getLeft(i), results.getTop(i), results.getRight(i), results.getBottom(i));
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
         continue;
       }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      rectsToTrack[toTrack++] = i;
     }
 
-    if (rectsToTrack.isEmpty()) {
+    if (toTrack == 0) {
       trackedObjects.clear();
       final TrackedRecognition nothing = new TrackedRecognition();
       trackedObjects.add(nothing);
@@ -247,12 +365,15 @@ public class MultiBoxTracker {
 
     if (objectTracker == null) {
       trackedObjects.clear();
-      for (final Pair<Float, Recognition> potential : rectsToTrack) {
+      for (int t = 0; t < toTrack; ++t) {
+        final int i = rectsToTrack[t];
         final TrackedRecognition trackedRecognition = new TrackedRecognition();
-        trackedRecognition.detectionConfidence = potential.first;
-        trackedRecognition.location = new RectF(potential.second.getLocation());
+        trackedRecognition.detectionConfidence = results.scores[i];
+        trackedRecognition.location =
+            new RectF(
+                results.getLeft(i), results.getTop(i), results.getRight(i), results.getBottom(i));
         trackedRecognition.trackedObject = null;
-        trackedRecognition.title = potential.second.getTitle();
+        trackedRecognition.title = labels.getLabel(results.classes[i]);
         if (trackedRecognition.title.equals("red")) {
           trackedRecognition.color = Color.RED;
         } else if (trackedRecognition.title.equals("green")) {
@@ -264,15 +385,22 @@ public class MultiBoxTracker {
       return;
     }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      handleDetection(originalFrame, timestamp, potential);
+    for (int t = 0; t < toTrack; ++t) {
+      handleDetection(originalFrame, timestamp, results, labels, rectsToTrack[t]);
     }
   }
 
   private void handleDetection(
-      final byte[] frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
+      final byte[] frameCopy,
+      final long timestamp,
+      final DetectionBatch results,
+      final Detector labels,
+      final int i) {
+    final float confidence = results.scores[i];
+    scratchFrameRect.set(
+        results.getLeft(i), results.getTop(i), results.getRight(i), results.getBottom(i));
     final ObjectTracker.TrackedObject potentialObject =
-        objectTracker.trackObject(potential.second.getLocation(), timestamp, frameCopy);
+        objectTracker.trackObject(scratchFrameRect, timestamp, frameCopy);
 
     final float potentialCorrelation = potentialObject.getCurrentCorrelation();
 
@@ -294,18 +422,15 @@ public class MultiBoxTracker {
     for (final TrackedRecognition trackedRecognition : trackedObjects) {
       final RectF a = trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame();
       final RectF b = potentialObject.getTrackedPositionInPreviewFrame();
-      final RectF intersection = new RectF();
-      final boolean intersects = intersection.setIntersect(a, b);
-
-      final float intersectArea = intersection.width() * intersection.height();
-      final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
-      final float intersectOverUnion = intersectArea / totalArea;
+      final float intersectOverUnion =
+          DetectionBatch.intersectionOverUnion(
+              a.left, a.top, a.right, a.bottom, b.left, b.top, b.right, b.bottom);
 
       // If there is an intersection with this currently tracked box above the maximum overlap
       // percentage allowed, either the new recognition needs to be dismissed or the old
       // recognition needs to be removed and possibly replaced with the new one.
-      if (intersects && intersectOverUnion > MAX_OVERLAP) {
-        if (potential.first < trackedRecognition.detectionConfidence
+      if (intersectOverUnion > MAX_OVERLAP) {
+        if (confidence < trackedRecognition.detectionConfidence
             && trackedRecognition.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION) {
           // If track for the existing object is still going strong and the detection score was
           // good, reject this new object.
@@ -329,7 +454,7 @@ public class MultiBoxTracker {
     // object.
     if (removeList.isEmpty()) {
       for (final TrackedRecognition candidate : trackedObjects) {
-        if (candidate.detectionConfidence < potential.first) {
+        if (candidate.detectionConfidence < confidence) {
           if (recogToReplace == null
               || candidate.detectionConfidence < recogToReplace.detectionConfidence) {
             // Save it so that we use this color for the new object.
@@ -355,8 +480,8 @@ public class MultiBoxTracker {
 
     // Finally safe to say we can track this object.
     final TrackedRecognition trackedRecognition = new TrackedRecognition();
-    trackedRecognition.detectionConfidence = potential.first;
+    trackedRecognition.detectionConfidence = confidence;
     trackedRecognition.trackedObject = potentialObject;
-    trackedRecognition.title = potential.second.getTitle();
+    trackedRecognition.title = labels.getLabel(results.classes[i]);
   }
 }
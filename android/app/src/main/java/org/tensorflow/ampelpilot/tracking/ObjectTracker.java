@@ -177,7 +177,13 @@ public class ObjectTracker {
   }
 
   private RectF upscaleRect(final RectF downsampledFrameRect) {
-    return new RectF(
+    final RectF fullFrameRect = new RectF();
+    upscaleRect(downsampledFrameRect, fullFrameRect);
+    return fullFrameRect;
+  }
+
+  private void upscaleRect(final RectF downsampledFrameRect, final RectF fullFrameRect) {
+    fullFrameRect.set(
         downsampledFrameRect.left * DOWNSAMPLE_FACTOR,
         downsampledFrameRect.top * DOWNSAMPLE_FACTOR,
         downsampledFrameRect.right * DOWNSAMPLE_FACTOR,
@@ -274,6 +280,21 @@ public class ObjectTracker {
       return upscaleRect(lastTrackedPosition);
     }
 
+    /**
+     * Writes the tracked position into the given rect instead of allocating a new one.
+     *
+     * @return false if there is no tracked position yet, in which case out is left untouched.
+     */
+    public synchronized boolean getTrackedPositionInPreviewFrame(final RectF out) {
+      checkValidObject();
+
+      if (lastTrackedPosition == null) {
+        return false;
+      }
+      upscaleRect(lastTrackedPosition, out);
+      return true;
+    }
+
     private void checkValidObject() {
       if (isDead) {
         throw new RuntimeException("TrackedObject already removed from tracking!");
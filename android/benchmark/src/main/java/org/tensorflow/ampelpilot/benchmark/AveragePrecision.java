@@ -0,0 +1,141 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.tensorflow.ampelpilot.DetectionBatch;
+
+/**
+ * Average precision per label at a fixed IoU threshold, as in the Pascal VOC evaluation.
+ *
+ * <p>In every frame the detections of a label are matched to its ground truth boxes from the
+ * highest score down; a detection is a true positive if it overlaps a box that is still unmatched
+ * by at least the threshold. The precision/recall curve over all frames is made monotonic and
+ * integrated over all recall points.
+ */
+public class AveragePrecision {
+
+  private final float minIou;
+
+  // Per label: {score, 1 for a true positive or 0} of every detection, and the number of boxes.
+  private final Map<String, List<float[]>> detections = new TreeMap<String, List<float[]>>();
+  private final Map<String, Integer> groundTruthCounts = new TreeMap<String, Integer>();
+
+  public AveragePrecision(final float minIou) {
+    this.minIou = minIou;
+  }
+
+  /** Adds the detections and ground truth of one frame. */
+  public void addFrame(
+      final DetectionBatch found,
+      final BenchmarkDetector detector,
+      final float[] truthBoxes,
+      final String[] truthLabels) {
+    for (final String label : truthLabels) {
+      final Integer count = groundTruthCounts.get(label);
+      groundTruthCounts.put(label, count == null ? 1 : count + 1);
+    }
+
+    final Integer[] order = new Integer[found.count];
+    for (int i = 0; i < order.length; ++i) {
+      order[i] = i;
+    }
+    Arrays.sort(
+        order,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(final Integer a, final Integer b) {
+            return Float.compare(found.scores[b], found.scores[a]);
+          }
+        });
+
+    final boolean[] matched = new boolean[truthLabels.length];
+    for (final int i : order) {
+      final String label = detector.getLabel(found.classes[i]);
+      int best = -1;
+      float bestIou = minIou;
+      for (int t = 0; t < truthLabels.length; ++t) {
+        if (matched[t] || !truthLabels[t].equals(label)) {
+          continue;
+        }
+        final float iou = DetectionBatch.intersectionOverUnion(found.boxes, i, truthBoxes, t);
+        if (iou >= bestIou) {
+          bestIou = iou;
+          best = t;
+        }
+      }
+      if (best >= 0) {
+        matched[best] = true;
+      }
+      List<float[]> list = detections.get(label);
+      if (list == null) {
+        list = new ArrayList<float[]>();
+        detections.put(label, list);
+      }
+      list.add(new float[] {found.scores[i], best >= 0 ? 1.0f : 0.0f});
+    }
+  }
+
+  /** Average precision of every label that has ground truth boxes, by label. */
+  public Map<String, Double> getAveragePrecisions() {
+    final Map<String, Double> result = new TreeMap<String, Double>();
+    for (final Map.Entry<String, Integer> entry : groundTruthCounts.entrySet()) {
+      final List<float[]> list = detections.get(entry.getKey());
+      result.put(
+          entry.getKey(),
+          list == null ? 0.0 : averagePrecision(list, entry.getValue()));
+    }
+    return result;
+  }
+
+  /** Mean of the average precisions of all labels with ground truth, 0 if there is none. */
+  public double getMeanAveragePrecision() {
+    final Map<String, Double> precisions = getAveragePrecisions();
+    if (precisions.isEmpty()) {
+      return 0.0;
+    }
+    double sum = 0.0;
+    for (final double precision : precisions.values()) {
+      sum += precision;
+    }
+    return sum / precisions.size();
+  }
+
+  private static double averagePrecision(final List<float[]> list, final int groundTruthCount) {
+    final List<float[]> sorted = new ArrayList<float[]>(list);
+    Collections.sort(
+        sorted,
+        new Comparator<float[]>() {
+          @Override
+          public int compare(final float[] a, final float[] b) {
+            return Float.compare(b[0], a[0]);
+          }
+        });
+
+    final double[] precision = new double[sorted.size()];
+    final double[] recall = new double[sorted.size()];
+    int truePositives = 0;
+    for (int i = 0; i < sorted.size(); ++i) {
+      if (sorted.get(i)[1] > 0.0f) {
+        ++truePositives;
+      }
+      precision[i] = truePositives / (double) (i + 1);
+      recall[i] = truePositives / (double) groundTruthCount;
+    }
+    // Precision at a recall is the best precision at that recall or any higher one.
+    for (int i = precision.length - 2; i >= 0; --i) {
+      precision[i] = Math.max(precision[i], precision[i + 1]);
+    }
+    double ap = 0.0;
+    double previousRecall = 0.0;
+    for (int i = 0; i < precision.length; ++i) {
+      ap += (recall[i] - previousRecall) * precision[i];
+      previousRecall = recall[i];
+    }
+    return ap;
+  }
+}
@@ -0,0 +1,148 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.ModelInput;
+
+/**
+ * Compares the time per crop of {@link TfLiteModel#detectBatch} with that of the same crops run
+ * one by one, the way the app's recognizeBatch and recognizeImage run them.
+ *
+ * <pre>
+ * batch-throughput [--batch 4] [--runs 50] [--threads 4] [--priors box_priors.txt]
+ *     [--input-size 300] [--quantized] model labels
+ * </pre>
+ *
+ * <p>Both sides fill their crops from the same pixels before every run, so preprocessing is
+ * included as in the app. Only a raw SSD graph, given with --priors, runs a batch in one
+ * invocation; a graph ending in the post-processing op runs it crop by crop, and both numbers
+ * should then match. The crops are random pixels, so the model finds few detections and decoding
+ * takes less time than on camera frames.
+ */
+public class BatchThroughput {
+
+  private static final int WARMUP_RUNS = 5;
+
+  public static void main(final String[] args) throws Exception {
+    int batchSize = 4;
+    int runs = 50;
+    int numThreads = 4;
+    int inputSize = 300;
+    boolean quantized = false;
+    File priors = null;
+    File model = null;
+    File labels = null;
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("--batch") && i + 1 < args.length) {
+        batchSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--runs") && i + 1 < args.length) {
+        runs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--threads") && i + 1 < args.length) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--priors") && i + 1 < args.length) {
+        priors = new File(args[++i]);
+      } else if (args[i].equals("--input-size") && i + 1 < args.length) {
+        inputSize = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--quantized")) {
+        quantized = true;
+      } else if (model == null) {
+        model = new File(args[i]);
+      } else {
+        labels = new File(args[i]);
+      }
+    }
+    if (labels == null) {
+      System.err.println(
+          "Usage: BatchThroughput [--batch n] [--runs n] [--threads n] [--priors file]"
+              + " [--input-size n] [--quantized] <model> <labels>");
+      System.exit(2);
+    }
+
+    final int pixels = inputSize * inputSize;
+    final int[][] crops = new int[batchSize][pixels];
+    final Random random = new Random(42);
+    for (final int[] crop : crops) {
+      for (int i = 0; i < pixels; ++i) {
+        crop[i] = 0xFF000000 | random.nextInt(0x1000000);
+      }
+    }
+
+    final TfLiteModel detector =
+        new TfLiteModel(model, labels, inputSize, quantized, priors, 100, numThreads);
+    try {
+      final ByteBuffer single = detector.allocateInput();
+      final ByteBuffer batch = detector.allocateInput(batchSize);
+      final DetectionBatch[] out = new DetectionBatch[batchSize];
+      for (int b = 0; b < batchSize; ++b) {
+        out[b] = new DetectionBatch(100);
+      }
+
+      // The first runs of each batch size allocate the tensors, keep them out of the timings.
+      runSequential(detector, crops, inputSize, quantized, single, out, WARMUP_RUNS);
+      runBatched(detector, crops, inputSize, quantized, batch, out, WARMUP_RUNS);
+
+      final long sequentialNs =
+          runSequential(detector, crops, inputSize, quantized, single, out, runs);
+      final long batchedNs = runBatched(detector, crops, inputSize, quantized, batch, out, runs);
+
+      final double sequentialUs = sequentialNs / 1e3 / runs / batchSize;
+      final double batchedUs = batchedNs / 1e3 / runs / batchSize;
+      System.out.println(
+          String.format(
+              Locale.US,
+              "%s, batch of %d, %d runs: sequential %.1f us per crop, batched %.1f us per crop"
+                  + " (%.2fx)",
+              detector.isRaw() ? "raw SSD graph" : "post-processing graph",
+              batchSize,
+              runs,
+              sequentialUs,
+              batchedUs,
+              sequentialUs / batchedUs));
+    } finally {
+      detector.close();
+    }
+  }
+
+  /** Runs every crop with its own invocation and returns the total time. */
+  private static long runSequential(
+      final TfLiteModel detector,
+      final int[][] crops,
+      final int inputSize,
+      final boolean quantized,
+      final ByteBuffer input,
+      final DetectionBatch[] out,
+      final int runs) {
+    final long startNs = System.nanoTime();
+    for (int r = 0; r < runs; ++r) {
+      for (int b = 0; b < crops.length; ++b) {
+        input.rewind();
+        ModelInput.fill(crops[b], inputSize, inputSize, quantized, input);
+        detector.detect(input, out[b]);
+      }
+    }
+    return System.nanoTime() - startNs;
+  }
+
+  /** Runs all crops with one call of detectBatch and returns the total time. */
+  private static long runBatched(
+      final TfLiteModel detector,
+      final int[][] crops,
+      final int inputSize,
+      final boolean quantized,
+      final ByteBuffer input,
+      final DetectionBatch[] out,
+      final int runs) {
+    final long startNs = System.nanoTime();
+    for (int r = 0; r < runs; ++r) {
+      input.rewind();
+      for (final int[] crop : crops) {
+        ModelInput.fill(crop, inputSize, inputSize, quantized, input);
+      }
+      detector.detectBatch(input, crops.length, out);
+    }
+    return System.nanoTime() - startNs;
+  }
+}
@@ -0,0 +1,33 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.IOException;
+import org.tensorflow.ampelpilot.DetectionBatch;
+
+/**
+ * The detector under test, the JVM counterpart of the app's Classifier.
+ *
+ * <p>An implementation is opened once per clip and then asked for the detections of every frame
+ * in order. Boxes are in frame coordinates of the clip, scores are not thresholded; the benchmark
+ * applies the app's minimum confidence itself. Detectors that work on pixels read them from
+ * {@link Clip#getImageFile} or from the clip's frame recording, see {@link Clip#getRecording},
+ * in {@link #prepare}, so that loading a frame isn't counted as detection time. {@link
+ * ModelDetector} runs the app's model; {@link RecordedDetections} replays fixed results.
+ *
+ * <p>Implementations are chosen by class name on the command line and need a public no-argument
+ * constructor.
+ */
+public interface BenchmarkDetector {
+
+  void open(Clip clip) throws IOException;
+
+  /** Loads what {@link #detect} needs for a frame. Not part of the timed detect stage. */
+  default void prepare(Clip clip, int frame) throws IOException {}
+
+  /** Fills the batch with the detections of one frame. The batch is cleared first. */
+  void detect(Clip clip, int frame, DetectionBatch out) throws IOException;
+
+  /** Returns the label of a class index used in {@link DetectionBatch#classes}. */
+  String getLabel(int classIndex);
+
+  void close();
+}
@@ -0,0 +1,344 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.PhaseStabilizer;
+import org.tensorflow.ampelpilot.PrimaryLightSelector;
+import org.tensorflow.ampelpilot.SelectionReplay;
+
+/**
+ * Runs a detector and the app's post-processing over every clip of a dataset and reports
+ * accuracy and latency.
+ *
+ * <pre>
+ * benchmark [--detector class] [--min-confidence 0.6] [--out result.json] dataset
+ * </pre>
+ *
+ * <p>The dataset is a directory of clips, see {@link Clip}. Each frame goes through the same
+ * chain as in DetectorActivity: detection, the minimum confidence filter, the choice of the
+ * primary light and the phase confirmation. Reported are mAP@0.5 of the raw detections, the
+ * accuracy of the decided phase per frame, the time to confirm a phase and percentiles of the
+ * duration of every stage. The detections that pass the filter are also replayed through
+ * {@link SelectionReplay} with each set of selector weights, which reports how often the primary
+ * light jumps to a different light between frames. The result file is JSON with one value per
+ * line in a fixed order, so the results of two versions can be compared with diff.
+ *
+ * <p>What the detection numbers mean depends on the detector. The default {@link
+ * RecordedDetections} replays detections.csv: the model isn't run, its accuracy isn't measured
+ * and the detect stage is a lookup. {@link ModelDetector} runs the .tflite model on the frames,
+ * so mAP and the detect stage are those of the model on the desktop interpreter.
+ *
+ * <p>The whole dataset is run once before measuring so the timings don't include JIT warm-up.
+ */
+public class BenchmarkRunner {
+
+  // Same as MINIMUM_CONFIDENCE_TF_OD_API in DetectorActivity.
+  private static final float DEFAULT_MIN_CONFIDENCE = 0.6f;
+
+  private static final float MAP_MIN_IOU = 0.5f;
+
+  private static final String[] STAGES = {"detect", "filter", "select", "confirm", "total"};
+
+  private static final String[] REPLAY_NAMES = {"default", "area_only"};
+  private static final PrimaryLightSelector.Weights[] REPLAY_WEIGHTS = {
+    PrimaryLightSelector.Weights.DEFAULT, PrimaryLightSelector.Weights.AREA_ONLY
+  };
+
+  private final BenchmarkDetector detector;
+  private final float minConfidence;
+
+  private final DetectionBatch found = new DetectionBatch(16);
+  private final DetectionBatch certain = new DetectionBatch(4);
+  private final long[] stageNs = new long[STAGES.length];
+
+  public BenchmarkRunner(final BenchmarkDetector detector, final float minConfidence) {
+    this.detector = detector;
+    this.minConfidence = minConfidence;
+  }
+
+  /**
+   * Runs one clip through the pipeline.
+   *
+   * @param precision Receives the detections of every frame, or null.
+   * @param latency Receives the stage durations of every frame, or null.
+   * @param selections Receives the filtered detections of every frame for a selection replay, or
+   *     null.
+   */
+  public PhaseEvaluation runClip(
+      final Clip clip,
+      final AveragePrecision precision,
+      final LatencyRecorder latency,
+      final List<SelectionReplay.Frame> selections)
+      throws IOException {
+    final PrimaryLightSelector selector =
+        new PrimaryLightSelector(PrimaryLightSelector.Weights.DEFAULT);
+    selector.setFrameGeometry(clip.getWidth(), clip.getHeight(), clip.getOrientation());
+    final PhaseStabilizer stabilizer = new PhaseStabilizer();
+    final PhaseEvaluation phases = new PhaseEvaluation();
+
+    detector.open(clip);
+    try {
+      for (int frame = 0; frame < clip.getFrameCount(); ++frame) {
+        detector.prepare(clip, frame);
+        final long startNs = System.nanoTime();
+        detector.detect(clip, frame, found);
+        final long detectedNs = System.nanoTime();
+
+        certain.clear();
+        for (int i = 0; i < found.count; ++i) {
+          if (found.scores[i] >= minConfidence) {
+            certain.add(found, i);
+          }
+        }
+        final long filteredNs = System.nanoTime();
+
+        // The benchmark has no compass, like the app when the heading sensor is missing.
+        final int primary =
+            selector.select(certain.boxes, certain.scores, certain.count, Float.NaN);
+        final long selectedNs = System.nanoTime();
+
+        final String confirmed =
+            stabilizer.update(primary >= 0 ? detector.getLabel(certain.classes[primary]) : null);
+        final long confirmedNs = System.nanoTime();
+
+        if (latency != null) {
+          stageNs[0] = detectedNs - startNs;
+          stageNs[1] = filteredNs - detectedNs;
+          stageNs[2] = selectedNs - filteredNs;
+          stageNs[3] = confirmedNs - selectedNs;
+          stageNs[4] = confirmedNs - startNs;
+          for (int s = 0; s < STAGES.length; ++s) {
+            latency.record(STAGES[s], stageNs[s]);
+          }
+        }
+        if (precision != null) {
+          precision.addFrame(found, detector, clip.getBoxes(frame), clip.getLabels(frame));
+        }
+        if (selections != null) {
+          selections.add(
+              new SelectionReplay.Frame(
+                  Arrays.copyOf(certain.boxes, certain.count * 4),
+                  Arrays.copyOf(certain.scores, certain.count),
+                  certain.count,
+                  Float.NaN));
+        }
+        phases.addFrame(
+            clip.getTimestampNs(frame),
+            clip.getPhase(frame),
+            confirmed != null ? confirmed : "none");
+      }
+    } finally {
+      detector.close();
+    }
+    phases.endSegment();
+    return phases;
+  }
+
+  public static void main(final String[] args) throws Exception {
+    String detectorClass = RecordedDetections.class.getName();
+    float minConfidence = DEFAULT_MIN_CONFIDENCE;
+    String out = "benchmark-result.json";
+    String dataset = null;
+    for (int i = 0; i < args.length; ++i) {
+      if (args[i].equals("--detector") && i + 1 < args.length) {
+        detectorClass = args[++i];
+      } else if (args[i].equals("--min-confidence") && i + 1 < args.length) {
+        minConfidence = Float.parseFloat(args[++i]);
+      } else if (args[i].equals("--out") && i + 1 < args.length) {
+        out = args[++i];
+      } else {
+        dataset = args[i];
+      }
+    }
+    if (dataset == null) {
+      System.err.println(
+          "Usage: BenchmarkRunner [--detector class] [--min-confidence c] [--out file] <dataset>");
+      System.exit(2);
+    }
+
+    final List<Clip> clips = new ArrayList<Clip>();
+    final File[] directories = new File(dataset).listFiles();
+    if (directories != null) {
+      Arrays.sort(directories);
+      for (final File directory : directories) {
+        if (directory.isDirectory() && Clip.isClip(directory)) {
+          clips.add(new Clip(directory));
+        }
+      }
+    }
+    if (clips.isEmpty()) {
+      System.err.println("No clips found in " + dataset);
+      System.exit(1);
+    }
+
+    final BenchmarkDetector detector =
+        (BenchmarkDetector) Class.forName(detectorClass).getDeclaredConstructor().newInstance();
+    final BenchmarkRunner runner = new BenchmarkRunner(detector, minConfidence);
+    for (final Clip clip : clips) {
+      runner.runClip(clip, null, null, null);
+    }
+
+    final AveragePrecision precision = new AveragePrecision(MAP_MIN_IOU);
+    final LatencyRecorder latency = new LatencyRecorder();
+    final PhaseEvaluation total = new PhaseEvaluation();
+    final List<PhaseEvaluation> perClip = new ArrayList<PhaseEvaluation>();
+    // Summed over all clips, per set of weights.
+    final int[] replayPairs = new int[REPLAY_WEIGHTS.length];
+    final int[] replaySwitches = new int[REPLAY_WEIGHTS.length];
+    final List<SelectionReplay.Frame> selections = new ArrayList<SelectionReplay.Frame>();
+    for (final Clip clip : clips) {
+      selections.clear();
+      final PhaseEvaluation phases = runner.runClip(clip, precision, latency, selections);
+      perClip.add(phases);
+      total.add(phases);
+      for (int w = 0; w < REPLAY_WEIGHTS.length; ++w) {
+        final SelectionReplay.Report report =
+            SelectionReplay.run(
+                REPLAY_WEIGHTS[w],
+                selections,
+                clip.getWidth(),
+                clip.getHeight(),
+                clip.getOrientation());
+        replayPairs[w] += report.comparablePairs;
+        replaySwitches[w] += report.switches;
+      }
+    }
+    final double[] consistency = new double[REPLAY_WEIGHTS.length];
+    for (int w = 0; w < REPLAY_WEIGHTS.length; ++w) {
+      consistency[w] =
+          replayPairs[w] == 0 ? 1.0 : 1.0 - replaySwitches[w] / (double) replayPairs[w];
+    }
+
+    final PrintStream result = new PrintStream(new FileOutputStream(out), false, "UTF-8");
+    try {
+      writeJson(
+          result,
+          detectorClass,
+          minConfidence,
+          clips,
+          perClip,
+          total,
+          precision,
+          latency,
+          consistency);
+    } finally {
+      result.close();
+    }
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%d clips, %d frames: mAP@0.5 %.2f%%, phase accuracy %.2f%%, %d wrong phase frames,"
+                + " median time to confirm %.0f ms, median total %.1f us,"
+                + " selection consistency %.2f%% (area only %.2f%%)",
+            clips.size(),
+            total.getFrames(),
+            precision.getMeanAveragePrecision() * 100.0,
+            total.getAccuracy() * 100.0,
+            total.getWrongPhaseFrames(),
+            total.getConfirmSummaryMs()[1],
+            latency.getSummaryMicros("total", LatencyRecorder.PERCENTILES)[0],
+            consistency[0] * 100.0,
+            consistency[1] * 100.0));
+    System.out.println("Result written to " + out);
+  }
+
+  private static void writeJson(
+      final PrintStream out,
+      final String detectorClass,
+      final float minConfidence,
+      final List<Clip> clips,
+      final List<PhaseEvaluation> perClip,
+      final PhaseEvaluation total,
+      final AveragePrecision precision,
+      final LatencyRecorder latency,
+      final double[] consistency) {
+    out.println("{");
+    out.println("  \"detector\": \"" + detectorClass + "\",");
+    out.println(String.format(Locale.US, "  \"min_confidence\": %.3f,", minConfidence));
+    out.println(
+        String.format(Locale.US, "  \"map50\": %.4f,", precision.getMeanAveragePrecision()));
+    out.println("  \"ap50\": {");
+    final Map<String, Double> precisions = precision.getAveragePrecisions();
+    int index = 0;
+    for (final Map.Entry<String, Double> entry : precisions.entrySet()) {
+      out.println(
+          String.format(
+              Locale.US,
+              "    \"%s\": %.4f%s",
+              entry.getKey(),
+              entry.getValue(),
+              ++index < precisions.size() ? "," : ""));
+    }
+    out.println("  },");
+    writePhases(out, "  ", total);
+    out.println(",");
+    out.println("  \"latency_us\": {");
+    for (int s = 0; s < STAGES.length; ++s) {
+      final double[] summary = latency.getSummaryMicros(STAGES[s], LatencyRecorder.PERCENTILES);
+      out.println(
+          String.format(
+              Locale.US,
+              "    \"%s\": {\"p50\": %.2f, \"p90\": %.2f, \"p99\": %.2f,"
+                  + " \"mean\": %.2f, \"max\": %.2f}%s",
+              STAGES[s],
+              summary[0],
+              summary[1],
+              summary[2],
+              summary[3],
+              summary[4],
+              s + 1 < STAGES.length ? "," : ""));
+    }
+    out.println("  },");
+    out.println("  \"selection_consistency\": {");
+    for (int w = 0; w < REPLAY_NAMES.length; ++w) {
+      out.println(
+          String.format(
+              Locale.US,
+              "    \"%s\": %.4f%s",
+              REPLAY_NAMES[w],
+              consistency[w],
+              w + 1 < REPLAY_NAMES.length ? "," : ""));
+    }
+    out.println("  },");
+    out.println("  \"clips\": [");
+    for (int c = 0; c < clips.size(); ++c) {
+      out.println("    {");
+      out.println("      \"name\": \"" + clips.get(c).getName() + "\",");
+      writePhases(out, "      ", perClip.get(c));
+      out.println();
+      out.println(c + 1 < clips.size() ? "    }," : "    }");
+    }
+    out.println("  ]");
+    out.println("}");
+  }
+
+  // Writes the phase metrics as members of an object, without a trailing separator.
+  private static void writePhases(
+      final PrintStream out, final String indent, final PhaseEvaluation phases) {
+    final double[] confirm = phases.getConfirmSummaryMs();
+    out.println(indent + "\"frames\": " + phases.getFrames() + ",");
+    out.println(
+        String.format(Locale.US, "%s\"phase_accuracy\": %.4f,", indent, phases.getAccuracy()));
+    out.println(indent + "\"wrong_phase_frames\": " + phases.getWrongPhaseFrames() + ",");
+    out.println(indent + "\"segments\": " + phases.getSegments() + ",");
+    out.println(indent + "\"missed_segments\": " + phases.getMissedSegments() + ",");
+    out.print(
+        String.format(
+            Locale.US,
+            "%s\"time_to_confirm_ms\": {\"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f,"
+                + " \"max\": %.1f}",
+            indent,
+            confirm[0],
+            confirm[1],
+            confirm[2],
+            confirm[3]));
+  }
+}
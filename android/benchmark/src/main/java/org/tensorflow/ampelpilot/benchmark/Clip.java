@@ -0,0 +1,177 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * One labelled clip of a benchmark dataset: a directory holding
+ *
+ * <pre>
+ * clip.properties  width, height and orientation (degrees to rotate a frame upright, default 0)
+ * labels.csv       frame,timestamp_ms,phase,left,top,right,bottom,label
+ * frames/          optional, one image per frame named 000000.png (or .jpg) and up
+ * frames.apfr      optional, a frame recording of the app with one frame per labelled frame
+ * </pre>
+ *
+ * <p>labels.csv has a header line and lists every frame from 0 on in order. A frame with several
+ * lights has one row per light, a frame without a light has one row with empty box fields. The
+ * phase column is the phase the app should announce for the frame: red, green or none.
+ */
+public class Clip {
+
+  private static final String PROPERTIES = "clip.properties";
+  private static final String LABELS = "labels.csv";
+  private static final String FRAMES = "frames";
+  private static final String RECORDING = "frames.apfr";
+
+  private final File directory;
+  private final int width;
+  private final int height;
+  private final int orientation;
+
+  private final List<Long> timestampsNs = new ArrayList<Long>();
+  private final List<String> phases = new ArrayList<String>();
+  // Ground truth boxes per frame, {left, top, right, bottom} each, and their labels.
+  private final List<float[]> boxes = new ArrayList<float[]>();
+  private final List<String[]> labels = new ArrayList<String[]>();
+
+  public Clip(final File directory) throws IOException {
+    this.directory = directory;
+    final Properties properties = new Properties();
+    final InputStream input = new FileInputStream(new File(directory, PROPERTIES));
+    try {
+      properties.load(input);
+    } finally {
+      input.close();
+    }
+    width = Integer.parseInt(properties.getProperty("width").trim());
+    height = Integer.parseInt(properties.getProperty("height").trim());
+    orientation = Integer.parseInt(properties.getProperty("orientation", "0").trim());
+    readLabels(new File(directory, LABELS));
+  }
+
+  /** Whether a directory looks like a clip. */
+  public static boolean isClip(final File directory) {
+    return new File(directory, PROPERTIES).isFile() && new File(directory, LABELS).isFile();
+  }
+
+  private void readLabels(final File file) throws IOException {
+    final BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      final List<Float> frameBoxes = new ArrayList<Float>();
+      final List<String> frameLabels = new ArrayList<String>();
+      int lineNumber = 1;
+      String line = reader.readLine(); // header
+      while ((line = reader.readLine()) != null) {
+        ++lineNumber;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        final String[] fields = line.split(",", -1);
+        if (fields.length < 3) {
+          throw new IOException(file + ":" + lineNumber + ": expected at least 3 columns");
+        }
+        final int frame = Integer.parseInt(fields[0].trim());
+        if (frame == phases.size()) {
+          endFrame(frameBoxes, frameLabels);
+          timestampsNs.add((long) (Double.parseDouble(fields[1].trim()) * 1e6));
+          phases.add(fields[2].trim());
+        } else if (frame != phases.size() - 1) {
+          throw new IOException(file + ":" + lineNumber + ": frames must be listed in order");
+        }
+        if (fields.length >= 8 && !fields[3].trim().isEmpty()) {
+          for (int i = 3; i < 7; ++i) {
+            frameBoxes.add(Float.parseFloat(fields[i].trim()));
+          }
+          frameLabels.add(fields[7].trim());
+        }
+      }
+      endFrame(frameBoxes, frameLabels);
+    } finally {
+      reader.close();
+    }
+  }
+
+  // Moves the collected boxes to the frame before the one that starts now.
+  private void endFrame(final List<Float> frameBoxes, final List<String> frameLabels) {
+    if (phases.isEmpty()) {
+      return;
+    }
+    final float[] flat = new float[frameBoxes.size()];
+    for (int i = 0; i < flat.length; ++i) {
+      flat[i] = frameBoxes.get(i);
+    }
+    boxes.add(flat);
+    labels.add(frameLabels.toArray(new String[0]));
+    frameBoxes.clear();
+    frameLabels.clear();
+  }
+
+  public String getName() {
+    return directory.getName();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getOrientation() {
+    return orientation;
+  }
+
+  public int getFrameCount() {
+    return phases.size();
+  }
+
+  public long getTimestampNs(final int frame) {
+    return timestampsNs.get(frame);
+  }
+
+  /** The phase the app should announce for a frame. */
+  public String getPhase(final int frame) {
+    return phases.get(frame);
+  }
+
+  /** Ground truth boxes of a frame as {left, top, right, bottom} quadruples. */
+  public float[] getBoxes(final int frame) {
+    return boxes.get(frame);
+  }
+
+  /** Labels of the ground truth boxes of a frame. */
+  public String[] getLabels(final int frame) {
+    return labels.get(frame);
+  }
+
+  /** The image of a frame, or null if the clip has no images. */
+  public File getImageFile(final int frame) {
+    final String name = String.format("%06d", frame);
+    for (final String suffix : new String[] {".png", ".jpg"}) {
+      final File image = new File(new File(directory, FRAMES), name + suffix);
+      if (image.isFile()) {
+        return image;
+      }
+    }
+    return null;
+  }
+
+  /** The frame recording of the clip, readable with FrameRecordingReader, or null. */
+  public File getRecording() {
+    final File recording = new File(directory, RECORDING);
+    return recording.isFile() ? recording : null;
+  }
+}
@@ -0,0 +1,59 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Collects the durations of the pipeline stages and reports their percentiles. */
+public class LatencyRecorder {
+
+  public static final double[] PERCENTILES = {50.0, 90.0, 99.0};
+
+  // Durations in nanoseconds per stage, in the order the stages were first recorded.
+  private final Map<String, long[]> samples = new LinkedHashMap<String, long[]>();
+  private final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+
+  public void record(final String stage, final long durationNs) {
+    long[] values = samples.get(stage);
+    final int count = counts.containsKey(stage) ? counts.get(stage) : 0;
+    if (values == null || values.length == count) {
+      values = values == null ? new long[1024] : Arrays.copyOf(values, values.length * 2);
+      samples.put(stage, values);
+    }
+    values[count] = durationNs;
+    counts.put(stage, count + 1);
+  }
+
+  public Iterable<String> getStages() {
+    return samples.keySet();
+  }
+
+  public int getCount(final String stage) {
+    return counts.containsKey(stage) ? counts.get(stage) : 0;
+  }
+
+  /**
+   * Returns the given percentiles of a stage in microseconds, followed by the mean and the
+   * maximum. Uses the nearest-rank method.
+   */
+  public double[] getSummaryMicros(final String stage, final double[] percentiles) {
+    final int count = getCount(stage);
+    final double[] summary = new double[percentiles.length + 2];
+    if (count == 0) {
+      return summary;
+    }
+    final long[] sorted = Arrays.copyOf(samples.get(stage), count);
+    Arrays.sort(sorted);
+    for (int p = 0; p < percentiles.length; ++p) {
+      final int rank = (int) Math.ceil(percentiles[p] / 100.0 * count);
+      summary[p] = sorted[Math.max(0, rank - 1)] / 1e3;
+    }
+    double sum = 0.0;
+    for (final long value : sorted) {
+      sum += value;
+    }
+    summary[percentiles.length] = sum / count / 1e3;
+    summary[percentiles.length + 1] = sorted[count - 1] / 1e3;
+    return summary;
+  }
+}
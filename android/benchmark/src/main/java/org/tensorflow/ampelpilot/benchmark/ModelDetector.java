@@ -0,0 +1,205 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.ModelInput;
+import org.tensorflow.ampelpilot.env.AffineTransform;
+import org.tensorflow.ampelpilot.env.YuvConversion;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingFormat;
+import org.tensorflow.ampelpilot.sessionlog.FrameRecordingReader;
+
+/**
+ * Runs the detection model on the pixels of every frame, so the benchmark measures the model's
+ * accuracy and its inference time on the desktop interpreter. Frames are read from the clip's
+ * images, or from its frame recording if it has none, and scaled into the model input with the
+ * same frame to crop transformation as in DetectorActivity. Boxes are mapped back into the frame.
+ *
+ * <p>Configured with system properties, e.g. through BENCHMARK_OPTS:
+ *
+ * <pre>
+ * benchmark.model        the .tflite file, required
+ * benchmark.labels       the label file, required
+ * benchmark.inputSize    default 300
+ * benchmark.quantized    default false
+ * benchmark.boxPriors    box_priors.txt of a graph without the post-processing op, default none
+ * benchmark.rawTopK      default 100
+ * benchmark.numThreads   default 4, like the app
+ * </pre>
+ *
+ * <p>The interpreter's Java classes come with the build; its native library, built for the host
+ * from //tensorflow/lite/java:tensorflowlite_jni, has to be on java.library.path. The crop is
+ * sampled nearest neighbour where the app draws it filtered, so scores can differ slightly from
+ * the device.
+ */
+public class ModelDetector implements BenchmarkDetector {
+
+  private final File modelFile = requiredFile("benchmark.model");
+  private final File labelFile = requiredFile("benchmark.labels");
+  private final int inputSize = Integer.getInteger("benchmark.inputSize", 300);
+  private final boolean quantized = Boolean.getBoolean("benchmark.quantized");
+  private final File boxPriorsFile = optionalFile("benchmark.boxPriors");
+  private final int rawTopK = Integer.getInteger("benchmark.rawTopK", 100);
+  private final int numThreads = Integer.getInteger("benchmark.numThreads", 4);
+
+  private TfLiteModel model;
+  private ByteBuffer input;
+  private final int[] cropPixels = new int[inputSize * inputSize];
+
+  private final AffineTransform frameToCrop = new AffineTransform();
+  private final AffineTransform cropToFrame = new AffineTransform();
+  // Frame pixel sampled for every crop pixel.
+  private int[] sampleIndex;
+  private int[] framePixels;
+
+  private FrameRecordingReader recording;
+  private final FrameRecordingReader.Frame recordedFrame = new FrameRecordingReader.Frame();
+  private byte[] nv21;
+  private int nextRecordedFrame;
+
+  private static File requiredFile(final String property) {
+    final File file = optionalFile(property);
+    if (file == null) {
+      throw new IllegalArgumentException("Set -D" + property + " to use ModelDetector");
+    }
+    return file;
+  }
+
+  private static File optionalFile(final String property) {
+    final String path = System.getProperty(property);
+    return path != null ? new File(path) : null;
+  }
+
+  @Override
+  public void open(final Clip clip) throws IOException {
+    if (clip.getImageFile(0) == null) {
+      if (clip.getRecording() == null) {
+        throw new IOException(clip.getName() + " has neither frame images nor a recording");
+      }
+      recording = new FrameRecordingReader(clip.getRecording());
+      nextRecordedFrame = 0;
+    }
+    framePixels = new int[clip.getWidth() * clip.getHeight()];
+
+    frameToCrop.setFrameTransformation(
+        clip.getWidth(), clip.getHeight(), inputSize, inputSize, clip.getOrientation(), false);
+    frameToCrop.invert(cropToFrame);
+    sampleIndex = new int[inputSize * inputSize];
+    final float[] point = new float[2];
+    for (int y = 0; y < inputSize; ++y) {
+      for (int x = 0; x < inputSize; ++x) {
+        point[0] = x + 0.5f;
+        point[1] = y + 0.5f;
+        cropToFrame.mapPoints(point, 1);
+        final int frameX = clamp((int) point[0], clip.getWidth());
+        final int frameY = clamp((int) point[1], clip.getHeight());
+        sampleIndex[y * inputSize + x] = frameY * clip.getWidth() + frameX;
+      }
+    }
+
+    model =
+        new TfLiteModel(
+            modelFile, labelFile, inputSize, quantized, boxPriorsFile, rawTopK, numThreads);
+    input = model.allocateInput();
+    // The interpreter allocates its tensors on the first run, keep that out of the timings.
+    model.detect(input, new DetectionBatch(1));
+  }
+
+  private static int clamp(final int value, final int size) {
+    return Math.max(0, Math.min(size - 1, value));
+  }
+
+  @Override
+  public void prepare(final Clip clip, final int frame) throws IOException {
+    if (recording != null) {
+      readRecordedFrame(clip, frame);
+    } else {
+      final File file = clip.getImageFile(frame);
+      final BufferedImage image = file != null ? ImageIO.read(file) : null;
+      if (image == null) {
+        throw new IOException(clip.getName() + ": no readable image for frame " + frame);
+      }
+      checkSize(clip, frame, image.getWidth(), image.getHeight());
+      image.getRGB(0, 0, clip.getWidth(), clip.getHeight(), framePixels, 0, clip.getWidth());
+    }
+    for (int i = 0; i < cropPixels.length; ++i) {
+      cropPixels[i] = framePixels[sampleIndex[i]];
+    }
+  }
+
+  private void readRecordedFrame(final Clip clip, final int frame) throws IOException {
+    if (frame != nextRecordedFrame) {
+      throw new IOException(clip.getName() + ": recorded frames must be read in order");
+    }
+    if (!recording.next(recordedFrame)) {
+      throw new IOException(clip.getName() + ": recording ends before frame " + frame);
+    }
+    ++nextRecordedFrame;
+    checkSize(clip, frame, recordedFrame.width, recordedFrame.height);
+    if (recordedFrame.format == FrameRecordingFormat.FORMAT_NV21) {
+      final ByteBuffer plane = recordedFrame.planes[0].duplicate();
+      if (nv21 == null || nv21.length != plane.remaining()) {
+        nv21 = new byte[plane.remaining()];
+      }
+      plane.get(nv21);
+      YuvConversion.convertYUV420SPToARGB8888(
+          nv21, recordedFrame.width, recordedFrame.height, framePixels);
+    } else {
+      YuvConversion.convertYUV420ToARGB8888(
+          recordedFrame.planes[0],
+          recordedFrame.planes[1],
+          recordedFrame.planes[2],
+          0,
+          0,
+          recordedFrame.width,
+          recordedFrame.height,
+          recordedFrame.rowStrides[0],
+          recordedFrame.rowStrides[1],
+          recordedFrame.pixelStrides[1],
+          framePixels);
+    }
+  }
+
+  private static void checkSize(
+      final Clip clip, final int frame, final int width, final int height) throws IOException {
+    if (width != clip.getWidth() || height != clip.getHeight()) {
+      throw new IOException(
+          clip.getName() + ": frame " + frame + " is " + width + "x" + height + ", expected "
+              + clip.getWidth() + "x" + clip.getHeight());
+    }
+  }
+
+  @Override
+  public void detect(final Clip clip, final int frame, final DetectionBatch out) {
+    input.rewind();
+    ModelInput.fill(cropPixels, inputSize, inputSize, quantized, input);
+    model.detect(input, out);
+    for (int i = 0; i < out.count; ++i) {
+      cropToFrame.mapBox(out.boxes, i);
+    }
+  }
+
+  @Override
+  public String getLabel(final int classIndex) {
+    return model.getLabel(classIndex);
+  }
+
+  @Override
+  public void close() {
+    if (model != null) {
+      model.close();
+      model = null;
+    }
+    if (recording != null) {
+      try {
+        recording.close();
+      } catch (final IOException e) {
+        // Only read from, nothing is lost.
+      }
+      recording = null;
+    }
+  }
+}
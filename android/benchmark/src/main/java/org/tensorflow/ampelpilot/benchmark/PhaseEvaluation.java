@@ -0,0 +1,112 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the phase the app decides on in every frame with the labelled phase.
+ *
+ * <p>A frame is correct if the decided phase equals the label, "none" included. Deciding on a
+ * phase other than the labelled one is counted separately as a wrong phase, the error that
+ * misleads the user. A segment is a run of frames labelled with the same red or green phase; its
+ * time to confirm is the time from its first frame to the first frame in which the app decides on
+ * that phase. A segment that ends before that is missed.
+ */
+public class PhaseEvaluation {
+
+  private static final String NONE = "none";
+
+  private int frames;
+  private int correct;
+  private int wrongPhase;
+  private int segments;
+  private int missedSegments;
+  private final List<Long> confirmDelaysNs = new ArrayList<Long>();
+
+  // The segment of the frames fed so far, null between segments.
+  private String segmentPhase;
+  private long segmentStartNs;
+  private boolean segmentConfirmed;
+
+  /** Feeds the next frame of a clip. */
+  public void addFrame(final long timestampNs, final String truth, final String decision) {
+    ++frames;
+    if (decision.equals(truth)) {
+      ++correct;
+    } else if (!decision.equals(NONE)) {
+      ++wrongPhase;
+    }
+
+    if (!truth.equals(segmentPhase)) {
+      endSegment();
+      if (!truth.equals(NONE)) {
+        segmentPhase = truth;
+        segmentStartNs = timestampNs;
+        segmentConfirmed = false;
+        ++segments;
+      }
+    }
+    if (segmentPhase != null && !segmentConfirmed && decision.equals(segmentPhase)) {
+      segmentConfirmed = true;
+      confirmDelaysNs.add(timestampNs - segmentStartNs);
+    }
+  }
+
+  /** Ends the segment of the last frame, call at the end of a clip. */
+  public void endSegment() {
+    if (segmentPhase != null && !segmentConfirmed) {
+      ++missedSegments;
+    }
+    segmentPhase = null;
+  }
+
+  /** Adds the counts of another, finished evaluation. */
+  public void add(final PhaseEvaluation other) {
+    frames += other.frames;
+    correct += other.correct;
+    wrongPhase += other.wrongPhase;
+    segments += other.segments;
+    missedSegments += other.missedSegments;
+    confirmDelaysNs.addAll(other.confirmDelaysNs);
+  }
+
+  public int getFrames() {
+    return frames;
+  }
+
+  public double getAccuracy() {
+    return frames == 0 ? 0.0 : correct / (double) frames;
+  }
+
+  public int getWrongPhaseFrames() {
+    return wrongPhase;
+  }
+
+  public int getSegments() {
+    return segments;
+  }
+
+  public int getMissedSegments() {
+    return missedSegments;
+  }
+
+  /** Mean, median, 90th percentile and maximum time to confirm in milliseconds. */
+  public double[] getConfirmSummaryMs() {
+    final double[] summary = new double[4];
+    if (confirmDelaysNs.isEmpty()) {
+      return summary;
+    }
+    final List<Long> sorted = new ArrayList<Long>(confirmDelaysNs);
+    Collections.sort(sorted);
+    double sum = 0.0;
+    for (final long delay : sorted) {
+      sum += delay;
+    }
+    summary[0] = sum / sorted.size() / 1e6;
+    summary[1] = sorted.get((int) Math.ceil(0.5 * sorted.size()) - 1) / 1e6;
+    summary[2] = sorted.get((int) Math.ceil(0.9 * sorted.size()) - 1) / 1e6;
+    summary[3] = sorted.get(sorted.size() - 1) / 1e6;
+    return summary;
+  }
+}
@@ -0,0 +1,96 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.tensorflow.ampelpilot.DetectionBatch;
+
+/**
+ * Replays detections computed beforehand from the clip's detections.csv:
+ *
+ * <pre>
+ * frame,left,top,right,bottom,score,label
+ * </pre>
+ *
+ * <p>The file has a header line; frames without detections need no rows. This is the default
+ * detector, it measures the post-processing and the decisions of the app for a fixed model
+ * output. It doesn't measure the model: mAP is that of whatever wrote the file, and the detect
+ * stage is a table lookup. Use {@link ModelDetector} for the model's accuracy and latency.
+ */
+public class RecordedDetections implements BenchmarkDetector {
+
+  private static final String DETECTIONS = "detections.csv";
+
+  private final List<String> labels = new ArrayList<String>();
+  private final List<DetectionBatch> frames = new ArrayList<DetectionBatch>();
+
+  @Override
+  public void open(final Clip clip) throws IOException {
+    frames.clear();
+    for (int i = 0; i < clip.getFrameCount(); ++i) {
+      frames.add(new DetectionBatch(4));
+    }
+    final File file = new File(clip.getDirectory(), DETECTIONS);
+    final BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      int lineNumber = 1;
+      String line = reader.readLine(); // header
+      while ((line = reader.readLine()) != null) {
+        ++lineNumber;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        final String[] fields = line.split(",", -1);
+        if (fields.length < 7) {
+          throw new IOException(file + ":" + lineNumber + ": expected 7 columns");
+        }
+        final int frame = Integer.parseInt(fields[0].trim());
+        if (frame < 0 || frame >= frames.size()) {
+          throw new IOException(file + ":" + lineNumber + ": frame " + frame + " not labelled");
+        }
+        frames
+            .get(frame)
+            .add(
+                Float.parseFloat(fields[1].trim()),
+                Float.parseFloat(fields[2].trim()),
+                Float.parseFloat(fields[3].trim()),
+                Float.parseFloat(fields[4].trim()),
+                Float.parseFloat(fields[5].trim()),
+                classIndex(fields[6].trim()));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private int classIndex(final String label) {
+    final int index = labels.indexOf(label);
+    if (index >= 0) {
+      return index;
+    }
+    labels.add(label);
+    return labels.size() - 1;
+  }
+
+  @Override
+  public void detect(final Clip clip, final int frame, final DetectionBatch out) {
+    out.clear();
+    final DetectionBatch recorded = frames.get(frame);
+    for (int i = 0; i < recorded.count; ++i) {
+      out.add(recorded, i);
+    }
+  }
+
+  @Override
+  public String getLabel(final int classIndex) {
+    return labels.get(classIndex);
+  }
+
+  @Override
+  public void close() {
+    frames.clear();
+  }
+}
@@ -0,0 +1,59 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import org.tensorflow.ampelpilot.RawSsdDecoder;
+import org.tensorflow.ampelpilot.SsdDetector;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * The app's detection model on the desktop TensorFlow Lite interpreter. Decoding is the app's,
+ * inherited from {@link SsdDetector}; only loading and invoking the interpreter differ from
+ * TFLiteObjectDetectionAPIModel.
+ */
+public class TfLiteModel extends SsdDetector {
+
+  private Interpreter tfLite;
+
+  /**
+   * @param boxPriors The box priors of a raw SSD graph, or null for a graph ending in the
+   *     detection post-processing op.
+   * @param rawTopK Most candidates decoded per image before non-maximum suppression.
+   */
+  public TfLiteModel(
+      final File model,
+      final File labels,
+      final int inputSize,
+      final boolean quantized,
+      final File boxPriors,
+      final int rawTopK,
+      final int numThreads)
+      throws IOException {
+    super(loadLabels(new FileInputStream(labels)), inputSize, quantized);
+    if (boxPriors != null) {
+      useRawOutputs(RawSsdDecoder.loadPriors(new FileInputStream(boxPriors)), rawTopK);
+    }
+    tfLite = new Interpreter(model, new Interpreter.Options().setNumThreads(numThreads));
+  }
+
+  @Override
+  protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+    tfLite.runForMultipleInputsOutputs(inputs, outputs);
+  }
+
+  @Override
+  protected void resizeInput(final int batchSize) {
+    final int inputSize = getInputSize();
+    tfLite.resizeInput(0, new int[] {batchSize, inputSize, inputSize, 3});
+  }
+
+  @Override
+  public void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
+  }
+}
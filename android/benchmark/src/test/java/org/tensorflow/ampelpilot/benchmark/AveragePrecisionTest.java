@@ -0,0 +1,135 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.tensorflow.ampelpilot.DetectionBatch;
+
+public class AveragePrecisionTest {
+
+  private static final double EPSILON = 1e-6;
+  private static final int RED = 1;
+  private static final int GREEN = 2;
+
+  /** Only provides the labels, the evaluation never asks for detections. */
+  private static final BenchmarkDetector LABELS =
+      new BenchmarkDetector() {
+        private final List<String> labels = Arrays.asList("???", "red", "green");
+
+        @Override
+        public void open(final Clip clip) {}
+
+        @Override
+        public void detect(final Clip clip, final int frame, final DetectionBatch out) {}
+
+        @Override
+        public String getLabel(final int classIndex) {
+          return labels.get(classIndex);
+        }
+
+        @Override
+        public void close() {}
+      };
+
+  private final AveragePrecision precision = new AveragePrecision(0.5f);
+
+  // A 10x10 box at the given left edge.
+  private static DetectionBatch detections(final float[]... leftScoreClass) {
+    final DetectionBatch batch = new DetectionBatch(leftScoreClass.length);
+    for (final float[] detection : leftScoreClass) {
+      batch.add(detection[0], 0, detection[0] + 10, 10, detection[1], (int) detection[2]);
+    }
+    return batch;
+  }
+
+  private static float[] boxes(final float... lefts) {
+    final float[] boxes = new float[4 * lefts.length];
+    for (int i = 0; i < lefts.length; ++i) {
+      boxes[4 * i] = lefts[i];
+      boxes[4 * i + 2] = lefts[i] + 10;
+      boxes[4 * i + 3] = 10;
+    }
+    return boxes;
+  }
+
+  @Test
+  public void interpolatesPrecisionOverRecall() {
+    // Three red lights in three frames; ranked by score the detections are hit, miss, miss, hit,
+    // hit. Precision is 1, 1/2, 1/3, 1/2, 3/5 at recall 1/3, 1/3, 1/3, 2/3, 1. Interpolated it is
+    // 1 up to recall 1/3 and 3/5 beyond, so AP = 1/3 * 1 + 2/3 * 3/5 = 11/15.
+    precision.addFrame(
+        detections(new float[] {0, 0.9f, RED}, new float[] {50, 0.8f, RED}),
+        LABELS,
+        boxes(0),
+        new String[] {"red"});
+    precision.addFrame(
+        detections(new float[] {50, 0.7f, RED}, new float[] {0, 0.6f, RED}),
+        LABELS,
+        boxes(0),
+        new String[] {"red"});
+    precision.addFrame(
+        detections(new float[] {0, 0.5f, RED}), LABELS, boxes(0), new String[] {"red"});
+
+    assertEquals(11.0 / 15.0, precision.getAveragePrecisions().get("red"), EPSILON);
+  }
+
+  @Test
+  public void matchesEachBoxOnceFromTheHighestScoreDown() {
+    // Both detections cover the first box. The higher one takes it, the lower one is a false
+    // positive: precision 1, 1/2, 2/3 at recall 1/2, 1/2, 1, so AP = 1/2 * 1 + 1/2 * 2/3.
+    precision.addFrame(
+        detections(new float[] {0, 0.8f, RED}, new float[] {1, 0.9f, RED}),
+        LABELS,
+        boxes(0),
+        new String[] {"red"});
+    precision.addFrame(
+        detections(new float[] {0, 0.7f, RED}), LABELS, boxes(0), new String[] {"red"});
+
+    assertEquals(0.5 + 0.5 * 2.0 / 3.0, precision.getMeanAveragePrecision(), EPSILON);
+  }
+
+  @Test
+  public void matchesTheBestOverlappingBox() {
+    // The first detection overlaps the box at 0 by 2/3 and the box at 2 exactly, so it takes the
+    // box at 2. That leaves the box at 0 for the second detection, which overlaps the box at 2
+    // by less than a half.
+    precision.addFrame(
+        detections(new float[] {2, 0.9f, RED}, new float[] {-2, 0.8f, RED}),
+        LABELS,
+        boxes(0, 2),
+        new String[] {"red", "red"});
+
+    assertEquals(1.0, precision.getAveragePrecisions().get("red"), EPSILON);
+  }
+
+  @Test
+  public void averagesOverLabelsWithGroundTruth() {
+    // A green detection on the red light doesn't match it. Red: one hit, AP 1. Green: a miss,
+    // then a hit, precision 0 and 1/2 at recall 0 and 1, AP 1/2. A label that is only ever
+    // detected doesn't enter the mean.
+    precision.addFrame(
+        detections(
+            new float[] {0, 0.9f, GREEN},
+            new float[] {0, 0.8f, RED},
+            new float[] {20, 0.7f, GREEN},
+            new float[] {40, 0.6f, 0}),
+        LABELS,
+        boxes(0, 20),
+        new String[] {"red", "green"});
+
+    assertEquals(2, precision.getAveragePrecisions().size());
+    assertEquals(1.0, precision.getAveragePrecisions().get("red"), EPSILON);
+    assertEquals(0.5, precision.getAveragePrecisions().get("green"), EPSILON);
+    assertEquals(0.75, precision.getMeanAveragePrecision(), EPSILON);
+  }
+
+  @Test
+  public void undetectedLabelsHaveNoPrecision() {
+    precision.addFrame(detections(), LABELS, boxes(0), new String[] {"green"});
+
+    assertEquals(0.0, precision.getAveragePrecisions().get("green"), EPSILON);
+    assertEquals(0.0, precision.getMeanAveragePrecision(), EPSILON);
+  }
+}
@@ -0,0 +1,73 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+  private static final double EPSILON = 1e-9;
+
+  private final LatencyRecorder latency = new LatencyRecorder();
+
+  @Test
+  public void reportsNearestRankPercentilesMeanAndMaximum() {
+    // 1 to 100 us in random order.
+    final List<Long> samples = new ArrayList<Long>();
+    for (long us = 1; us <= 100; ++us) {
+      samples.add(us * 1000);
+    }
+    Collections.shuffle(samples, new Random(42));
+    for (final long sample : samples) {
+      latency.record("detect", sample);
+    }
+
+    assertArrayEquals(
+        new double[] {50, 90, 99, 50.5, 100},
+        latency.getSummaryMicros("detect", LatencyRecorder.PERCENTILES),
+        EPSILON);
+  }
+
+  @Test
+  public void roundsTheRankUp() {
+    latency.record("total", 30000);
+    latency.record("total", 10000);
+    latency.record("total", 20000);
+
+    // Ranks ceil(1.5) = 2, ceil(2.7) = 3 and ceil(2.97) = 3.
+    assertArrayEquals(
+        new double[] {20, 30, 30, 20, 30},
+        latency.getSummaryMicros("total", LatencyRecorder.PERCENTILES),
+        EPSILON);
+  }
+
+  @Test
+  public void keepsStagesApartAndInFirstRecordedOrder() {
+    for (int i = 0; i < 3000; ++i) {
+      latency.record("select", 1000);
+      latency.record("filter", 2000);
+    }
+
+    assertEquals(3000, latency.getCount("select"));
+    assertEquals(3000, latency.getCount("filter"));
+    final List<String> stages = new ArrayList<String>();
+    for (final String stage : latency.getStages()) {
+      stages.add(stage);
+    }
+    assertEquals("select", stages.get(0));
+    assertEquals("filter", stages.get(1));
+    assertEquals(2.0, latency.getSummaryMicros("filter", LatencyRecorder.PERCENTILES)[3], EPSILON);
+  }
+
+  @Test
+  public void reportsZerosForAStageWithoutSamples() {
+    assertEquals(0, latency.getCount("confirm"));
+    assertArrayEquals(
+        new double[5], latency.getSummaryMicros("confirm", LatencyRecorder.PERCENTILES), EPSILON);
+  }
+}
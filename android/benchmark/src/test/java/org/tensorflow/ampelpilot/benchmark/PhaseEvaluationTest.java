@@ -0,0 +1,73 @@
+package org.tensorflow.ampelpilot.benchmark;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PhaseEvaluationTest {
+
+  private static final double EPSILON = 1e-9;
+  private static final long MS = 1000L * 1000L;
+
+  private final PhaseEvaluation phases = new PhaseEvaluation();
+
+  @Test
+  public void countsFramesAndSegments() {
+    phases.addFrame(0, "none", "none");
+    // Red from 100 ms, confirmed at 200 ms, then a wrong phase.
+    phases.addFrame(100 * MS, "red", "none");
+    phases.addFrame(200 * MS, "red", "red");
+    phases.addFrame(300 * MS, "red", "green");
+    // Green for one frame, never confirmed.
+    phases.addFrame(400 * MS, "green", "none");
+    phases.addFrame(500 * MS, "none", "none");
+    // Green again, confirmed in its first frame.
+    phases.addFrame(600 * MS, "green", "green");
+    phases.endSegment();
+
+    assertEquals(7, phases.getFrames());
+    assertEquals(4.0 / 7.0, phases.getAccuracy(), EPSILON);
+    // Deciding on no phase is wrong but not a wrong phase.
+    assertEquals(1, phases.getWrongPhaseFrames());
+    assertEquals(3, phases.getSegments());
+    assertEquals(1, phases.getMissedSegments());
+    // Confirmed after 100 and 0 ms: mean 50, the median is the lower one of two.
+    assertArrayEquals(new double[] {50, 0, 100, 100}, phases.getConfirmSummaryMs(), EPSILON);
+  }
+
+  @Test
+  public void endingAClipMissesAnUnconfirmedSegment() {
+    phases.addFrame(0, "red", "none");
+    phases.addFrame(100 * MS, "red", "none");
+    phases.endSegment();
+
+    assertEquals(1, phases.getSegments());
+    assertEquals(1, phases.getMissedSegments());
+    assertArrayEquals(new double[] {0, 0, 0, 0}, phases.getConfirmSummaryMs(), EPSILON);
+  }
+
+  @Test
+  public void takesNearestRankPercentilesOfTheTimeToConfirm() {
+    // Ten segments of alternating phases, confirmed after 1 to 10 ms, in two evaluations.
+    final PhaseEvaluation other = new PhaseEvaluation();
+    long timestampNs = 0;
+    for (int delayMs = 1; delayMs <= 10; ++delayMs) {
+      final PhaseEvaluation target = delayMs <= 5 ? phases : other;
+      final String phase = delayMs % 2 == 0 ? "green" : "red";
+      target.addFrame(timestampNs, phase, "none");
+      target.addFrame(timestampNs + delayMs * MS, phase, phase);
+      target.addFrame(timestampNs + 20 * MS, "none", "none");
+      timestampNs += 100 * MS;
+    }
+    other.endSegment();
+    phases.endSegment();
+    phases.add(other);
+
+    assertEquals(30, phases.getFrames());
+    assertEquals(10, phases.getSegments());
+    assertEquals(0, phases.getMissedSegments());
+    // Ranks ceil(0.5 * 10) = 5 and ceil(0.9 * 10) = 9.
+    assertArrayEquals(new double[] {5.5, 5, 9, 10}, phases.getConfirmSummaryMs(), EPSILON);
+  }
+}
@@ -0,0 +1,194 @@
+package org.tensorflow.ampelpilot;
+
+/**
+ * The detections of one frame as parallel primitive arrays.
+ *
+ * <p>Detection {@code i} has the box {@code boxes[4 * i] .. boxes[4 * i + 3]} (left, top, right,
+ * bottom), the score {@code scores[i]} and the label index {@code classes[i]}; only the first
+ * {@link #count} entries are valid. A batch is meant to be allocated once and refilled for every
+ * frame, so the per-frame path doesn't create objects. The app converts a batch with
+ * Classifier.Recognition#listOf where a list is needed.
+ */
+public class DetectionBatch {
+
+  public float[] boxes;
+  public float[] scores;
+  public int[] classes;
+  public int count;
+
+  public DetectionBatch(final int capacity) {
+    boxes = new float[capacity * 4];
+    scores = new float[capacity];
+    classes = new int[capacity];
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  /**
+   * Appends a detection, growing the arrays if needed.
+   *
+   * @return The index of the new detection.
+   */
+  public int add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float score,
+      final int classIndex) {
+    if (count == scores.length) {
+      grow(Math.max(4, count * 2));
+    }
+    final int i = count++;
+    boxes[4 * i] = left;
+    boxes[4 * i + 1] = top;
+    boxes[4 * i + 2] = right;
+    boxes[4 * i + 3] = bottom;
+    scores[i] = score;
+    classes[i] = classIndex;
+    return i;
+  }
+
+  /** Appends detection i of another batch. */
+  public int add(final DetectionBatch other, final int i) {
+    return add(
+        other.boxes[4 * i],
+        other.boxes[4 * i + 1],
+        other.boxes[4 * i + 2],
+        other.boxes[4 * i + 3],
+        other.scores[i],
+        other.classes[i]);
+  }
+
+  public float getLeft(final int i) {
+    return boxes[4 * i];
+  }
+
+  public float getTop(final int i) {
+    return boxes[4 * i + 1];
+  }
+
+  public float getRight(final int i) {
+    return boxes[4 * i + 2];
+  }
+
+  public float getBottom(final int i) {
+    return boxes[4 * i + 3];
+  }
+
+  /** Index of the detection with the highest score, or -1 if the batch is empty. */
+  public int argMaxScore() {
+    int best = -1;
+    for (int i = 0; i < count; ++i) {
+      if (best < 0 || scores[i] > scores[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Greedy non-maximum suppression in place: detections are sorted by descending score and a
+   * detection is dropped if it overlaps an already kept one of the same class by more than the
+   * given intersection over union.
+   */
+  public void nonMaxSuppression(final float maxIntersectionOverUnion) {
+    sortByScore();
+    int kept = 0;
+    for (int i = 0; i < count; ++i) {
+      boolean suppressed = false;
+      for (int k = 0; k < kept && !suppressed; ++k) {
+        suppressed =
+            classes[k] == classes[i]
+                && intersectionOverUnion(boxes, k, boxes, i) > maxIntersectionOverUnion;
+      }
+      if (!suppressed) {
+        move(i, kept++);
+      }
+    }
+    count = kept;
+  }
+
+  /** Sorts the valid detections by descending score. Insertion sort, batches are small. */
+  public void sortByScore() {
+    for (int i = 1; i < count; ++i) {
+      final float score = scores[i];
+      final int classIndex = classes[i];
+      final float left = boxes[4 * i];
+      final float top = boxes[4 * i + 1];
+      final float right = boxes[4 * i + 2];
+      final float bottom = boxes[4 * i + 3];
+      int j = i - 1;
+      while (j >= 0 && scores[j] < score) {
+        move(j, j + 1);
+        --j;
+      }
+      scores[j + 1] = score;
+      classes[j + 1] = classIndex;
+      boxes[4 * (j + 1)] = left;
+      boxes[4 * (j + 1) + 1] = top;
+      boxes[4 * (j + 1) + 2] = right;
+      boxes[4 * (j + 1) + 3] = bottom;
+    }
+  }
+
+  /** Intersection over union of box i of a and box j of b, both flat left, top, right, bottom. */
+  public static float intersectionOverUnion(
+      final float[] a, final int i, final float[] b, final int j) {
+    return intersectionOverUnion(
+        a[4 * i],
+        a[4 * i + 1],
+        a[4 * i + 2],
+        a[4 * i + 3],
+        b[4 * j],
+        b[4 * j + 1],
+        b[4 * j + 2],
+        b[4 * j + 3]);
+  }
+
+  /** Intersection over union of two boxes given by their edges, 0 if they don't overlap. */
+  public static float intersectionOverUnion(
+      final float aLeft,
+      final float aTop,
+      final float aRight,
+      final float aBottom,
+      final float bLeft,
+      final float bTop,
+      final float bRight,
+      final float bBottom) {
+    final float left = Math.max(aLeft, bLeft);
+    final float top = Math.max(aTop, bTop);
+    final float right = Math.min(aRight, bRight);
+    final float bottom = Math.min(aBottom, bBottom);
+    if (right <= left || bottom <= top) {
+      return 0.0f;
+    }
+    final float intersection = (right - left) * (bottom - top);
+    final float areaA = (aRight - aLeft) * (aBottom - aTop);
+    final float areaB = (bRight - bLeft) * (bBottom - bTop);
+    return intersection / (areaA + areaB - intersection);
+  }
+
+  private void move(final int from, final int to) {
+    if (from == to) {
+      return;
+    }
+    scores[to] = scores[from];
+    classes[to] = classes[from];
+    System.arraycopy(boxes, 4 * from, boxes, 4 * to, 4);
+  }
+
+  private void grow(final int capacity) {
+    final float[] newBoxes = new float[capacity * 4];
+    final float[] newScores = new float[capacity];
+    final int[] newClasses = new int[capacity];
+    System.arraycopy(boxes, 0, newBoxes, 0, count * 4);
+    System.arraycopy(scores, 0, newScores, 0, count);
+    System.arraycopy(classes, 0, newClasses, 0, count);
+    boxes = newBoxes;
+    scores = newScores;
+    classes = newClasses;
+  }
+}
@@ -0,0 +1,34 @@
+package org.tensorflow.ampelpilot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A detection model fed with input tensors written by {@link ModelInput}. Free of Android types,
+ * so the app and the desktop benchmark run models through the same interface.
+ */
+public interface Detector {
+
+  /** Width and height of the square model input. */
+  int getInputSize();
+
+  /** Whether the input holds one byte per channel rather than normalized floats. */
+  boolean isQuantized();
+
+  /**
+   * Detects objects in an input that is already in the format of the model, e.g. a direct buffer
+   * filled by {@link ModelInput#fill}. The batch is cleared first; boxes are in input image
+   * coordinates.
+   */
+  void detect(ByteBuffer input, DetectionBatch out);
+
+  /** Results below this score are dropped before they are decoded. Defaults to 0. */
+  void setScoreThreshold(float scoreThreshold);
+
+  /** At most this many results, the highest scoring ones, are returned. */
+  void setMaxResults(int maxResults);
+
+  /** Returns the label of a class index used in {@link DetectionBatch#classes}. */
+  String getLabel(int classIndex);
+
+  void close();
+}
@@ -0,0 +1,110 @@
+package org.tensorflow.ampelpilot;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which camera frames enter a pipeline stage, for stages whose producer and consumer run
+ * on different threads.
+ *
+ * <p>At most {@code maxInFlight} frames are admitted and not yet released. Each admitted frame
+ * holds one of that many slots, so per-frame buffers can be indexed by slot. A frame that finds
+ * all slots taken is rejected and should be dropped by the caller. State is kept in atomics only:
+ * any thread may admit, check and release without further locking.
+ *
+ * <p>The drop policy decides what happens to admitted frames that still wait while newer ones
+ * are admitted. With {@link DropPolicy#FIFO} every admitted frame is processed in order. With
+ * {@link DropPolicy#LATEST_WINS} {@link #shouldProcess} turns false for a frame once a newer one
+ * has been admitted, so a consumer that falls behind skips to the newest frame. A frame that is
+ * already being processed is never interrupted.
+ */
+public class FrameAdmissionController {
+
+  public enum DropPolicy {
+    LATEST_WINS,
+    FIFO
+  }
+
+  /** Slots are bits of an int. */
+  public static final int MAX_IN_FLIGHT = 31;
+
+  private final int maxInFlight;
+  private final DropPolicy policy;
+  private final int allSlots;
+
+  // Bit i is set while slot i holds an admitted frame.
+  private final AtomicInteger takenSlots = new AtomicInteger();
+  // Admission order: the ticket of the frame in each slot and the newest ticket handed out.
+  private final AtomicLongArray tickets;
+  private final AtomicLong lastTicket = new AtomicLong();
+
+  public FrameAdmissionController(final int maxInFlight, final DropPolicy policy) {
+    if (maxInFlight < 1 || maxInFlight > MAX_IN_FLIGHT) {
+      throw new IllegalArgumentException(
+          "maxInFlight must be in 1.." + MAX_IN_FLIGHT + ", was " + maxInFlight);
+    }
+    this.maxInFlight = maxInFlight;
+    this.policy = policy;
+    allSlots = maxInFlight == MAX_IN_FLIGHT ? -1 >>> 1 : (1 << maxInFlight) - 1;
+    tickets = new AtomicLongArray(maxInFlight);
+  }
+
+  /**
+   * Admits a new frame.
+   *
+   * @return The slot of the frame, or -1 if {@code maxInFlight} frames are in flight.
+   */
+  public int tryAdmit() {
+    while (true) {
+      final int taken = takenSlots.get();
+      final int free = ~taken & allSlots;
+      if (free == 0) {
+        return -1;
+      }
+      final int slot = Integer.numberOfTrailingZeros(free);
+      if (takenSlots.compareAndSet(taken, taken | (1 << slot))) {
+        tickets.set(slot, lastTicket.incrementAndGet());
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Whether the frame in the slot should still be processed. Consumers check this right before
+   * the expensive work; a frame that shouldn't be processed must still be released.
+   */
+  public boolean shouldProcess(final int slot) {
+    return policy == DropPolicy.FIFO || tickets.get(slot) == lastTicket.get();
+  }
+
+  /**
+   * Frees the slot of a processed or dropped frame.
+   *
+   * @throws IllegalStateException if the slot doesn't hold an admitted frame.
+   */
+  public void release(final int slot) {
+    while (true) {
+      final int taken = takenSlots.get();
+      if ((taken & (1 << slot)) == 0) {
+        throw new IllegalStateException("Slot " + slot + " released twice");
+      }
+      if (takenSlots.compareAndSet(taken, taken & ~(1 << slot))) {
+        return;
+      }
+    }
+  }
+
+  /** Frames admitted and not yet released. */
+  public int getInFlight() {
+    return Integer.bitCount(takenSlots.get());
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public DropPolicy getPolicy() {
+    return policy;
+  }
+}
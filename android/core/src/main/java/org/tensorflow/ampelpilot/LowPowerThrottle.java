@@ -0,0 +1,52 @@
+package org.tensorflow.ampelpilot;
+
+/**
+ * Decides the camera frame rate limit while the app runs in low power mode, i.e. with the
+ * preview switched off.
+ *
+ * <p>As long as the detected light phase keeps changing or is unknown, the pipeline runs at the
+ * rate of the capture profile so a phase change is noticed quickly. Once the same phase has been
+ * stable for a while, the frame rate is capped. Any change of the stable phase lifts the cap
+ * again.
+ */
+public class LowPowerThrottle {
+
+  /** Frame rate cap while the phase is stable. */
+  public static final int THROTTLED_MAX_FPS = 10;
+
+  // How long a phase must stay stable before the frame rate is capped.
+  private static final long STABLE_BEFORE_THROTTLE_MS = 2000;
+
+  private String stablePhase;
+  private long stableSinceMs;
+  private int limit;
+
+  /**
+   * Feeds the result of one processed frame.
+   *
+   * @param lowPower Whether low power mode is active.
+   * @param phase The stable light phase of the frame, "none" or null if there is none.
+   * @return The new frame rate limit (0 for no limit), or -1 if it didn't change.
+   */
+  public synchronized int update(final long nowMs, final boolean lowPower, final String phase) {
+    final boolean knownPhase = phase != null && !phase.equals("none");
+    if (!knownPhase || !phase.equals(stablePhase)) {
+      stablePhase = knownPhase ? phase : null;
+      stableSinceMs = nowMs;
+    }
+
+    final int desired =
+        lowPower && stablePhase != null && nowMs - stableSinceMs >= STABLE_BEFORE_THROTTLE_MS
+            ? THROTTLED_MAX_FPS
+            : 0;
+    if (desired == limit) {
+      return -1;
+    }
+    limit = desired;
+    return desired;
+  }
+
+  public synchronized boolean isThrottled() {
+    return limit > 0;
+  }
+}
@@ -0,0 +1,45 @@
+package org.tensorflow.ampelpilot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes ARGB pixels into the input tensor of the detector: RGB bytes for a quantized model,
+ * normalized floats for a float model. Kept free of Android types so the loop can be benchmarked
+ * on a desktop JVM.
+ */
+public class ModelInput {
+
+  private static final float IMAGE_MEAN = 128.0f;
+  private static final float IMAGE_STD = 128.0f;
+
+  private ModelInput() {}
+
+  /**
+   * Appends the pixels of a square ARGB image at the current position of the buffer.
+   *
+   * @param stride Number of ints between the starts of two rows.
+   * @param inputSize Width and height of the image.
+   */
+  public static void fill(
+      final int[] argb,
+      final int stride,
+      final int inputSize,
+      final boolean quantized,
+      final ByteBuffer buffer) {
+    for (int i = 0; i < inputSize; ++i) {
+      for (int j = 0; j < inputSize; ++j) {
+        int pixelValue = argb[i * stride + j];
+        if (quantized) {
+          // Quantized model
+          buffer.put((byte) ((pixelValue >> 16) & 0xFF));
+          buffer.put((byte) ((pixelValue >> 8) & 0xFF));
+          buffer.put((byte) (pixelValue & 0xFF));
+        } else { // Float model
+          buffer.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          buffer.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          buffer.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.tensorflow.ampelpilot;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Confirms a light phase once the primary light of the last {@link #WINDOW} processed frames had
+ * the same label. A frame without a primary light breaks the run, so a phase is only announced
+ * after the light has been seen again in enough consecutive frames.
+ *
+ * <p>Extracted from DetectorActivity so the benchmark can run the same decision on a plain JVM.
+ */
+public class PhaseStabilizer {
+
+  /** Number of consecutive frames that must agree. */
+  public static final int WINDOW = 4;
+
+  private static final String NONE = "none";
+
+  private final ArrayDeque<String> recent = new ArrayDeque<String>(WINDOW + 1);
+
+  /**
+   * Feeds the primary light of one frame.
+   *
+   * @param phase Label of the primary light, or null if the frame had none.
+   * @return The confirmed phase, or null if the frame doesn't confirm one.
+   */
+  public synchronized String update(final String phase) {
+    if (phase == null) {
+      // Pushes the oldest label out, a window that isn't full yet stays as short as it was.
+      recent.addLast(NONE);
+      recent.removeFirst();
+      return null;
+    }
+    recent.addLast(phase);
+    if (recent.size() > WINDOW) {
+      recent.removeFirst();
+    }
+    if (recent.size() < WINDOW) {
+      return null;
+    }
+    final Iterator<String> labels = recent.iterator();
+    while (labels.hasNext()) {
+      if (!labels.next().equals(phase)) {
+        return null;
+      }
+    }
+    return phase;
+  }
+
+  public synchronized void reset() {
+    recent.clear();
+  }
+}
@@ -0,0 +1,246 @@
+package org.tensorflow.ampelpilot;
+
+/**
+ * Chooses the traffic light that is announced to the user out of all detections of a frame.
+ *
+ * <p>Every candidate gets a weighted score built from its relative area, its detection
+ * confidence, its distance from the image center, how well its bearing matches the light that
+ * was chosen before (using the compass heading) and for how many frames it has been seen. The
+ * selector keeps the boxes of the previous frame to derive track ages, so one instance must be
+ * fed the frames of one camera stream in order.
+ *
+ * <p>Boxes are passed as a flat array of {left, top, right, bottom} quadruples in preview frame
+ * coordinates. The class has no Android dependencies so it can be replayed on a plain JVM.
+ */
+public class PrimaryLightSelector {
+
+  /** Weights of the single score terms. Each term is normalized to [0, 1] before weighting. */
+  public static class Weights {
+    /** Only the box area counts, which is what the app did before the scorer existed. */
+    public static final Weights AREA_ONLY = new Weights(1.0f, 0.0f, 0.0f, 0.0f, 0.0f);
+
+    public static final Weights DEFAULT = new Weights(0.35f, 0.25f, 0.15f, 0.15f, 0.10f);
+
+    public final float area;
+    public final float confidence;
+    public final float center;
+    public final float heading;
+    public final float trackAge;
+
+    public Weights(
+        final float area,
+        final float confidence,
+        final float center,
+        final float heading,
+        final float trackAge) {
+      this.area = area;
+      this.confidence = confidence;
+      this.center = center;
+      this.heading = heading;
+      this.trackAge = trackAge;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "area=%.2f confidence=%.2f center=%.2f heading=%.2f trackAge=%.2f",
+          area, confidence, center, heading, trackAge);
+    }
+  }
+
+  // Horizontal field of view of a typical phone main camera in portrait orientation.
+  private static final float LATERAL_FOV_DEGREES = 50.0f;
+
+  // Bearing difference to the previously chosen light at which the heading term drops to zero.
+  private static final float HEADING_TOLERANCE_DEGREES = 20.0f;
+
+  // Number of frames after which a track counts as fully established.
+  private static final float TRACK_AGE_SATURATION = 8.0f;
+
+  // Minimum overlap for a box to be considered the same light as one of the previous frame.
+  private static final float TRACK_MIN_IOU = 0.3f;
+
+  private Weights weights;
+
+  private int frameWidth;
+  private int frameHeight;
+  private int sensorOrientation;
+
+  // Boxes and track ages of the previous frame.
+  private float[] previousBoxes = new float[0];
+  private int[] previousAges = new int[0];
+  private int previousCount;
+
+  // Scratch arrays for the current frame, grown on demand.
+  private float[] currentBoxes = new float[0];
+  private int[] currentAges = new int[0];
+
+  // Bearing of the light chosen last, NaN if nothing was chosen or no heading was available.
+  private float lockedBearing = Float.NaN;
+
+  public PrimaryLightSelector(final Weights weights) {
+    this.weights = weights;
+  }
+
+  public synchronized void setWeights(final Weights weights) {
+    this.weights = weights;
+  }
+
+  public synchronized Weights getWeights() {
+    return weights;
+  }
+
+  /**
+   * Sets the geometry of the frames whose boxes are passed to {@link #select}.
+   *
+   * @param sensorOrientation Rotation between frame and screen, a multiple of 90.
+   */
+  public synchronized void setFrameGeometry(
+      final int frameWidth, final int frameHeight, final int sensorOrientation) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.sensorOrientation = ((sensorOrientation % 360) + 360) % 360;
+    reset();
+  }
+
+  /** Forgets all track and heading history, e.g. after the camera was restarted. */
+  public synchronized void reset() {
+    previousCount = 0;
+    lockedBearing = Float.NaN;
+  }
+
+  /**
+   * Scores all candidates of one frame and returns the index of the primary light.
+   *
+   * @param boxes {left, top, right, bottom} of each candidate in frame coordinates.
+   * @param confidences Detection confidence of each candidate.
+   * @param count Number of valid candidates in the arrays.
+   * @param headingDegrees Compass heading of the camera, or NaN if unknown.
+   * @return Index of the chosen candidate, or -1 if there were none.
+   */
+  public synchronized int select(
+      final float[] boxes, final float[] confidences, final int count, final float headingDegrees) {
+    if (currentBoxes.length < count * 4) {
+      currentBoxes = new float[count * 4];
+      currentAges = new int[count];
+    }
+
+    float maxArea = 0.0f;
+    for (int i = 0; i < count; ++i) {
+      maxArea = Math.max(maxArea, area(boxes, i));
+    }
+
+    final float halfDiagonal =
+        0.5f * (float) Math.sqrt((double) frameWidth * frameWidth + frameHeight * frameHeight);
+
+    int best = -1;
+    float bestScore = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; ++i) {
+      final float area = area(boxes, i);
+      final int age = matchTrackAge(boxes, i);
+      currentAges[i] = age;
+      System.arraycopy(boxes, i * 4, currentBoxes, i * 4, 4);
+
+      float score = 0.0f;
+      if (maxArea > 0.0f) {
+        score += weights.area * area / maxArea;
+      }
+      score += weights.confidence * confidences[i];
+      if (halfDiagonal > 0.0f) {
+        final float dx = centerX(boxes, i) - frameWidth * 0.5f;
+        final float dy = centerY(boxes, i) - frameHeight * 0.5f;
+        final float distance = (float) Math.sqrt(dx * dx + dy * dy) / halfDiagonal;
+        score += weights.center * (1.0f - Math.min(1.0f, distance));
+      }
+      score += weights.heading * headingScore(boxes, i, headingDegrees);
+      score += weights.trackAge * Math.min(age, TRACK_AGE_SATURATION) / TRACK_AGE_SATURATION;
+
+      if (score > bestScore) {
+        bestScore = score;
+        best = i;
+      }
+    }
+
+    // Keep this frame's boxes as the reference for the next call.
+    final float[] swapBoxes = previousBoxes;
+    previousBoxes = currentBoxes;
+    currentBoxes = swapBoxes;
+    final int[] swapAges = previousAges;
+    previousAges = currentAges;
+    currentAges = swapAges;
+    previousCount = count;
+
+    if (best < 0 || Float.isNaN(headingDegrees)) {
+      lockedBearing = Float.NaN;
+    } else {
+      lockedBearing = bearing(boxes, best, headingDegrees);
+    }
+    return best;
+  }
+
+  /** Returns how many consecutive frames the given candidate has been seen, including this one. */
+  private int matchTrackAge(final float[] boxes, final int index) {
+    float bestIou = TRACK_MIN_IOU;
+    int age = 1;
+    for (int j = 0; j < previousCount; ++j) {
+      final float iou = DetectionBatch.intersectionOverUnion(boxes, index, previousBoxes, j);
+      if (iou >= bestIou) {
+        bestIou = iou;
+        age = previousAges[j] + 1;
+      }
+    }
+    return age;
+  }
+
+  private float headingScore(final float[] boxes, final int index, final float headingDegrees) {
+    if (Float.isNaN(headingDegrees) || Float.isNaN(lockedBearing)) {
+      // Without a reference every candidate is equally consistent.
+      return 1.0f;
+    }
+    final float delta =
+        Math.abs(angleDifference(bearing(boxes, index, headingDegrees), lockedBearing));
+    return Math.max(0.0f, 1.0f - delta / HEADING_TOLERANCE_DEGREES);
+  }
+
+  /** Estimates the compass bearing of a box from the camera heading and its lateral position. */
+  private float bearing(final float[] boxes, final int index, final float headingDegrees) {
+    final float lateral;
+    switch (sensorOrientation) {
+      case 90:
+        lateral = 0.5f - centerY(boxes, index) / frameHeight;
+        break;
+      case 180:
+        lateral = 0.5f - centerX(boxes, index) / frameWidth;
+        break;
+      case 270:
+        lateral = centerY(boxes, index) / frameHeight - 0.5f;
+        break;
+      default:
+        lateral = centerX(boxes, index) / frameWidth - 0.5f;
+        break;
+    }
+    return headingDegrees + lateral * LATERAL_FOV_DEGREES;
+  }
+
+  private static float angleDifference(final float a, final float b) {
+    float delta = (a - b) % 360.0f;
+    if (delta > 180.0f) {
+      delta -= 360.0f;
+    } else if (delta < -180.0f) {
+      delta += 360.0f;
+    }
+    return delta;
+  }
+
+  private static float area(final float[] boxes, final int i) {
+    return (boxes[i * 4 + 2] - boxes[i * 4]) * (boxes[i * 4 + 3] - boxes[i * 4 + 1]);
+  }
+
+  private static float centerX(final float[] boxes, final int i) {
+    return (boxes[i * 4] + boxes[i * 4 + 2]) * 0.5f;
+  }
+
+  private static float centerY(final float[] boxes, final int i) {
+    return (boxes[i * 4 + 1] + boxes[i * 4 + 3]) * 0.5f;
+  }
+}
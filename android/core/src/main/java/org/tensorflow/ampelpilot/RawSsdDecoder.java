@@ -0,0 +1,229 @@
+package org.tensorflow.ampelpilot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the raw outputs of an SSD graph exported without the TFLite_Detection_PostProcess op:
+ * box encodings relative to a fixed set of anchors and one logit per class and anchor.
+ *
+ * <p>Decoding is done in the order of increasing cost. Scores are compared in logit space, so
+ * the sigmoid is only computed for anchors that pass a class threshold. Of those only the top k
+ * are kept, and only their boxes are decoded (two exps each) before non-maximum suppression.
+ * Thresholds can be set per class, which the fused op doesn't allow.
+ */
+public class RawSsdDecoder {
+
+  // Scale factors of the box coder used by the SSD MobileNet exports.
+  private static final float Y_SCALE = 10.0f;
+  private static final float X_SCALE = 10.0f;
+  private static final float H_SCALE = 5.0f;
+  private static final float W_SCALE = 5.0f;
+
+  private static final float DEFAULT_NMS_IOU = 0.6f;
+
+  // Anchors as center y, center x, height and width, in input fractions.
+  private final float[] anchorY;
+  private final float[] anchorX;
+  private final float[] anchorH;
+  private final float[] anchorW;
+  private final int numAnchors;
+  private final int numClasses;
+
+  // Per class score threshold converted to a logit, class 0 is the background.
+  private final float[] logitThresholds;
+  private int topK;
+  private float nmsIou = DEFAULT_NMS_IOU;
+
+  // Top k candidates as a min-heap on the logit.
+  private int[] candidateAnchors;
+  private int[] candidateClasses;
+  private float[] candidateLogits;
+  private int candidateCount;
+
+  /**
+   * @param priors Anchors as four rows (center y, center x, height, width) of one value per
+   *     anchor, the layout of box_priors.txt.
+   * @param numClasses Number of classes including the background class 0.
+   */
+  public RawSsdDecoder(final float[][] priors, final int numClasses, final int topK) {
+    if (priors.length != 4) {
+      throw new IllegalArgumentException("Expected 4 rows of box priors, got " + priors.length);
+    }
+    anchorY = priors[0];
+    anchorX = priors[1];
+    anchorH = priors[2];
+    anchorW = priors[3];
+    numAnchors = anchorY.length;
+    this.numClasses = numClasses;
+    logitThresholds = new float[numClasses];
+    setScoreThreshold(0.5f);
+    setTopK(topK);
+  }
+
+  /**
+   * Reads box_priors.txt: four lines of whitespace separated floats, one value per anchor.
+   */
+  public static float[][] loadPriors(final InputStream input) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final List<float[]> rows = new ArrayList<float[]>();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String trimmed = line.trim();
+        if (trimmed.isEmpty()) {
+          continue;
+        }
+        final String[] values = trimmed.split("\\s+");
+        final float[] row = new float[values.length];
+        for (int i = 0; i < values.length; ++i) {
+          row[i] = Float.parseFloat(values[i]);
+        }
+        rows.add(row);
+      }
+    } finally {
+      reader.close();
+    }
+    for (final float[] row : rows) {
+      if (row.length != rows.get(0).length) {
+        throw new IOException("Box prior rows differ in length");
+      }
+    }
+    return rows.toArray(new float[rows.size()][]);
+  }
+
+  public int getNumAnchors() {
+    return numAnchors;
+  }
+
+  /** Sets the same score threshold for all classes. */
+  public void setScoreThreshold(final float threshold) {
+    for (int c = 1; c < numClasses; ++c) {
+      setScoreThreshold(c, threshold);
+    }
+  }
+
+  /** Sets the score threshold of one class. */
+  public void setScoreThreshold(final int classIndex, final float threshold) {
+    logitThresholds[classIndex] = logit(threshold);
+  }
+
+  /** Caps the number of candidates that are decoded and passed to non-maximum suppression. */
+  public void setTopK(final int topK) {
+    this.topK = topK;
+    candidateAnchors = new int[topK];
+    candidateClasses = new int[topK];
+    candidateLogits = new float[topK];
+  }
+
+  public void setNmsIou(final float nmsIou) {
+    this.nmsIou = nmsIou;
+  }
+
+  /**
+   * Decodes the outputs of one image.
+   *
+   * @param boxEncodings [numAnchors][4] encodings (dy, dx, dh, dw) relative to the anchors.
+   * @param classLogits [numAnchors][numClasses] logits, class 0 being the background.
+   * @param inputSize Size of the model input, boxes are scaled to it.
+   * @param out Cleared and filled with the detections, highest score first, class indices
+   *     counting the background class.
+   */
+  public void decode(
+      final float[][] boxEncodings,
+      final float[][] classLogits,
+      final int inputSize,
+      final DetectionBatch out) {
+    candidateCount = 0;
+    for (int a = 0; a < numAnchors; ++a) {
+      final float[] logits = classLogits[a];
+      for (int c = 1; c < numClasses; ++c) {
+        if (logits[c] >= logitThresholds[c]) {
+          offer(a, c, logits[c]);
+        }
+      }
+    }
+
+    out.clear();
+    for (int k = 0; k < candidateCount; ++k) {
+      final int a = candidateAnchors[k];
+      final float[] encoding = boxEncodings[a];
+      final float centerY = encoding[0] / Y_SCALE * anchorH[a] + anchorY[a];
+      final float centerX = encoding[1] / X_SCALE * anchorW[a] + anchorX[a];
+      final float halfH = (float) Math.exp(encoding[2] / H_SCALE) * anchorH[a] * 0.5f;
+      final float halfW = (float) Math.exp(encoding[3] / W_SCALE) * anchorW[a] * 0.5f;
+      out.add(
+          (centerX - halfW) * inputSize,
+          (centerY - halfH) * inputSize,
+          (centerX + halfW) * inputSize,
+          (centerY + halfH) * inputSize,
+          sigmoid(candidateLogits[k]),
+          candidateClasses[k]);
+    }
+    out.nonMaxSuppression(nmsIou);
+  }
+
+  /** Keeps the candidate if it is among the top k logits seen so far. */
+  private void offer(final int anchor, final int classIndex, final float logit) {
+    if (candidateCount < topK) {
+      int i = candidateCount++;
+      // Sift up.
+      while (i > 0 && candidateLogits[(i - 1) / 2] > logit) {
+        moveCandidate((i - 1) / 2, i);
+        i = (i - 1) / 2;
+      }
+      setCandidate(i, anchor, classIndex, logit);
+      return;
+    }
+    if (topK == 0 || logit <= candidateLogits[0]) {
+      return;
+    }
+    // Replace the smallest and sift down.
+    int i = 0;
+    while (true) {
+      final int left = 2 * i + 1;
+      if (left >= candidateCount) {
+        break;
+      }
+      final int right = left + 1;
+      final int smaller =
+          right < candidateCount && candidateLogits[right] < candidateLogits[left] ? right : left;
+      if (candidateLogits[smaller] >= logit) {
+        break;
+      }
+      moveCandidate(smaller, i);
+      i = smaller;
+    }
+    setCandidate(i, anchor, classIndex, logit);
+  }
+
+  private void moveCandidate(final int from, final int to) {
+    candidateAnchors[to] = candidateAnchors[from];
+    candidateClasses[to] = candidateClasses[from];
+    candidateLogits[to] = candidateLogits[from];
+  }
+
+  private void setCandidate(
+      final int i, final int anchor, final int classIndex, final float logit) {
+    candidateAnchors[i] = anchor;
+    candidateClasses[i] = classIndex;
+    candidateLogits[i] = logit;
+  }
+
+  private static float sigmoid(final float x) {
+    return (float) (1.0 / (1.0 + Math.exp(-x)));
+  }
+
+  private static float logit(final float p) {
+    if (p <= 0.0f) {
+      return Float.NEGATIVE_INFINITY;
+    } else if (p >= 1.0f) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(p / (1.0 - p));
+  }
+}
@@ -0,0 +1,122 @@
+package org.tensorflow.ampelpilot;
+
+/**
+ * Decides at runtime which preview size the camera should deliver.
+ *
+ * <p>The ladder steps up to a larger size while the detected lights are small (or nothing is
+ * detected) and the pipeline still has frame rate headroom, and steps down again when the lights
+ * are large enough or frames start to back up. A decision needs a run of consecutive frames
+ * agreeing on it, and there is a cool-down after every switch because rebuilding the capture
+ * session costs a few hundred milliseconds.
+ */
+public class ResolutionLadder {
+
+  /** 480p, 720p and 1080p, smallest first. */
+  public static final int[][] DEFAULT_RUNGS = {{640, 480}, {1280, 720}, {1920, 1080}};
+
+  // Shorter side of the primary box relative to the shorter side of the frame.
+  private static final float SMALL_BOX_FRACTION = 0.04f;
+  private static final float LARGE_BOX_FRACTION = 0.12f;
+
+  // Processed frames per second needed to step up, and below which we step down.
+  private static final float STEP_UP_MIN_FPS = 12.0f;
+  private static final float STEP_DOWN_MAX_FPS = 7.0f;
+
+  private static final int DECISION_FRAMES = 15;
+  private static final long COOLDOWN_MS = 3000;
+
+  // Weight of a new sample in the frame rate average.
+  private static final float FPS_AVERAGE_WEIGHT = 0.1f;
+
+  private final int[][] rungs;
+  private int current;
+
+  private int upVotes;
+  private int downVotes;
+  private long lastSwitchMs;
+  private long lastFrameMs;
+  private float fps;
+
+  public ResolutionLadder(final int[][] rungs, final int initialRung) {
+    this.rungs = rungs;
+    this.current = initialRung;
+  }
+
+  public int getRungCount() {
+    return rungs.length;
+  }
+
+  public int getWidth(final int rung) {
+    return rungs[rung][0];
+  }
+
+  public int getHeight(final int rung) {
+    return rungs[rung][1];
+  }
+
+  public synchronized int getCurrentRung() {
+    return current;
+  }
+
+  /** Tells the ladder which rung is active, e.g. after the camera was reset to the default. */
+  public synchronized void setCurrentRung(final int rung) {
+    current = rung;
+    upVotes = 0;
+    downVotes = 0;
+    fps = 0.0f;
+    lastFrameMs = 0;
+  }
+
+  public synchronized float getFps() {
+    return fps;
+  }
+
+  /**
+   * Feeds the result of one processed frame into the ladder.
+   *
+   * @param nowMs Monotonic time of the frame in milliseconds.
+   * @param boxFraction Shorter side of the primary detection relative to the shorter frame side,
+   *     or a negative value if nothing was detected.
+   * @return The rung to switch to, or -1 to stay on the current one.
+   */
+  public synchronized int onFrameProcessed(final long nowMs, final float boxFraction) {
+    if (lastFrameMs > 0 && nowMs > lastFrameMs) {
+      final float instantFps = 1000.0f / (nowMs - lastFrameMs);
+      fps = fps == 0.0f ? instantFps : fps + FPS_AVERAGE_WEIGHT * (instantFps - fps);
+    }
+    lastFrameMs = nowMs;
+
+    if (nowMs - lastSwitchMs < COOLDOWN_MS || fps == 0.0f) {
+      return -1;
+    }
+
+    final boolean framesBackingUp = fps < STEP_DOWN_MAX_FPS;
+    final boolean largeBox = boxFraction >= LARGE_BOX_FRACTION;
+    final boolean smallOrNoBox = boxFraction < SMALL_BOX_FRACTION;
+
+    if (current > 0 && (framesBackingUp || largeBox)) {
+      ++downVotes;
+      upVotes = 0;
+    } else if (current < rungs.length - 1 && smallOrNoBox && fps >= STEP_UP_MIN_FPS) {
+      ++upVotes;
+      downVotes = 0;
+    } else {
+      upVotes = 0;
+      downVotes = 0;
+    }
+
+    if (downVotes >= DECISION_FRAMES) {
+      return switchTo(current - 1, nowMs);
+    } else if (upVotes >= DECISION_FRAMES) {
+      return switchTo(current + 1, nowMs);
+    }
+    return -1;
+  }
+
+  private int switchTo(final int rung, final long nowMs) {
+    // The frame rate of the old size says nothing about the new one.
+    setCurrentRung(rung);
+    lastSwitchMs = nowMs;
+    return rung;
+  }
+}
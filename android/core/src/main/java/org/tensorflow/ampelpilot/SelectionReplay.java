@@ -0,0 +1,116 @@
+package org.tensorflow.ampelpilot;
+
+import java.util.List;
+
+/**
+ * Replays recorded detections through a {@link PrimaryLightSelector} and measures how stable the
+ * choice of the primary light is over time. Used to compare weight sets offline.
+ */
+public class SelectionReplay {
+
+  /** The detections of one recorded frame. */
+  public static class Frame {
+    public final float[] boxes;
+    public final float[] confidences;
+    public final int count;
+    public final float headingDegrees;
+
+    public Frame(
+        final float[] boxes,
+        final float[] confidences,
+        final int count,
+        final float headingDegrees) {
+      this.boxes = boxes;
+      this.confidences = confidences;
+      this.count = count;
+      this.headingDegrees = headingDegrees;
+    }
+  }
+
+  /** Result of one replay run. */
+  public static class Report {
+    public final PrimaryLightSelector.Weights weights;
+    public final int frames;
+    public final int framesWithSelection;
+    // Consecutive frame pairs that both had a selection.
+    public final int comparablePairs;
+    // Pairs in which the selection jumped to a different light.
+    public final int switches;
+
+    Report(
+        final PrimaryLightSelector.Weights weights,
+        final int frames,
+        final int framesWithSelection,
+        final int comparablePairs,
+        final int switches) {
+      this.weights = weights;
+      this.frames = frames;
+      this.framesWithSelection = framesWithSelection;
+      this.comparablePairs = comparablePairs;
+      this.switches = switches;
+    }
+
+    /** Fraction of consecutive frame pairs in which the same light stayed selected. */
+    public float getConsistency() {
+      if (comparablePairs == 0) {
+        return 1.0f;
+      }
+      return 1.0f - switches / (float) comparablePairs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "[%s] frames=%d selected=%d switches=%d consistency=%.1f%%",
+          weights, frames, framesWithSelection, switches, getConsistency() * 100.0f);
+    }
+  }
+
+  // Overlap above which two chosen boxes of consecutive frames are treated as the same light.
+  private static final float SAME_LIGHT_MIN_IOU = 0.3f;
+
+  private SelectionReplay() {}
+
+  /**
+   * Runs all frames through a fresh selector with the given weights.
+   *
+   * @param sensorOrientation Rotation between the recorded frames and the screen.
+   */
+  public static Report run(
+      final PrimaryLightSelector.Weights weights,
+      final List<Frame> frames,
+      final int frameWidth,
+      final int frameHeight,
+      final int sensorOrientation) {
+    final PrimaryLightSelector selector = new PrimaryLightSelector(weights);
+    selector.setFrameGeometry(frameWidth, frameHeight, sensorOrientation);
+
+    final float[] previousChoice = new float[4];
+    boolean hadPrevious = false;
+    int framesWithSelection = 0;
+    int comparablePairs = 0;
+    int switches = 0;
+
+    for (final Frame frame : frames) {
+      final int chosen =
+          selector.select(frame.boxes, frame.confidences, frame.count, frame.headingDegrees);
+      if (chosen < 0) {
+        hadPrevious = false;
+        continue;
+      }
+
+      ++framesWithSelection;
+      if (hadPrevious) {
+        ++comparablePairs;
+        if (DetectionBatch.intersectionOverUnion(frame.boxes, chosen, previousChoice, 0)
+            < SAME_LIGHT_MIN_IOU) {
+          ++switches;
+        }
+      }
+      System.arraycopy(frame.boxes, chosen * 4, previousChoice, 0, 4);
+      hadPrevious = true;
+    }
+
+    return new Report(weights, frames.size(), framesWithSelection, comparablePairs, switches);
+  }
+}
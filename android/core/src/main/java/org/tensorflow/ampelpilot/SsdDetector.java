@@ -0,0 +1,290 @@
+package org.tensorflow.ampelpilot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The interpreter independent part of an SSD model exported by the TensorFlow Object Detection
+ * API: labels, output tensors and their decoding. Subclasses only load and invoke the
+ * interpreter, so the app and the desktop benchmark decode detections with the same code.
+ *
+ * <p>By default the model ends in the TFLite_Detection_PostProcess op. After {@link
+ * #useRawOutputs} its two outputs are box encodings and class logits per anchor, which a {@link
+ * RawSsdDecoder} turns into detections. Only such a graph is run with more than one image per
+ * invocation, see {@link #detectBatch}.
+ */
+public abstract class SsdDetector implements Detector {
+
+  // Only return this many results.
+  protected static final int NUM_DETECTIONS = 10;
+
+  private final List<String> labels;
+  private final int inputSize;
+  private final boolean quantized;
+  // Detections below this score or beyond this count are not decoded.
+  private float scoreThreshold = 0.0f;
+  private int maxResults = NUM_DETECTIONS;
+
+  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
+  // contains the location of detected boxes
+  private final float[][][] outputLocations = new float[1][NUM_DETECTIONS][4];
+  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
+  // contains the classes of detected boxes
+  private final float[][] outputClasses = new float[1][NUM_DETECTIONS];
+  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
+  // contains the scores of detected boxes
+  private final float[][] outputScores = new float[1][NUM_DETECTIONS];
+  // numDetections: array of shape [Batchsize]
+  // contains the number of detected boxes
+  private final float[] numDetections = new float[1];
+
+  // Raw SSD mode: anchor encodings and class logits are decoded in Java.
+  private RawSsdDecoder rawDecoder;
+  // rawBoxEncodings: array of shape [Batchsize, numAnchors, 4]
+  private float[][][] rawBoxEncodings;
+  // rawClassLogits: array of shape [Batchsize, numAnchors, numLabels]
+  private float[][][] rawClassLogits;
+
+  // Batch counterparts of the raw outputs, see detectBatch().
+  private int interpreterBatchSize = 1;
+  private boolean batchUnsupported;
+  private float[][][] batchBoxEncodings = new float[0][][];
+  private float[][][] batchClassLogits;
+  private final Map<Integer, Object> batchOutputMap = new HashMap<>();
+
+  private final Object[] inputArray = new Object[1];
+  private final Map<Integer, Object> outputMap = new HashMap<>();
+
+  protected SsdDetector(final List<String> labels, final int inputSize, final boolean quantized) {
+    this.labels = labels;
+    this.inputSize = inputSize;
+    this.quantized = quantized;
+    outputMap.put(0, outputLocations);
+    outputMap.put(1, outputClasses);
+    outputMap.put(2, outputScores);
+    outputMap.put(3, numDetections);
+  }
+
+  /** Reads a label file, one label per line, starting with the background class. */
+  public static List<String> loadLabels(final InputStream input) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+    final List<String> labels = new ArrayList<String>();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        labels.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return labels;
+  }
+
+  /**
+   * Switches to a graph exported without the detection post-processing op.
+   *
+   * @param priors The anchors, see {@link RawSsdDecoder#loadPriors}.
+   * @param topK Most candidates decoded per image before non-maximum suppression.
+   */
+  protected void useRawOutputs(final float[][] priors, final int topK) {
+    rawDecoder = new RawSsdDecoder(priors, labels.size(), topK);
+    rawDecoder.setScoreThreshold(scoreThreshold);
+    final int numAnchors = rawDecoder.getNumAnchors();
+    rawBoxEncodings = new float[1][numAnchors][4];
+    rawClassLogits = new float[1][numAnchors][labels.size()];
+    outputMap.clear();
+    outputMap.put(0, rawBoxEncodings);
+    outputMap.put(1, rawClassLogits);
+  }
+
+  /** Whether the outputs are decoded by a {@link RawSsdDecoder}. */
+  public boolean isRaw() {
+    return rawDecoder != null;
+  }
+
+  /** Allocates a direct buffer of the size and byte order of the model input. */
+  public ByteBuffer allocateInput() {
+    return allocateInput(1);
+  }
+
+  /** Allocates a direct buffer for a batch of images, stored one after the other. */
+  public ByteBuffer allocateInput(final int batchSize) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(batchSize * getInputBytes());
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  private int getInputBytes() {
+    return inputSize * inputSize * 3 * (quantized ? 1 : 4);
+  }
+
+  /**
+   * Runs the model once. The output arrays are decoded before the next run, so they are
+   * allocated once and reused.
+   *
+   * @param inputs The input tensors, a single image buffer.
+   * @param outputs The output arrays by output tensor index.
+   */
+  protected abstract void run(Object[] inputs, Map<Integer, Object> outputs);
+
+  /**
+   * Resizes the first input tensor to the given number of images. Called before a run whose
+   * batch size differs from the previous one. The default does nothing, for subclasses without
+   * an interpreter.
+   */
+  protected void resizeInput(final int batchSize) {}
+
+  @Override
+  public void detect(final ByteBuffer input, final DetectionBatch out) {
+    checkInputBytes(input, 1);
+    ensureBatchSize(1);
+    input.rewind();
+    inputArray[0] = input;
+    run(inputArray, outputMap);
+    if (rawDecoder == null) {
+      decode(outputLocations[0], outputClasses[0], outputScores[0], numDetections[0], out);
+    } else {
+      rawDecoder.decode(rawBoxEncodings[0], rawClassLogits[0], inputSize, out);
+      out.count = Math.min(out.count, maxResults);
+    }
+  }
+
+  /**
+   * Detects objects in several images, with a single invocation in raw SSD mode.
+   *
+   * <p>The TFLite_Detection_PostProcess op of many SSD exports only supports a batch of one, so
+   * with the post-processing outputs the images are run one by one. The same happens from then
+   * on if the interpreter rejects a batched run of a raw graph, so callers never need to check.
+   *
+   * @param input The images, as filled into a buffer from {@link #allocateInput(int)}.
+   * @param out Receives the detections of each image, in the order of the images.
+   */
+  public void detectBatch(final ByteBuffer input, final int batchSize, final DetectionBatch[] out) {
+    checkInputBytes(input, batchSize);
+    if (batchSize > 1 && rawDecoder != null && !batchUnsupported) {
+      try {
+        ensureBatchSize(batchSize);
+        input.rewind();
+        inputArray[0] = input;
+        run(inputArray, batchOutputMap);
+        for (int b = 0; b < batchSize; ++b) {
+          rawDecoder.decode(batchBoxEncodings[b], batchClassLogits[b], inputSize, out[b]);
+          out[b].count = Math.min(out[b].count, maxResults);
+        }
+        return;
+      } catch (final IllegalArgumentException | IllegalStateException e) {
+        batchUnsupported = true;
+      }
+    }
+
+    final int imageBytes = getInputBytes();
+    for (int b = 0; b < batchSize; ++b) {
+      input.limit((b + 1) * imageBytes);
+      input.position(b * imageBytes);
+      detect(input.slice().order(input.order()), out[b]);
+    }
+    input.clear();
+  }
+
+  private void checkInputBytes(final ByteBuffer input, final int batchSize) {
+    if (input.capacity() != batchSize * getInputBytes()) {
+      throw new IllegalArgumentException(
+          "Input buffer has " + input.capacity() + " bytes, expected "
+              + batchSize * getInputBytes());
+    }
+  }
+
+  /** Resizes the input to the given batch size and allocates the raw batch outputs for it. */
+  private void ensureBatchSize(final int batchSize) {
+    if (batchSize == interpreterBatchSize) {
+      return;
+    }
+    resizeInput(batchSize);
+    interpreterBatchSize = batchSize;
+    if (batchSize > 1 && batchBoxEncodings.length != batchSize) {
+      final int numAnchors = rawDecoder.getNumAnchors();
+      batchBoxEncodings = new float[batchSize][numAnchors][4];
+      batchClassLogits = new float[batchSize][numAnchors][labels.size()];
+      batchOutputMap.put(0, batchBoxEncodings);
+      batchOutputMap.put(1, batchClassLogits);
+    }
+  }
+
+  /** Turns the outputs for one image into detections, scaled back to the input size. */
+  private void decode(
+      final float[][] locations,
+      final float[] classes,
+      final float[] scores,
+      final float numDetections,
+      final DetectionBatch out) {
+    out.clear();
+    // Only the first numDetections entries are valid, and the post-processing op sorts them by
+    // descending score, so decoding stops at the first one below the threshold.
+    final int valid = Math.min(Math.min((int) numDetections, NUM_DETECTIONS), maxResults);
+    for (int i = 0; i < valid; ++i) {
+      if (scores[i] < scoreThreshold) {
+        break;
+      }
+      // SSD Mobilenet V1 Model assumes class 0 is background class
+      // in label file and class labels start from 1 to number_of_classes+1,
+      // while outputClasses correspond to class index from 0 to number_of_classes
+      int labelOffset = 1;
+      out.add(
+          locations[i][1] * inputSize,
+          locations[i][0] * inputSize,
+          locations[i][3] * inputSize,
+          locations[i][2] * inputSize,
+          scores[i],
+          (int) classes[i] + labelOffset);
+    }
+  }
+
+  @Override
+  public int getInputSize() {
+    return inputSize;
+  }
+
+  @Override
+  public boolean isQuantized() {
+    return quantized;
+  }
+
+  @Override
+  public void setScoreThreshold(final float scoreThreshold) {
+    this.scoreThreshold = scoreThreshold;
+    if (rawDecoder != null) {
+      rawDecoder.setScoreThreshold(scoreThreshold);
+    }
+  }
+
+  /**
+   * Sets the threshold of one class. Only the raw SSD mode can filter per class; the
+   * post-processing op has already mixed the classes by the time its results are decoded.
+   *
+   * @throws IllegalStateException if the model isn't in raw SSD mode, see {@link #isRaw()}.
+   */
+  public void setScoreThreshold(final int classIndex, final float scoreThreshold) {
+    if (rawDecoder == null) {
+      throw new IllegalStateException("Per class thresholds need the raw SSD mode");
+    }
+    rawDecoder.setScoreThreshold(classIndex, scoreThreshold);
+  }
+
+  @Override
+  public void setMaxResults(final int maxResults) {
+    this.maxResults = maxResults;
+  }
+
+  @Override
+  public String getLabel(final int classIndex) {
+    return labels.get(classIndex);
+  }
+}
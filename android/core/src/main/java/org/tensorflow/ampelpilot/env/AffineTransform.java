@@ -0,0 +1,194 @@
+package org.tensorflow.ampelpilot.env;
+
+/**
+ * A 2D affine transformation with the semantics of the android.graphics.Matrix calls the app
+ * uses, without depending on Android. A point is mapped to (scaleX * x + skewX * y + transX,
+ * skewY * x + scaleY * y + transY); the post methods apply a transformation after the current
+ * one.
+ */
+public class AffineTransform {
+
+  private float scaleX = 1.0f;
+  private float skewX;
+  private float transX;
+  private float skewY;
+  private float scaleY = 1.0f;
+  private float transY;
+
+  public void reset() {
+    scaleX = 1.0f;
+    skewX = 0.0f;
+    transX = 0.0f;
+    skewY = 0.0f;
+    scaleY = 1.0f;
+    transY = 0.0f;
+  }
+
+  /**
+   * Sets the transformation from one frame into another, as the app's
+   * ImageUtils#getTransformationMatrix documents it.
+   */
+  public void setFrameTransformation(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    reset();
+
+    if (applyRotation != 0) {
+      // Translate so center of image is at origin.
+      postTranslate(-srcWidth / 2.0f, -srcHeight / 2.0f);
+
+      // Rotate around origin.
+      postRotate(applyRotation);
+    }
+
+    // Account for the already applied rotation, if any, and then determine how
+    // much scaling is needed for each axis.
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+
+    // Apply scaling if necessary.
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      final float scaleFactorX = dstWidth / (float) inWidth;
+      final float scaleFactorY = dstHeight / (float) inHeight;
+
+      if (maintainAspectRatio) {
+        // Scale by minimum factor so that dst is filled completely while
+        // maintaining the aspect ratio. Some image may fall off the edge.
+        final float scaleFactor = Math.max(scaleFactorX, scaleFactorY);
+        postScale(scaleFactor, scaleFactor);
+      } else {
+        // Scale exactly to fill dst from src.
+        postScale(scaleFactorX, scaleFactorY);
+      }
+    }
+
+    if (applyRotation != 0) {
+      // Translate back from origin centered reference to destination frame.
+      postTranslate(dstWidth / 2.0f, dstHeight / 2.0f);
+    }
+  }
+
+  public void postTranslate(final float dx, final float dy) {
+    transX += dx;
+    transY += dy;
+  }
+
+  public void postScale(final float sx, final float sy) {
+    scaleX *= sx;
+    skewX *= sx;
+    transX *= sx;
+    skewY *= sy;
+    scaleY *= sy;
+    transY *= sy;
+  }
+
+  /** Rotates clockwise on screen (y pointing down) by the given degrees around the origin. */
+  public void postRotate(final float degrees) {
+    final double radians = Math.toRadians(degrees);
+    final float sin = snapToZero((float) Math.sin(radians));
+    final float cos = snapToZero((float) Math.cos(radians));
+    final float newScaleX = cos * scaleX - sin * skewY;
+    final float newSkewX = cos * skewX - sin * scaleY;
+    final float newTransX = cos * transX - sin * transY;
+    skewY = sin * scaleX + cos * skewY;
+    scaleY = sin * skewX + cos * scaleY;
+    transY = sin * transX + cos * transY;
+    scaleX = newScaleX;
+    skewX = newSkewX;
+    transX = newTransX;
+  }
+
+  // Like Skia, so that multiples of 90 degrees give exact results.
+  private static float snapToZero(final float value) {
+    return Math.abs(value) < 1.0f / (1 << 12) ? 0.0f : value;
+  }
+
+  /** Maps count points given as x, y pairs in place. */
+  public void mapPoints(final float[] points, final int count) {
+    for (int i = 0; i < count; ++i) {
+      final float x = points[2 * i];
+      final float y = points[2 * i + 1];
+      points[2 * i] = scaleX * x + skewX * y + transX;
+      points[2 * i + 1] = skewY * x + scaleY * y + transY;
+    }
+  }
+
+  /**
+   * Maps box i of a flat {left, top, right, bottom} array in place to the bounding box of its
+   * mapped corners.
+   */
+  public void mapBox(final float[] boxes, final int i) {
+    final float left = boxes[4 * i];
+    final float top = boxes[4 * i + 1];
+    final float right = boxes[4 * i + 2];
+    final float bottom = boxes[4 * i + 3];
+    final float x0 = scaleX * left + skewX * top + transX;
+    final float y0 = skewY * left + scaleY * top + transY;
+    final float x1 = scaleX * right + skewX * bottom + transX;
+    final float y1 = skewY * right + scaleY * bottom + transY;
+    if (skewX == 0.0f && skewY == 0.0f) {
+      boxes[4 * i] = Math.min(x0, x1);
+      boxes[4 * i + 1] = Math.min(y0, y1);
+      boxes[4 * i + 2] = Math.max(x0, x1);
+      boxes[4 * i + 3] = Math.max(y0, y1);
+      return;
+    }
+    final float x2 = scaleX * right + skewX * top + transX;
+    final float y2 = skewY * right + scaleY * top + transY;
+    final float x3 = scaleX * left + skewX * bottom + transX;
+    final float y3 = skewY * left + scaleY * bottom + transY;
+    boxes[4 * i] = Math.min(Math.min(x0, x1), Math.min(x2, x3));
+    boxes[4 * i + 1] = Math.min(Math.min(y0, y1), Math.min(y2, y3));
+    boxes[4 * i + 2] = Math.max(Math.max(x0, x1), Math.max(x2, x3));
+    boxes[4 * i + 3] = Math.max(Math.max(y0, y1), Math.max(y2, y3));
+  }
+
+  /**
+   * Writes the inverse transformation into the given one.
+   *
+   * @return false if the transformation can't be inverted.
+   */
+  public boolean invert(final AffineTransform inverse) {
+    final float determinant = scaleX * scaleY - skewX * skewY;
+    if (determinant == 0.0f) {
+      return false;
+    }
+    final float newScaleX = scaleY / determinant;
+    final float newSkewX = -skewX / determinant;
+    final float newSkewY = -skewY / determinant;
+    final float newScaleY = scaleX / determinant;
+    final float newTransX = -(newScaleX * transX + newSkewX * transY);
+    final float newTransY = -(newSkewY * transX + newScaleY * transY);
+    inverse.scaleX = newScaleX;
+    inverse.skewX = newSkewX;
+    inverse.transX = newTransX;
+    inverse.skewY = newSkewY;
+    inverse.scaleY = newScaleY;
+    inverse.transY = newTransY;
+    return true;
+  }
+
+  /**
+   * Writes the 3x3 matrix in the order of android.graphics.Matrix#setValues.
+   *
+   * @return The given array.
+   */
+  public float[] getValues(final float[] values) {
+    values[0] = scaleX;
+    values[1] = skewX;
+    values[2] = transX;
+    values[3] = skewY;
+    values[4] = scaleY;
+    values[5] = transY;
+    values[6] = 0.0f;
+    values[7] = 0.0f;
+    values[8] = 1.0f;
+    return values;
+  }
+}
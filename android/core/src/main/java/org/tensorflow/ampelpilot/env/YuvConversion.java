@@ -0,0 +1,128 @@
+package org.tensorflow.ampelpilot.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The Java implementations of the YUV to ARGB conversions in the app's ImageUtils, which falls
+ * back to them when the native library isn't available. They work on plain arrays and buffers only,
+ * so they can be benchmarked on a desktop JVM.
+ */
+public class YuvConversion {
+
+  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+  // are normalized to eight bits.
+  static final int kMaxChannelValue = 262143;
+
+  private YuvConversion() {}
+
+  /** Converts a YUV420 semi-planar (NV21) frame without row padding. */
+  public static void convertYUV420SPToARGB8888(
+      byte[] input,
+      int width,
+      int height,
+      int[] output) {
+    final int frameSize = width * height;
+    for (int j = 0, yp = 0; j < height; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+
+      for (int i = 0; i < width; i++, yp++) {
+        int y = 0xff & input[yp];
+        if ((i & 1) == 0) {
+          v = 0xff & input[uvp++];
+          u = 0xff & input[uvp++];
+        }
+
+        output[yp] = YUV2RGB(y, u, v);
+      }
+    }
+  }
+
+  public static int YUV2RGB(int y, int u, int v) {
+    // Adjust and check YUV values
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    // This is the floating point equivalent. We do the conversion in integer
+    // because some Android devices do not have floating point in hardware.
+    // nR = (int)(1.164 * nY + 2.018 * nU);
+    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+    // nB = (int)(1.164 * nY + 1.596 * nV);
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+    r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+    g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+    b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  /** Converts YUV420 planes copied into arrays, with the strides of the camera buffers. */
+  public static void convertYUV420ToARGB8888(
+      byte[] yData,
+      byte[] uData,
+      byte[] vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i++) {
+        int uv_offset = pUV + (i >> 1) * uvPixelStride;
+
+        out[yp++] = YUV2RGB(
+            0xff & yData[pY + i],
+            0xff & uData[uv_offset],
+            0xff & vData[uv_offset]);
+      }
+    }
+  }
+
+  /**
+   * Converts the region of the given size starting at (left, top) straight from the plane
+   * buffers, row by row. Left and top must be even; only absolute reads are used, so the
+   * positions of the buffers are left untouched.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int left,
+      int top,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * (top + j) + left;
+      int pUV = uvRowStride * ((top + j) >> 1) + (left >> 1) * uvPixelStride;
+
+      int i = 0;
+      for (; i + 1 < width; i += 2, pUV += uvPixelStride) {
+        final int u = 0xff & uData.get(pUV);
+        final int v = 0xff & vData.get(pUV);
+        out[yp++] = YUV2RGB(0xff & yData.get(pY + i), u, v);
+        out[yp++] = YUV2RGB(0xff & yData.get(pY + i + 1), u, v);
+      }
+      if (i < width) {
+        // Odd width, the last column has a chroma sample of its own.
+        out[yp++] = YUV2RGB(0xff & yData.get(pY + i), 0xff & uData.get(pUV), 0xff & vData.get(pUV));
+      }
+    }
+  }
+}
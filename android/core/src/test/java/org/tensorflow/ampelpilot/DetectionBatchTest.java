@@ -0,0 +1,113 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DetectionBatchTest {
+
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void addGrowsBeyondCapacity() {
+    final DetectionBatch batch = new DetectionBatch(1);
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(i, batch.add(i, i, i + 1, i + 1, 0.1f * i, i % 3));
+    }
+    assertEquals(10, batch.count);
+    assertEquals(9.0f, batch.getLeft(9), EPSILON);
+    assertEquals(10.0f, batch.getBottom(9), EPSILON);
+    assertEquals(0.9f, batch.scores[9], EPSILON);
+    assertEquals(0, batch.classes[9]);
+  }
+
+  @Test
+  public void sortByScoreKeepsBoxesWithTheirScores() {
+    final DetectionBatch batch = new DetectionBatch(4);
+    batch.add(0, 0, 1, 1, 0.2f, 1);
+    batch.add(10, 10, 11, 11, 0.9f, 2);
+    batch.add(20, 20, 21, 21, 0.5f, 1);
+    batch.add(30, 30, 31, 31, 0.7f, 2);
+
+    batch.sortByScore();
+
+    assertEquals(0.9f, batch.scores[0], EPSILON);
+    assertEquals(0.7f, batch.scores[1], EPSILON);
+    assertEquals(0.5f, batch.scores[2], EPSILON);
+    assertEquals(0.2f, batch.scores[3], EPSILON);
+    assertEquals(10.0f, batch.getLeft(0), EPSILON);
+    assertEquals(30.0f, batch.getLeft(1), EPSILON);
+    assertEquals(20.0f, batch.getLeft(2), EPSILON);
+    assertEquals(0.0f, batch.getLeft(3), EPSILON);
+    assertEquals(2, batch.classes[0]);
+    assertEquals(1, batch.classes[3]);
+  }
+
+  @Test
+  public void argMaxScore() {
+    final DetectionBatch batch = new DetectionBatch(3);
+    assertEquals(-1, batch.argMaxScore());
+    batch.add(0, 0, 1, 1, 0.3f, 1);
+    batch.add(0, 0, 1, 1, 0.8f, 1);
+    batch.add(0, 0, 1, 1, 0.5f, 1);
+    assertEquals(1, batch.argMaxScore());
+  }
+
+  @Test
+  public void intersectionOverUnion() {
+    // Two 10x10 boxes overlapping in a 5x10 strip: 50 / (100 + 100 - 50).
+    assertEquals(
+        1.0f / 3.0f, DetectionBatch.intersectionOverUnion(0, 0, 10, 10, 5, 0, 15, 10), EPSILON);
+    assertEquals(1.0f, DetectionBatch.intersectionOverUnion(0, 0, 10, 10, 0, 0, 10, 10), EPSILON);
+    // Touching edges don't overlap.
+    assertEquals(0.0f, DetectionBatch.intersectionOverUnion(0, 0, 10, 10, 10, 0, 20, 10), EPSILON);
+    assertEquals(0.0f, DetectionBatch.intersectionOverUnion(0, 0, 10, 10, 50, 50, 60, 60), EPSILON);
+
+    final float[] a = {0, 0, 10, 10, 5, 0, 15, 10};
+    assertEquals(1.0f / 3.0f, DetectionBatch.intersectionOverUnion(a, 0, a, 1), EPSILON);
+  }
+
+  @Test
+  public void nonMaxSuppressionKeepsTheBestOfOverlappingBoxes() {
+    final DetectionBatch batch = new DetectionBatch(4);
+    batch.add(0, 0, 10, 10, 0.6f, 1);
+    batch.add(1, 0, 11, 10, 0.9f, 1);
+    batch.add(50, 50, 60, 60, 0.4f, 1);
+    batch.add(0, 1, 10, 11, 0.7f, 1);
+
+    batch.nonMaxSuppression(0.5f);
+
+    assertEquals(2, batch.count);
+    assertEquals(0.9f, batch.scores[0], EPSILON);
+    assertEquals(1.0f, batch.getLeft(0), EPSILON);
+    assertEquals(0.4f, batch.scores[1], EPSILON);
+    assertEquals(50.0f, batch.getLeft(1), EPSILON);
+  }
+
+  @Test
+  public void nonMaxSuppressionOnlyCompetesWithinAClass() {
+    final DetectionBatch batch = new DetectionBatch(2);
+    batch.add(0, 0, 10, 10, 0.5f, 1);
+    batch.add(0, 0, 10, 10, 0.8f, 2);
+
+    batch.nonMaxSuppression(0.5f);
+
+    assertEquals(2, batch.count);
+    assertEquals(2, batch.classes[0]);
+    assertEquals(1, batch.classes[1]);
+  }
+
+  @Test
+  public void nonMaxSuppressionKeepsOverlapsBelowTheThreshold() {
+    final DetectionBatch batch = new DetectionBatch(2);
+    batch.add(0, 0, 10, 10, 0.5f, 1);
+    batch.add(5, 0, 15, 10, 0.8f, 1);
+
+    batch.nonMaxSuppression(0.4f);
+    assertEquals(2, batch.count);
+
+    batch.nonMaxSuppression(0.3f);
+    assertEquals(1, batch.count);
+    assertEquals(0.8f, batch.scores[0], EPSILON);
+  }
+}
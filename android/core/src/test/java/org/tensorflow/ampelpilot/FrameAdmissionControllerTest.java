@@ -0,0 +1,232 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class FrameAdmissionControllerTest {
+
+  private static FrameAdmissionController controller(
+      final int maxInFlight, final FrameAdmissionController.DropPolicy policy) {
+    return new FrameAdmissionController(maxInFlight, policy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsAnEmptyDepth() {
+    controller(0, FrameAdmissionController.DropPolicy.FIFO);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsADepthBeyondTheSlotBits() {
+    controller(
+        FrameAdmissionController.MAX_IN_FLIGHT + 1, FrameAdmissionController.DropPolicy.FIFO);
+  }
+
+  @Test
+  public void admitsUpToTheDepth() {
+    final FrameAdmissionController admission =
+        controller(2, FrameAdmissionController.DropPolicy.FIFO);
+
+    assertEquals(0, admission.tryAdmit());
+    assertEquals(1, admission.tryAdmit());
+    assertEquals(-1, admission.tryAdmit());
+    assertEquals(2, admission.getInFlight());
+  }
+
+  @Test
+  public void admitsAllSlotsAtTheMaximumDepth() {
+    final FrameAdmissionController admission =
+        controller(
+            FrameAdmissionController.MAX_IN_FLIGHT, FrameAdmissionController.DropPolicy.FIFO);
+
+    for (int i = 0; i < FrameAdmissionController.MAX_IN_FLIGHT; ++i) {
+      assertEquals(i, admission.tryAdmit());
+    }
+    assertEquals(-1, admission.tryAdmit());
+  }
+
+  @Test
+  public void reusesReleasedSlots() {
+    final FrameAdmissionController admission =
+        controller(3, FrameAdmissionController.DropPolicy.FIFO);
+    admission.tryAdmit();
+    admission.tryAdmit();
+    admission.tryAdmit();
+
+    admission.release(1);
+    assertEquals(2, admission.getInFlight());
+    assertEquals(1, admission.tryAdmit());
+    assertEquals(-1, admission.tryAdmit());
+
+    admission.release(0);
+    admission.release(2);
+    // The lowest free slot comes first.
+    assertEquals(0, admission.tryAdmit());
+    assertEquals(2, admission.tryAdmit());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsADoubleRelease() {
+    final FrameAdmissionController admission =
+        controller(2, FrameAdmissionController.DropPolicy.FIFO);
+    final int slot = admission.tryAdmit();
+    admission.release(slot);
+    admission.release(slot);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsReleasingAFreeSlot() {
+    controller(2, FrameAdmissionController.DropPolicy.FIFO).release(1);
+  }
+
+  @Test
+  public void fifoProcessesEveryAdmittedFrame() {
+    final FrameAdmissionController admission =
+        controller(3, FrameAdmissionController.DropPolicy.FIFO);
+    final int first = admission.tryAdmit();
+    final int second = admission.tryAdmit();
+    final int third = admission.tryAdmit();
+
+    assertTrue(admission.shouldProcess(first));
+    assertTrue(admission.shouldProcess(second));
+    assertTrue(admission.shouldProcess(third));
+  }
+
+  @Test
+  public void latestWinsOnlyProcessesTheNewestFrame() {
+    final FrameAdmissionController admission =
+        controller(3, FrameAdmissionController.DropPolicy.LATEST_WINS);
+    final int first = admission.tryAdmit();
+    assertTrue(admission.shouldProcess(first));
+
+    final int second = admission.tryAdmit();
+    assertFalse(admission.shouldProcess(first));
+    assertTrue(admission.shouldProcess(second));
+
+    // A frame admitted into a reused slot supersedes the waiting one.
+    admission.release(first);
+    final int third = admission.tryAdmit();
+    assertEquals(first, third);
+    assertFalse(admission.shouldProcess(second));
+    assertTrue(admission.shouldProcess(third));
+
+    // Releasing the newest frame doesn't revive an older one.
+    admission.release(third);
+    assertFalse(admission.shouldProcess(second));
+  }
+
+  @Test(timeout = 60000)
+  public void neverExceedsTheDepthUnderContention() throws InterruptedException {
+    stress(FrameAdmissionController.DropPolicy.LATEST_WINS);
+    stress(FrameAdmissionController.DropPolicy.FIFO);
+  }
+
+  /**
+   * Admits frames on producer threads and checks and releases them on consumer threads, like the
+   * camera and inference threads, then checks that no slot was handed out twice or lost.
+   */
+  private static void stress(final FrameAdmissionController.DropPolicy policy)
+      throws InterruptedException {
+    final int depth = 3;
+    final int threads = 4;
+    final int framesPerProducer = 20000;
+    final FrameAdmissionController admission = controller(depth, policy);
+    final BlockingQueue<Integer> admitted = new LinkedBlockingQueue<Integer>();
+    final AtomicIntegerArray slotOwners = new AtomicIntegerArray(depth);
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger admittedCount = new AtomicInteger();
+    final AtomicInteger releasedCount = new AtomicInteger();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch producersDone = new CountDownLatch(threads);
+
+    final Thread[] workers = new Thread[2 * threads];
+    for (int t = 0; t < threads; ++t) {
+      workers[t] =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    start.await();
+                    for (int i = 0; i < framesPerProducer; ++i) {
+                      final int slot = admission.tryAdmit();
+                      if (slot < 0) {
+                        Thread.yield();
+                        continue;
+                      }
+                      if (slotOwners.incrementAndGet(slot) != 1) {
+                        throw new AssertionError("Slot " + slot + " admitted twice");
+                      }
+                      final int current = inFlight.incrementAndGet();
+                      int max;
+                      while (current > (max = maxInFlight.get())
+                          && !maxInFlight.compareAndSet(max, current)) {}
+                      admittedCount.incrementAndGet();
+                      admitted.put(slot);
+                    }
+                  } catch (final Throwable e) {
+                    failure.compareAndSet(null, e);
+                  } finally {
+                    producersDone.countDown();
+                  }
+                }
+              });
+      workers[threads + t] =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    start.await();
+                    while (true) {
+                      final Integer slot = admitted.poll();
+                      if (slot == null) {
+                        if (producersDone.getCount() == 0 && admitted.isEmpty()) {
+                          return;
+                        }
+                        Thread.yield();
+                        continue;
+                      }
+                      admission.shouldProcess(slot);
+                      slotOwners.decrementAndGet(slot);
+                      inFlight.decrementAndGet();
+                      admission.release(slot);
+                      releasedCount.incrementAndGet();
+                    }
+                  } catch (final Throwable e) {
+                    failure.compareAndSet(null, e);
+                  }
+                }
+              });
+    }
+    for (final Thread worker : workers) {
+      worker.start();
+    }
+    start.countDown();
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+
+    assertNull(failure.get());
+    assertTrue(admittedCount.get() > 0);
+    assertTrue(maxInFlight.get() <= depth);
+    assertEquals(admittedCount.get(), releasedCount.get());
+    assertEquals(0, admission.getInFlight());
+    // Every slot is free again.
+    for (int i = 0; i < depth; ++i) {
+      assertTrue(admission.tryAdmit() >= 0);
+    }
+    assertEquals(-1, admission.tryAdmit());
+  }
+}
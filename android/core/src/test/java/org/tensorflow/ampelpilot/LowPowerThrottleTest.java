@@ -0,0 +1,72 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LowPowerThrottleTest {
+
+  // Must match the constant of LowPowerThrottle.
+  private static final long STABLE_BEFORE_THROTTLE_MS = 2000;
+
+  private final LowPowerThrottle throttle = new LowPowerThrottle();
+
+  @Test
+  public void capsAfterTheStablePeriod() {
+    assertEquals(-1, throttle.update(1000, true, "red"));
+    assertEquals(-1, throttle.update(1000 + STABLE_BEFORE_THROTTLE_MS - 1, true, "red"));
+    assertFalse(throttle.isThrottled());
+
+    assertEquals(
+        LowPowerThrottle.THROTTLED_MAX_FPS,
+        throttle.update(1000 + STABLE_BEFORE_THROTTLE_MS, true, "red"));
+    assertTrue(throttle.isThrottled());
+    // Reported once, not on every frame.
+    assertEquals(-1, throttle.update(5000, true, "red"));
+  }
+
+  @Test
+  public void aPhaseChangeLiftsTheCap() {
+    throttle.update(0, true, "red");
+    throttle.update(STABLE_BEFORE_THROTTLE_MS, true, "red");
+
+    assertEquals(0, throttle.update(STABLE_BEFORE_THROTTLE_MS + 100, true, "green"));
+    assertFalse(throttle.isThrottled());
+    // The new phase has to be stable for the whole period again.
+    assertEquals(-1, throttle.update(2 * STABLE_BEFORE_THROTTLE_MS, true, "green"));
+    assertEquals(
+        LowPowerThrottle.THROTTLED_MAX_FPS,
+        throttle.update(2 * STABLE_BEFORE_THROTTLE_MS + 100, true, "green"));
+  }
+
+  @Test
+  public void anUnknownPhaseLiftsTheCap() {
+    throttle.update(0, true, "green");
+    throttle.update(STABLE_BEFORE_THROTTLE_MS, true, "green");
+
+    assertEquals(0, throttle.update(STABLE_BEFORE_THROTTLE_MS + 100, true, "none"));
+    assertEquals(-1, throttle.update(10 * STABLE_BEFORE_THROTTLE_MS, true, null));
+    assertFalse(throttle.isThrottled());
+  }
+
+  @Test
+  public void leavingLowPowerLiftsTheCap() {
+    throttle.update(0, true, "red");
+    throttle.update(STABLE_BEFORE_THROTTLE_MS, true, "red");
+
+    assertEquals(0, throttle.update(STABLE_BEFORE_THROTTLE_MS + 100, false, "red"));
+    // Back in low power the phase is still stable, so the cap returns right away.
+    assertEquals(
+        LowPowerThrottle.THROTTLED_MAX_FPS,
+        throttle.update(STABLE_BEFORE_THROTTLE_MS + 200, true, "red"));
+  }
+
+  @Test
+  public void neverCapsWithoutLowPower() {
+    for (long nowMs = 0; nowMs < 10 * STABLE_BEFORE_THROTTLE_MS; nowMs += 100) {
+      assertEquals(-1, throttle.update(nowMs, false, "red"));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class PhaseStabilizerTest {
+
+  private final PhaseStabilizer stabilizer = new PhaseStabilizer();
+
+  private void feed(final String phase, final int frames) {
+    for (int i = 0; i < frames; ++i) {
+      assertNull(stabilizer.update(phase));
+    }
+  }
+
+  @Test
+  public void confirmsAfterAFullWindow() {
+    feed("red", PhaseStabilizer.WINDOW - 1);
+    assertEquals("red", stabilizer.update("red"));
+    // Stays confirmed while the light keeps its phase.
+    assertEquals("red", stabilizer.update("red"));
+  }
+
+  @Test
+  public void aDifferentPhaseRestartsTheRun() {
+    feed("red", PhaseStabilizer.WINDOW - 1);
+    assertNull(stabilizer.update("green"));
+    feed("green", PhaseStabilizer.WINDOW - 2);
+    assertEquals("green", stabilizer.update("green"));
+  }
+
+  @Test
+  public void aFrameWithoutALightBreaksTheRun() {
+    feed("green", PhaseStabilizer.WINDOW - 1);
+    assertEquals("green", stabilizer.update("green"));
+    assertNull(stabilizer.update(null));
+    feed("green", PhaseStabilizer.WINDOW - 1);
+    assertEquals("green", stabilizer.update("green"));
+  }
+
+  @Test
+  public void framesWithoutALightDontFillTheWindow() {
+    feed(null, 2 * PhaseStabilizer.WINDOW);
+    feed("red", PhaseStabilizer.WINDOW - 1);
+    assertEquals("red", stabilizer.update("red"));
+  }
+
+  @Test
+  public void resetForgetsTheHistory() {
+    feed("red", PhaseStabilizer.WINDOW - 1);
+    stabilizer.reset();
+    feed("red", PhaseStabilizer.WINDOW - 1);
+    assertEquals("red", stabilizer.update("red"));
+  }
+}
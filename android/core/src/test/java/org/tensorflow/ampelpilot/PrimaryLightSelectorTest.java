@@ -0,0 +1,86 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PrimaryLightSelectorTest {
+
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+
+  private static PrimaryLightSelector selector(final PrimaryLightSelector.Weights weights) {
+    final PrimaryLightSelector selector = new PrimaryLightSelector(weights);
+    selector.setFrameGeometry(WIDTH, HEIGHT, 0);
+    return selector;
+  }
+
+  @Test
+  public void nothingToSelect() {
+    assertEquals(
+        -1,
+        selector(PrimaryLightSelector.Weights.DEFAULT)
+            .select(new float[0], new float[0], 0, Float.NaN));
+  }
+
+  @Test
+  public void rankingDependsOnTheWeights() {
+    // A large, peripheral, uncertain light and a slightly smaller, central, confident one.
+    final float[] boxes = {0, 0, 100, 200, 300, 200, 380, 420};
+    final float[] confidences = {0.5f, 0.9f};
+
+    assertEquals(
+        0,
+        selector(PrimaryLightSelector.Weights.AREA_ONLY)
+            .select(boxes, confidences, 2, Float.NaN));
+    assertEquals(
+        1,
+        selector(PrimaryLightSelector.Weights.DEFAULT).select(boxes, confidences, 2, Float.NaN));
+  }
+
+  @Test
+  public void confidenceAndCenterTerms() {
+    final float[] boxes = {300, 220, 340, 260, 0, 0, 40, 40};
+
+    final PrimaryLightSelector byConfidence =
+        selector(new PrimaryLightSelector.Weights(0.0f, 1.0f, 0.0f, 0.0f, 0.0f));
+    assertEquals(1, byConfidence.select(boxes, new float[] {0.6f, 0.8f}, 2, Float.NaN));
+
+    final PrimaryLightSelector byCenter =
+        selector(new PrimaryLightSelector.Weights(0.0f, 0.0f, 1.0f, 0.0f, 0.0f));
+    assertEquals(0, byCenter.select(boxes, new float[] {0.6f, 0.8f}, 2, Float.NaN));
+  }
+
+  @Test
+  public void prefersTheLightTrackedLonger() {
+    final PrimaryLightSelector selector =
+        selector(new PrimaryLightSelector.Weights(0.0f, 0.0f, 0.0f, 0.0f, 1.0f));
+    final float[] tracked = {100, 100, 140, 180};
+    selector.select(tracked, new float[] {0.9f}, 1, Float.NaN);
+
+    // The new light comes first so that a tie would pick it.
+    final float[] boxes = {400, 100, 440, 180, 102, 101, 142, 181};
+    assertEquals(1, selector.select(boxes, new float[] {0.9f, 0.9f}, 2, Float.NaN));
+
+    selector.reset();
+    assertEquals(0, selector.select(boxes, new float[] {0.9f, 0.9f}, 2, Float.NaN));
+  }
+
+  @Test
+  public void prefersTheBearingOfThePreviousChoice() {
+    final PrimaryLightSelector selector =
+        selector(new PrimaryLightSelector.Weights(0.0f, 0.0f, 0.0f, 1.0f, 0.0f));
+    // Left quarter of the frame, seen with the camera heading north.
+    selector.select(new float[] {140, 200, 180, 280}, new float[] {0.9f}, 1, 0.0f);
+
+    // The camera turned 12.5 degrees to the left: the light is now at the center of the frame,
+    // and a light in the left quarter is at a different bearing.
+    final float[] boxes = {140, 200, 180, 280, 300, 200, 340, 280};
+    final float[] confidences = {0.9f, 0.9f};
+    assertEquals(1, selector.select(boxes, confidences, 2, -12.5f));
+
+    // Without a heading the term can't tell them apart.
+    selector.reset();
+    assertEquals(0, selector.select(boxes, confidences, 2, Float.NaN));
+  }
+}
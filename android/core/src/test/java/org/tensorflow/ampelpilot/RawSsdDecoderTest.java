@@ -0,0 +1,146 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RawSsdDecoderTest {
+
+  private static final float EPSILON = 1e-3f;
+  private static final int INPUT_SIZE = 300;
+  private static final int NUM_CLASSES = 3;
+
+  // Center y, center x, height and width of three anchors; the first and the last coincide.
+  private static final float[][] PRIORS = {
+    {0.5f, 0.25f, 0.5f},
+    {0.5f, 0.25f, 0.5f},
+    {0.2f, 0.1f, 0.2f},
+    {0.1f, 0.1f, 0.1f},
+  };
+
+  private float[][] encodings;
+  private float[][] logits;
+  private final DetectionBatch out = new DetectionBatch(4);
+
+  @Before
+  public void setUp() {
+    encodings = new float[3][4];
+    // Anchor 1 moved down by a tenth of its height and doubled in height.
+    encodings[1][0] = 1.0f;
+    encodings[1][2] = 5.0f * (float) Math.log(2.0);
+    logits = new float[3][NUM_CLASSES];
+    for (final float[] anchor : logits) {
+      Arrays.fill(anchor, -10.0f);
+    }
+  }
+
+  @Test
+  public void decodesBoxesRelativeToTheAnchors() {
+    logits[0][1] = 2.0f;
+    logits[1][2] = 3.0f;
+    final RawSsdDecoder decoder = new RawSsdDecoder(PRIORS, NUM_CLASSES, 10);
+
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+
+    assertEquals(2, out.count);
+    // Highest score first: anchor 1, class 2.
+    assertEquals(2, out.classes[0]);
+    assertEquals(sigmoid(3.0f), out.scores[0], EPSILON);
+    assertArrayEquals(
+        new float[] {0.2f * INPUT_SIZE, 0.16f * INPUT_SIZE, 0.3f * INPUT_SIZE, 0.36f * INPUT_SIZE},
+        box(0),
+        EPSILON);
+    // A zero encoding is the anchor itself.
+    assertEquals(1, out.classes[1]);
+    assertEquals(sigmoid(2.0f), out.scores[1], EPSILON);
+    assertArrayEquals(
+        new float[] {0.45f * INPUT_SIZE, 0.4f * INPUT_SIZE, 0.55f * INPUT_SIZE, 0.6f * INPUT_SIZE},
+        box(1),
+        EPSILON);
+  }
+
+  @Test
+  public void skipsTheBackgroundAndScoresBelowTheThreshold() {
+    logits[0][0] = 5.0f;
+    // sigmoid(0) = 0.5, below the default threshold.
+    logits[1][1] = 0.0f;
+    final RawSsdDecoder decoder = new RawSsdDecoder(PRIORS, NUM_CLASSES, 10);
+    decoder.setScoreThreshold(0.6f);
+
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+
+    assertEquals(0, out.count);
+  }
+
+  @Test
+  public void appliesPerClassThresholds() {
+    logits[0][1] = 1.0f;
+    logits[1][2] = 1.0f;
+    final RawSsdDecoder decoder = new RawSsdDecoder(PRIORS, NUM_CLASSES, 10);
+    decoder.setScoreThreshold(2, 0.9f);
+
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+
+    assertEquals(1, out.count);
+    assertEquals(1, out.classes[0]);
+  }
+
+  @Test
+  public void keepsOnlyTheTopKCandidates() {
+    logits[0][1] = 1.0f;
+    logits[1][2] = 3.0f;
+    logits[2][2] = 2.0f;
+    final RawSsdDecoder decoder = new RawSsdDecoder(PRIORS, NUM_CLASSES, 2);
+
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+
+    assertEquals(2, out.count);
+    assertEquals(sigmoid(3.0f), out.scores[0], EPSILON);
+    assertEquals(sigmoid(2.0f), out.scores[1], EPSILON);
+  }
+
+  @Test
+  public void suppressesCoincidingAnchorsOfTheSameClass() {
+    logits[0][1] = 2.0f;
+    logits[2][1] = 1.0f;
+    final RawSsdDecoder decoder = new RawSsdDecoder(PRIORS, NUM_CLASSES, 10);
+
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+    assertEquals(1, out.count);
+    assertEquals(sigmoid(2.0f), out.scores[0], EPSILON);
+
+    logits[2][1] = -10.0f;
+    logits[2][2] = 1.0f;
+    decoder.decode(encodings, logits, INPUT_SIZE, out);
+    assertEquals(2, out.count);
+  }
+
+  @Test
+  public void loadsPriorsRowByRow() throws IOException {
+    final String text = "0.5 0.25\n0.5\t0.25\n\n0.2 0.1\n0.1 0.1\n";
+    final float[][] priors =
+        RawSsdDecoder.loadPriors(new ByteArrayInputStream(text.getBytes("UTF-8")));
+
+    assertEquals(4, priors.length);
+    assertArrayEquals(new float[] {0.5f, 0.25f}, priors[1], 0.0f);
+    assertEquals(2, new RawSsdDecoder(priors, NUM_CLASSES, 10).getNumAnchors());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsRowsOfDifferentLength() throws IOException {
+    RawSsdDecoder.loadPriors(new ByteArrayInputStream("1 2\n3\n".getBytes("UTF-8")));
+  }
+
+  private float[] box(final int i) {
+    return new float[] {out.getLeft(i), out.getTop(i), out.getRight(i), out.getBottom(i)};
+  }
+
+  private static float sigmoid(final float x) {
+    return (float) (1.0 / (1.0 + Math.exp(-x)));
+  }
+}
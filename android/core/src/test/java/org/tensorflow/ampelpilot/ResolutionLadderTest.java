@@ -0,0 +1,117 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResolutionLadderTest {
+
+  // Must match the constants of ResolutionLadder.
+  private static final int DECISION_FRAMES = 15;
+  private static final long COOLDOWN_MS = 3000;
+
+  private static final float SMALL_BOX = 0.02f;
+  private static final float MEDIUM_BOX = 0.08f;
+  private static final float LARGE_BOX = 0.2f;
+  private static final float NO_BOX = -1.0f;
+
+  // 20 fps, enough headroom to step up.
+  private static final long FAST_FRAME_MS = 50;
+  // 5 fps, frames back up.
+  private static final long SLOW_FRAME_MS = 200;
+
+  private ResolutionLadder ladder;
+  private long nowMs;
+
+  @Before
+  public void setUp() {
+    ladder = new ResolutionLadder(ResolutionLadder.DEFAULT_RUNGS, 0);
+    // Past the cool-down of the initial rung.
+    nowMs = 10000;
+  }
+
+  /** Feeds frames and returns the first switch, or -1. */
+  private int feed(final int frames, final long intervalMs, final float boxFraction) {
+    for (int i = 0; i < frames; ++i) {
+      nowMs += intervalMs;
+      final int rung = ladder.onFrameProcessed(nowMs, boxFraction);
+      if (rung >= 0) {
+        return rung;
+      }
+    }
+    return -1;
+  }
+
+  @Test
+  public void stepsUpAfterARunOfSmallBoxes() {
+    // The first frame only starts the frame rate measurement.
+    assertEquals(-1, feed(DECISION_FRAMES, FAST_FRAME_MS, SMALL_BOX));
+    assertEquals(1, feed(1, FAST_FRAME_MS, SMALL_BOX));
+    assertEquals(1, ladder.getCurrentRung());
+  }
+
+  @Test
+  public void stepsUpWhenNothingIsDetected() {
+    assertEquals(1, feed(DECISION_FRAMES + 1, FAST_FRAME_MS, NO_BOX));
+  }
+
+  @Test
+  public void mediumBoxesKeepTheRung() {
+    assertEquals(-1, feed(10 * DECISION_FRAMES, FAST_FRAME_MS, MEDIUM_BOX));
+    assertEquals(0, ladder.getCurrentRung());
+
+    ladder.setCurrentRung(1);
+    assertEquals(-1, feed(10 * DECISION_FRAMES, FAST_FRAME_MS, MEDIUM_BOX));
+    assertEquals(1, ladder.getCurrentRung());
+  }
+
+  @Test
+  public void anInterruptionRestartsTheVote() {
+    assertEquals(-1, feed(DECISION_FRAMES, FAST_FRAME_MS, SMALL_BOX));
+    assertEquals(-1, feed(1, FAST_FRAME_MS, MEDIUM_BOX));
+    assertEquals(-1, feed(DECISION_FRAMES - 1, FAST_FRAME_MS, SMALL_BOX));
+    assertEquals(1, feed(1, FAST_FRAME_MS, SMALL_BOX));
+  }
+
+  @Test
+  public void doesntStepUpWithoutFrameRateHeadroom() {
+    assertEquals(-1, feed(10 * DECISION_FRAMES, 100, SMALL_BOX));
+  }
+
+  @Test
+  public void stepsDownForLargeBoxes() {
+    ladder.setCurrentRung(2);
+    assertEquals(-1, feed(DECISION_FRAMES, FAST_FRAME_MS, LARGE_BOX));
+    assertEquals(1, feed(1, FAST_FRAME_MS, LARGE_BOX));
+  }
+
+  @Test
+  public void stepsDownWhenFramesBackUp() {
+    ladder.setCurrentRung(1);
+    assertEquals(0, feed(DECISION_FRAMES + 1, SLOW_FRAME_MS, SMALL_BOX));
+  }
+
+  @Test
+  public void staysWithinTheRungs() {
+    ladder.setCurrentRung(2);
+    assertEquals(-1, feed(10 * DECISION_FRAMES, FAST_FRAME_MS, SMALL_BOX));
+    ladder.setCurrentRung(0);
+    assertEquals(-1, feed(10 * DECISION_FRAMES, SLOW_FRAME_MS, LARGE_BOX));
+  }
+
+  @Test
+  public void coolsDownAfterASwitch() {
+    assertEquals(1, feed(DECISION_FRAMES + 1, FAST_FRAME_MS, SMALL_BOX));
+    final long switchMs = nowMs;
+    // Large boxes right away, but no switch back before the cool-down is over.
+    assertEquals(0, feed(1000, FAST_FRAME_MS, LARGE_BOX));
+    assertEquals(true, nowMs - switchMs >= COOLDOWN_MS);
+  }
+
+  @Test
+  public void ignoresFramesDuringTheInitialCoolDown() {
+    nowMs = 0;
+    assertEquals(-1, feed((int) (COOLDOWN_MS / FAST_FRAME_MS) - 1, FAST_FRAME_MS, SMALL_BOX));
+  }
+}
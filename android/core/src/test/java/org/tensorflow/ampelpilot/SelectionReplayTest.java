@@ -0,0 +1,93 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class SelectionReplayTest {
+
+  private static final float EPSILON = 1e-5f;
+
+  private static final float[] LEFT_LIGHT = {100, 100, 140, 180};
+  private static final float[] LEFT_LIGHT_LARGER = {98, 96, 142, 184};
+  private static final float[] RIGHT_LIGHT = {500, 100, 542, 184};
+
+  private static SelectionReplay.Frame frame(final float[]... lights) {
+    final float[] boxes = new float[lights.length * 4];
+    final float[] confidences = new float[lights.length];
+    for (int i = 0; i < lights.length; ++i) {
+      System.arraycopy(lights[i], 0, boxes, i * 4, 4);
+      confidences[i] = 0.9f;
+    }
+    return new SelectionReplay.Frame(boxes, confidences, lights.length, Float.NaN);
+  }
+
+  private static SelectionReplay.Report run(
+      final PrimaryLightSelector.Weights weights, final List<SelectionReplay.Frame> frames) {
+    return SelectionReplay.run(weights, frames, 640, 480, 0);
+  }
+
+  @Test
+  public void aSingleLightNeverSwitches() {
+    final List<SelectionReplay.Frame> frames = new ArrayList<SelectionReplay.Frame>();
+    for (int i = 0; i < 5; ++i) {
+      frames.add(frame(i % 2 == 0 ? LEFT_LIGHT : LEFT_LIGHT_LARGER));
+    }
+
+    final SelectionReplay.Report report = run(PrimaryLightSelector.Weights.DEFAULT, frames);
+
+    assertEquals(5, report.frames);
+    assertEquals(5, report.framesWithSelection);
+    assertEquals(4, report.comparablePairs);
+    assertEquals(0, report.switches);
+    assertEquals(1.0f, report.getConsistency(), EPSILON);
+  }
+
+  @Test
+  public void framesWithoutLightsBreakThePairs() {
+    final List<SelectionReplay.Frame> frames = new ArrayList<SelectionReplay.Frame>();
+    frames.add(frame(LEFT_LIGHT));
+    frames.add(frame());
+    frames.add(frame(RIGHT_LIGHT));
+    frames.add(frame(RIGHT_LIGHT));
+
+    final SelectionReplay.Report report = run(PrimaryLightSelector.Weights.DEFAULT, frames);
+
+    assertEquals(4, report.frames);
+    assertEquals(3, report.framesWithSelection);
+    // The jump from the left to the right light spans the empty frame and doesn't count.
+    assertEquals(1, report.comparablePairs);
+    assertEquals(0, report.switches);
+  }
+
+  @Test
+  public void countsSwitchesBetweenLightsOfAlternatingSize() {
+    // Two lights whose apparent sizes swap from frame to frame: the largest one alternates.
+    final float[] rightSmaller = {502, 100, 540, 176};
+    final List<SelectionReplay.Frame> frames = new ArrayList<SelectionReplay.Frame>();
+    for (int i = 0; i < 5; ++i) {
+      frames.add(
+          i % 2 == 0 ? frame(LEFT_LIGHT_LARGER, rightSmaller) : frame(LEFT_LIGHT, RIGHT_LIGHT));
+    }
+
+    final SelectionReplay.Report byArea = run(PrimaryLightSelector.Weights.AREA_ONLY, frames);
+    assertEquals(4, byArea.comparablePairs);
+    assertEquals(4, byArea.switches);
+    assertEquals(0.0f, byArea.getConsistency(), EPSILON);
+
+    final SelectionReplay.Report byTrackAge =
+        run(new PrimaryLightSelector.Weights(0.0f, 0.0f, 0.0f, 0.0f, 1.0f), frames);
+    assertEquals(4, byTrackAge.comparablePairs);
+    assertEquals(0, byTrackAge.switches);
+  }
+
+  @Test
+  public void anEmptyReplayIsConsistent() {
+    final SelectionReplay.Report report =
+        run(PrimaryLightSelector.Weights.DEFAULT, new ArrayList<SelectionReplay.Frame>());
+    assertEquals(0, report.frames);
+    assertEquals(1.0f, report.getConsistency(), EPSILON);
+  }
+}
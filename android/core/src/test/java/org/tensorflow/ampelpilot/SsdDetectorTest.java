@@ -0,0 +1,235 @@
+package org.tensorflow.ampelpilot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class SsdDetectorTest {
+
+  private static final float EPSILON = 1e-3f;
+  private static final int INPUT_SIZE = 300;
+  private static final List<String> LABELS = Arrays.asList("???", "red", "green");
+
+  /** Writes fixed post-processing outputs instead of running a model. */
+  private static class FakeDetector extends SsdDetector {
+
+    // Top, left, bottom and right fractions, class without the background, score.
+    private final float[][] detections;
+
+    FakeDetector(final float[]... detections) {
+      super(LABELS, INPUT_SIZE, false);
+      this.detections = detections;
+    }
+
+    @Override
+    protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+      final float[][] locations = ((float[][][]) outputs.get(0))[0];
+      final float[] classes = ((float[][]) outputs.get(1))[0];
+      final float[] scores = ((float[][]) outputs.get(2))[0];
+      for (int i = 0; i < detections.length; ++i) {
+        System.arraycopy(detections[i], 0, locations[i], 0, 4);
+        classes[i] = detections[i][4];
+        scores[i] = detections[i][5];
+      }
+      ((float[]) outputs.get(3))[0] = detections.length;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  @Test
+  public void decodesPostProcessingOutputsIntoInputCoordinates() {
+    final FakeDetector detector = new FakeDetector(new float[] {0.1f, 0.2f, 0.5f, 0.3f, 1, 0.9f});
+    final DetectionBatch out = new DetectionBatch(1);
+
+    detector.detect(detector.allocateInput(), out);
+
+    assertEquals(1, out.count);
+    assertEquals(0.2f * INPUT_SIZE, out.getLeft(0), EPSILON);
+    assertEquals(0.1f * INPUT_SIZE, out.getTop(0), EPSILON);
+    assertEquals(0.3f * INPUT_SIZE, out.getRight(0), EPSILON);
+    assertEquals(0.5f * INPUT_SIZE, out.getBottom(0), EPSILON);
+    assertEquals(0.9f, out.scores[0], EPSILON);
+    assertEquals("green", detector.getLabel(out.classes[0]));
+  }
+
+  @Test
+  public void stopsAtTheScoreThresholdAndMaxResults() {
+    final FakeDetector detector =
+        new FakeDetector(
+            new float[] {0, 0, 1, 1, 0, 0.9f},
+            new float[] {0, 0, 1, 1, 1, 0.7f},
+            new float[] {0, 0, 1, 1, 0, 0.4f});
+    final DetectionBatch out = new DetectionBatch(3);
+
+    detector.setScoreThreshold(0.5f);
+    detector.detect(detector.allocateInput(), out);
+    assertEquals(2, out.count);
+
+    detector.setMaxResults(1);
+    detector.detect(detector.allocateInput(), out);
+    assertEquals(1, out.count);
+    assertEquals(0.9f, out.scores[0], EPSILON);
+  }
+
+  @Test
+  public void decodesRawOutputsAgainstTheAnchors() {
+    // One anchor centered in the input, a fifth of its size.
+    final float[][] priors = {{0.5f}, {0.5f}, {0.2f}, {0.2f}};
+    final SsdDetector detector =
+        new SsdDetector(LABELS, INPUT_SIZE, false) {
+          @Override
+          protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+            final float[] logits = ((float[][][]) outputs.get(1))[0][0];
+            logits[0] = -10.0f;
+            logits[1] = -10.0f;
+            logits[2] = 4.0f;
+          }
+
+          @Override
+          public void close() {}
+        };
+    detector.useRawOutputs(priors, 10);
+    detector.setScoreThreshold(0.5f);
+    final DetectionBatch out = new DetectionBatch(1);
+
+    detector.detect(detector.allocateInput(), out);
+
+    assertTrue(detector.isRaw());
+    assertEquals(1, out.count);
+    assertEquals("green", detector.getLabel(out.classes[0]));
+    assertEquals(0.4f * INPUT_SIZE, out.getLeft(0), EPSILON);
+    assertEquals(0.6f * INPUT_SIZE, out.getBottom(0), EPSILON);
+  }
+
+  /**
+   * A raw graph whose only anchor scores green in every image whose first input float is
+   * positive, and which can refuse batches.
+   */
+  private static class RawBatchDetector extends SsdDetector {
+
+    private final boolean batchable;
+    int runs;
+    int batchSize = 1;
+
+    RawBatchDetector(final boolean batchable) {
+      super(LABELS, INPUT_SIZE, false);
+      this.batchable = batchable;
+      useRawOutputs(new float[][] {{0.5f}, {0.5f}, {0.2f}, {0.2f}}, 10);
+      setScoreThreshold(0.5f);
+    }
+
+    @Override
+    protected void resizeInput(final int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+      ++runs;
+      if (batchSize > 1 && !batchable) {
+        throw new IllegalArgumentException("Batch size must be 1");
+      }
+      final ByteBuffer input = (ByteBuffer) inputs[0];
+      final float[][][] logits = (float[][][]) outputs.get(1);
+      assertEquals(batchSize, logits.length);
+      for (int b = 0; b < batchSize; ++b) {
+        final boolean green = input.getFloat(b * INPUT_SIZE * INPUT_SIZE * 3 * 4) > 0.0f;
+        logits[b][0][0] = -10.0f;
+        logits[b][0][1] = -10.0f;
+        logits[b][0][2] = green ? 4.0f : -10.0f;
+      }
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  // Marks every second image of the batch as green.
+  private static ByteBuffer alternatingBatch(final SsdDetector detector, final int batchSize) {
+    final ByteBuffer input = detector.allocateInput(batchSize);
+    for (int b = 0; b < batchSize; b += 2) {
+      input.putFloat(b * INPUT_SIZE * INPUT_SIZE * 3 * 4, 1.0f);
+    }
+    return input;
+  }
+
+  private static DetectionBatch[] batches(final int count) {
+    final DetectionBatch[] out = new DetectionBatch[count];
+    for (int b = 0; b < count; ++b) {
+      out[b] = new DetectionBatch(1);
+    }
+    return out;
+  }
+
+  @Test
+  public void runsARawBatchInOneInvocation() {
+    final RawBatchDetector detector = new RawBatchDetector(true);
+    final DetectionBatch[] out = batches(3);
+
+    detector.detectBatch(alternatingBatch(detector, 3), 3, out);
+
+    assertEquals(1, detector.runs);
+    assertEquals(1, out[0].count);
+    assertEquals(0, out[1].count);
+    assertEquals(1, out[2].count);
+    assertEquals("green", detector.getLabel(out[2].classes[0]));
+
+    // A single image resizes the input back.
+    detector.detect(detector.allocateInput(), out[0]);
+    assertEquals(1, detector.batchSize);
+  }
+
+  @Test
+  public void fallsBackToOneImageAtATimeWhenTheBatchIsRefused() {
+    final RawBatchDetector detector = new RawBatchDetector(false);
+    final DetectionBatch[] out = batches(3);
+
+    detector.detectBatch(alternatingBatch(detector, 3), 3, out);
+    assertEquals(1 + 3, detector.runs);
+    assertEquals(1, out[0].count);
+    assertEquals(0, out[1].count);
+    assertEquals(1, out[2].count);
+
+    // Refused once, the batch isn't tried again.
+    detector.detectBatch(alternatingBatch(detector, 3), 3, out);
+    assertEquals(1 + 3 + 3, detector.runs);
+  }
+
+  @Test
+  public void runsPostProcessingBatchesOneImageAtATime() {
+    final FakeDetector detector = new FakeDetector(new float[] {0, 0, 1, 1, 1, 0.9f});
+    final DetectionBatch[] out = batches(2);
+
+    detector.detectBatch(detector.allocateInput(2), 2, out);
+
+    assertEquals(1, out[0].count);
+    assertEquals(1, out[1].count);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void perClassThresholdsNeedTheRawMode() {
+    new FakeDetector().setScoreThreshold(2, 0.5f);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInputsOfTheWrongSize() {
+    new FakeDetector().detect(ByteBuffer.allocateDirect(16), new DetectionBatch(1));
+  }
+
+  @Test
+  public void loadsOneLabelPerLine() throws IOException {
+    final List<String> labels =
+        SsdDetector.loadLabels(new ByteArrayInputStream("???\nred\ngreen\n".getBytes("UTF-8")));
+
+    assertEquals(LABELS, labels);
+  }
+}
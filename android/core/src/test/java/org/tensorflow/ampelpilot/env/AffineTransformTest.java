@@ -0,0 +1,79 @@
+package org.tensorflow.ampelpilot.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AffineTransformTest {
+
+  private static final float EPSILON = 1e-3f;
+
+  @Test
+  public void scalesWithoutRotation() {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(640, 480, 320, 320, 0, false);
+
+    final float[] points = {0, 0, 640, 480, 320, 240};
+    transform.mapPoints(points, 3);
+
+    assertArrayEquals(new float[] {0, 0, 320, 320, 160, 160}, points, EPSILON);
+  }
+
+  @Test
+  public void rotatesClockwiseIntoTheDestination() {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(640, 480, 300, 300, 90, false);
+
+    // The top left corner of the frame ends up at the top right of the destination.
+    final float[] points = {0, 0, 640, 480, 640, 0};
+    transform.mapPoints(points, 3);
+
+    assertArrayEquals(new float[] {300, 0, 0, 300, 300, 300}, points, EPSILON);
+  }
+
+  @Test
+  public void keepsTheAspectRatioByCropping() {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(640, 480, 300, 300, 90, true);
+
+    // Scaled by 300 / 480 in both axes, the long side is cropped.
+    final float[] points = {320, 240, 320, 0};
+    transform.mapPoints(points, 2);
+
+    assertArrayEquals(new float[] {150, 150, 300, 150}, points, EPSILON);
+  }
+
+  @Test
+  public void mapsBoxesToTheBoundsOfTheirCorners() {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(640, 480, 300, 300, 90, false);
+    final float[] boxes = {0, 0, 0, 0, 0, 0, 64, 48};
+
+    transform.mapBox(boxes, 1);
+
+    assertArrayEquals(new float[] {0, 0, 0, 0, 270, 0, 300, 30}, boxes, EPSILON);
+  }
+
+  @Test
+  public void invertsBackToTheSourceFrame() {
+    final AffineTransform transform = new AffineTransform();
+    transform.setFrameTransformation(640, 480, 300, 300, 270, true);
+    final AffineTransform inverse = new AffineTransform();
+    assertTrue(transform.invert(inverse));
+
+    final float[] points = {12, 34, 600, 470};
+    transform.mapPoints(points, 2);
+    inverse.mapPoints(points, 2);
+
+    assertArrayEquals(new float[] {12, 34, 600, 470}, points, EPSILON);
+  }
+
+  @Test
+  public void singularTransformsDontInvert() {
+    final AffineTransform transform = new AffineTransform();
+    transform.postScale(0, 1);
+    assertFalse(transform.invert(new AffineTransform()));
+  }
+}
@@ -0,0 +1,126 @@
+package org.tensorflow.ampelpilot.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+public class YuvConversionTest {
+
+  private static final int WIDTH = 8;
+  private static final int HEIGHT = 6;
+
+  // NV21: a full resolution Y plane followed by interleaved V and U at half resolution.
+  private byte[] nv21;
+  private byte[] yPlane;
+  private byte[] uPlane;
+  private byte[] vPlane;
+
+  @Before
+  public void setUp() {
+    nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+    new Random(42).nextBytes(nv21);
+    yPlane = Arrays.copyOfRange(nv21, 0, WIDTH * HEIGHT);
+    // The planes of an NV21 camera image overlap, with a pixel stride of 2.
+    vPlane = Arrays.copyOfRange(nv21, WIDTH * HEIGHT, nv21.length);
+    uPlane = Arrays.copyOfRange(nv21, WIDTH * HEIGHT + 1, nv21.length);
+  }
+
+  @Test
+  public void convertsKnownColors() {
+    assertEquals(0xff000000, YuvConversion.YUV2RGB(16, 128, 128));
+    assertEquals(0xff000000, YuvConversion.YUV2RGB(0, 128, 128));
+    assertEquals(0xffffffff, YuvConversion.YUV2RGB(255, 128, 128));
+    // Gray stays gray.
+    final int gray = YuvConversion.YUV2RGB(128, 128, 128);
+    assertEquals((gray >> 16) & 0xff, gray & 0xff);
+    assertEquals((gray >> 8) & 0xff, gray & 0xff);
+    // BT.601 red.
+    final int red = YuvConversion.YUV2RGB(81, 90, 240);
+    assertEquals(0xff, (red >> 16) & 0xff, 2);
+    assertEquals(0, (red >> 8) & 0xff, 2);
+    assertEquals(0, red & 0xff, 2);
+  }
+
+  @Test
+  public void readsVBeforeUInNv21() {
+    final byte[] frame = new byte[4 * 2 * 3 / 2];
+    Arrays.fill(frame, 0, 8, (byte) 81);
+    frame[8] = (byte) 240;
+    frame[9] = (byte) 90;
+    frame[10] = (byte) 240;
+    frame[11] = (byte) 90;
+    final int[] argb = new int[8];
+
+    YuvConversion.convertYUV420SPToARGB8888(frame, 4, 2, argb);
+
+    final int red = YuvConversion.YUV2RGB(81, 90, 240);
+    for (final int pixel : argb) {
+      assertEquals(red, pixel);
+    }
+  }
+
+  @Test
+  public void planarArraysMatchNv21() {
+    final int[] expected = new int[WIDTH * HEIGHT];
+    YuvConversion.convertYUV420SPToARGB8888(nv21, WIDTH, HEIGHT, expected);
+
+    final int[] argb = new int[WIDTH * HEIGHT];
+    YuvConversion.convertYUV420ToARGB8888(
+        yPlane, uPlane, vPlane, WIDTH, HEIGHT, WIDTH, WIDTH, 2, argb);
+
+    assertArrayEquals(expected, argb);
+  }
+
+  @Test
+  public void planeBuffersMatchNv21() {
+    final int[] expected = new int[WIDTH * HEIGHT];
+    YuvConversion.convertYUV420SPToARGB8888(nv21, WIDTH, HEIGHT, expected);
+
+    final ByteBuffer y = ByteBuffer.wrap(yPlane);
+    final ByteBuffer u = ByteBuffer.allocateDirect(uPlane.length);
+    u.put(uPlane);
+    final int[] argb = new int[WIDTH * HEIGHT];
+    YuvConversion.convertYUV420ToARGB8888(
+        y, u, ByteBuffer.wrap(vPlane), 0, 0, WIDTH, HEIGHT, WIDTH, WIDTH, 2, argb);
+
+    assertArrayEquals(expected, argb);
+    // Only absolute reads.
+    assertEquals(0, y.position());
+    assertEquals(uPlane.length, u.position());
+  }
+
+  @Test
+  public void convertsARegionOfOddWidth() {
+    final int[] full = new int[WIDTH * HEIGHT];
+    YuvConversion.convertYUV420SPToARGB8888(nv21, WIDTH, HEIGHT, full);
+
+    final int left = 2;
+    final int top = 2;
+    final int width = 5;
+    final int height = 3;
+    final int[] region = new int[width * height];
+    YuvConversion.convertYUV420ToARGB8888(
+        ByteBuffer.wrap(yPlane),
+        ByteBuffer.wrap(uPlane),
+        ByteBuffer.wrap(vPlane),
+        left,
+        top,
+        width,
+        height,
+        WIDTH,
+        WIDTH,
+        2,
+        region);
+
+    for (int j = 0; j < height; ++j) {
+      for (int i = 0; i < width; ++i) {
+        assertEquals(full[(top + j) * WIDTH + left + i], region[j * width + i]);
+      }
+    }
+  }
+}
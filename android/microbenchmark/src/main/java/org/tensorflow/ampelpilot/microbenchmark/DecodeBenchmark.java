@@ -0,0 +1,153 @@
+package org.tensorflow.ampelpilot.microbenchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.SsdDetector;
+
+/**
+ * Decoding the model outputs of one frame into a DetectionBatch, without running a model: the
+ * ten results of the post-processing op, and the per-anchor outputs of a raw SSD graph, which
+ * RawSsdDecoder thresholds, ranks, decodes and suppresses in Java.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+  private static final int INPUT_SIZE = 300;
+  private static final List<String> LABELS = Arrays.asList("???", "red", "green");
+
+  // As many anchors as the prepackaged box_priors.txt.
+  private static final int NUM_ANCHORS = 1917;
+  // Anchors that see a light: three groups of overlapping anchors, so that suppression has work
+  // to do.
+  private static final int FIRST_POSITIVE = 600;
+  private static final int POSITIVE_ANCHORS = 18;
+  private static final int RAW_TOP_K = 100;
+  private static final float SCORE_THRESHOLD = 0.3f;
+
+  /** A model whose outputs are filled once and then decoded again on every call. */
+  private static class FixedOutputs extends SsdDetector {
+
+    private final Random random = new Random(42);
+    private boolean filled;
+
+    FixedOutputs(final float[][] priors) {
+      super(LABELS, INPUT_SIZE, false);
+      if (priors != null) {
+        useRawOutputs(priors, RAW_TOP_K);
+      }
+      setScoreThreshold(SCORE_THRESHOLD);
+    }
+
+    @Override
+    protected void run(final Object[] inputs, final Map<Integer, Object> outputs) {
+      if (filled) {
+        return;
+      }
+      filled = true;
+      if (isRaw()) {
+        fillRaw(((float[][][]) outputs.get(0))[0], ((float[][][]) outputs.get(1))[0]);
+      } else {
+        fillPostProcess(outputs);
+      }
+    }
+
+    private void fillRaw(final float[][] encodings, final float[][] logits) {
+      for (int a = 0; a < NUM_ANCHORS; ++a) {
+        for (int k = 0; k < 4; ++k) {
+          encodings[a][k] = (float) random.nextGaussian() * 0.5f;
+        }
+        for (int c = 0; c < LABELS.size(); ++c) {
+          logits[a][c] = -4.0f + (float) random.nextGaussian();
+        }
+      }
+      for (int a = FIRST_POSITIVE; a < FIRST_POSITIVE + POSITIVE_ANCHORS; ++a) {
+        logits[a][1 + a % 2] = 1.0f + random.nextFloat() * 2.0f;
+      }
+    }
+
+    private void fillPostProcess(final Map<Integer, Object> outputs) {
+      final float[][] locations = ((float[][][]) outputs.get(0))[0];
+      final float[] classes = ((float[][]) outputs.get(1))[0];
+      final float[] scores = ((float[][]) outputs.get(2))[0];
+      float score = 0.95f;
+      for (int i = 0; i < NUM_DETECTIONS; ++i) {
+        final float top = random.nextFloat() * 0.8f;
+        final float left = random.nextFloat() * 0.8f;
+        locations[i][0] = top;
+        locations[i][1] = left;
+        locations[i][2] = top + 0.1f;
+        locations[i][3] = left + 0.05f;
+        classes[i] = random.nextInt(2);
+        scores[i] = score;
+        score -= 0.08f;
+      }
+      ((float[]) outputs.get(3))[0] = NUM_DETECTIONS;
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  private FixedOutputs postProcess;
+  private FixedOutputs raw;
+  private ByteBuffer input;
+  private final DetectionBatch out = new DetectionBatch(RAW_TOP_K);
+
+  @Setup
+  public void setUp() {
+    postProcess = new FixedOutputs(null);
+    raw = new FixedOutputs(priors(new Random(7)));
+    input = postProcess.allocateInput();
+  }
+
+  // Center y, center x, height and width per anchor, in input fractions.
+  private static float[][] priors(final Random random) {
+    final float[][] priors = new float[4][NUM_ANCHORS];
+    for (int a = 0; a < NUM_ANCHORS; ++a) {
+      priors[0][a] = random.nextFloat();
+      priors[1][a] = random.nextFloat();
+      priors[2][a] = 0.05f + random.nextFloat() * 0.3f;
+      priors[3][a] = 0.05f + random.nextFloat() * 0.3f;
+    }
+    for (int a = FIRST_POSITIVE; a < FIRST_POSITIVE + POSITIVE_ANCHORS; ++a) {
+      final int group = (a - FIRST_POSITIVE) / 6;
+      priors[0][a] = 0.2f + group * 0.3f + random.nextFloat() * 0.01f;
+      priors[1][a] = 0.5f + random.nextFloat() * 0.01f;
+      priors[2][a] = 0.2f;
+      priors[3][a] = 0.1f;
+    }
+    return priors;
+  }
+
+  @Benchmark
+  public int postProcessOutputs() {
+    postProcess.detect(input, out);
+    return out.count;
+  }
+
+  @Benchmark
+  public int rawOutputs() {
+    raw.detect(input, out);
+    return out.count;
+  }
+}
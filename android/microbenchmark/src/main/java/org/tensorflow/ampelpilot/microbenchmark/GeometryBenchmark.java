@@ -0,0 +1,135 @@
+package org.tensorflow.ampelpilot.microbenchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.ampelpilot.DetectionBatch;
+import org.tensorflow.ampelpilot.env.AffineTransform;
+
+/**
+ * Box geometry per processed frame: building and inverting the frame-to-crop transformation,
+ * mapping the detections back into the preview frame, the overlap test MultiBoxTracker runs
+ * between a new detection and every tracked object, and non-maximum suppression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+
+  private static final int PREVIEW_WIDTH = 640;
+  private static final int PREVIEW_HEIGHT = 480;
+  private static final int INPUT_SIZE = 300;
+
+  // Detections per frame, as returned by the SSD post-processing op.
+  private static final int DETECTIONS = 10;
+
+  // Candidates before non-maximum suppression, as RawSsdDecoder keeps by default.
+  private static final int NMS_CANDIDATES = 100;
+
+  private final AffineTransform frameToCrop = new AffineTransform();
+  private final AffineTransform cropToFrame = new AffineTransform();
+
+  private final float[] cropBoxes = new float[DETECTIONS * 4];
+  private final float[] mappedBoxes = new float[DETECTIONS * 4];
+  private final float[] candidate = new float[4];
+
+  private final DetectionBatch nmsTemplate = new DetectionBatch(NMS_CANDIDATES);
+  private final DetectionBatch nmsBatch = new DetectionBatch(NMS_CANDIDATES);
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(42);
+    for (int i = 0; i < DETECTIONS; ++i) {
+      randomBox(random, INPUT_SIZE, cropBoxes, i);
+    }
+    randomBox(random, INPUT_SIZE, candidate, 0);
+    // Candidates clustered around a few lights, so suppression has work to do.
+    final float[] box = new float[4];
+    for (int i = 0; i < NMS_CANDIDATES; ++i) {
+      randomBox(random, INPUT_SIZE, box, 0);
+      final float cluster = (i % 5) * 50.0f;
+      nmsTemplate.add(
+          cluster + box[0] * 0.1f,
+          cluster + box[1] * 0.1f,
+          cluster + 40.0f + box[2] * 0.1f,
+          cluster + 80.0f + box[3] * 0.1f,
+          random.nextFloat(),
+          1 + random.nextInt(2));
+    }
+    frameToCrop.setFrameTransformation(
+        PREVIEW_WIDTH, PREVIEW_HEIGHT, INPUT_SIZE, INPUT_SIZE, 90, false);
+    frameToCrop.invert(cropToFrame);
+  }
+
+  private static void randomBox(
+      final Random random, final int size, final float[] boxes, final int i) {
+    final float left = random.nextFloat() * size * 0.8f;
+    final float top = random.nextFloat() * size * 0.8f;
+    boxes[4 * i] = left;
+    boxes[4 * i + 1] = top;
+    boxes[4 * i + 2] = left + 5.0f + random.nextFloat() * size * 0.2f;
+    boxes[4 * i + 3] = top + 5.0f + random.nextFloat() * size * 0.2f;
+  }
+
+  @Benchmark
+  public AffineTransform transformationMatrix() {
+    frameToCrop.setFrameTransformation(
+        PREVIEW_WIDTH, PREVIEW_HEIGHT, INPUT_SIZE, INPUT_SIZE, 90, false);
+    frameToCrop.invert(cropToFrame);
+    return cropToFrame;
+  }
+
+  @Benchmark
+  public float[] mapDetections() {
+    System.arraycopy(cropBoxes, 0, mappedBoxes, 0, mappedBoxes.length);
+    for (int i = 0; i < DETECTIONS; ++i) {
+      cropToFrame.mapBox(mappedBoxes, i);
+    }
+    return mappedBoxes;
+  }
+
+  /** One new detection against every tracked box, as in MultiBoxTracker.handleDetection. */
+  @Benchmark
+  public int trackerOverlap() {
+    int overlapping = 0;
+    for (int i = 0; i < DETECTIONS; ++i) {
+      final float iou =
+          DetectionBatch.intersectionOverUnion(
+              cropBoxes[4 * i],
+              cropBoxes[4 * i + 1],
+              cropBoxes[4 * i + 2],
+              cropBoxes[4 * i + 3],
+              candidate[0],
+              candidate[1],
+              candidate[2],
+              candidate[3]);
+      if (iou > 0.2f) {
+        ++overlapping;
+      }
+    }
+    return overlapping;
+  }
+
+  /** Includes refilling the batch from the template, which is a fraction of the sort. */
+  @Benchmark
+  public int nonMaxSuppression() {
+    nmsBatch.clear();
+    for (int i = 0; i < NMS_CANDIDATES; ++i) {
+      nmsBatch.add(nmsTemplate, i);
+    }
+    nmsBatch.nonMaxSuppression(0.6f);
+    return nmsBatch.count;
+  }
+}
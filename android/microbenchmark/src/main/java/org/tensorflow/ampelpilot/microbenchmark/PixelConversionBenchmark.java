@@ -0,0 +1,87 @@
+package org.tensorflow.ampelpilot.microbenchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.ampelpilot.ModelInput;
+import org.tensorflow.ampelpilot.env.YuvConversion;
+
+/**
+ * The per-pixel steps around the conversion: YUV2RGB on its own and the loop that writes the
+ * 300x300 model input, for the quantized and the float model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixelConversionBenchmark {
+
+  private static final int INPUT_SIZE = 300;
+
+  // Samples per yuv2rgb invocation, so the call overhead of the harness doesn't dominate.
+  private static final int SAMPLES = 4096;
+
+  private final int[] ys = new int[SAMPLES];
+  private final int[] us = new int[SAMPLES];
+  private final int[] vs = new int[SAMPLES];
+
+  private int[] argb;
+  private ByteBuffer quantizedInput;
+  private ByteBuffer floatInput;
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(42);
+    for (int i = 0; i < SAMPLES; ++i) {
+      ys[i] = random.nextInt(256);
+      us[i] = random.nextInt(256);
+      vs[i] = random.nextInt(256);
+    }
+    argb = new int[INPUT_SIZE * INPUT_SIZE];
+    for (int i = 0; i < argb.length; ++i) {
+      argb[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    // Allocated like the input buffers of TFLiteObjectDetectionAPIModel.
+    quantizedInput = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+    quantizedInput.order(ByteOrder.nativeOrder());
+    floatInput = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * 4);
+    floatInput.order(ByteOrder.nativeOrder());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int yuv2rgb() {
+    int result = 0;
+    for (int i = 0; i < SAMPLES; ++i) {
+      result ^= YuvConversion.YUV2RGB(ys[i], us[i], vs[i]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  public ByteBuffer preprocessQuantized() {
+    quantizedInput.rewind();
+    ModelInput.fill(argb, INPUT_SIZE, INPUT_SIZE, true, quantizedInput);
+    return quantizedInput;
+  }
+
+  @Benchmark
+  public ByteBuffer preprocessFloat() {
+    floatInput.rewind();
+    ModelInput.fill(argb, INPUT_SIZE, INPUT_SIZE, false, floatInput);
+    return floatInput;
+  }
+}
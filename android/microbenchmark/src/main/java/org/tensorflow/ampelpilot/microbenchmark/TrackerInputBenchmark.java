@@ -0,0 +1,165 @@
+package org.tensorflow.ampelpilot.microbenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.ampelpilot.DetectionBatch;
+
+/**
+ * Handing the detections of a frame to MultiBoxTracker: as a list of Classifier.Recognition built
+ * by Recognition.listOf for every frame, or straight from the DetectionBatch. Both loops read what
+ * MultiBoxTracker.processResults reads of a detection before tracking it: box, score and label,
+ * dropping boxes that are too small.
+ *
+ * <p>Only this hand-over is modelled. MultiBoxTracker itself depends on android.graphics and the
+ * native ObjectTracker and can't run here, so these numbers say nothing about what tracking a
+ * detection costs or allocates.
+ *
+ * <p>Recognition holds an android.graphics.RectF, so the list side uses a copy of the class with a
+ * plain box of the same layout. It allocates what the app allocated: the list, and per detection
+ * the recognition, its id string, the boxed score and a box for every location access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackerInputBenchmark {
+
+  private static final String[] LABELS = {"???", "red", "green"};
+
+  // Detections per frame, the most the classifier returns.
+  private static final int DETECTIONS = 10;
+
+  // Same as MultiBoxTracker.MIN_SIZE.
+  private static final float MIN_SIZE = 4.0f;
+
+  /** The fields and copy semantics of android.graphics.RectF. */
+  private static final class Box {
+    float left;
+    float top;
+    float right;
+    float bottom;
+
+    Box(final float left, final float top, final float right, final float bottom) {
+      set(left, top, right, bottom);
+    }
+
+    Box(final Box box) {
+      set(box.left, box.top, box.right, box.bottom);
+    }
+
+    void set(final float left, final float top, final float right, final float bottom) {
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+    }
+
+    float width() {
+      return right - left;
+    }
+
+    float height() {
+      return bottom - top;
+    }
+  }
+
+  /** Classifier.Recognition with a Box for the RectF. */
+  private static final class Recognition {
+    private final String id;
+    private final String title;
+    private final Float confidence;
+    private final Box location;
+
+    Recognition(final String id, final String title, final Float confidence, final Box location) {
+      this.id = id;
+      this.title = title;
+      this.confidence = confidence;
+      this.location = location;
+    }
+
+    String getTitle() {
+      return title;
+    }
+
+    Float getConfidence() {
+      return confidence;
+    }
+
+    Box getLocation() {
+      return new Box(location);
+    }
+  }
+
+  private final DetectionBatch batch = new DetectionBatch(DETECTIONS);
+  private final Box scratchBox = new Box(0, 0, 0, 0);
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(42);
+    for (int i = 0; i < DETECTIONS; ++i) {
+      final float left = random.nextFloat() * 600.0f;
+      final float top = random.nextFloat() * 400.0f;
+      // One in five boxes is too small to track.
+      final float size = i % 5 == 0 ? 2.0f : 10.0f + random.nextFloat() * 40.0f;
+      batch.add(left, top, left + size, top + 2 * size, random.nextFloat(), 1 + random.nextInt(2));
+    }
+  }
+
+  // Classifier.Recognition.listOf.
+  private static List<Recognition> listOf(final DetectionBatch batch) {
+    final List<Recognition> recognitions = new ArrayList<Recognition>(batch.count);
+    for (int i = 0; i < batch.count; ++i) {
+      recognitions.add(
+          new Recognition(
+              "" + i,
+              LABELS[batch.classes[i]],
+              batch.scores[i],
+              new Box(batch.getLeft(i), batch.getTop(i), batch.getRight(i), batch.getBottom(i))));
+    }
+    return recognitions;
+  }
+
+  @Benchmark
+  public float recognitionList() {
+    float sum = 0.0f;
+    for (final Recognition result : listOf(batch)) {
+      if (result.getLocation() == null) {
+        continue;
+      }
+      final Box box = new Box(result.getLocation());
+      if (box.width() < MIN_SIZE || box.height() < MIN_SIZE) {
+        continue;
+      }
+      sum += box.left + result.getConfidence() + result.getTitle().length();
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public float detectionBatch() {
+    float sum = 0.0f;
+    for (int i = 0; i < batch.count; ++i) {
+      final Box box = scratchBox;
+      box.set(batch.getLeft(i), batch.getTop(i), batch.getRight(i), batch.getBottom(i));
+      if (box.width() < MIN_SIZE || box.height() < MIN_SIZE) {
+        continue;
+      }
+      sum += box.left + batch.scores[i] + LABELS[batch.classes[i]].length();
+    }
+    return sum;
+  }
+}
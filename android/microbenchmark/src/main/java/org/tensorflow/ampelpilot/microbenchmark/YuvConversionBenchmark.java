@@ -0,0 +1,174 @@
+package org.tensorflow.ampelpilot.microbenchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.ampelpilot.env.YuvConversion;
+
+/**
+ * The YUV to ARGB conversions of ImageUtils at the preview sizes of the capture profiles. The
+ * frames have the layouts cameras deliver: NV21 from the legacy camera, and from Camera2 either
+ * separate planes (pixel stride 1) or interleaved chroma (pixel stride 2), with row padding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConversionBenchmark {
+
+  // Camera2 buffers are commonly padded to a multiple of this many bytes per row.
+  private static final int ROW_ALIGNMENT = 64;
+
+  // Size of the crop the high-res verifier converts.
+  private static final int REGION_SIZE = 300;
+
+  @Param({"640x480", "1280x720"})
+  public String size;
+
+  private int width;
+  private int height;
+
+  private byte[] nv21;
+
+  private byte[] yArray;
+  private byte[] uArray;
+  private byte[] vArray;
+
+  private ByteBuffer yBuffer;
+  private ByteBuffer uPlanar;
+  private ByteBuffer vPlanar;
+  private ByteBuffer uInterleaved;
+  private ByteBuffer vInterleaved;
+
+  private int yRowStride;
+  private int uvPlanarRowStride;
+  private int uvInterleavedRowStride;
+
+  private int[] argb;
+
+  @Setup
+  public void setUp() {
+    final String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    final Random random = new Random(42);
+
+    nv21 = new byte[width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)];
+    random.nextBytes(nv21);
+
+    yRowStride = align(width);
+    uvPlanarRowStride = align((width + 1) / 2);
+    uvInterleavedRowStride = yRowStride;
+    final int chromaRows = (height + 1) / 2;
+
+    yArray = new byte[yRowStride * height];
+    uArray = new byte[uvPlanarRowStride * chromaRows];
+    vArray = new byte[uvPlanarRowStride * chromaRows];
+    random.nextBytes(yArray);
+    random.nextBytes(uArray);
+    random.nextBytes(vArray);
+
+    yBuffer = ByteBuffer.allocateDirect(yArray.length);
+    yBuffer.put(yArray).clear();
+    uPlanar = ByteBuffer.allocateDirect(uArray.length);
+    uPlanar.put(uArray).clear();
+    vPlanar = ByteBuffer.allocateDirect(vArray.length);
+    vPlanar.put(vArray).clear();
+
+    // As with NV12 on Camera2: V is a view of the same buffer starting one byte after U.
+    final byte[] interleaved = new byte[uvInterleavedRowStride * chromaRows];
+    random.nextBytes(interleaved);
+    final ByteBuffer chroma = ByteBuffer.allocateDirect(interleaved.length);
+    chroma.put(interleaved).clear();
+    uInterleaved = chroma.duplicate();
+    uInterleaved.limit(interleaved.length - 1);
+    uInterleaved = uInterleaved.slice();
+    vInterleaved = chroma.duplicate();
+    vInterleaved.position(1);
+    vInterleaved = vInterleaved.slice();
+
+    argb = new int[width * height];
+  }
+
+  private static int align(final int rowBytes) {
+    return (rowBytes + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+  }
+
+  @Benchmark
+  public int[] nv21Array() {
+    YuvConversion.convertYUV420SPToARGB8888(nv21, width, height, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] planarArrays() {
+    YuvConversion.convertYUV420ToARGB8888(
+        yArray, uArray, vArray, width, height, yRowStride, uvPlanarRowStride, 1, argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] planarBuffers() {
+    YuvConversion.convertYUV420ToARGB8888(
+        yBuffer,
+        uPlanar,
+        vPlanar,
+        0,
+        0,
+        width,
+        height,
+        yRowStride,
+        uvPlanarRowStride,
+        1,
+        argb);
+    return argb;
+  }
+
+  @Benchmark
+  public int[] interleavedBuffers() {
+    YuvConversion.convertYUV420ToARGB8888(
+        yBuffer,
+        uInterleaved,
+        vInterleaved,
+        0,
+        0,
+        width,
+        height,
+        yRowStride,
+        uvInterleavedRowStride,
+        2,
+        argb);
+    return argb;
+  }
+
+  /** The centered crop the high-res verifier converts. */
+  @Benchmark
+  public int[] interleavedRegion() {
+    YuvConversion.convertYUV420ToARGB8888(
+        yBuffer,
+        uInterleaved,
+        vInterleaved,
+        (width - REGION_SIZE) / 2 & ~1,
+        (height - REGION_SIZE) / 2 & ~1,
+        REGION_SIZE,
+        REGION_SIZE,
+        yRowStride,
+        uvInterleavedRowStride,
+        2,
+        argb);
+    return argb;
+  }
+}
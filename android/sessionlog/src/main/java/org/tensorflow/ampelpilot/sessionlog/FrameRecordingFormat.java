@@ -0,0 +1,78 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+/**
+ * Layout of a raw frame recording, shared by {@link FrameRecordingWriter} and {@link
+ * FrameRecordingReader}.
+ *
+ * <p>The file starts with a header of {@link #HEADER_SIZE} bytes, followed by chunks of the
+ * header's chunk size. A chunk holds whole frame entries, each aligned to 8 bytes; an entry size
+ * of 0 means the rest of the chunk is unused and the next entry starts at the next chunk. All
+ * values are little endian.
+ *
+ * <pre>
+ * Header:
+ *   0  int   magic ("APFR")
+ *   4  int   version
+ *   8  int   chunk size in bytes
+ *   16 long  wall clock time of the recording start in milliseconds
+ *   24 long  frames written, set when the recording is closed
+ *   32 long  frames dropped, set when the recording is closed
+ *
+ * Frame entry:
+ *   0  int   entry size in bytes including padding, 0 for the end of the chunk
+ *   4  int   image format, android.graphics.ImageFormat (YUV_420_888 or NV21)
+ *   8  long  sensor timestamp in nanoseconds
+ *   16 int   width
+ *   20 int   height
+ *   24 int   orientation, degrees the frame has to be rotated to be upright on the screen
+ *   28 int   number of planes
+ *   32       per plane: int row stride, int pixel stride, int length in bytes
+ *   ..       the bytes of every plane, in plane order
+ * </pre>
+ *
+ * <p>Plane bytes are stored exactly as the camera delivered them, including row padding, so a
+ * replayed frame can be passed to the same conversion as a live one.
+ */
+public final class FrameRecordingFormat {
+
+  public static final int MAGIC = 0x52465041; // "APFR" read as little endian
+  public static final int VERSION = 1;
+
+  public static final int HEADER_SIZE = 64;
+
+  public static final int OFFSET_MAGIC = 0;
+  public static final int OFFSET_VERSION = 4;
+  public static final int OFFSET_CHUNK_SIZE = 8;
+  public static final int OFFSET_START_WALL_MS = 16;
+  public static final int OFFSET_FRAME_COUNT = 24;
+  public static final int OFFSET_DROPPED_COUNT = 32;
+
+  public static final int ENTRY_OFFSET_SIZE = 0;
+  public static final int ENTRY_OFFSET_FORMAT = 4;
+  public static final int ENTRY_OFFSET_TIMESTAMP = 8;
+  public static final int ENTRY_OFFSET_WIDTH = 16;
+  public static final int ENTRY_OFFSET_HEIGHT = 20;
+  public static final int ENTRY_OFFSET_ORIENTATION = 24;
+  public static final int ENTRY_OFFSET_PLANE_COUNT = 28;
+  public static final int ENTRY_OFFSET_PLANES = 32;
+  public static final int PLANE_INFO_SIZE = 12;
+
+  public static final int MAX_PLANES = 3;
+
+  // Values of android.graphics.ImageFormat, repeated so the format is independent of Android.
+  public static final int FORMAT_NV21 = 0x11;
+  public static final int FORMAT_YUV_420_888 = 0x23;
+
+  private FrameRecordingFormat() {}
+
+  /** Size of an entry with the given plane lengths, padded to 8 bytes. */
+  public static int entrySize(final int planeCount, final int dataLength) {
+    final int size = ENTRY_OFFSET_PLANES + planeCount * PLANE_INFO_SIZE + dataLength;
+    return (size + 7) & ~7;
+  }
+
+  /** File offset of a chunk. */
+  public static long chunkOffset(final int chunkSize, final int chunk) {
+    return HEADER_SIZE + (long) chunk * chunkSize;
+  }
+}
@@ -0,0 +1,139 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the frames of a recording written by {@link FrameRecordingWriter} in order, e.g. to
+ * replay them through the detection pipeline.
+ *
+ * <p>A single {@link Frame} is refilled by every call to {@link #next}. Its planes are read-only
+ * views into the mapped file with the strides of the original camera buffers, so they can be
+ * passed to the same YUV conversion as the planes of a live camera image. The views are only
+ * valid until the next call.
+ */
+public class FrameRecordingReader implements Closeable {
+
+  /** One recorded frame. */
+  public static final class Frame {
+    public int format;
+    public long timestampNs;
+    public int width;
+    public int height;
+    public int orientation;
+    public int planeCount;
+    public final ByteBuffer[] planes = new ByteBuffer[FrameRecordingFormat.MAX_PLANES];
+    public final int[] rowStrides = new int[FrameRecordingFormat.MAX_PLANES];
+    public final int[] pixelStrides = new int[FrameRecordingFormat.MAX_PLANES];
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int chunkSize;
+  private final long startWallMs;
+  private final long frameCount;
+  private final long droppedCount;
+
+  private MappedByteBuffer chunk;
+  private int chunkIndex = -1;
+
+  public FrameRecordingReader(final File path) throws IOException {
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    final ByteBuffer header = ByteBuffer.allocate(FrameRecordingFormat.HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    channel.read(header, 0);
+    if (header.getInt(FrameRecordingFormat.OFFSET_MAGIC) != FrameRecordingFormat.MAGIC) {
+      file.close();
+      throw new IOException(path + " is not a frame recording");
+    }
+    final int version = header.getInt(FrameRecordingFormat.OFFSET_VERSION);
+    if (version != FrameRecordingFormat.VERSION) {
+      file.close();
+      throw new IOException("Unsupported frame recording version " + version);
+    }
+    chunkSize = header.getInt(FrameRecordingFormat.OFFSET_CHUNK_SIZE);
+    startWallMs = header.getLong(FrameRecordingFormat.OFFSET_START_WALL_MS);
+    frameCount = header.getLong(FrameRecordingFormat.OFFSET_FRAME_COUNT);
+    droppedCount = header.getLong(FrameRecordingFormat.OFFSET_DROPPED_COUNT);
+  }
+
+  public long getStartWallMs() {
+    return startWallMs;
+  }
+
+  /** Frames in the file, 0 if the recording wasn't closed properly. */
+  public long getFrameCount() {
+    return frameCount;
+  }
+
+  /** Frames the recorder dropped, 0 if the recording wasn't closed properly. */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Reads the next frame into the given one.
+   *
+   * @return false at the end of the recording.
+   */
+  public boolean next(final Frame frame) throws IOException {
+    while (true) {
+      if (chunk != null && chunk.remaining() >= FrameRecordingFormat.ENTRY_OFFSET_PLANES) {
+        final int start = chunk.position();
+        final int size = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_SIZE);
+        if (size > 0) {
+          readEntry(start, frame);
+          chunk.position(start + size);
+          return true;
+        }
+      }
+      if (!nextChunk()) {
+        return false;
+      }
+    }
+  }
+
+  private boolean nextChunk() throws IOException {
+    final long offset = FrameRecordingFormat.chunkOffset(chunkSize, chunkIndex + 1);
+    if (offset + chunkSize > channel.size()) {
+      return false;
+    }
+    ++chunkIndex;
+    chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset, chunkSize);
+    chunk.order(ByteOrder.LITTLE_ENDIAN);
+    return true;
+  }
+
+  private void readEntry(final int start, final Frame frame) {
+    frame.format = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_FORMAT);
+    frame.timestampNs = chunk.getLong(start + FrameRecordingFormat.ENTRY_OFFSET_TIMESTAMP);
+    frame.width = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_WIDTH);
+    frame.height = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_HEIGHT);
+    frame.orientation = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_ORIENTATION);
+    frame.planeCount = chunk.getInt(start + FrameRecordingFormat.ENTRY_OFFSET_PLANE_COUNT);
+    final int planeInfo = start + FrameRecordingFormat.ENTRY_OFFSET_PLANES;
+    int data = planeInfo + frame.planeCount * FrameRecordingFormat.PLANE_INFO_SIZE;
+    for (int p = 0; p < frame.planeCount; ++p) {
+      final int info = planeInfo + p * FrameRecordingFormat.PLANE_INFO_SIZE;
+      frame.rowStrides[p] = chunk.getInt(info);
+      frame.pixelStrides[p] = chunk.getInt(info + 4);
+      final int length = chunk.getInt(info + 8);
+      final ByteBuffer view = chunk.duplicate();
+      view.limit(data + length).position(data);
+      frame.planes[p] = view.slice().asReadOnlyBuffer();
+      data += length;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
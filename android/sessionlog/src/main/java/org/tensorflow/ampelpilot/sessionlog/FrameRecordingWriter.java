@@ -0,0 +1,289 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records raw camera frames into a chunked, memory-mapped file, see {@link FrameRecordingFormat}.
+ *
+ * <p>{@link #offer} copies the planes of a frame into one of a fixed number of buffers and
+ * returns; a writer thread moves filled buffers into the mapped chunk of the file and maps the
+ * next chunk when one is full. Memory is bounded by the buffer count. If no buffer is free
+ * because the storage is slower than the camera, or the size limit is reached, the frame is
+ * dropped and counted instead of delaying the camera.
+ */
+public class FrameRecordingWriter {
+
+  private static final long POLL_TIMEOUT_MS = 100;
+
+  /** A frame copied out of the camera buffers, waiting for the writer thread. */
+  private static final class PendingFrame {
+    int format;
+    long timestampNs;
+    int width;
+    int height;
+    int orientation;
+    int planeCount;
+    final int[] rowStrides = new int[FrameRecordingFormat.MAX_PLANES];
+    final int[] pixelStrides = new int[FrameRecordingFormat.MAX_PLANES];
+    final int[] lengths = new int[FrameRecordingFormat.MAX_PLANES];
+    byte[] data = new byte[0];
+    int dataLength;
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int chunkSize;
+  private final long maxBytes;
+
+  private final BlockingQueue<PendingFrame> free;
+  private final BlockingQueue<PendingFrame> filled;
+
+  // Only used on the writer thread.
+  private MappedByteBuffer chunk;
+  private int chunkIndex = -1;
+
+  private volatile long framesWritten;
+  // Dropped by the camera thread when no buffer is free and by the writer thread.
+  private final AtomicLong framesDropped = new AtomicLong();
+  private volatile boolean closed;
+
+  private final Thread writerThread;
+
+  /**
+   * Creates or overwrites the file and starts the writer thread.
+   *
+   * @param chunkSize Bytes mapped at a time; a frame must fit into one chunk.
+   * @param maxBytes Frames beyond this file size are dropped.
+   * @param bufferCount Frames that may wait for the writer thread.
+   */
+  public FrameRecordingWriter(
+      final File path,
+      final int chunkSize,
+      final long maxBytes,
+      final int bufferCount,
+      final long startWallMs)
+      throws IOException {
+    this.chunkSize = chunkSize;
+    this.maxBytes = maxBytes;
+    file = new RandomAccessFile(path, "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    final ByteBuffer header = ByteBuffer.allocate(FrameRecordingFormat.HEADER_SIZE);
+    header.order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(FrameRecordingFormat.OFFSET_MAGIC, FrameRecordingFormat.MAGIC);
+    header.putInt(FrameRecordingFormat.OFFSET_VERSION, FrameRecordingFormat.VERSION);
+    header.putInt(FrameRecordingFormat.OFFSET_CHUNK_SIZE, chunkSize);
+    header.putLong(FrameRecordingFormat.OFFSET_START_WALL_MS, startWallMs);
+    channel.write(header, 0);
+
+    free = new ArrayBlockingQueue<PendingFrame>(bufferCount);
+    filled = new ArrayBlockingQueue<PendingFrame>(bufferCount);
+    for (int i = 0; i < bufferCount; ++i) {
+      free.add(new PendingFrame());
+    }
+
+    writerThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                writeLoop();
+              }
+            },
+            "FrameRecordingWriter");
+    writerThread.start();
+  }
+
+  /**
+   * Copies a frame for recording. The plane buffers are read from index 0 up to their limit;
+   * their positions are left unchanged.
+   *
+   * @param format {@link FrameRecordingFormat#FORMAT_YUV_420_888} or {@link
+   *     FrameRecordingFormat#FORMAT_NV21}.
+   * @return false if the frame was dropped.
+   */
+  public boolean offer(
+      final int format,
+      final long timestampNs,
+      final int width,
+      final int height,
+      final int orientation,
+      final int planeCount,
+      final ByteBuffer[] planes,
+      final int[] rowStrides,
+      final int[] pixelStrides) {
+    final PendingFrame frame = closed ? null : free.poll();
+    if (frame == null) {
+      framesDropped.incrementAndGet();
+      return false;
+    }
+    int dataLength = 0;
+    for (int p = 0; p < planeCount; ++p) {
+      dataLength += planes[p].limit();
+    }
+    if (frame.data.length < dataLength) {
+      // Only when the first frame or a larger preview size arrives.
+      frame.data = new byte[dataLength];
+    }
+    frame.format = format;
+    frame.timestampNs = timestampNs;
+    frame.width = width;
+    frame.height = height;
+    frame.orientation = orientation;
+    frame.planeCount = planeCount;
+    int offset = 0;
+    for (int p = 0; p < planeCount; ++p) {
+      final ByteBuffer plane = planes[p];
+      final int position = plane.position();
+      final int length = plane.limit();
+      plane.position(0);
+      plane.get(frame.data, offset, length);
+      plane.position(position);
+      frame.rowStrides[p] = rowStrides[p];
+      frame.pixelStrides[p] = pixelStrides[p];
+      frame.lengths[p] = length;
+      offset += length;
+    }
+    frame.dataLength = dataLength;
+    filled.add(frame);
+    return true;
+  }
+
+  /** Same as {@link #offer} for a single NV21 buffer of the Camera1 API. */
+  public boolean offerNv21(
+      final byte[] nv21,
+      final long timestampNs,
+      final int width,
+      final int height,
+      final int orientation) {
+    final PendingFrame frame = closed ? null : free.poll();
+    if (frame == null) {
+      framesDropped.incrementAndGet();
+      return false;
+    }
+    if (frame.data.length < nv21.length) {
+      frame.data = new byte[nv21.length];
+    }
+    frame.format = FrameRecordingFormat.FORMAT_NV21;
+    frame.timestampNs = timestampNs;
+    frame.width = width;
+    frame.height = height;
+    frame.orientation = orientation;
+    frame.planeCount = 1;
+    System.arraycopy(nv21, 0, frame.data, 0, nv21.length);
+    frame.rowStrides[0] = width;
+    frame.pixelStrides[0] = 1;
+    frame.lengths[0] = nv21.length;
+    frame.dataLength = nv21.length;
+    filled.add(frame);
+    return true;
+  }
+
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  public long getFramesDropped() {
+    return framesDropped.get();
+  }
+
+  private void writeLoop() {
+    while (true) {
+      final PendingFrame frame;
+      try {
+        frame = filled.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException e) {
+        continue;
+      }
+      if (frame == null) {
+        if (closed) {
+          return;
+        }
+        continue;
+      }
+      try {
+        if (write(frame)) {
+          ++framesWritten;
+        } else {
+          framesDropped.incrementAndGet();
+        }
+      } catch (final IOException e) {
+        // Storage failed, e.g. because it is full; the remaining frames are dropped.
+        framesDropped.incrementAndGet();
+        closed = true;
+      }
+      free.add(frame);
+    }
+  }
+
+  private boolean write(final PendingFrame frame) throws IOException {
+    final int size = FrameRecordingFormat.entrySize(frame.planeCount, frame.dataLength);
+    if (size > chunkSize) {
+      return false;
+    }
+    if (chunk == null || chunk.remaining() < size) {
+      if (chunk != null && chunk.remaining() >= 4) {
+        chunk.putInt(chunk.position(), 0);
+      }
+      final long offset = FrameRecordingFormat.chunkOffset(chunkSize, chunkIndex + 1);
+      if (offset + chunkSize > maxBytes) {
+        return false;
+      }
+      ++chunkIndex;
+      chunk = channel.map(FileChannel.MapMode.READ_WRITE, offset, chunkSize);
+      chunk.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    final int start = chunk.position();
+    chunk.putInt(size);
+    chunk.putInt(frame.format);
+    chunk.putLong(frame.timestampNs);
+    chunk.putInt(frame.width);
+    chunk.putInt(frame.height);
+    chunk.putInt(frame.orientation);
+    chunk.putInt(frame.planeCount);
+    for (int p = 0; p < frame.planeCount; ++p) {
+      chunk.putInt(frame.rowStrides[p]);
+      chunk.putInt(frame.pixelStrides[p]);
+      chunk.putInt(frame.lengths[p]);
+    }
+    chunk.put(frame.data, 0, frame.dataLength);
+    chunk.position(start + size);
+    return true;
+  }
+
+  /** Writes the frames still waiting, records the counts in the header and closes the file. */
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writerThread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Frames offered while closing arrive after the writer thread has ended.
+    while (filled.poll() != null) {
+      framesDropped.incrementAndGet();
+    }
+    if (chunk != null) {
+      if (chunk.remaining() >= 4) {
+        chunk.putInt(chunk.position(), 0);
+      }
+      chunk.force();
+    }
+    final ByteBuffer counts = ByteBuffer.allocate(16);
+    counts.order(ByteOrder.LITTLE_ENDIAN);
+    counts.putLong(0, framesWritten);
+    counts.putLong(8, framesDropped.get());
+    channel.write(counts, FrameRecordingFormat.OFFSET_FRAME_COUNT);
+    file.close();
+  }
+}
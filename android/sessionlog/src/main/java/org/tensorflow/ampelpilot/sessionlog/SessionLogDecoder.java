@@ -0,0 +1,270 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Turns a session log pulled from the device into CSV or JSON lines, oldest record first.
+ *
+ * <pre>
+ * java -jar sessionlog.jar [--json] session.apsl &gt; session.csv
+ * </pre>
+ *
+ * <p>Times are printed in milliseconds since the session start. CSV has one row per record with
+ * the primary box of a frame; JSON has one object per record with all boxes.
+ */
+public class SessionLogDecoder {
+
+  private final ByteBuffer buffer;
+  private final int recordSize;
+  private final int capacity;
+  private final long startWallMs;
+  private final long startElapsedNs;
+
+  public SessionLogDecoder(final File path) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+    } finally {
+      file.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.limit() < SessionLogFormat.HEADER_SIZE
+        || buffer.getInt(SessionLogFormat.OFFSET_MAGIC) != SessionLogFormat.MAGIC) {
+      throw new IOException(path + " is not a session log");
+    }
+    final int version = buffer.getInt(SessionLogFormat.OFFSET_VERSION);
+    // Newer versions only added record types, older files decode unchanged.
+    if (version < 1 || version > SessionLogFormat.VERSION) {
+      throw new IOException("Unsupported session log version " + version);
+    }
+    recordSize = buffer.getInt(SessionLogFormat.OFFSET_RECORD_SIZE);
+    capacity = buffer.getInt(SessionLogFormat.OFFSET_CAPACITY);
+    startWallMs = buffer.getLong(SessionLogFormat.OFFSET_START_WALL_MS);
+    startElapsedNs = buffer.getLong(SessionLogFormat.OFFSET_START_ELAPSED_NS);
+    if ((long) SessionLogFormat.HEADER_SIZE + (long) capacity * recordSize > buffer.limit()) {
+      throw new IOException(path + " is truncated");
+    }
+  }
+
+  public long getStartWallMs() {
+    return startWallMs;
+  }
+
+  /** Offsets of the written slots, in the order the records were written. */
+  public List<Integer> recordOffsets() {
+    final List<Integer> offsets = new ArrayList<Integer>();
+    for (int slot = 0; slot < capacity; ++slot) {
+      final int offset = SessionLogFormat.HEADER_SIZE + slot * recordSize;
+      if (buffer.getLong(offset + SessionLogFormat.OFFSET_SEQUENCE) != 0) {
+        offsets.add(offset);
+      }
+    }
+    Collections.sort(
+        offsets,
+        new Comparator<Integer>() {
+          @Override
+          public int compare(final Integer a, final Integer b) {
+            return Long.compare(sequence(a), sequence(b));
+          }
+        });
+    return offsets;
+  }
+
+  private long sequence(final int offset) {
+    return buffer.getLong(offset + SessionLogFormat.OFFSET_SEQUENCE);
+  }
+
+  private double timeMs(final int offset) {
+    return (buffer.getLong(offset + SessionLogFormat.OFFSET_TIMESTAMP) - startElapsedNs) / 1e6;
+  }
+
+  private String type(final int offset) {
+    switch (buffer.get(offset + SessionLogFormat.OFFSET_TYPE)) {
+      case SessionLogFormat.TYPE_FRAME:
+        return "frame";
+      case SessionLogFormat.TYPE_FEEDBACK:
+        return "feedback";
+      case SessionLogFormat.TYPE_FRAME_COUNTERS:
+        return "frame_counters";
+      default:
+        return "unknown";
+    }
+  }
+
+  private String phase(final int offset) {
+    return SessionLogFormat.phaseName(buffer.get(offset + SessionLogFormat.OFFSET_PHASE));
+  }
+
+  private int stage(final int offset, final int stage) {
+    return buffer.getInt(offset + SessionLogFormat.OFFSET_STAGES + 4 * stage);
+  }
+
+  private int boxCount(final int offset) {
+    return Math.min(
+        buffer.get(offset + SessionLogFormat.OFFSET_BOX_COUNT), SessionLogFormat.MAX_BOXES);
+  }
+
+  private int primary(final int offset) {
+    return buffer.get(offset + SessionLogFormat.OFFSET_PRIMARY);
+  }
+
+  private String box(final int offset, final int k, final String separator) {
+    final int box = offset + SessionLogFormat.OFFSET_BOXES + k * SessionLogFormat.BOX_SIZE;
+    return String.format(
+        Locale.US,
+        "%.1f%s%.1f%s%.1f%s%.1f%s%.3f%s%d",
+        buffer.getFloat(box),
+        separator,
+        buffer.getFloat(box + 4),
+        separator,
+        buffer.getFloat(box + 8),
+        separator,
+        buffer.getFloat(box + 12),
+        separator,
+        buffer.getFloat(box + 16),
+        separator,
+        buffer.getInt(box + 20));
+  }
+
+  public void writeCsv(final PrintStream out) {
+    final StringBuilder header = new StringBuilder("sequence,time_ms,type,phase");
+    for (final String stage : SessionLogFormat.STAGE_NAMES) {
+      header.append(',').append(stage).append("_us");
+    }
+    header.append(",boxes,left,top,right,bottom,score,class,channel,latency_ms");
+    for (final String counter : SessionLogFormat.COUNTER_NAMES) {
+      header.append(',').append(counter);
+    }
+    out.println(header);
+
+    for (final int offset : recordOffsets()) {
+      final StringBuilder row = new StringBuilder();
+      row.append(sequence(offset))
+          .append(',')
+          .append(String.format(Locale.US, "%.3f", timeMs(offset)))
+          .append(',')
+          .append(type(offset))
+          .append(',')
+          .append(phase(offset));
+      final byte type = buffer.get(offset + SessionLogFormat.OFFSET_TYPE);
+      if (type == SessionLogFormat.TYPE_FRAME) {
+        for (int s = 0; s < SessionLogFormat.STAGE_COUNT; ++s) {
+          row.append(',').append(stage(offset, s));
+        }
+        row.append(',').append(boxCount(offset)).append(',');
+        final int primary = primary(offset);
+        row.append(primary >= 0 ? box(offset, primary, ",") : ",,,,,");
+        row.append(",,");
+      } else {
+        for (int s = 0; s < SessionLogFormat.STAGE_COUNT; ++s) {
+          row.append(',');
+        }
+        row.append(",,,,,,,,");
+        if (type == SessionLogFormat.TYPE_FEEDBACK) {
+          row.append(channel(offset))
+              .append(',')
+              .append(String.format(Locale.US, "%.3f", latencyMs(offset)));
+        } else {
+          row.append(',');
+        }
+      }
+      for (int c = 0; c < SessionLogFormat.COUNTER_COUNT; ++c) {
+        row.append(',');
+        if (type == SessionLogFormat.TYPE_FRAME_COUNTERS) {
+          row.append(counter(offset, c));
+        }
+      }
+      out.println(row);
+    }
+  }
+
+  public void writeJson(final PrintStream out) {
+    for (final int offset : recordOffsets()) {
+      final StringBuilder json = new StringBuilder("{");
+      json.append("\"sequence\":")
+          .append(sequence(offset))
+          .append(String.format(Locale.US, ",\"time_ms\":%.3f", timeMs(offset)))
+          .append(",\"type\":\"")
+          .append(type(offset))
+          .append("\",\"phase\":\"")
+          .append(phase(offset))
+          .append('"');
+      final byte type = buffer.get(offset + SessionLogFormat.OFFSET_TYPE);
+      if (type == SessionLogFormat.TYPE_FRAME) {
+        json.append(",\"stages_us\":{");
+        for (int s = 0; s < SessionLogFormat.STAGE_COUNT; ++s) {
+          json.append(s > 0 ? "," : "")
+              .append('"')
+              .append(SessionLogFormat.STAGE_NAMES[s])
+              .append("\":")
+              .append(stage(offset, s));
+        }
+        json.append("},\"primary\":").append(primary(offset)).append(",\"boxes\":[");
+        for (int k = 0; k < boxCount(offset); ++k) {
+          json.append(k > 0 ? "," : "").append('[').append(box(offset, k, ",")).append(']');
+        }
+        json.append(']');
+      } else if (type == SessionLogFormat.TYPE_FRAME_COUNTERS) {
+        json.append(",\"frames\":{");
+        for (int c = 0; c < SessionLogFormat.COUNTER_COUNT; ++c) {
+          json.append(c > 0 ? "," : "")
+              .append('"')
+              .append(SessionLogFormat.COUNTER_NAMES[c])
+              .append("\":")
+              .append(counter(offset, c));
+        }
+        json.append('}');
+      } else {
+        json.append(",\"channel\":\"")
+            .append(channel(offset))
+            .append(String.format(Locale.US, "\",\"latency_ms\":%.3f", latencyMs(offset)));
+      }
+      out.println(json.append('}'));
+    }
+  }
+
+  private String channel(final int offset) {
+    return SessionLogFormat.channelName(buffer.get(offset + SessionLogFormat.OFFSET_CHANNEL));
+  }
+
+  private double latencyMs(final int offset) {
+    return buffer.getLong(offset + SessionLogFormat.OFFSET_LATENCY) / 1e6;
+  }
+
+  private long counter(final int offset, final int counter) {
+    return buffer.getLong(offset + SessionLogFormat.OFFSET_COUNTERS + 8 * counter);
+  }
+
+  public static void main(final String[] args) throws IOException {
+    boolean json = false;
+    String path = null;
+    for (final String arg : args) {
+      if (arg.equals("--json")) {
+        json = true;
+      } else {
+        path = arg;
+      }
+    }
+    if (path == null) {
+      System.err.println("Usage: SessionLogDecoder [--json] <session log>");
+      System.exit(2);
+    }
+    final SessionLogDecoder decoder = new SessionLogDecoder(new File(path));
+    if (json) {
+      decoder.writeJson(System.out);
+    } else {
+      decoder.writeCsv(System.out);
+    }
+  }
+}
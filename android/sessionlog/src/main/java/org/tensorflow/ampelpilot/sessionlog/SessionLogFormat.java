@@ -0,0 +1,138 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+/**
+ * Layout of a session log file, shared by {@link SessionLogWriter} and {@link SessionLogDecoder}.
+ *
+ * <p>The file starts with a header of {@link #HEADER_SIZE} bytes followed by a ring of
+ * {@code capacity} slots of {@link #RECORD_SIZE} bytes. Records are numbered from 1 and record
+ * {@code n} is stored in slot {@code (n - 1) % capacity}, so once the ring is full the oldest
+ * records are overwritten. A slot whose sequence number is 0 has never been written. All values
+ * are little endian.
+ *
+ * <pre>
+ * Header:
+ *   0  int   magic ("APSL")
+ *   4  int   version
+ *   8  int   record size
+ *   12 int   capacity in records
+ *   16 long  wall clock time of the session start in milliseconds
+ *   24 long  elapsedRealtimeNanos() at the session start, the base of all record timestamps
+ *
+ * Every record:
+ *   0  long  sequence number
+ *   8  long  timestamp, elapsedRealtimeNanos()
+ *   16 byte  record type
+ *   17 byte  phase code
+ *
+ * Frame record:
+ *   18 byte  number of boxes that follow
+ *   19 byte  index of the primary box, -1 if there is none
+ *   20 int[] stage latencies in microseconds, -1 if unknown, see STAGE_
+ *   36 box[] left, top, right, bottom, score as floats and the class as int
+ *
+ * Feedback record:
+ *   18 byte  channel code
+ *   20 long  latency in nanoseconds
+ *
+ * Frame counter record (version 2):
+ *   24 long[] running frame totals, see COUNTER_; the difference of two records gives the rates
+ * </pre>
+ */
+public final class SessionLogFormat {
+
+  public static final int MAGIC = 0x4c535041; // "APSL" read as little endian
+  public static final int VERSION = 2;
+
+  public static final int HEADER_SIZE = 64;
+  public static final int RECORD_SIZE = 136;
+
+  public static final int OFFSET_MAGIC = 0;
+  public static final int OFFSET_VERSION = 4;
+  public static final int OFFSET_RECORD_SIZE = 8;
+  public static final int OFFSET_CAPACITY = 12;
+  public static final int OFFSET_START_WALL_MS = 16;
+  public static final int OFFSET_START_ELAPSED_NS = 24;
+
+  public static final int OFFSET_SEQUENCE = 0;
+  public static final int OFFSET_TIMESTAMP = 8;
+  public static final int OFFSET_TYPE = 16;
+  public static final int OFFSET_PHASE = 17;
+
+  public static final int OFFSET_BOX_COUNT = 18;
+  public static final int OFFSET_PRIMARY = 19;
+  public static final int OFFSET_STAGES = 20;
+  public static final int OFFSET_BOXES = 36;
+
+  public static final int OFFSET_CHANNEL = 18;
+  public static final int OFFSET_LATENCY = 20;
+
+  public static final int OFFSET_COUNTERS = 24;
+
+  public static final byte TYPE_FRAME = 1;
+  public static final byte TYPE_FEEDBACK = 2;
+  public static final byte TYPE_FRAME_COUNTERS = 3;
+
+  /** Age of the frame when inference started: sensor timestamp to inference start. */
+  public static final int STAGE_FRAME_AGE = 0;
+  /** Conversion of the frame to the classifier input. */
+  public static final int STAGE_PREPROCESS = 1;
+  public static final int STAGE_INFERENCE = 2;
+  /** Everything after inference up to the phase decision. */
+  public static final int STAGE_POSTPROCESS = 3;
+  public static final int STAGE_COUNT = 4;
+  public static final String[] STAGE_NAMES = {
+    "frame_age", "preprocess", "inference", "postprocess"
+  };
+
+  /** Frames the camera handed to the app. */
+  public static final int COUNTER_DELIVERED = 0;
+  /** Frames closed in the camera callback because the previous one was still being processed. */
+  public static final int COUNTER_DROPPED_AT_CAPTURE = 1;
+  /** Frames converted and tracked, but not given to the model. */
+  public static final int COUNTER_DROPPED_BEFORE_INFERENCE = 2;
+  /** Frames the model ran on. */
+  public static final int COUNTER_PROCESSED = 3;
+  public static final int COUNTER_COUNT = 4;
+  public static final String[] COUNTER_NAMES = {
+    "delivered", "dropped_at_capture", "dropped_before_inference", "processed"
+  };
+
+  public static final int BOX_SIZE = 24;
+  public static final int MAX_BOXES = (RECORD_SIZE - OFFSET_BOXES) / BOX_SIZE;
+
+  /** Phase names by code; a code beyond the table is logged as "other". */
+  public static final String[] PHASES = {"none", "red", "green"};
+  public static final byte PHASE_OTHER = (byte) PHASES.length;
+
+  /** Feedback channel names by code, matching the channels of the app's PipelineStats. */
+  public static final String[] CHANNELS = {
+    "other", "vibration", "vibration after confirmation", "speech", "speech cue"
+  };
+
+  private SessionLogFormat() {}
+
+  public static byte phaseCode(final String phase) {
+    return (byte) indexOf(PHASES, phase, PHASE_OTHER);
+  }
+
+  public static String phaseName(final int code) {
+    return code >= 0 && code < PHASES.length ? PHASES[code] : "other";
+  }
+
+  public static byte channelCode(final String channel) {
+    return (byte) indexOf(CHANNELS, channel, 0);
+  }
+
+  public static String channelName(final int code) {
+    return code >= 0 && code < CHANNELS.length ? CHANNELS[code] : CHANNELS[0];
+  }
+
+  private static int indexOf(final String[] names, final String name, final int fallback) {
+    for (int i = 0; i < names.length; ++i) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return fallback;
+  }
+}
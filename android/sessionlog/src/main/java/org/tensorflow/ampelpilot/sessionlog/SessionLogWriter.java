@@ -0,0 +1,238 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends fixed size records to a memory-mapped ring file, see {@link SessionLogFormat}.
+ *
+ * <p>The record methods only copy primitives into a preallocated staging ring and return; they
+ * neither allocate nor touch the file. A writer thread moves staged records into the mapped file
+ * every {@link #FLUSH_INTERVAL_MS}. If it falls behind, new records are dropped and counted
+ * instead of blocking the caller.
+ */
+public class SessionLogWriter {
+
+  private static final long FLUSH_INTERVAL_MS = 100;
+
+  private final RandomAccessFile file;
+  private final MappedByteBuffer mapped;
+  private final int capacity;
+
+  private final ByteBuffer staging;
+  private final int stagingCapacity;
+  // Records staged so far and records moved to the file so far; staging slot = count % capacity.
+  private long staged;
+  private volatile long published;
+  private volatile long written;
+  private long dropped;
+
+  private final Thread writerThread;
+  private volatile boolean closed;
+
+  /**
+   * Creates or overwrites the file and starts the writer thread.
+   *
+   * @param capacity Records kept in the file before the oldest are overwritten.
+   * @param stagingCapacity Records that may wait for the writer thread.
+   * @param startElapsedNs Time base of the record timestamps at the session start.
+   */
+  public SessionLogWriter(
+      final File path,
+      final int capacity,
+      final int stagingCapacity,
+      final long startWallMs,
+      final long startElapsedNs)
+      throws IOException {
+    this.capacity = capacity;
+    this.stagingCapacity = stagingCapacity;
+    file = new RandomAccessFile(path, "rw");
+    final long size = SessionLogFormat.HEADER_SIZE + (long) capacity * SessionLogFormat.RECORD_SIZE;
+    file.setLength(0);
+    file.setLength(size);
+    mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+    mapped.putInt(SessionLogFormat.OFFSET_MAGIC, SessionLogFormat.MAGIC);
+    mapped.putInt(SessionLogFormat.OFFSET_VERSION, SessionLogFormat.VERSION);
+    mapped.putInt(SessionLogFormat.OFFSET_RECORD_SIZE, SessionLogFormat.RECORD_SIZE);
+    mapped.putInt(SessionLogFormat.OFFSET_CAPACITY, capacity);
+    mapped.putLong(SessionLogFormat.OFFSET_START_WALL_MS, startWallMs);
+    mapped.putLong(SessionLogFormat.OFFSET_START_ELAPSED_NS, startElapsedNs);
+
+    staging = ByteBuffer.allocate(stagingCapacity * SessionLogFormat.RECORD_SIZE);
+    staging.order(ByteOrder.LITTLE_ENDIAN);
+
+    writerThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                writeLoop();
+              }
+            },
+            "SessionLogWriter");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Records the outcome of one processed frame. The boxes are the flat left, top, right, bottom
+   * quadruples of a detection batch; the first {@link SessionLogFormat#MAX_BOXES} are kept, and
+   * the primary box takes the last kept place if it comes later.
+   *
+   * @param stageMicros Latencies by SessionLogFormat.STAGE_ index, -1 if unknown.
+   * @param primary Index of the primary detection, or -1.
+   */
+  public synchronized void recordFrame(
+      final long timestampNs,
+      final int[] stageMicros,
+      final float[] boxes,
+      final float[] scores,
+      final int[] classes,
+      final int count,
+      final int primary,
+      final String phase) {
+    final int base = beginRecord(timestampNs, SessionLogFormat.TYPE_FRAME, phase);
+    if (base < 0) {
+      return;
+    }
+    final int kept = Math.min(count, SessionLogFormat.MAX_BOXES);
+    int keptPrimary = primary;
+    if (primary >= kept) {
+      keptPrimary = kept - 1;
+    }
+    staging.put(base + SessionLogFormat.OFFSET_BOX_COUNT, (byte) kept);
+    staging.put(base + SessionLogFormat.OFFSET_PRIMARY, (byte) keptPrimary);
+    for (int s = 0; s < SessionLogFormat.STAGE_COUNT; ++s) {
+      staging.putInt(
+          base + SessionLogFormat.OFFSET_STAGES + 4 * s,
+          s < stageMicros.length ? stageMicros[s] : -1);
+    }
+    for (int k = 0; k < kept; ++k) {
+      final int i = k == keptPrimary ? primary : k;
+      final int box = base + SessionLogFormat.OFFSET_BOXES + k * SessionLogFormat.BOX_SIZE;
+      staging.putFloat(box, boxes[4 * i]);
+      staging.putFloat(box + 4, boxes[4 * i + 1]);
+      staging.putFloat(box + 8, boxes[4 * i + 2]);
+      staging.putFloat(box + 12, boxes[4 * i + 3]);
+      staging.putFloat(box + 16, scores[i]);
+      staging.putInt(box + 20, classes[i]);
+    }
+    endRecord();
+  }
+
+  /**
+   * Records the start of a vibration or speech announcement.
+   *
+   * @param channel One of {@link SessionLogFormat#CHANNELS}.
+   */
+  public synchronized void recordFeedback(
+      final long timestampNs, final String channel, final String phase, final long latencyNs) {
+    final int base = beginRecord(timestampNs, SessionLogFormat.TYPE_FEEDBACK, phase);
+    if (base < 0) {
+      return;
+    }
+    staging.put(base + SessionLogFormat.OFFSET_CHANNEL, SessionLogFormat.channelCode(channel));
+    staging.putLong(base + SessionLogFormat.OFFSET_LATENCY, latencyNs);
+    endRecord();
+  }
+
+  /**
+   * Records the frame counters of the pipeline. The phase of the record is always "none".
+   *
+   * @param counters Running totals by SessionLogFormat.COUNTER_ index.
+   */
+  public synchronized void recordFrameCounters(final long timestampNs, final long[] counters) {
+    final int base =
+        beginRecord(
+            timestampNs, SessionLogFormat.TYPE_FRAME_COUNTERS, SessionLogFormat.PHASES[0]);
+    if (base < 0) {
+      return;
+    }
+    for (int c = 0; c < SessionLogFormat.COUNTER_COUNT; ++c) {
+      staging.putLong(
+          base + SessionLogFormat.OFFSET_COUNTERS + 8 * c, c < counters.length ? counters[c] : 0);
+    }
+    endRecord();
+  }
+
+  /** Records dropped because the writer thread fell behind. */
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  /** Returns the staging offset of the new record, or -1 if it has to be dropped. */
+  private int beginRecord(final long timestampNs, final byte type, final String phase) {
+    if (closed || staged - written >= stagingCapacity) {
+      ++dropped;
+      return -1;
+    }
+    final int base = (int) (staged % stagingCapacity) * SessionLogFormat.RECORD_SIZE;
+    // Clear the slot, a shorter record must not leave bytes of an earlier one behind.
+    for (int i = 0; i < SessionLogFormat.RECORD_SIZE; i += 8) {
+      staging.putLong(base + i, 0L);
+    }
+    staging.putLong(base + SessionLogFormat.OFFSET_SEQUENCE, staged + 1);
+    staging.putLong(base + SessionLogFormat.OFFSET_TIMESTAMP, timestampNs);
+    staging.put(base + SessionLogFormat.OFFSET_TYPE, type);
+    staging.put(base + SessionLogFormat.OFFSET_PHASE, SessionLogFormat.phaseCode(phase));
+    return base;
+  }
+
+  private void endRecord() {
+    ++staged;
+    published = staged;
+  }
+
+  private void writeLoop() {
+    // Views owned by this thread, so copying doesn't disturb the producers' absolute puts.
+    final ByteBuffer source = staging.duplicate();
+    final ByteBuffer target = mapped.duplicate();
+    while (true) {
+      // Once closed is seen, every record has been published, so this is the last pass.
+      final boolean finishing = closed;
+      final long available = published;
+      while (written < available) {
+        final int from = (int) (written % stagingCapacity) * SessionLogFormat.RECORD_SIZE;
+        final int to =
+            SessionLogFormat.HEADER_SIZE
+                + (int) (written % capacity) * SessionLogFormat.RECORD_SIZE;
+        source.limit(from + SessionLogFormat.RECORD_SIZE).position(from);
+        target.position(to);
+        target.put(source);
+        written = written + 1;
+      }
+      if (finishing) {
+        return;
+      }
+      try {
+        Thread.sleep(FLUSH_INTERVAL_MS);
+      } catch (final InterruptedException e) {
+        // Woken up by close(), write what is left.
+      }
+    }
+  }
+
+  /** Writes the staged records, forces the file to storage and closes it. */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    writerThread.interrupt();
+    try {
+      writerThread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mapped.force();
+    file.close();
+  }
+}
@@ -0,0 +1,213 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameRecordingWriterTest {
+
+  private static final long START_WALL_MS = 1500000000000L;
+
+  private static final int WIDTH = 6;
+  private static final int HEIGHT = 4;
+  private static final int NV21_LENGTH = WIDTH * HEIGHT * 3 / 2;
+  // One NV21 frame: 32 bytes of entry header, 12 of plane info and 36 of data.
+  private static final int NV21_ENTRY_SIZE = 80;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private File path;
+
+  private FrameRecordingWriter writer(final int chunkSize, final long maxBytes)
+      throws IOException {
+    path = folder.newFile("frames.apfr");
+    return new FrameRecordingWriter(path, chunkSize, maxBytes, 16, START_WALL_MS);
+  }
+
+  private static byte[] nv21(final int frame) {
+    final byte[] data = new byte[NV21_LENGTH];
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = (byte) (frame * 31 + i);
+    }
+    return data;
+  }
+
+  private static void assertPlane(final byte[] expected, final ByteBuffer plane) {
+    assertEquals(expected.length, plane.remaining());
+    for (int i = 0; i < expected.length; ++i) {
+      assertEquals(expected[i], plane.get(plane.position() + i));
+    }
+  }
+
+  private int readEntrySize(final long offset) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(path, "r");
+    try {
+      final ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      file.getChannel().read(size, offset);
+      return size.getInt(0);
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test
+  public void roundTripsPlanesAndStrides() throws IOException {
+    final byte[][] data = {new byte[64], new byte[31], new byte[31]};
+    for (int p = 0; p < data.length; ++p) {
+      for (int i = 0; i < data[p].length; ++i) {
+        data[p][i] = (byte) (p * 100 + i);
+      }
+    }
+    final ByteBuffer[] planes = new ByteBuffer[3];
+    for (int p = 0; p < planes.length; ++p) {
+      planes[p] = ByteBuffer.allocateDirect(data[p].length);
+      planes[p].put(data[p]);
+      // A position the recorder must leave alone.
+      planes[p].position(p);
+    }
+    final FrameRecordingWriter writer = writer(4096, 1 << 20);
+    assertTrue(
+        writer.offer(
+            FrameRecordingFormat.FORMAT_YUV_420_888,
+            123456789L,
+            8,
+            8,
+            90,
+            3,
+            planes,
+            new int[] {8, 8, 8},
+            new int[] {1, 2, 2}));
+    for (int p = 0; p < planes.length; ++p) {
+      assertEquals(p, planes[p].position());
+    }
+    writer.close();
+
+    final FrameRecordingReader reader = new FrameRecordingReader(path);
+    final FrameRecordingReader.Frame frame = new FrameRecordingReader.Frame();
+    assertEquals(START_WALL_MS, reader.getStartWallMs());
+    assertEquals(1, reader.getFrameCount());
+    assertEquals(0, reader.getDroppedCount());
+    assertTrue(reader.next(frame));
+    assertEquals(FrameRecordingFormat.FORMAT_YUV_420_888, frame.format);
+    assertEquals(123456789L, frame.timestampNs);
+    assertEquals(8, frame.width);
+    assertEquals(8, frame.height);
+    assertEquals(90, frame.orientation);
+    assertEquals(3, frame.planeCount);
+    for (int p = 0; p < planes.length; ++p) {
+      assertEquals(8, frame.rowStrides[p]);
+      assertEquals(p == 0 ? 1 : 2, frame.pixelStrides[p]);
+      assertPlane(data[p], frame.planes[p]);
+    }
+    assertFalse(reader.next(frame));
+    reader.close();
+  }
+
+  @Test
+  public void rollsOverIntoTheNextChunk() throws IOException {
+    // Two entries per chunk; the rest of a chunk is long enough for the end marker.
+    final int chunkSize = 2 * NV21_ENTRY_SIZE + 40;
+    final FrameRecordingWriter writer = writer(chunkSize, 1 << 20);
+    for (int frame = 0; frame < 5; ++frame) {
+      assertTrue(writer.offerNv21(nv21(frame), frame * 1000L, WIDTH, HEIGHT, 0));
+    }
+    writer.close();
+
+    assertEquals(FrameRecordingFormat.chunkOffset(chunkSize, 3), path.length());
+    for (int chunk = 0; chunk < 3; ++chunk) {
+      final long endOfEntries =
+          FrameRecordingFormat.chunkOffset(chunkSize, chunk)
+              + (chunk < 2 ? 2 : 1) * NV21_ENTRY_SIZE;
+      assertEquals(0, readEntrySize(endOfEntries));
+    }
+
+    final FrameRecordingReader reader = new FrameRecordingReader(path);
+    final FrameRecordingReader.Frame frame = new FrameRecordingReader.Frame();
+    assertEquals(5, reader.getFrameCount());
+    for (int i = 0; i < 5; ++i) {
+      assertTrue(reader.next(frame));
+      assertEquals(FrameRecordingFormat.FORMAT_NV21, frame.format);
+      assertEquals(i * 1000L, frame.timestampNs);
+      assertEquals(1, frame.planeCount);
+      assertEquals(WIDTH, frame.rowStrides[0]);
+      assertPlane(nv21(i), frame.planes[0]);
+    }
+    assertFalse(reader.next(frame));
+    reader.close();
+  }
+
+  @Test
+  public void skipsARestTooShortForAnEntryHeader() throws IOException {
+    // 16 bytes remain after two entries: enough for the 0 marker, not for an entry header.
+    final int chunkSize = 2 * NV21_ENTRY_SIZE + 16;
+    final FrameRecordingWriter writer = writer(chunkSize, 1 << 20);
+    for (int frame = 0; frame < 3; ++frame) {
+      assertTrue(writer.offerNv21(nv21(frame), frame, WIDTH, HEIGHT, 0));
+    }
+    writer.close();
+
+    assertEquals(
+        0, readEntrySize(FrameRecordingFormat.chunkOffset(chunkSize, 0) + 2 * NV21_ENTRY_SIZE));
+    final FrameRecordingReader reader = new FrameRecordingReader(path);
+    final FrameRecordingReader.Frame frame = new FrameRecordingReader.Frame();
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(reader.next(frame));
+      assertEquals(i, frame.timestampNs);
+    }
+    assertFalse(reader.next(frame));
+    reader.close();
+  }
+
+  @Test
+  public void dropsFramesBeyondTheSizeLimit() throws IOException {
+    final int chunkSize = 2 * NV21_ENTRY_SIZE;
+    // Room for the header and one chunk.
+    final FrameRecordingWriter writer =
+        writer(chunkSize, FrameRecordingFormat.chunkOffset(chunkSize, 1));
+    for (int frame = 0; frame < 4; ++frame) {
+      writer.offerNv21(nv21(frame), frame, WIDTH, HEIGHT, 0);
+    }
+    writer.close();
+    assertEquals(2, writer.getFramesWritten());
+    assertEquals(2, writer.getFramesDropped());
+    assertFalse(writer.offerNv21(nv21(4), 4, WIDTH, HEIGHT, 0));
+    assertEquals(3, writer.getFramesDropped());
+
+    final FrameRecordingReader reader = new FrameRecordingReader(path);
+    final FrameRecordingReader.Frame frame = new FrameRecordingReader.Frame();
+    assertEquals(2, reader.getFrameCount());
+    assertEquals(2, reader.getDroppedCount());
+    assertTrue(reader.next(frame));
+    assertTrue(reader.next(frame));
+    assertEquals(1, frame.timestampNs);
+    assertFalse(reader.next(frame));
+    reader.close();
+  }
+
+  @Test
+  public void dropsFramesLargerThanAChunk() throws IOException {
+    final FrameRecordingWriter writer = writer(NV21_ENTRY_SIZE - 8, 1 << 20);
+    writer.offerNv21(nv21(0), 0, WIDTH, HEIGHT, 0);
+    writer.close();
+    assertEquals(0, writer.getFramesWritten());
+    assertEquals(1, writer.getFramesDropped());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException {
+    path = folder.newFile("session.apsl");
+    final RandomAccessFile file = new RandomAccessFile(path, "rw");
+    file.setLength(FrameRecordingFormat.HEADER_SIZE);
+    file.close();
+    new FrameRecordingReader(path);
+  }
+}
@@ -0,0 +1,188 @@
+package org.tensorflow.ampelpilot.sessionlog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionLogWriterTest {
+
+  private static final long START_WALL_MS = 1500000000000L;
+  private static final long START_ELAPSED_NS = 1000000L;
+
+  private static final int[] STAGES = {1200, 300, 45000, 800};
+  private static final int CSV_COLUMNS =
+      4 + SessionLogFormat.STAGE_COUNT + 7 + 2 + SessionLogFormat.COUNTER_COUNT;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private File path;
+
+  private SessionLogWriter writer(final int capacity, final int stagingCapacity)
+      throws IOException {
+    path = folder.newFile("session.apsl");
+    return new SessionLogWriter(path, capacity, stagingCapacity, START_WALL_MS, START_ELAPSED_NS);
+  }
+
+  private static void recordFrame(final SessionLogWriter writer, final int frame) {
+    writer.recordFrame(
+        START_ELAPSED_NS + frame * 1000000L,
+        STAGES,
+        new float[] {frame, 2, 3, 4},
+        new float[] {0.75f},
+        new int[] {1},
+        1,
+        0,
+        "red");
+  }
+
+  private String[] csv() throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(bytes, true, "UTF-8");
+    new SessionLogDecoder(path).writeCsv(out);
+    return bytes.toString("UTF-8").split("\n");
+  }
+
+  private String[] json() throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final PrintStream out = new PrintStream(bytes, true, "UTF-8");
+    new SessionLogDecoder(path).writeJson(out);
+    return bytes.toString("UTF-8").split("\n");
+  }
+
+  @Test
+  public void keepsTheNewestRecordsWhenTheRingWraps() throws IOException {
+    final SessionLogWriter writer = writer(3, 16);
+    for (int frame = 0; frame < 5; ++frame) {
+      recordFrame(writer, frame);
+    }
+    writer.close();
+
+    final SessionLogDecoder decoder = new SessionLogDecoder(path);
+    assertEquals(START_WALL_MS, decoder.getStartWallMs());
+    assertEquals(3, decoder.recordOffsets().size());
+    final String[] rows = csv();
+    assertEquals(4, rows.length);
+    // Oldest first, although record 4 and 5 sit in the slots before record 3.
+    assertTrue(rows[1].startsWith("3,2.000,frame,red,"));
+    assertTrue(rows[2].startsWith("4,3.000,frame,red,"));
+    assertTrue(rows[3].startsWith("5,4.000,frame,red,"));
+  }
+
+  @Test
+  public void movesAPrimaryBoxBeyondTheLimitIntoTheLastPlace() throws IOException {
+    final int count = SessionLogFormat.MAX_BOXES + 2;
+    final float[] boxes = new float[4 * count];
+    final float[] scores = new float[count];
+    final int[] classes = new int[count];
+    for (int i = 0; i < count; ++i) {
+      boxes[4 * i] = 10 * i;
+      boxes[4 * i + 1] = 10 * i + 1;
+      boxes[4 * i + 2] = 10 * i + 2;
+      boxes[4 * i + 3] = 10 * i + 3;
+      scores[i] = 0.5f;
+      classes[i] = i;
+    }
+    final SessionLogWriter writer = writer(4, 4);
+    writer.recordFrame(START_ELAPSED_NS, STAGES, boxes, scores, classes, count, count - 1, "green");
+    writer.close();
+
+    final String last = "[" + 10 * (count - 1) + ".0,";
+    final String[] lines = json();
+    assertEquals(1, lines.length);
+    assertTrue(lines[0].contains("\"primary\":" + (SessionLogFormat.MAX_BOXES - 1) + ","));
+    assertTrue(lines[0].contains("[0.0,1.0,2.0,3.0,0.500,0]"));
+    assertTrue(lines[0].contains(last));
+    // The box it replaced is gone.
+    assertFalse(lines[0].contains("[" + 10 * (SessionLogFormat.MAX_BOXES - 1) + ".0,"));
+
+    final String[] row = csv()[1].split(",", -1);
+    assertEquals(String.valueOf(SessionLogFormat.MAX_BOXES), row[8]);
+    assertEquals(10.0f * (count - 1), Float.parseFloat(row[9]), 0.0f);
+    assertEquals(String.valueOf(count - 1), row[14]);
+  }
+
+  @Test
+  public void countsRecordsDroppedWhileStagingIsFull() throws IOException {
+    final int stagingCapacity = 2;
+    final int records = 20;
+    final SessionLogWriter writer = writer(64, stagingCapacity);
+    for (int frame = 0; frame < records; ++frame) {
+      recordFrame(writer, frame);
+    }
+    // The writer thread moves staged records every 100 ms, at most once during the loop.
+    final long dropped = writer.getDroppedCount();
+    assertTrue(dropped >= records - 2 * stagingCapacity);
+    writer.close();
+
+    assertEquals(records - dropped, new SessionLogDecoder(path).recordOffsets().size());
+    recordFrame(writer, records);
+    assertEquals(dropped + 1, writer.getDroppedCount());
+  }
+
+  @Test
+  public void writesAFixedCsvLayout() throws IOException {
+    final SessionLogWriter writer = writer(8, 8);
+    recordFrame(writer, 1);
+    writer.recordFeedback(START_ELAPSED_NS + 2500000L, "speech", "green", 1500000L);
+    writer.recordFrameCounters(START_ELAPSED_NS + 3000000L, new long[] {30, 5, 2, 23});
+    writer.recordFrame(
+        START_ELAPSED_NS + 4000000L,
+        new int[] {-1, 10},
+        new float[0],
+        new float[0],
+        new int[0],
+        0,
+        -1,
+        "none");
+    writer.close();
+
+    final String[] rows = csv();
+    assertEquals(5, rows.length);
+    assertEquals(
+        "sequence,time_ms,type,phase,frame_age_us,preprocess_us,inference_us,postprocess_us,"
+            + "boxes,left,top,right,bottom,score,class,channel,latency_ms,"
+            + "delivered,dropped_at_capture,dropped_before_inference,processed",
+        rows[0]);
+    for (final String row : rows) {
+      assertEquals(row, CSV_COLUMNS, row.split(",", -1).length);
+    }
+    assertEquals("1,1.000,frame,red,1200,300,45000,800,1,1.0,2.0,3.0,4.0,0.750,1,,,,,,", rows[1]);
+    assertEquals("2,2.500,feedback,green,,,,,,,,,,,,speech,1.500,,,,", rows[2]);
+    assertEquals("3,3.000,frame_counters,none,,,,,,,,,,,,,,30,5,2,23", rows[3]);
+    assertEquals("4,4.000,frame,none,-1,10,-1,-1,0,,,,,,,,,,,,", rows[4]);
+  }
+
+  @Test
+  public void writesOneJsonObjectPerRecord() throws IOException {
+    final SessionLogWriter writer = writer(8, 8);
+    recordFrame(writer, 1);
+    writer.recordFeedback(START_ELAPSED_NS + 2500000L, "vibration", "red", 500000L);
+    writer.recordFrameCounters(START_ELAPSED_NS + 3000000L, new long[] {30, 5, 2, 23});
+    writer.close();
+
+    final String[] lines = json();
+    assertEquals(3, lines.length);
+    assertEquals(
+        "{\"sequence\":1,\"time_ms\":1.000,\"type\":\"frame\",\"phase\":\"red\","
+            + "\"stages_us\":{\"frame_age\":1200,\"preprocess\":300,\"inference\":45000,"
+            + "\"postprocess\":800},\"primary\":0,\"boxes\":[[1.0,2.0,3.0,4.0,0.750,1]]}",
+        lines[0]);
+    assertEquals(
+        "{\"sequence\":2,\"time_ms\":2.500,\"type\":\"feedback\",\"phase\":\"red\","
+            + "\"channel\":\"vibration\",\"latency_ms\":0.500}",
+        lines[1]);
+    assertEquals(
+        "{\"sequence\":3,\"time_ms\":3.000,\"type\":\"frame_counters\",\"phase\":\"none\","
+            + "\"frames\":{\"delivered\":30,\"dropped_at_capture\":5,"
+            + "\"dropped_before_inference\":2,\"processed\":23}}",
+        lines[2]);
+  }
+}